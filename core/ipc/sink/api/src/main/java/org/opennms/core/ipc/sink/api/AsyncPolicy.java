@@ -66,4 +66,51 @@ public interface AsyncPolicy {
      * should block when the queue is full
      */
     boolean isBlockWhenFull();
+
+    /**
+     * Used to enable spooling of messages to disk when the queue is full.
+     *
+     * When <code>true</code> messages that do not fit in the queue
+     * are serialized to memory-mapped segment files in {@link #getOverflowDirectory()}
+     * and dispatched in order once the queue has drained. Modules that use
+     * aggregation spool each message as its own aggregate, built using
+     * the module's {@link AggregationPolicy}. When the overflow
+     * is also full, the message is dropped. This takes precedence over
+     * {@link #isBlockWhenFull()}.
+     *
+     * @return whether or not messages should overflow to disk
+     */
+    default boolean isOverflowToDisk() {
+        return false;
+    }
+
+    /**
+     * Directory in which the overflow segment files are stored.
+     *
+     * Only used when {@link #isOverflowToDisk()} is <code>true</code>.
+     *
+     * @return path to the overflow directory
+     */
+    default String getOverflowDirectory() {
+        return null;
+    }
+
+    /**
+     * Maximum number of bytes that can be spooled to disk
+     * across all of the segment files.
+     *
+     * @return overflow size in bytes
+     */
+    default long getOverflowMaxBytes() {
+        return 512L * 1024L * 1024L;
+    }
+
+    /**
+     * Size of a single overflow segment file in bytes.
+     *
+     * @return segment size in bytes
+     */
+    default int getOverflowSegmentSize() {
+        return 16 * 1024 * 1024;
+    }
 }
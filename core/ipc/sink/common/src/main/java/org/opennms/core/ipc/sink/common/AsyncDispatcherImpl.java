@@ -28,26 +28,32 @@
 
 package org.opennms.core.ipc.sink.common;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.joda.time.Duration;
 import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.ipc.sink.api.AggregationPolicy;
 import org.opennms.core.ipc.sink.api.AsyncDispatcher;
 import org.opennms.core.ipc.sink.api.AsyncPolicy;
 import org.opennms.core.ipc.sink.api.Message;
+import org.opennms.core.ipc.sink.api.SinkModule;
 import org.opennms.core.ipc.sink.api.SyncDispatcher;
+import org.opennms.core.queue.MappedSegmentQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.swrve.ratelimitedlogger.RateLimitedLog;
 
@@ -55,7 +61,17 @@ public class AsyncDispatcherImpl<W, S extends Message, T extends Message> implem
 
     private static final Logger LOG = LoggerFactory.getLogger(AsyncDispatcherImpl.class);
 
+    /**
+     * Amount of time to wait before checking the overflow again when
+     * it is empty, or when the last dispatch attempt failed.
+     */
+    private static final long OVERFLOW_DRAIN_IDLE_MS = 100;
+    private static final long OVERFLOW_DRAIN_MAX_BACKOFF_MS = 30000;
+
     private final SyncDispatcher<S> syncDispatcher;
+    private final Consumer<T> logDispatcher;
+    private final SinkModule<S,T> module;
+    private final AggregationPolicy<S,T,?> aggregationPolicy;
 
     final RateLimitedLog rateLimittedLogger = RateLimitedLog
             .withRateLimit(LOG)
@@ -63,15 +79,34 @@ public class AsyncDispatcherImpl<W, S extends Message, T extends Message> implem
             .build();
 
     final LinkedBlockingQueue<Runnable> queue;
-    final ExecutorService executor;
+    final ThreadPoolExecutor executor;
+
+    final MappedSegmentQueue overflow;
+    private final Thread overflowDrainer;
+    private final Counter droppedCounter;
+    private final Meter spooledMeter;
+    private final Meter drainedMeter;
+    private volatile boolean closed = false;
 
-    public AsyncDispatcherImpl(DispatcherState<W,S,T> state, AsyncPolicy asyncPolicy, SyncDispatcher<S> syncDispatcher) {
+    /**
+     * @param logDispatcher used to dispatch the aggregates that are drained from the
+     * overflow, bypassing the aggregation performed by the <code>syncDispatcher</code>
+     */
+    public AsyncDispatcherImpl(DispatcherState<W,S,T> state, AsyncPolicy asyncPolicy, SyncDispatcher<S> syncDispatcher, Consumer<T> logDispatcher) {
         Objects.requireNonNull(state);
         Objects.requireNonNull(asyncPolicy);
         this.syncDispatcher = Objects.requireNonNull(syncDispatcher);
+        this.logDispatcher = Objects.requireNonNull(logDispatcher);
+        module = state.getModule();
+        aggregationPolicy = module.getAggregationPolicy();
+        droppedCounter = state.getMetrics().counter(MetricRegistry.name(state.getModule().getId(), "dropped"));
 
         final RejectedExecutionHandler rejectedExecutionHandler;
-        if (asyncPolicy.isBlockWhenFull()) {
+        if (asyncPolicy.isOverflowToDisk()) {
+            // Never block, messages that do not fit in the queue are spooled to disk instead
+            queue = new LinkedBlockingQueue<Runnable>(asyncPolicy.getQueueSize());
+            rejectedExecutionHandler = new ThreadPoolExecutor.AbortPolicy();
+        } else if (asyncPolicy.isBlockWhenFull()) {
             // This queue ensures that calling thread is blocked when the queue is full
             // See the implementation of OfferBlockingQueue for details
             queue = new OfferBlockingQueue<>(asyncPolicy.getQueueSize());
@@ -79,7 +114,6 @@ public class AsyncDispatcherImpl<W, S extends Message, T extends Message> implem
         } else {
             queue = new LinkedBlockingQueue<Runnable>(asyncPolicy.getQueueSize());
             // Reject and increase the dropped counter when the queue is full
-            final Counter droppedCounter = state.getMetrics().counter(MetricRegistry.name(state.getModule().getId(), "dropped"));
             rejectedExecutionHandler = new RejectedExecutionHandler() {
                 @Override
                 public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
@@ -107,6 +141,44 @@ public class AsyncDispatcherImpl<W, S extends Message, T extends Message> implem
                 new LogPreservingThreadFactory("OpenNMS.Sink.AsyncDispatcher." + state.getModule().getId(), Integer.MAX_VALUE),
                 rejectedExecutionHandler
             );
+
+        if (asyncPolicy.isOverflowToDisk()) {
+            overflow = createOverflow(state, asyncPolicy);
+            spooledMeter = state.getMetrics().meter(MetricRegistry.name(state.getModule().getId(), "spooled"));
+            drainedMeter = state.getMetrics().meter(MetricRegistry.name(state.getModule().getId(), "drained"));
+            state.getMetrics().register(MetricRegistry.name(state.getModule().getId(), "spooled-bytes"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return overflow.getSizeInBytes();
+                }
+            });
+            state.getMetrics().register(MetricRegistry.name(state.getModule().getId(), "spooled-segments"), new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return overflow.getNumSegments();
+                }
+            });
+            overflowDrainer = new Thread(this::drainOverflow, "OpenNMS.Sink.AsyncDispatcher.Overflow." + state.getModule().getId());
+            overflowDrainer.setDaemon(true);
+            overflowDrainer.start();
+        } else {
+            overflow = null;
+            spooledMeter = null;
+            drainedMeter = null;
+            overflowDrainer = null;
+        }
+    }
+
+    private static MappedSegmentQueue createOverflow(DispatcherState<?,?,?> state, AsyncPolicy asyncPolicy) {
+        final String overflowDirectory = Objects.requireNonNull(asyncPolicy.getOverflowDirectory(),
+                "overflow directory is required when overflow to disk is enabled");
+        try {
+            return new MappedSegmentQueue(Paths.get(overflowDirectory, state.getModule().getId()),
+                    asyncPolicy.getOverflowSegmentSize(), asyncPolicy.getOverflowMaxBytes());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open the overflow for module " + state.getModule().getId()
+                + " in " + overflowDirectory, e);
+        }
     }
 
     /**
@@ -149,18 +221,124 @@ public class AsyncDispatcherImpl<W, S extends Message, T extends Message> implem
 
     @Override
     public CompletableFuture<S> send(S message) {
+        if (overflow != null && !overflow.isEmpty()) {
+            // Preserve ordering: once we start spooling, keep spooling until the overflow is drained
+            return spool(message);
+        }
         try {
             return CompletableFuture.supplyAsync(() -> {
                 syncDispatcher.send(message);
                 return message;
             }, executor);
         } catch (RejectedExecutionException ree) {
+            if (overflow != null && !closed) {
+                return spool(message);
+            }
             final CompletableFuture<S> future = new CompletableFuture<>();
             future.completeExceptionally(ree);
             return future;
         }
     }
 
+    /**
+     * Writes the message to the overflow.
+     *
+     * The message is spooled as an aggregate containing only this message,
+     * so that it can be (un)marshaled by the module like any other aggregate.
+     *
+     * The returned future completes as soon as the message is persisted
+     * to the overflow, since the message may outlive this instance.
+     */
+    private CompletableFuture<S> spool(S message) {
+        final CompletableFuture<S> future = new CompletableFuture<>();
+        try {
+            if (overflow.offer(module.marshal(toLog(message)))) {
+                spooledMeter.mark();
+                future.complete(message);
+            } else {
+                droppedCounter.inc();
+                rateLimittedLogger.warn("Overflow for module {} is full ({} bytes). Dropping message.",
+                        module.getId(), overflow.getMaxBytes());
+                future.completeExceptionally(new RejectedExecutionException("Overflow is full."));
+            }
+        } catch (IOException|RuntimeException e) {
+            droppedCounter.inc();
+            rateLimittedLogger.warn("Failed to spool message for module {}. Dropping message.", module.getId(), e);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T toLog(S message) {
+        if (aggregationPolicy == null) {
+            // Modules that do not use an AggregationPolicy must have the same types for S and T
+            return (T)message;
+        }
+        return aggregate(aggregationPolicy, message);
+    }
+
+    private static <S, T, U> T aggregate(AggregationPolicy<S,T,U> aggregationPolicy, S message) {
+        return aggregationPolicy.build(aggregationPolicy.aggregate(null, message));
+    }
+
+    /**
+     * Dispatches messages from the overflow in order.
+     *
+     * We only start draining once the in-memory queue is idle, so that messages spooled
+     * to disk are never dispatched before those that were queued in memory before them.
+     * Records are only removed from the overflow once they were successfully dispatched, so
+     * we keep retrying the head of the overflow (with backoff) until the broker is available again.
+     */
+    private void drainOverflow() {
+        long backoffMs = OVERFLOW_DRAIN_IDLE_MS;
+        while (!closed) {
+            try {
+                // Wait for the messages that are still queued, or being dispatched, to go out first
+                final byte[] record = queue.isEmpty() && executor.getActiveCount() == 0 ? overflow.peek() : null;
+                if (record == null) {
+                    Thread.sleep(OVERFLOW_DRAIN_IDLE_MS);
+                    continue;
+                }
+                final T log;
+                try {
+                    log = module.unmarshal(record);
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to unmarshal message from overflow for module {}. Discarding it.", module.getId(), e);
+                    overflow.poll();
+                    droppedCounter.inc();
+                    continue;
+                }
+                try {
+                    logDispatcher.accept(log);
+                } catch (RuntimeException e) {
+                    rateLimittedLogger.warn("Failed to dispatch message from overflow for module {}. Retrying in {}ms.",
+                            module.getId(), backoffMs, e);
+                    Thread.sleep(backoffMs);
+                    backoffMs = Math.min(backoffMs * 2, OVERFLOW_DRAIN_MAX_BACKOFF_MS);
+                    continue;
+                }
+                overflow.poll();
+                drainedMeter.mark();
+                backoffMs = OVERFLOW_DRAIN_IDLE_MS;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                // Keep draining, otherwise send() would keep spooling until the overflow is full
+                rateLimittedLogger.error("Failed to read from the overflow for module {}. Retrying in {}ms.",
+                        module.getId(), backoffMs, e);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMs = Math.min(backoffMs * 2, OVERFLOW_DRAIN_MAX_BACKOFF_MS);
+            }
+        }
+    }
+
     @Override
     public int getQueueSize() {
         return queue.size();
@@ -168,6 +346,13 @@ public class AsyncDispatcherImpl<W, S extends Message, T extends Message> implem
 
     @Override
     public void close() throws Exception {
+        closed = true;
+        if (overflowDrainer != null) {
+            overflowDrainer.interrupt();
+            overflowDrainer.join();
+            // Any remaining records will be dispatched when the overflow is re-opened
+            overflow.close();
+        }
         syncDispatcher.close();
         executor.shutdown();
     }
@@ -32,22 +32,29 @@ import static com.jayway.awaitility.Awaitility.await;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import static org.mockito.Mockito.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.opennms.core.ipc.sink.api.AggregationPolicy;
 import org.opennms.core.ipc.sink.api.AsyncDispatcher;
 import org.opennms.core.ipc.sink.api.AsyncPolicy;
 import org.opennms.core.ipc.sink.api.Message;
@@ -66,6 +73,9 @@ public class AsyncDispatcherTest {
 
     private final ThreadLockingDispatcherFactory<MyMessage> threadLockingDispatcherFactory = new ThreadLockingDispatcherFactory<>();
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test(timeout=3*60*1000)
     public void testConcurrencyAndQueuing() throws Exception {
         when(module.getAsyncPolicy()).thenReturn(new AsyncPolicy() {
@@ -202,4 +212,209 @@ public class AsyncDispatcherTest {
 
         asyncDispatcher.close();
     }
+
+    /**
+     * Messages that do not fit in the queue should be spooled to the overflow, as aggregates,
+     * and dispatched once the queue is idle, without changing their order.
+     */
+    @Test(timeout=3*60*1000)
+    public void testOverflowWithAggregatingModule() throws Exception {
+        final LineSinkModule lineModule = new LineSinkModule(tempFolder.getRoot().getAbsolutePath());
+        final GatedDispatcherFactory dispatcherFactory = new GatedDispatcherFactory();
+        final AsyncDispatcher<Line> asyncDispatcher = dispatcherFactory.createAsyncDispatcher(lineModule);
+
+        // Block the only dispatcher thread with the first message
+        final List<CompletableFuture<Line>> futures = new ArrayList<>();
+        futures.add(asyncDispatcher.send(new Line("0")));
+        await().atMost(1, MINUTES).until(() -> dispatcherFactory.dispatching.getCount(), equalTo(0L));
+
+        // Fill the queue, and spool the remaining messages
+        for (int i = 1; i < 10; i++) {
+            futures.add(asyncDispatcher.send(new Line(Integer.toString(i))));
+        }
+        assertEquals(1, asyncDispatcher.getQueueSize());
+        // Spooled messages are complete as soon as they are written to disk
+        for (CompletableFuture<Line> future : futures.subList(2, futures.size())) {
+            assertTrue(future.isDone());
+            assertTrue(!future.isCompletedExceptionally());
+        }
+
+        dispatcherFactory.gate.countDown();
+        await().atMost(1, MINUTES).until(() -> dispatcherFactory.dispatched, hasSize(10));
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), dispatcherFactory.getDispatchedLines());
+
+        asyncDispatcher.close();
+    }
+
+    /**
+     * Spooled messages should be dispatched by the next dispatcher using the same overflow.
+     */
+    @Test(timeout=3*60*1000)
+    public void testOverflowIsDrainedAfterRestart() throws Exception {
+        final LineSinkModule lineModule = new LineSinkModule(tempFolder.getRoot().getAbsolutePath());
+        final GatedDispatcherFactory blockedFactory = new GatedDispatcherFactory();
+        final AsyncDispatcher<Line> blockedDispatcher = blockedFactory.createAsyncDispatcher(lineModule);
+
+        blockedDispatcher.send(new Line("0"));
+        await().atMost(1, MINUTES).until(() -> blockedFactory.dispatching.getCount(), equalTo(0L));
+        for (int i = 1; i < 5; i++) {
+            blockedDispatcher.send(new Line(Integer.toString(i)));
+        }
+        blockedDispatcher.close();
+        blockedFactory.gate.countDown();
+
+        // Messages 2 through 4 were spooled, and should be dispatched by the new instance
+        final GatedDispatcherFactory dispatcherFactory = new GatedDispatcherFactory();
+        dispatcherFactory.gate.countDown();
+        final AsyncDispatcher<Line> asyncDispatcher = dispatcherFactory.createAsyncDispatcher(lineModule);
+        await().atMost(1, MINUTES).until(() -> dispatcherFactory.dispatched, hasSize(3));
+        assertEquals(Arrays.asList("2", "3", "4"), dispatcherFactory.getDispatchedLines());
+
+        asyncDispatcher.close();
+    }
+
+    private static class Line implements Message {
+        private final String value;
+
+        private Line(String value) {
+            this.value = value;
+        }
+    }
+
+    private static class LineLog implements Message {
+        private final List<String> lines = new ArrayList<>();
+    }
+
+    /**
+     * Aggregates lines into logs, which are marshaled as newline separated strings.
+     */
+    private static class LineSinkModule implements SinkModule<Line, LineLog> {
+        private final String overflowDirectory;
+
+        private LineSinkModule(String overflowDirectory) {
+            this.overflowDirectory = overflowDirectory;
+        }
+
+        @Override
+        public String getId() {
+            return "Line";
+        }
+
+        @Override
+        public int getNumConsumerThreads() {
+            return 1;
+        }
+
+        @Override
+        public byte[] marshal(LineLog log) {
+            return String.join("\n", log.lines).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public LineLog unmarshal(byte[] bytes) {
+            final LineLog log = new LineLog();
+            Collections.addAll(log.lines, new String(bytes, StandardCharsets.UTF_8).split("\n"));
+            return log;
+        }
+
+        @Override
+        public AggregationPolicy<Line, LineLog, LineLog> getAggregationPolicy() {
+            return new AggregationPolicy<Line, LineLog, LineLog>() {
+                @Override
+                public int getCompletionSize() {
+                    return 1;
+                }
+
+                @Override
+                public int getCompletionIntervalMs() {
+                    return 0;
+                }
+
+                @Override
+                public Object key(Line message) {
+                    return getId();
+                }
+
+                @Override
+                public LineLog aggregate(LineLog accumulator, Line newMessage) {
+                    if (accumulator == null) {
+                        accumulator = new LineLog();
+                    }
+                    accumulator.lines.add(newMessage.value);
+                    return accumulator;
+                }
+
+                @Override
+                public LineLog build(LineLog accumulator) {
+                    return accumulator;
+                }
+            };
+        }
+
+        @Override
+        public AsyncPolicy getAsyncPolicy() {
+            return new AsyncPolicy() {
+                @Override
+                public int getQueueSize() {
+                    return 1;
+                }
+
+                @Override
+                public int getNumThreads() {
+                    return 1;
+                }
+
+                @Override
+                public boolean isBlockWhenFull() {
+                    return false;
+                }
+
+                @Override
+                public boolean isOverflowToDisk() {
+                    return true;
+                }
+
+                @Override
+                public String getOverflowDirectory() {
+                    return overflowDirectory;
+                }
+
+                @Override
+                public int getOverflowSegmentSize() {
+                    return 1024;
+                }
+            };
+        }
+    }
+
+    /**
+     * Records the dispatched logs, blocking until the gate is opened.
+     */
+    private static class GatedDispatcherFactory extends AbstractMessageDispatcherFactory<Void> {
+        private final CountDownLatch dispatching = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final List<LineLog> dispatched = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public <S extends Message, T extends Message> void dispatch(SinkModule<S, T> module, Void metadata, T message) {
+            dispatching.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            dispatched.add((LineLog)message);
+        }
+
+        private List<String> getDispatchedLines() {
+            final List<String> lines = new ArrayList<>();
+            synchronized (dispatched) {
+                for (LineLog log : dispatched) {
+                    lines.addAll(log.lines);
+                }
+            }
+            return lines;
+        }
+    }
 }
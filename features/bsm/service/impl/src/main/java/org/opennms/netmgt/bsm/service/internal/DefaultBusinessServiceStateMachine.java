@@ -33,11 +33,15 @@ import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -63,6 +67,7 @@ import org.opennms.netmgt.bsm.service.model.Status;
 import org.opennms.netmgt.bsm.service.model.StatusWithIndex;
 import org.opennms.netmgt.bsm.service.model.StatusWithIndices;
 import org.opennms.netmgt.bsm.service.model.edge.Edge;
+import org.opennms.netmgt.bsm.service.model.functions.annotations.Parameter;
 import org.opennms.netmgt.bsm.service.model.functions.reduce.Threshold;
 import org.opennms.netmgt.bsm.service.model.functions.reduce.ThresholdResultExplanation;
 import org.opennms.netmgt.bsm.service.model.graph.BusinessServiceGraph;
@@ -91,41 +96,98 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
 
     private final List<BusinessServiceStateChangeHandler> m_handlers = Lists.newArrayList();
     private final ReadWriteLock m_rwLock = new ReentrantReadWriteLock();
-    private BusinessServiceGraph m_g = new BusinessServiceGraphImpl(Collections.emptyList());
+    private volatile BusinessServiceGraph m_g = new BusinessServiceGraphImpl(Collections.emptyList());
+
+    /**
+     * The statuses served to readers, which never need to wait for the locks.
+     */
+    private volatile StatusSnapshot m_snapshot = new StatusSnapshot(m_g);
+
+    /**
+     * Vertices of the current graph whose status changed since the last snapshot was published.
+     * Guarded by the write lock.
+     */
+    private final Set<GraphVertex> m_updatedVertices = Sets.newIdentityHashSet();
+
+    /**
+     * Serializes changes to the graph, which are prepared without holding the write lock.
+     */
+    private final Object m_reloadLock = new Object();
 
     @Override
     public void setBusinessServices(List<BusinessService> businessServices) {
+        synchronized (m_reloadLock) {
+            // Create a new graph, the current graph remains in use while we do so
+            final BusinessServiceGraph g = new BusinessServiceGraphImpl(businessServices);
+            replaceGraph(g);
+        }
+    }
+
+    private void replaceGraph(BusinessServiceGraph g) {
+        // Keep track of the new reductions keys
+        final Set<String> reductionsKeysToLookup = Sets.newHashSet(Sets.difference(g.getReductionKeys(), m_g.getReductionKeys()));
+
+        Map<String, AlarmWrapper> lookup = Collections.emptyMap();
+        if (m_alarmProvider == null && reductionsKeysToLookup.size() > 0) {
+            LOG.warn("There are one or more reduction keys to lookup, but no alarm provider is set.");
+        } else if (reductionsKeysToLookup.size() > 0) {
+            // Query the status of the reductions keys that were added
+            // We do this so that we can immediately reflect the state of the new
+            // graph without having to wait for calls to handleNewOrUpdatedAlarm()
+            lookup = m_alarmProvider.lookup(reductionsKeysToLookup);
+        }
+
         m_rwLock.writeLock().lock();
         try {
-            // Create a new graph
-            BusinessServiceGraph g = new BusinessServiceGraphImpl(businessServices);
-
-            // Prime the graph with the state from the previous graph and
-            // keep track of the new reductions keys
-            Set<String> reductionsKeysToLookup = Sets.newHashSet();
-            for (String reductionKey : g.getReductionKeys()) {
-                GraphVertex reductionKeyVertex = m_g.getVertexByReductionKey(reductionKey);
-                if (reductionKeyVertex != null) {
-                    updateAndPropagateVertex(g, g.getVertexByReductionKey(reductionKey), reductionKeyVertex.getStatus());
+            final BusinessServiceGraph previousGraph = m_g;
+
+            // Prime the graph with the state from the previous graph. Vertices are visited
+            // bottom-up, so that the children of a vertex are always primed before the vertex itself.
+            // Only the vertices whose descendants changed need to be reduced again.
+            final Set<GraphVertex> affectedVertices = Sets.newIdentityHashSet();
+            final List<GraphVertex> vertices = Lists.newArrayList(g.getVertices());
+            vertices.sort(Comparator.comparingInt(GraphVertex::getLevel).reversed());
+            for (GraphVertex vertex : vertices) {
+                final GraphVertex previousVertex = getVertex(previousGraph, vertex);
+                if (vertex.getReductionKey() != null) {
+                    if (previousVertex != null) {
+                        vertex.setStatus(previousVertex.getStatus());
+                    } else {
+                        final AlarmWrapper alarm = lookup.get(vertex.getReductionKey());
+                        vertex.setStatus(alarm != null ? applyLowerBound(alarm.getStatus()) : MIN_SEVERITY);
+                    }
+                    continue;
+                }
+
+                boolean affected = !isUnchanged(previousGraph, previousVertex, g, vertex);
+                for (GraphEdge edge : g.getOutEdges(vertex)) {
+                    final GraphVertex child = g.getOpposite(vertex, edge);
+                    edge.setStatus(mapStatus(edge, child.getStatus()));
+                    affected |= affectedVertices.contains(child);
+                }
+
+                if (affected) {
+                    affectedVertices.add(vertex);
+                    vertex.setStatus(g.getOutEdges(vertex).isEmpty() ? MIN_SEVERITY : reduce(g, vertex));
                 } else {
-                    reductionsKeysToLookup.add(reductionKey);
+                    vertex.setStatus(previousVertex.getStatus());
                 }
             }
+            LOG.debug("Reduced {} of {} vertices after the business services were changed.", affectedVertices.size(), vertices.size());
 
-            if (m_alarmProvider == null && reductionsKeysToLookup.size() > 0) {
-                LOG.warn("There are one or more reduction keys to lookup, but no alarm provider is set.");
-            } else {
-                // Query the status of the reductions keys that were added
-                // We do this so that we can immediately reflect the state of the new
-                // graph without having to wait for calls to handleNewOrUpdatedAlarm()
-                if (reductionsKeysToLookup.size() > 0) {
-                    final Map<String, AlarmWrapper> lookup = m_alarmProvider.lookup(reductionsKeysToLookup);
-                    for (Entry<String, AlarmWrapper> eachEntry : lookup.entrySet()) {
-                        updateAndPropagateVertex(g, g.getVertexByReductionKey(eachEntry.getKey()), eachEntry.getValue().getStatus());
-                    }
+            // Swap the graphs
+            m_g = g;
+            m_snapshot = new StatusSnapshot(g);
+            m_updatedVertices.clear();
+
+            // Only send status updates for business services that changed since the previous graph
+            for (GraphVertex vertex : affectedVertices) {
+                final GraphVertex previousVertex = getVertex(previousGraph, vertex);
+                final Status previousStatus = previousVertex != null ? previousVertex.getStatus() : MIN_SEVERITY;
+                if (!vertex.getStatus().equals(previousStatus)) {
+                    onStatusUpdated(vertex, previousStatus);
                 }
             }
-            m_g = g;
         } finally {
             m_rwLock.writeLock().unlock();
         }
@@ -137,6 +199,7 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
         try {
             // Recursively propagate the status
             updateAndPropagateVertex(m_g, m_g.getVertexByReductionKey(alarm.getReductionKey()), alarm.getStatus());
+            publishUpdatedStatuses();
         } finally {
             m_rwLock.writeLock().unlock();
         }
@@ -159,11 +222,24 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
                 // but no alarm with this reduction key exists
                 updateAndPropagateVertex(m_g, m_g.getVertexByReductionKey(missingReductionKey), Status.INDETERMINATE);
             }
+            publishUpdatedStatuses();
         } finally {
             m_rwLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Publishes a new snapshot if any of the statuses changed. This copies the status
+     * array of the whole graph, so each alarm that changes a status costs O(vertices)
+     * on the writer side. In exchange, the readers never wait on the lock.
+     */
+    private void publishUpdatedStatuses() {
+        if (!m_updatedVertices.isEmpty()) {
+            m_snapshot = new StatusSnapshot(m_snapshot, m_updatedVertices);
+            m_updatedVertices.clear();
+        }
+    }
+
     private void updateAndPropagateVertex(BusinessServiceGraph graph, GraphVertex vertex, Status newStatus) {
         if (vertex == null) {
             // Nothing to do here
@@ -171,7 +247,7 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
         }
 
         // Apply lower bound
-        newStatus = newStatus.isLessThan(MIN_SEVERITY) ? MIN_SEVERITY : newStatus;
+        newStatus = applyLowerBound(newStatus);
 
         // Update the status if necessary
         Status previousStatus = vertex.getStatus();
@@ -180,21 +256,15 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
             return;
         }
         vertex.setStatus(newStatus);
+        m_updatedVertices.add(vertex);
 
         // Notify the listeners
-        onStatusUpdated(graph, vertex, previousStatus);
+        onStatusUpdated(vertex, previousStatus);
 
         // Update the edges with the mapped status
         List<GraphEdge> updatedEges = Lists.newArrayList();
         for (GraphEdge edge : graph.getInEdges(vertex)) {
-            Status mappedStatus = newStatus;
-            if (newStatus.isGreaterThan(MIN_SEVERITY)) {
-                // Only apply the map function when the status is > the minimum
-                mappedStatus = edge.getMapFunction().map(newStatus).orElse(MIN_SEVERITY);
-            } else {
-                mappedStatus = newStatus;
-            }
-
+            Status mappedStatus = mapStatus(edge, newStatus);
             if (mappedStatus.equals(edge.getStatus())) {
                 // The status hasn't changed
                 continue;
@@ -217,23 +287,107 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
             return;
         }
 
+        // Reduce, update and propagate
+        updateAndPropagateVertex(graph, vertex, reduce(graph, vertex));
+    }
+
+    private static Status applyLowerBound(Status status) {
+        return status.isLessThan(MIN_SEVERITY) ? MIN_SEVERITY : status;
+    }
+
+    private static Status mapStatus(GraphEdge edge, Status status) {
+        if (status.isGreaterThan(MIN_SEVERITY)) {
+            // Only apply the map function when the status is > the minimum
+            return edge.getMapFunction().map(status).orElse(MIN_SEVERITY);
+        }
+        return status;
+    }
+
+    private static Status reduce(BusinessServiceGraph graph, GraphVertex vertex) {
         // Calculate the weighed statuses from the child edges
         List<StatusWithIndex> statuses = weighEdges(graph.getOutEdges(vertex));
 
         // Reduce
         Optional<StatusWithIndices> reducedStatus = vertex.getReductionFunction().reduce(statuses);
 
-        Status newStatus;
         if (reducedStatus.isPresent()) {
-            newStatus = reducedStatus.get().getStatus();
+            return applyLowerBound(reducedStatus.get().getStatus());
         } else {
-            newStatus = MIN_SEVERITY;
+            return MIN_SEVERITY;
         }
+    }
+
+    /**
+     * Retrieves the vertex of the given graph that corresponds to the given vertex of another graph.
+     */
+    private static GraphVertex getVertex(BusinessServiceGraph graph, GraphVertex vertex) {
+        if (vertex.getBusinessService() != null) {
+            return graph.getVertexByBusinessServiceId(vertex.getBusinessService().getId());
+        } else if (vertex.getIpService() != null) {
+            return graph.getVertexByIpServiceId(vertex.getIpService().getId());
+        }
+        return graph.getVertexByReductionKey(vertex.getReductionKey());
+    }
 
-        // Update and propagate
-        updateAndPropagateVertex(graph, vertex, newStatus);
+    /**
+     * Determines whether the given vertex has the same reduction function and edges as its
+     * counterpart in the previous graph, without considering the descendants of the vertex.
+     */
+    private static boolean isUnchanged(BusinessServiceGraph previousGraph, GraphVertex previousVertex, BusinessServiceGraph graph, GraphVertex vertex) {
+        if (previousVertex == null || !isSameFunction(previousVertex.getReductionFunction(), vertex.getReductionFunction())) {
+            return false;
+        }
+        final List<GraphEdge> previousEdges = Lists.newLinkedList(previousGraph.getOutEdges(previousVertex));
+        if (previousEdges.size() != graph.getOutEdgeCount(vertex)) {
+            return false;
+        }
+        for (GraphEdge edge : graph.getOutEdges(vertex)) {
+            final GraphVertex previousChild = getVertex(previousGraph, graph.getOpposite(vertex, edge));
+            boolean found = false;
+            for (Iterator<GraphEdge> it = previousEdges.iterator(); it.hasNext() && !found;) {
+                final GraphEdge previousEdge = it.next();
+                if (previousEdge.getWeight() == edge.getWeight()
+                        && isSameFunction(previousEdge.getMapFunction(), edge.getMapFunction())
+                        && previousGraph.getOpposite(previousVertex, previousEdge) == previousChild) {
+                    // Each of the previous edges can only be matched once
+                    it.remove();
+                    found = true;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
     }
 
+    /**
+     * Compares map and reduce functions using the values of their parameters.
+     */
+    private static boolean isSameFunction(Object function, Object other) {
+        if (function == other) {
+            return true;
+        }
+        if (function == null || other == null || function.getClass() != other.getClass()) {
+            return false;
+        }
+        for (Class<?> clazz = function.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (!field.isAnnotationPresent(Parameter.class)) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    if (!Objects.equals(field.get(function), field.get(other))) {
+                        return false;
+                    }
+                } catch (IllegalAccessException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
     public static List<StatusWithIndex> weighEdges(Collection<GraphEdge> edges) {
         return weighStatuses(edges.stream()
                 .collect(Collectors.toMap(Function.identity(), GraphEdge::getStatus,
@@ -270,24 +424,13 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
         return statuses;
     }
 
-    private void onStatusUpdated(BusinessServiceGraph graph, GraphVertex vertex, Status previousStatus) {
+    private void onStatusUpdated(GraphVertex vertex, Status previousStatus) {
         BusinessService businessService = vertex.getBusinessService();
         if (businessService == null) {
             // Only send updates for business services (and not for reduction keys)
             return;
         }
 
-        if (graph != m_g) {
-            // We're working with a new graph, only send a status update if the new status is different
-            // than the one in the previous graph
-            GraphVertex previousVertex = m_g.getVertexByBusinessServiceId(businessService.getId());
-            if (previousVertex != null && vertex.getStatus().equals(previousVertex.getStatus())) {
-                // The vertex for this business service in the previous graph
-                // had the same status, don't issue any notifications
-                return;
-            }
-        }
-
         for (BusinessServiceStateChangeHandler handler : m_handlers) {
             handler.handleBusinessServiceStateChanged(businessService, vertex.getStatus(), previousStatus);
         }
@@ -296,58 +439,26 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
     @Override
     public Status getOperationalStatus(BusinessService businessService) {
         Objects.requireNonNull(businessService);
-        m_rwLock.readLock().lock();
-        try {
-            GraphVertex vertex = m_g.getVertexByBusinessServiceId(businessService.getId());
-            if (vertex != null) {
-                return vertex.getStatus();
-            }
-            return null;
-        } finally {
-            m_rwLock.readLock().unlock();
-        }
+        final StatusSnapshot snapshot = m_snapshot;
+        return snapshot.getStatus(snapshot.getGraph().getVertexByBusinessServiceId(businessService.getId()));
     }
 
     @Override
     public Status getOperationalStatus(IpService ipService) {
-        m_rwLock.readLock().lock();
-        try {
-            GraphVertex vertex = m_g.getVertexByIpServiceId(ipService.getId());
-            if (vertex != null) {
-                return vertex.getStatus();
-            }
-            return null;
-        } finally {
-            m_rwLock.readLock().unlock();
-        }
+        final StatusSnapshot snapshot = m_snapshot;
+        return snapshot.getStatus(snapshot.getGraph().getVertexByIpServiceId(ipService.getId()));
     }
 
     @Override
     public Status getOperationalStatus(String reductionKey) {
-        m_rwLock.readLock().lock();
-        try {
-            GraphVertex vertex = m_g.getVertexByReductionKey(reductionKey);
-            if (vertex != null) {
-                return vertex.getStatus();
-            }
-            return null;
-        } finally {
-            m_rwLock.readLock().unlock();
-        }
+        final StatusSnapshot snapshot = m_snapshot;
+        return snapshot.getStatus(snapshot.getGraph().getVertexByReductionKey(reductionKey));
     }
 
     @Override
     public Status getOperationalStatus(Edge edge) {
-        m_rwLock.readLock().lock();
-        try {
-            GraphVertex vertex = m_g.getVertexByEdgeId(edge.getId());
-            if (vertex != null) {
-                return vertex.getStatus();
-            }
-            return null;
-        } finally {
-            m_rwLock.readLock().unlock();
-        }
+        final StatusSnapshot snapshot = m_snapshot;
+        return snapshot.getStatus(snapshot.getGraph().getVertexByEdgeId(edge.getId()));
     }
 
     public void setAlarmProvider(AlarmProvider alarmProvider) {
@@ -561,4 +672,43 @@ public class DefaultBusinessServiceStateMachine implements BusinessServiceStateM
     private List<GraphVertex> calculateImpact(GraphVertex vertex) {
         return GraphAlgorithms.calculateImpact(m_g, vertex);
     }
+
+    /**
+     * An immutable copy of the statuses of the vertices in a graph.
+     */
+    private static class StatusSnapshot {
+        private final BusinessServiceGraph m_graph;
+        private final Map<GraphVertex, Integer> m_indices;
+        private final Status[] m_statuses;
+
+        private StatusSnapshot(BusinessServiceGraph graph) {
+            m_graph = graph;
+            m_indices = new IdentityHashMap<>(graph.getVertexCount());
+            m_statuses = new Status[graph.getVertexCount()];
+            for (GraphVertex vertex : graph.getVertices()) {
+                m_statuses[m_indices.size()] = vertex.getStatus();
+                m_indices.put(vertex, m_indices.size());
+            }
+        }
+
+        private StatusSnapshot(StatusSnapshot snapshot, Collection<GraphVertex> updatedVertices) {
+            m_graph = snapshot.m_graph;
+            m_indices = snapshot.m_indices;
+            m_statuses = snapshot.m_statuses.clone();
+            for (GraphVertex vertex : updatedVertices) {
+                m_statuses[m_indices.get(vertex)] = vertex.getStatus();
+            }
+        }
+
+        private BusinessServiceGraph getGraph() {
+            return m_graph;
+        }
+
+        private Status getStatus(GraphVertex vertex) {
+            if (vertex != null) {
+                return m_statuses[m_indices.get(vertex)];
+            }
+            return null;
+        }
+    }
 }
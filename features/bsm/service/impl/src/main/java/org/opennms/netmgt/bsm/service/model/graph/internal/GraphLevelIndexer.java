@@ -28,8 +28,10 @@
 
 package org.opennms.netmgt.bsm.service.model.graph.internal;
 
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -47,8 +49,6 @@ public class GraphLevelIndexer<V, E> {
 
     private Map<V, Integer> levelMap = new HashMap<>();
 
-    private Set<V> verticesIndexedSet = new HashSet<>();
-
     public void indexLevel(Hypergraph<V,E> graph, Set<V> rootSet) {
         Objects.requireNonNull(graph);
         Objects.requireNonNull(rootSet);
@@ -57,15 +57,58 @@ public class GraphLevelIndexer<V, E> {
         graph.getVertices().forEach(eachVertex -> levelMap.put(eachVertex, -1));
 
         // Index
-        determineLevel(0, graph, rootSet);
+        determineLevels(graph, rootSet);
     }
 
-    private void determineLevel(final int level, final Hypergraph<V, E> graph, final Collection<V> vertices) {
-        for (V eachVertex : vertices) {
-            if (graph.containsVertex(eachVertex)) {
-                levelMap.put(eachVertex, Math.max(level, levelMap.get(eachVertex).intValue()));
-                verticesIndexedSet.add(eachVertex);
-                determineLevel(level + 1, graph, graph.getSuccessors(eachVertex));
+    /**
+     * Determines the levels by visiting the vertices reachable from the root nodes in topological order,
+     * so that each vertex and edge is only visited once, instead of once for every path leading to it.
+     */
+    private void determineLevels(final Hypergraph<V, E> graph, final Collection<V> rootVertices) {
+        // Find all of the vertices reachable from the root nodes
+        final Set<V> reachableVertices = new HashSet<>();
+        final Deque<V> verticesToVisit = new ArrayDeque<>();
+        for (V eachVertex : rootVertices) {
+            if (graph.containsVertex(eachVertex) && reachableVertices.add(eachVertex)) {
+                levelMap.put(eachVertex, 0);
+                verticesToVisit.add(eachVertex);
+            }
+        }
+        while (!verticesToVisit.isEmpty()) {
+            for (V eachSuccessor : graph.getSuccessors(verticesToVisit.poll())) {
+                if (reachableVertices.add(eachSuccessor)) {
+                    verticesToVisit.add(eachSuccessor);
+                }
+            }
+        }
+
+        // Count the number of reachable predecessors of every vertex
+        final Map<V, Integer> remainingPredecessors = new HashMap<>();
+        for (V eachVertex : reachableVertices) {
+            int count = 0;
+            for (V eachPredecessor : graph.getPredecessors(eachVertex)) {
+                if (reachableVertices.contains(eachPredecessor)) {
+                    count++;
+                }
+            }
+            if (count == 0) {
+                verticesToVisit.add(eachVertex);
+            } else {
+                remainingPredecessors.put(eachVertex, count);
+            }
+        }
+
+        // A vertex is visited once all of its predecessors were visited, at which point its level is final
+        while (!verticesToVisit.isEmpty()) {
+            final V eachVertex = verticesToVisit.poll();
+            final int level = levelMap.get(eachVertex).intValue();
+            for (V eachSuccessor : graph.getSuccessors(eachVertex)) {
+                levelMap.put(eachSuccessor, Math.max(level + 1, levelMap.get(eachSuccessor).intValue()));
+                final int count = remainingPredecessors.get(eachSuccessor) - 1;
+                if (count == 0) {
+                    verticesToVisit.add(eachSuccessor);
+                }
+                remainingPredecessors.put(eachSuccessor, count);
             }
         }
     }
@@ -156,6 +156,87 @@ public class DefaultBusinessServiceStateMachineTest {
         assertEquals(1, stateChangeHandler.getStateChanges().size());
     }
 
+    @Test
+    public void canReloadBusinessServicesIncrementally() {
+        // Create a hierarchy with b1 -> b2 -> a1 and b3 -> a2
+        MockBusinessServiceHierarchy h = MockBusinessServiceHierarchy.builder()
+                .withBusinessService(1)
+                    .withBusinessService(2)
+                        .withReductionKey(11, "a1")
+                    .commit()
+                .commit()
+                .withBusinessService(3)
+                    .withReductionKey(12, "a2")
+                .commit()
+                .build();
+
+        // Setup the state machine
+        DefaultBusinessServiceStateMachine stateMachine = new DefaultBusinessServiceStateMachine();
+        LoggingStateChangeHandler stateChangeHandler = new LoggingStateChangeHandler();
+        stateMachine.addHandler(stateChangeHandler, Maps.newHashMap());
+        stateMachine.setAlarmProvider(new AlarmProvider() {
+            @Override
+            public Map<String, AlarmWrapper> lookup(Set<String> reductionKeys) {
+                if (reductionKeys.contains("a3")) {
+                    return ImmutableMap.<String, AlarmWrapper>builder()
+                            .put("a3", new MockAlarmWrapper("a3", Status.CRITICAL))
+                            .build();
+                }
+                return new HashMap<>();
+            }
+        });
+        stateMachine.setBusinessServices(h.getBusinessServices());
+
+        stateMachine.handleNewOrUpdatedAlarm(new MockAlarmWrapper("a1", Status.MAJOR));
+        stateMachine.handleNewOrUpdatedAlarm(new MockAlarmWrapper("a2", Status.MINOR));
+        assertEquals(Status.MAJOR, stateMachine.getOperationalStatus(h.getBusinessServiceById(1)));
+        assertEquals(Status.MAJOR, stateMachine.getOperationalStatus(h.getBusinessServiceById(2)));
+        assertEquals(Status.MINOR, stateMachine.getOperationalStatus(h.getBusinessServiceById(3)));
+        assertEquals(3, stateChangeHandler.getStateChanges().size());
+
+        // Add a reduction key to b3
+        MockBusinessServiceHierarchy updated = MockBusinessServiceHierarchy.builder()
+                .withBusinessService(1)
+                    .withBusinessService(2)
+                        .withReductionKey(11, "a1")
+                    .commit()
+                .commit()
+                .withBusinessService(3)
+                    .withReductionKey(12, "a2")
+                    .withReductionKey(13, "a3")
+                .commit()
+                .build();
+        stateMachine.setBusinessServices(updated.getBusinessServices());
+
+        // Only b3 should have changed
+        assertEquals(Status.MAJOR, stateMachine.getOperationalStatus(updated.getBusinessServiceById(1)));
+        assertEquals(Status.MAJOR, stateMachine.getOperationalStatus(updated.getBusinessServiceById(2)));
+        assertEquals(Status.CRITICAL, stateMachine.getOperationalStatus(updated.getBusinessServiceById(3)));
+        assertEquals(Status.CRITICAL, stateMachine.getOperationalStatus("a3"));
+        assertEquals(4, stateChangeHandler.getStateChanges().size());
+        assertEquals(Status.MINOR, stateChangeHandler.getStateChanges().get(3).getPrevSeverity());
+
+        // Remove b1
+        MockBusinessServiceHierarchy removed = MockBusinessServiceHierarchy.builder()
+                .withBusinessService(2)
+                    .withReductionKey(11, "a1")
+                .commit()
+                .withBusinessService(3)
+                    .withReductionKey(12, "a2")
+                    .withReductionKey(13, "a3")
+                .commit()
+                .build();
+        stateMachine.setBusinessServices(removed.getBusinessServices());
+        assertEquals(null, stateMachine.getOperationalStatus(updated.getBusinessServiceById(1)));
+        assertEquals(Status.MAJOR, stateMachine.getOperationalStatus(removed.getBusinessServiceById(2)));
+        assertEquals(4, stateChangeHandler.getStateChanges().size());
+
+        // Alarms continue to be propagated on the updated graph
+        stateMachine.handleNewOrUpdatedAlarm(new MockAlarmWrapper("a1", Status.WARNING));
+        assertEquals(Status.WARNING, stateMachine.getOperationalStatus(removed.getBusinessServiceById(2)));
+        assertEquals(5, stateChangeHandler.getStateChanges().size());
+    }
+
     @Test
     public void canPerformRootCauseAndImpactAnalysis() {
         // Create a hierarchy using all of the available reduction functions
@@ -32,18 +32,22 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opennms.core.concurrent.LogPreservingThreadFactory;
 import org.opennms.core.logging.Logging;
@@ -61,8 +65,13 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
  * An implementation of the EventIpcManager interface that can be used to
@@ -76,6 +85,23 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     
     private static final Logger LOG = LoggerFactory.getLogger(EventIpcManagerDefaultImpl.class);
 
+    /**
+     * Maximum number of events handed to a listener in a single batch.
+     */
+    private static final int MAX_LISTENER_BATCH_SIZE = 256;
+
+    /**
+     * Amount of time given to a listener that is being removed to process the
+     * events that are already queued, before its thread is interrupted.
+     */
+    private static final long LISTENER_STOP_TIMEOUT_MS = 30000;
+
+    /**
+     * Maximum number of distinct UEIs for which the resolved listeners are cached
+     * in a given snapshot.
+     */
+    private static final int MAX_RESOLVED_UEIS = 10000;
+
     public static class DiscardTrapsAndSyslogEvents implements RejectedExecutionHandler {
         /**
          * Creates a <tt>DiscardOldestPolicy</tt> for the given executor.
@@ -112,7 +138,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     /**
      * Hash table of event listener threads keyed by the listener's id
      */
-    private Map<String, EventListenerExecutor> m_listenerThreads = new HashMap<String, EventListenerExecutor>();
+    private Map<String, EventListenerExecutor> m_listenerThreads = new ConcurrentHashMap<String, EventListenerExecutor>();
 
     /**
      * The thread pool handling the events
@@ -127,11 +153,101 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
 
     private final MetricRegistry m_registry;
 
+    /**
+     * Immutable snapshot of the listener registrations, used to dispatch events
+     * without holding any locks. A new snapshot is published whenever the
+     * registrations change.
+     */
+    private volatile ListenerIndex m_index = new ListenerIndex(Collections.emptyList(), Collections.emptyMap());
+
+    private static class ListenerIndex {
+        private final List<EventListener> m_matchAll;
+        private final Map<String, List<EventListener>> m_ueiListeners;
+        private final ConcurrentMap<String, List<EventListener>> m_resolved = new ConcurrentHashMap<>();
+
+        private ListenerIndex(List<EventListener> matchAll, Map<String, List<EventListener>> ueiListeners) {
+            m_matchAll = Collections.unmodifiableList(new ArrayList<>(matchAll));
+            final Map<String, List<EventListener>> copy = new HashMap<>();
+            for (Map.Entry<String, List<EventListener>> entry : ueiListeners.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+                }
+            }
+            m_ueiListeners = copy;
+        }
+
+        /**
+         * Retrieves the listeners that should receive events with the given UEI,
+         * including those interested in all events and those subscribed to a
+         * partial "directory" match of the UEI.
+         */
+        private List<EventListener> getListeners(String uei) {
+            if (uei == null) {
+                return m_matchAll;
+            }
+            List<EventListener> listeners = m_resolved.get(uei);
+            if (listeners == null) {
+                listeners = resolve(uei);
+                if (m_resolved.size() < MAX_RESOLVED_UEIS) {
+                    m_resolved.put(uei, listeners);
+                }
+            }
+            return listeners;
+        }
+
+        private List<EventListener> resolve(String ueiToMatch) {
+            final Set<EventListener> listeners = new LinkedHashSet<>(m_matchAll);
+            /*
+             * Loop to attempt partial wild card "directory" matches.
+             */
+            for (String uei = ueiToMatch; uei.length() > 0; ) {
+                final List<EventListener> ueiListeners = m_ueiListeners.get(uei);
+                if (ueiListeners != null) {
+                    listeners.addAll(ueiListeners);
+                }
+
+                // Try wild cards: Find / before last character
+                int i = uei.lastIndexOf("/", uei.length() - 2);
+                if (i > 0) {
+                    // Split at "/", including the /
+                    uei = uei.substring (0, i + 1);
+                } else {
+                    // No more wild cards to match
+                    break;
+                }
+            }
+            return Collections.unmodifiableList(new ArrayList<>(listeners));
+        }
+
+        private boolean hasUeiListener(String uei) {
+            return m_ueiListeners.containsKey(uei);
+        }
+    }
+
+    /**
+     * An event queued for a particular listener.
+     */
+    private static class QueuedEvent {
+        /**
+         * Marks the end of the events that are processed by a stopped listener.
+         */
+        private static final QueuedEvent STOP = new QueuedEvent(null, null);
+
+        private final Event m_event;
+        private final long m_queuedAtNanos = System.nanoTime();
+        private final CompletableFuture<Void> m_future;
+
+        private QueuedEvent(Event event, CompletableFuture<Void> future) {
+            m_event = event;
+            m_future = future;
+        }
+    }
+
     /**
      * A thread dedicated to each listener. The events meant for each listener
-     * is added to an execution queue when the 'sendNow()' is called. The
-     * ListenerThread reads events off of this queue and sends them to the
-     * appropriate listener.
+     * are added to the listener's queue when the 'sendNow()' is called. The
+     * listener thread drains events off of this queue in batches and sends them
+     * to the listener in the order in which they were queued.
      */
     private static class EventListenerExecutor {
         /**
@@ -142,60 +258,215 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         /**
          * The thread that is running this runnable.
          */
-        private final ExecutorService m_delegateThread;
+        private final Thread m_delegateThread;
+
+        private final BlockingQueue<QueuedEvent> m_queue = new LinkedBlockingQueue<>();
+
+        /**
+         * Number of events that were queued, but not yet processed by the listener.
+         */
+        private final AtomicInteger m_pending = new AtomicInteger();
+
+        /**
+         * Maximum number of pending events, including the one being processed.
+         */
+        private final int m_capacity;
+
+        private final MetricRegistry m_registry;
+
+        private final String m_metricPrefix;
+
+        private final Meter m_processedMeter;
+
+        private final Counter m_discardedCounter;
+
+        private final Timer m_lagTimer;
+
+        /**
+         * Set once the listener no longer accepts new events.
+         */
+        private volatile boolean m_stopped = false;
+
+        /**
+         * Set when the listener failed to process its queued events in time.
+         */
+        private volatile boolean m_interrupted = false;
+
+        /**
+         * Set once the delegate thread no longer processes events.
+         */
+        private volatile boolean m_terminated = false;
 
         /**
          * Constructor
          */
-        EventListenerExecutor(EventListener listener, Integer handlerQueueLength) {
+        EventListenerExecutor(EventListener listener, Integer handlerQueueLength, MetricRegistry registry) {
             m_listener = listener;
-            // You could also do Executors.newSingleThreadExecutor() here
-            m_delegateThread = new ThreadPoolExecutor(
-                    1,
-                    1,
-                    0L,
-                    TimeUnit.MILLISECONDS,
-                    handlerQueueLength == null ? new LinkedBlockingQueue<Runnable>() : new LinkedBlockingQueue<Runnable>(handlerQueueLength),
-                    // This ThreadFactory will ensure that the log prefix of the calling thread
-                    // is used for all events that this listener handles. Therefore, if Notifd
-                    // registers for an event then all logs for handling that event will end up
-                    // inside notifd.log.
-                    new LogPreservingThreadFactory(m_listener.getName(), 1),
-                    new RejectedExecutionHandler() {
-                        @Override
-                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-                            LOG.warn("Listener {}'s event queue is full, discarding event", m_listener.getName());
-                        }
-                    }
-            );
+            m_capacity = handlerQueueLength == null ? Integer.MAX_VALUE : handlerQueueLength + 1;
+
+            m_registry = registry;
+            m_metricPrefix = MetricRegistry.name("eventlisteners", m_listener.getName());
+            m_processedMeter = registry.meter(MetricRegistry.name(m_metricPrefix, "processed"));
+            m_discardedCounter = registry.counter(MetricRegistry.name(m_metricPrefix, "discarded"));
+            m_lagTimer = registry.timer(MetricRegistry.name(m_metricPrefix, "lag"));
+            final String queuedMetric = MetricRegistry.name(m_metricPrefix, "queued");
+            registry.remove(queuedMetric);
+            registry.register(queuedMetric, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return m_pending.get();
+                }
+            });
+
+            // This ThreadFactory will ensure that the log prefix of the calling thread
+            // is used for all events that this listener handles. Therefore, if Notifd
+            // registers for an event then all logs for handling that event will end up
+            // inside notifd.log.
+            m_delegateThread = new LogPreservingThreadFactory(m_listener.getName(), 1).newThread(this::drain);
+            m_delegateThread.start();
         }
 
-        public CompletableFuture<Void> addEvent(final Event event) {
-            return CompletableFuture.runAsync(new Runnable() {
-                @Override
-                public void run() {
+        /**
+         * Queues the event for this listener.
+         *
+         * @param event the event
+         * @param synchronous whether or not the caller wishes to wait for the event to be processed
+         * @return a future that completes when the event was processed or discarded,
+         * or <code>null</code> when the caller did not request to wait
+         */
+        public CompletableFuture<Void> addEvent(final Event event, boolean synchronous) {
+            final CompletableFuture<Void> future = synchronous ? new CompletableFuture<>() : null;
+            if (m_stopped) {
+                if (future != null) {
+                    future.complete(null);
+                }
+                return future;
+            }
+            if (m_pending.incrementAndGet() > m_capacity) {
+                m_pending.decrementAndGet();
+                m_discardedCounter.inc();
+                LOG.warn("Listener {}'s event queue is full, discarding event", m_listener.getName());
+                if (future != null) {
+                    future.complete(null);
+                }
+                return future;
+            }
+            m_queue.add(new QueuedEvent(event, future));
+            if (m_terminated) {
+                // We were stopped while queuing the event, and it may have missed the final drain
+                discardQueued();
+            }
+            return future;
+        }
+
+        private void drain() {
+            final List<QueuedEvent> batch = new ArrayList<>(MAX_LISTENER_BATCH_SIZE);
+            boolean stopping = false;
+            try {
+                while (!stopping) {
+                    batch.clear();
                     try {
-                         if (LOG.isDebugEnabled()) LOG.debug("run: calling onEvent on {} for event {}", m_listener.getName(), event.toStringSimple());
-
-                        // Make sure we restore our log4j logging prefix after onEvent is called
-                        Map<String,String> mdc = Logging.getCopyOfContextMap();
-                        try {
-                            m_listener.onEvent(event);
-                        } finally {
-                            Logging.setContextMap(mdc);
+                        batch.add(m_queue.take());
+                    } catch (InterruptedException e) {
+                        // We failed to process the queued events in time
+                        break;
+                    }
+                    m_queue.drainTo(batch, MAX_LISTENER_BATCH_SIZE - 1);
+
+                    for (QueuedEvent queuedEvent : batch) {
+                        if (queuedEvent == QueuedEvent.STOP) {
+                            // Events queued after this one raced with stop() and are discarded
+                            stopping = true;
+                            break;
+                        }
+                        if (m_interrupted) {
+                            stopping = true;
+                            break;
                         }
-                    } catch (Throwable t) {
-                        LOG.warn("run: an unexpected error occured during ListenerThread {}", m_listener.getName(), t);
+                        m_lagTimer.update(System.nanoTime() - queuedEvent.m_queuedAtNanos, TimeUnit.NANOSECONDS);
+                        dispatch(queuedEvent.m_event);
+                        m_pending.decrementAndGet();
+                        m_processedMeter.mark();
+                        if (queuedEvent.m_future != null) {
+                            queuedEvent.m_future.complete(null);
+                        }
+                    }
+                }
+            } finally {
+                m_terminated = true;
+                // Release the callers waiting on the rest of the batch, which will never be processed
+                for (QueuedEvent queuedEvent : batch) {
+                    if (queuedEvent.m_future != null) {
+                        queuedEvent.m_future.complete(null);
                     }
                 }
-            }, m_delegateThread);
+                discardQueued();
+            }
+        }
+
+        /**
+         * Completes the futures of the events that are still queued, without processing them.
+         */
+        private void discardQueued() {
+            final List<QueuedEvent> discarded = new ArrayList<>();
+            m_queue.drainTo(discarded);
+            for (QueuedEvent queuedEvent : discarded) {
+                if (queuedEvent.m_future != null) {
+                    queuedEvent.m_future.complete(null);
+                }
+            }
+            if (!discarded.isEmpty()) {
+                LOG.warn("Listener {} was stopped, discarding {} queued events", m_listener.getName(), discarded.size());
+            }
+        }
+
+        private void dispatch(Event event) {
+            try {
+                if (LOG.isDebugEnabled()) LOG.debug("run: calling onEvent on {} for event {}", m_listener.getName(), event.toStringSimple());
+
+                // Make sure we restore our log4j logging prefix after onEvent is called
+                Map<String,String> mdc = Logging.getCopyOfContextMap();
+                try {
+                    m_listener.onEvent(event);
+                } finally {
+                    Logging.setContextMap(mdc);
+                }
+            } catch (Throwable t) {
+                LOG.warn("run: an unexpected error occured during ListenerThread {}", m_listener.getName(), t);
+            }
         }
 
         /**
          * Stops the execution of this listener.
+         *
+         * New events are no longer accepted, but the events that are already queued
+         * are processed before the listener thread exits. If this takes longer than
+         * {@link #LISTENER_STOP_TIMEOUT_MS}, the listener thread is interrupted and
+         * the callers waiting on the remaining events are released.
          */
         public void stop() {
-            m_delegateThread.shutdown();
+            m_stopped = true;
+            m_queue.add(QueuedEvent.STOP);
+            m_registry.removeMatching(new MetricFilter() {
+                @Override
+                public boolean matches(String name, Metric metric) {
+                    return name.startsWith(m_metricPrefix + ".");
+                }
+            });
+            // The listener may be removing itself from within onEvent()
+            if (Thread.currentThread() != m_delegateThread) {
+                try {
+                    m_delegateThread.join(LISTENER_STOP_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (m_delegateThread.isAlive() && !Thread.currentThread().isInterrupted()) {
+                    LOG.warn("Listener {} did not process its queued events within {}ms. Interrupting it.",
+                            m_listener.getName(), LISTENER_STOP_TIMEOUT_MS);
+                    m_interrupted = true;
+                    m_delegateThread.interrupt();
+                }
+            }
         }
     }
 
@@ -290,53 +561,28 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             LOG.debug("Event ID {} to be broadcasted: {}", event.getDbid(), event.getUei());
         }
 
-        if (LOG.isDebugEnabled() && m_listeners.isEmpty()) {
+        final ListenerIndex index = m_index;
+        if (LOG.isDebugEnabled() && index.m_matchAll.isEmpty()) {
             LOG.debug("No listeners interested in all events");
         }
 
-        List<CompletableFuture<Void>> listenerFutures = new ArrayList<>();
-
-        // Send to listeners interested in receiving all events
-        for (EventListener listener : m_listeners) {
-            listenerFutures.add(queueEventToListener(event, listener));
+        if (event.getUei() == null && LOG.isDebugEnabled()) {
+            LOG.debug("Event ID {} does not have a UEI, so skipping UEI matching", event.getDbid());
         }
 
-        if (event.getUei() == null) {
+        final List<EventListener> listeners = index.getListeners(event.getUei());
+        if (listeners.isEmpty()) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Event ID {} does not have a UEI, so skipping UEI matching", event.getDbid());
+                LOG.debug("No listener interested in event ID {}: {}", event.getDbid(), event.getUei());
             }
             return;
         }
 
-        /*
-         * Send to listeners who are interested in this event UEI.
-         * Loop to attempt partial wild card "directory" matches.
-         */
-        Set<EventListener> sentToListeners = new HashSet<EventListener>();
-        for (String uei = event.getUei(); uei.length() > 0; ) {
-            if (m_ueiListeners.containsKey(uei)) {
-                for (EventListener listener : m_ueiListeners.get(uei)) {
-                    if (!sentToListeners.contains(listener)) {
-                        listenerFutures.add(queueEventToListener(event, listener));
-                        sentToListeners.add(listener);
-                    }
-                }
-            }
-            
-            // Try wild cards: Find / before last character
-            int i = uei.lastIndexOf("/", uei.length() - 2);
-            if (i > 0) {
-                // Split at "/", including the /
-                uei = uei.substring (0, i + 1);
-            } else {
-                // No more wild cards to match
-                break;
-            }
-        }
-        
-        if (sentToListeners.isEmpty()) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("No listener interested in event ID {}: {}", event.getDbid(), event.getUei());
+        final List<CompletableFuture<Void>> listenerFutures = synchronous ? new ArrayList<>(listeners.size()) : null;
+        for (EventListener listener : listeners) {
+            final CompletableFuture<Void> future = queueEventToListener(event, listener, synchronous);
+            if (future != null) {
+                listenerFutures.add(future);
             }
         }
 
@@ -347,8 +593,22 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         }
     }
 
-    private CompletableFuture<Void> queueEventToListener(Event event, EventListener listener) {
-        return m_listenerThreads.get(listener.getName()).addEvent(event);
+    private CompletableFuture<Void> queueEventToListener(Event event, EventListener listener, boolean synchronous) {
+        final EventListenerExecutor executor = m_listenerThreads.get(listener.getName());
+        if (executor == null) {
+            // The listener was removed after we took our snapshot of the index
+            return null;
+        }
+        return executor.addEvent(event, synchronous);
+    }
+
+    /**
+     * Publishes a new snapshot of the listener registrations.
+     *
+     * Must be called while holding the lock on this object.
+     */
+    private void updateIndex() {
+        m_index = new ListenerIndex(m_listeners, m_ueiListeners);
     }
 
     /**
@@ -369,6 +629,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         for (String uei : m_ueiListeners.keySet()) {
             removeUeiForListener(uei, listener);
         }
+
+        updateIndex();
     }
 
     /**
@@ -398,6 +660,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
 
         // Since we have a UEI-specific listener, remove the match-all listener
         removeMatchAllForListener(listener);
+
+        updateIndex();
     }
 
     /**
@@ -432,6 +696,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         for (String uei : ueis) {
             removeUeiForListener(uei, listener);
         }
+
+        updateIndex();
     }
 
     /**
@@ -451,6 +717,8 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         Assert.notNull(uei, "uei argument cannot be null");
 
         removeUeiForListener(uei, listener);
+
+        updateIndex();
     }
 
     /**
@@ -462,20 +730,26 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
      * listener passed.
      */
     @Override
-    public synchronized void removeEventListener(EventListener listener) {
+    public void removeEventListener(EventListener listener) {
         Assert.notNull(listener, "listener argument cannot be null");
-        
-        removeMatchAllForListener(listener);
 
-        for (String uei : m_ueiListeners.keySet()) {
-            removeUeiForListener(uei, listener);
-        }
+        final EventListenerExecutor listenerThread;
+        synchronized (this) {
+            removeMatchAllForListener(listener);
 
-        // stop and remove the listener thread for this listener
-        if (m_listenerThreads.containsKey(listener.getName())) {
-            m_listenerThreads.get(listener.getName()).stop();
+            for (String uei : m_ueiListeners.keySet()) {
+                removeUeiForListener(uei, listener);
+            }
 
-            m_listenerThreads.remove(listener.getName());
+            updateIndex();
+
+            listenerThread = m_listenerThreads.remove(listener.getName());
+        }
+
+        // stop the listener thread for this listener, without holding the lock since
+        // the listener may need it to finish processing the events that are already queued
+        if (listenerThread != null) {
+            listenerThread.stop();
         }
     }
 
@@ -488,7 +762,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             return;
         }
         
-        EventListenerExecutor listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength);
+        EventListenerExecutor listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength, m_registry);
         m_listenerThreads.put(listener.getName(), listenerThread);
     }
 
@@ -630,10 +904,6 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
 
     @Override
     public boolean hasEventListener(final String uei) {
-        if (this.m_ueiListeners.containsKey(uei)) {
-            return this.m_ueiListeners.get(uei).size() > 0;
-        } else {
-            return false;
-        }
+        return m_index.hasUeiListener(uei);
     }
 }
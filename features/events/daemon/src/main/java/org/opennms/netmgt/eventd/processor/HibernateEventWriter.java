@@ -29,9 +29,15 @@
 package org.opennms.netmgt.eventd.processor;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -63,6 +69,8 @@ import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.util.Assert;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
@@ -86,6 +94,11 @@ import com.codahale.metrics.Timer.Context;
  * @see org.opennms.netmgt.events.api.EventDatabaseConstants#DB_ATTRIB_DELIM
  * @see org.opennms.netmgt.events.api.EventDatabaseConstants#NAME_VAL_DELIM
  *
+ * When a batch size greater than 1 is configured, concurrent calls to {@link #process(Log)}
+ * are merged into micro-batches which are persisted in a single transaction (group commit).
+ * Batches are bounded by the number of events and by the time spent waiting for
+ * additional events. Callers still block until their events were committed.
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Nataraj </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  */
@@ -97,6 +110,21 @@ public class HibernateEventWriter implements EventWriter {
     public static final String LOG_MSG_DEST_LOG_AND_DISPLAY = "logndisplay";
     public static final String LOG_MSG_DEST_LOG_ONLY = "logonly";
     public static final String LOG_MSG_DEST_DISPLAY_ONLY = "displayonly";
+
+    /**
+     * Maximum number of events persisted in a single transaction. Values <= 1 disable
+     * group commits, and each event log is persisted in its own transaction.
+     */
+    public static final String BATCH_SIZE_SYS_PROP = "org.opennms.eventd.writer.batchSize";
+
+    /**
+     * Maximum amount of time in milliseconds to wait for additional events
+     * before committing a partial batch.
+     */
+    public static final String BATCH_INTERVAL_SYS_PROP = "org.opennms.eventd.writer.batchIntervalMs";
+
+    private static final int DEFAULT_BATCH_SIZE = 1;
+    private static final long DEFAULT_BATCH_INTERVAL_MS = 5;
     
     @Autowired
     private TransactionOperations m_transactionManager;
@@ -121,10 +149,51 @@ public class HibernateEventWriter implements EventWriter {
 
     private final Timer writeTimer;
 
+    private final Timer commitTimer;
+
+    private final Histogram batchSizeHistogram;
+
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+
+    private int batchSize = Integer.getInteger(BATCH_SIZE_SYS_PROP, DEFAULT_BATCH_SIZE);
+
+    private long batchIntervalMs = Long.getLong(BATCH_INTERVAL_SYS_PROP, DEFAULT_BATCH_INTERVAL_MS);
+
+    private Thread batchWriter;
+
+    private boolean stopped = false;
+
     public HibernateEventWriter(MetricRegistry registry) {
         writeTimer = Objects.requireNonNull(registry).timer("eventlogs.process.write");
+        commitTimer = registry.timer("eventlogs.process.write.commit");
+        batchSizeHistogram = registry.histogram("eventlogs.process.write.batch-size");
+        registry.register("eventlogs.process.write.pending", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pendingWrites.size();
+            }
+        });
+    }
+
+    /**
+     * An event log awaiting to be persisted by the batch writer.
+     */
+    private static class PendingWrite {
+        private final Header header;
+        private final List<Event> events;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingWrite(Header header, List<Event> events) {
+            this.header = header;
+            this.events = events;
+        }
     }
 
+    /**
+     * Queued after the pending writes to stop the batch writer.
+     */
+    private static final PendingWrite STOP = new PendingWrite(null, Collections.emptyList());
+
     /**
      * <p>checkEventSanityAndDoWeProcess</p>
      *
@@ -181,25 +250,223 @@ public class HibernateEventWriter implements EventWriter {
 
             // Time the transaction and insertions
             try (Context context = writeTimer.time()) {
-                final AtomicReference<EventProcessorException> exception = new AtomicReference<>();
+                if (isBatching()) {
+                    enqueueAndWait(new PendingWrite(eventLog.getHeader(), eventsToPersist));
+                } else {
+                    persistInTransaction(eventLog.getHeader(), eventsToPersist);
+                }
+            }
+        }
+    }
+
+    private boolean isBatching() {
+        return batchSize > 1;
+    }
+
+    private void persistInTransaction(final Header header, final List<Event> eventsToPersist) throws EventProcessorException {
+        final AtomicReference<EventProcessorException> exception = new AtomicReference<>();
+
+        try (Context context = commitTimer.time()) {
+            m_transactionManager.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    for (Event eachEvent : eventsToPersist) {
+                        try {
+                            process(header, eachEvent);
+                        } catch (EventProcessorException e) {
+                            exception.set(e);
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+
+        if (exception.get() != null) {
+            throw exception.get();
+        }
+    }
+
+    /**
+     * Hands the event log to the batch writer and blocks until it has been committed.
+     */
+    private void enqueueAndWait(PendingWrite pendingWrite) throws EventProcessorException {
+        if (!enqueue(pendingWrite)) {
+            // The batch writer was stopped, persist the events on the calling thread instead
+            persistInTransaction(pendingWrite.header, pendingWrite.events);
+            return;
+        }
+        try {
+            pendingWrite.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EventProcessorException("Interrupted while waiting for events to be persisted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EventProcessorException) {
+                throw (EventProcessorException)e.getCause();
+            }
+            throw new EventProcessorException("Unexpected exception while storing events.", e.getCause());
+        }
+    }
+
+    /**
+     * Queues the event log for the batch writer, starting it if necessary.
+     *
+     * @return false if the batch writer was stopped
+     */
+    private synchronized boolean enqueue(PendingWrite pendingWrite) {
+        if (stopped) {
+            return false;
+        }
+        if (batchWriter == null) {
+            batchWriter = new Thread(this::writeBatches, "Eventd-BatchEventWriter");
+            batchWriter.setDaemon(true);
+            batchWriter.start();
+        }
+        pendingWrites.add(pendingWrite);
+        return true;
+    }
+
+    /**
+     * Stops the batch writer. The event logs that were already queued are
+     * persisted before it stops, and the ones that are processed afterwards
+     * are persisted on the calling thread.
+     */
+    public void destroy() {
+        final Thread writer;
+        synchronized (this) {
+            stopped = true;
+            writer = batchWriter;
+            batchWriter = null;
+        }
+        if (writer == null) {
+            return;
+        }
+
+        pendingWrites.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Should be empty, unless the batch writer died
+        final List<PendingWrite> remaining = new ArrayList<>();
+        pendingWrites.drainTo(remaining);
+        remaining.remove(STOP);
+        if (!remaining.isEmpty()) {
+            LOG.warn("Persisting {} event logs left over by the batch event writer.", remaining.size());
+            persistBatch(remaining);
+        }
+    }
+
+    private void writeBatches() {
+        final List<PendingWrite> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                final PendingWrite first = pendingWrites.take();
+                if (first == STOP) {
+                    return;
+                }
+                batch.add(first);
+                int numEvents = first.events.size();
+
+                // Gather more event logs until the batch is full, or the interval elapses
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchIntervalMs);
+                while (numEvents < batchSize) {
+                    final PendingWrite next = pendingWrites.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == STOP) {
+                        // Write what we have, and stop
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(next);
+                    numEvents += next.events.size();
+                }
 
-                m_transactionManager.execute(new TransactionCallbackWithoutResult() {
-                    @Override
-                    protected void doInTransactionWithoutResult(TransactionStatus status) {
-                        for (Event eachEvent : eventsToPersist) {
+                batchSizeHistogram.update(numEvents);
+                persistBatch(batch);
+            } catch (InterruptedException e) {
+                LOG.warn("Batch event writer was interrupted.");
+                final EventProcessorException ex = new EventProcessorException("Interrupted while persisting events.", e);
+                for (PendingWrite pendingWrite : batch) {
+                    pendingWrite.future.completeExceptionally(ex);
+                }
+                synchronized (this) {
+                    // Let the next event log start a new batch writer
+                    if (batchWriter == Thread.currentThread()) {
+                        batchWriter = null;
+                    }
+                }
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable t) {
+                LOG.error("Unexpected error in batch event writer.", t);
+                for (PendingWrite pendingWrite : batch) {
+                    pendingWrite.future.completeExceptionally(t);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Persists all of the events in the batch in a single transaction.
+     *
+     * If this fails, we fall back to using a transaction per event log so that
+     * a single problematic event does not prevent the others from being persisted.
+     */
+    private void persistBatch(final List<PendingWrite> batch) {
+        final AtomicReference<EventProcessorException> exception = new AtomicReference<>();
+        try (Context context = commitTimer.time()) {
+            m_transactionManager.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    for (PendingWrite pendingWrite : batch) {
+                        for (Event eachEvent : pendingWrite.events) {
                             try {
-                                process(eventLog.getHeader(), eachEvent);
+                                process(pendingWrite.header, eachEvent);
                             } catch (EventProcessorException e) {
                                 exception.set(e);
+                                status.setRollbackOnly();
                                 return;
                             }
                         }
                     }
-                });
+                }
+            });
+        } catch (RuntimeException e) {
+            exception.set(new EventProcessorException("Failed to commit batch of events.", e));
+        }
+
+        if (exception.get() == null) {
+            for (PendingWrite pendingWrite : batch) {
+                pendingWrite.future.complete(null);
+            }
+            return;
+        }
 
-                if (exception.get() != null) {
-                    throw exception.get();
+        if (batch.size() == 1) {
+            batch.get(0).future.completeExceptionally(exception.get());
+            return;
+        }
+
+        LOG.warn("Failed to persist batch of {} event logs. Retrying each individually.", batch.size(), exception.get());
+        for (PendingWrite pendingWrite : batch) {
+            try {
+                // The database IDs assigned in the rolled back transaction are no longer valid
+                for (Event eachEvent : pendingWrite.events) {
+                    eachEvent.setDbid(null);
                 }
+                persistInTransaction(pendingWrite.header, pendingWrite.events);
+                pendingWrite.future.complete(null);
+            } catch (Throwable t) {
+                pendingWrite.future.completeExceptionally(t);
             }
         }
     }
@@ -405,4 +672,12 @@ public class HibernateEventWriter implements EventWriter {
     public void setTransactionManager(TransactionOperations transactionManager) {
         m_transactionManager = transactionManager;
     }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBatchIntervalMs(long batchIntervalMs) {
+        this.batchIntervalMs = batchIntervalMs;
+    }
 }
@@ -36,7 +36,9 @@ import static org.opennms.core.utils.InetAddressUtils.addr;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -757,4 +759,138 @@ public class EventIpcManagerDefaultImplTest extends TestCase {
         // broadcastNow() returned, so the counter should have been increased
         assertEquals(1, counter.get());
     }
+
+    public void testRemoveEventListenerProcessesQueuedEvents() throws InterruptedException {
+        final String listenerName = "testRemoveEventListenerProcessesQueuedEvents";
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final EventListener blockingListener = new EventListener() {
+            @Override
+            public String getName() {
+                return listenerName;
+            }
+
+            @Override
+            public void onEvent(Event event) {
+                processing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                received.add(event.getUei());
+            }
+        };
+
+        final EventIpcManagerDefaultImpl manager = new EventIpcManagerDefaultImpl(m_registry);
+        manager.setHandlerPoolSize(5);
+        DefaultEventHandlerImpl handler = new DefaultEventHandlerImpl(m_registry);
+        manager.setEventHandler(handler);
+        manager.afterPropertiesSet();
+
+        manager.addEventListener(blockingListener);
+
+        // Keep the listener busy
+        manager.broadcastNow(new EventBuilder("uei.opennms.org/foo", listenerName).getEvent(), false);
+        assertTrue(processing.await(10, TimeUnit.SECONDS));
+
+        // Queue an event behind it, and wait for it from another thread
+        final CountDownLatch returned = new CountDownLatch(1);
+        final Thread sender = new Thread(() -> {
+            manager.broadcastNow(new EventBuilder("uei.opennms.org/bar", listenerName).getEvent(), true);
+            returned.countDown();
+        });
+        sender.start();
+        await().atMost(10, TimeUnit.SECONDS).until(() -> (Integer)m_registry.getGauges().get(MetricRegistry.name("eventlisteners", listenerName, "queued")).getValue(), equalTo(2));
+
+        final CountDownLatch removed = new CountDownLatch(1);
+        final Thread remover = new Thread(() -> {
+            manager.removeEventListener(blockingListener);
+            removed.countDown();
+        });
+        remover.start();
+        try {
+            // Removing the listener waits for the queued events to be processed
+            assertFalse(removed.await(500, TimeUnit.MILLISECONDS));
+        } finally {
+            release.countDown();
+        }
+        assertTrue("removeEventListener() did not return", removed.await(10, TimeUnit.SECONDS));
+        assertTrue("broadcastNow() did not return after the listener was removed", returned.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("uei.opennms.org/foo", "uei.opennms.org/bar"), received);
+
+        // Events sent after the listener was removed are no longer delivered
+        manager.broadcastNow(new EventBuilder("uei.opennms.org/baz", listenerName).getEvent(), true);
+        assertEquals(2, received.size());
+    }
+
+    public void testListenerCanRemoveItself() throws InterruptedException {
+        final String listenerName = "testListenerCanRemoveItself";
+        final EventIpcManagerDefaultImpl manager = new EventIpcManagerDefaultImpl(m_registry);
+        manager.setHandlerPoolSize(5);
+        DefaultEventHandlerImpl handler = new DefaultEventHandlerImpl(m_registry);
+        manager.setEventHandler(handler);
+        manager.afterPropertiesSet();
+
+        final AtomicInteger counter = new AtomicInteger();
+        final EventListener listener = new EventListener() {
+            @Override
+            public String getName() {
+                return listenerName;
+            }
+
+            @Override
+            public void onEvent(Event event) {
+                counter.incrementAndGet();
+                manager.removeEventListener(this);
+            }
+        };
+        manager.addEventListener(listener);
+
+        final long start = System.currentTimeMillis();
+        manager.broadcastNow(new EventBuilder("uei.opennms.org/foo", listenerName).getEvent(), true);
+        assertTrue("The listener blocked while removing itself", System.currentTimeMillis() - start < 10000);
+        assertEquals(1, counter.get());
+
+        manager.broadcastNow(new EventBuilder("uei.opennms.org/bar", listenerName).getEvent(), true);
+        assertEquals(1, counter.get());
+    }
+
+    public void testEventOrderingPreservedPerListener() throws InterruptedException {
+        final int numberOfEvents = 1000;
+        final List<String> received = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(numberOfEvents);
+        final EventListener orderedListener = new EventListener() {
+            @Override
+            public String getName() {
+                return "testEventOrderingPreservedPerListener";
+            }
+
+            @Override
+            public void onEvent(Event event) {
+                synchronized (received) {
+                    received.add(event.getUei());
+                }
+                latch.countDown();
+            }
+        };
+
+        m_manager.addEventListener(orderedListener, "uei.opennms.org/ordered/");
+
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < numberOfEvents; i++) {
+            final String uei = "uei.opennms.org/ordered/" + i;
+            expected.add(uei);
+            m_manager.broadcastNow(new EventBuilder(uei, "testEventOrderingPreservedPerListener").getEvent(), false);
+        }
+
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        synchronized (received) {
+            assertEquals(expected, received);
+        }
+        assertEquals(numberOfEvents, m_registry.meter("eventlisteners.testEventOrderingPreservedPerListener.processed").getCount());
+
+        m_manager.removeEventListener(orderedListener);
+        assertFalse(m_manager.hasEventListener("uei.opennms.org/ordered/"));
+    }
 }
@@ -35,6 +35,9 @@ import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.opennms.netmgt.events.api.EventProcessorException;
@@ -116,4 +119,52 @@ public class HibernateEventWriterTest {
         eventWriter.process(log);
         verify(transactionManager, times(1)).execute(any());
     }
+
+    /**
+     * Verifies that concurrent event logs are merged into a
+     * single transaction when batching is enabled.
+     */
+    @Test(timeout=60000)
+    public void testConcurrentLogsShareTransactionWhenBatching() throws Exception {
+        eventWriter.setBatchSize(2);
+        eventWriter.setBatchIntervalMs(30000);
+
+        final CompletableFuture<Void> first = CompletableFuture.runAsync(() -> processSingleEvent());
+        final CompletableFuture<Void> second = CompletableFuture.runAsync(() -> processSingleEvent());
+        CompletableFuture.allOf(first, second).get();
+
+        verify(transactionManager, times(1)).execute(any());
+    }
+
+    /**
+     * Verifies that the event logs queued for the batch writer are
+     * persisted when it is stopped, and that later event logs are
+     * still persisted.
+     */
+    @Test(timeout=60000)
+    public void testDestroyPersistsPendingWrites() throws Exception {
+        eventWriter.setBatchSize(2);
+        eventWriter.setBatchIntervalMs(30000);
+
+        // The batch writer waits for a second event log that never comes
+        final CompletableFuture<Void> pending = CompletableFuture.runAsync(() -> processSingleEvent());
+        Thread.sleep(100);
+        eventWriter.destroy();
+
+        pending.get(10, TimeUnit.SECONDS);
+        verify(transactionManager, times(1)).execute(any());
+
+        processSingleEvent();
+        verify(transactionManager, times(2)).execute(any());
+    }
+
+    private void processSingleEvent() {
+        EventBuilder bldr = new EventBuilder("testUei", "testSource");
+        bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_LOG_AND_DISPLAY);
+        try {
+            eventWriter.process(bldr.getLog());
+        } catch (EventProcessorException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
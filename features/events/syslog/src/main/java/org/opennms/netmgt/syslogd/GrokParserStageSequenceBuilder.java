@@ -536,7 +536,14 @@ public abstract class GrokParserStageSequenceBuilder {
 			switch(patternType) {
 			case NOSPACE:
 			case STRING:
-				factory.terminal().string(semanticStringToField(semanticString));
+				if (SyslogSemanticType.message.name().equals(semanticString)) {
+					// Defer decoding of the message body until it is read
+					factory.terminal().remainder((s,v) -> {
+						s.message.setMessageBytes(v);
+					});
+				} else {
+					factory.terminal().string(semanticStringToField(semanticString));
+				}
 				break;
 			case INT:
 				factory.terminal().integer(semanticIntegerToField(semanticString));
@@ -37,7 +37,6 @@ import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Objects;
 import java.util.Stack;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
@@ -70,7 +69,6 @@ public class ParserStageSequenceBuilder {
 		public final ByteBuffer buffer;
 
 		private StringBuilder accumulatedValue = null;
-		private AtomicInteger accumulatedSize = null;
 
 		// Only used by MatchMonth
 		public RadixTreeNode<CharacterWithValue> currentNode = null; 
@@ -81,11 +79,10 @@ public class ParserStageSequenceBuilder {
 
 		public void accumulate(char c) {
 			accessAccumulatedValue().append(c);
-			accessAccumulatedSize().incrementAndGet();
 		}
 
 		public int getAccumulatedSize() {
-			return accessAccumulatedSize().get();
+			return accumulatedValue == null ? 0 : accumulatedValue.length();
 		}
 
 		private final StringBuilder accessAccumulatedValue() {
@@ -95,18 +92,11 @@ public class ParserStageSequenceBuilder {
 			return accumulatedValue;
 		}
 
-		private final AtomicInteger accessAccumulatedSize() {
-			if (accumulatedSize == null) {
-				accumulatedSize = new AtomicInteger();
-			}
-			return accumulatedSize;
-		}
-
 		@Override
 		public String toString() {
 			return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
 				.append("accumulatedValue", accumulatedValue == null ? "null" : accumulatedValue.toString())
-				.append("accumulatedSize", accumulatedSize == null ? 0 : accumulatedSize.get())
+				.append("accumulatedSize", getAccumulatedSize())
 				.toString();
 		}
 	}
@@ -167,6 +157,16 @@ public class ParserStageSequenceBuilder {
 		return this;
 	}
 
+	/**
+	 * Match the remainder of the buffer without copying it. The consumer
+	 * receives a read-only view of the remaining bytes, or null if the
+	 * buffer is already exhausted.
+	 */
+	public ParserStageSequenceBuilder remainder(BiConsumer<ParserState, ByteBuffer> consumer) {
+		addStage(new MatchRemainder(consumer));
+		return this;
+	}
+
 	public ParserStageSequenceBuilder integer(BiConsumer<ParserState, Integer> consumer) {
 		addStage(new MatchInteger(consumer));
 		return this;
@@ -263,7 +263,7 @@ public class ParserStageSequenceBuilder {
 			if (incomingState == null) {
 				return null;
 			} else {
-				LOG.trace("Starting stage: " + this);
+				LOG.trace("Starting stage: {}", this);
 			}
 
 			ParserState state = incomingState.clone();
@@ -303,7 +303,7 @@ public class ParserStageSequenceBuilder {
 						return new ParserState(stageState.buffer, state.message);
 					} else {
 						// Reached end of buffer, match failed
-						LOG.trace("Parse failed due to buffer underflow: " + this);
+						LOG.trace("Parse failed due to buffer underflow: {}", this);
 						return null;
 					}
 				}
@@ -393,8 +393,8 @@ public class ParserStageSequenceBuilder {
 	static class MatchWhitespace extends AbstractParserStage<Void> {
 		@Override
 		public AcceptResult acceptChar(ParserStageState state, char c) {
-			// TODO: Make this more efficient
-			if ("".equals(String.valueOf(c).trim())) {
+			// Same set of characters that String.trim() removes
+			if (c <= ' ') {
 				return AcceptResult.CONTINUE;
 			} else {
 				return AcceptResult.COMPLETE_WITHOUT_CONSUMING;
@@ -649,6 +649,74 @@ public class ParserStageSequenceBuilder {
 		}
 	}
 
+	/**
+	 * Match all remaining bytes in a single step. Unlike {@link MatchAny}, the
+	 * bytes are not accumulated character-by-character: the consumer is handed
+	 * a slice of the incoming buffer so that decoding can be deferred until the
+	 * value is actually used.
+	 */
+	static class MatchRemainder implements ParserStage {
+		private final BiConsumer<ParserState,ByteBuffer> m_resultConsumer;
+		private boolean m_optional = false;
+		private boolean m_terminal = false;
+
+		public MatchRemainder(BiConsumer<ParserState,ByteBuffer> consumer) {
+			m_resultConsumer = consumer;
+		}
+
+		@Override
+		public void setOptional(boolean optional) {
+			m_optional = optional;
+		}
+
+		@Override
+		public void setTerminal(boolean terminal) {
+			m_terminal = terminal;
+		}
+
+		@Override
+		public ParserState apply(final ParserState incomingState) {
+			if (incomingState == null) {
+				return null;
+			}
+
+			// Reaching the end of the buffer is the only way that this stage
+			// can complete, so handle it the same way as a buffer underflow
+			// in AbstractParserStage
+			final ParserState state = incomingState.clone();
+			final ByteBuffer buffer = state.getBuffer();
+			final ByteBuffer value = buffer.hasRemaining() ? buffer.slice() : null;
+			buffer.position(buffer.limit());
+
+			if (m_terminal) {
+				if (m_resultConsumer != null) {
+					m_resultConsumer.accept(state, value);
+				}
+				return new ParserState(buffer, state.message);
+			} else if (m_optional) {
+				return new ParserState(buffer, state.message);
+			} else {
+				LOG.trace("Parse failed due to buffer underflow: {}", this);
+				return null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+				.toString();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == null) return false;
+			if (o == this) return true;
+			if (!(o instanceof MatchRemainder)) return false;
+			MatchRemainder other = (MatchRemainder)o;
+			return Objects.equals(m_resultConsumer, other.m_resultConsumer);
+		}
+	}
+
 	/**
 	 * Match a string terminated by a character in a list of end tokens.
 	 */
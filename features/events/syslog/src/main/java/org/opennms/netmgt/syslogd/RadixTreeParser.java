@@ -32,7 +32,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
 import org.opennms.core.collections.RadixTree;
@@ -45,21 +44,13 @@ import org.slf4j.LoggerFactory;
  * <p>This class uses a {@link RadixTree} to store a tree of parser stages.
  * Each leaf node of the tree represents a complete parse of an incoming
  * message. To parse incoming {@link ByteBuffer} messages, the {@link RadixTree}
- * is traversed and each stage is added as a future processing step. When a leaf node 
+ * is traversed and each stage is applied to the buffer in turn. When a leaf node 
  * is reached and returns a non-null result, ie. a complete parse, that result is 
  * returned as the parse result.</p>
  * 
  * <p>You can teach the parser new {@link ParserStage} sequences by using the 
  * {@link #teach(ParserStage[])} method. This will add the stages to the {@link RadixTree}.</p>
  * 
- * <p>TODO: Make the parser tree construction phased or asynchronous so that tree 
- * nodes are added as-needed to complete the parse. In many cases, the first
- * several branches of the tree will result in a complete parse, making it unnecessary
- * to add all possible branches to the execution tree.</p>
- * 
- * <p>TODO: Allow cancellation of in-progress branches when the first non-null result
- * is obtained.</p>
- * 
  * <p>TODO: Score and sort parse branches based on successful parses. If a particular parse
  * branch is successful, we should have a way to increment a score on the stages in
  * that branch so that we can periodically sort the tree based on these scores. This 
@@ -180,94 +171,42 @@ public class RadixTreeParser implements ByteBufferParser<SyslogMessage> {
 		}
 	}
 
+	/**
+	 * Parse the buffer by walking the tree depth-first on the calling thread.
+	 * Branches are abandoned as soon as one of their stages fails and the walk
+	 * stops at the first leaf that completes, so only the stages on the path
+	 * to a successful parse (plus any failed prefixes) are ever evaluated.
+	 * Leaves are visited in insertion order, so the result is the same as the
+	 * first non-null leaf result.
+	 */
 	@Override
 	public CompletableFuture<SyslogMessage> parse(ByteBuffer incoming) {
-		ParserState state = new ParserState(incoming);
-
-		// TODO: Use better collection than ArrayList?
-		// We have to make sure that this list maintains the insertion order
-		// so that the first future that completes is definitely returned by
-		// {@link RadixTreeParser#firstNonNullResult()}
-		final List<CompletableFuture<ParserState>> finishedFutures = new ArrayList<>();
-
-		// Top of future tree is parser state
-		final CompletableFuture<ParserState> parent = CompletableFuture.completedFuture(state);
-
-		// Recursively construct the parser tree
-		addStageFutures(finishedFutures, parent, tree);
-
-		return firstNonNullResult(finishedFutures).thenApply(s -> {
-			if (s == null) {
-				return null;
-			} else {
-				return s.message;
-			}
-		});
+		final ParserState state = parse(new ParserState(incoming), tree);
+		if (state == null) {
+			LOG.debug("All parse branches completed with a null result");
+		}
+		return CompletableFuture.completedFuture(state == null ? null : state.message);
 	}
 
-	/**
-	 * TODO: Use a visitor pattern instead?
-	 */
-	private static void addStageFutures(List<CompletableFuture<ParserState>> finishedFutures, CompletableFuture<ParserState> parent, RadixTreeNode<ParserStage> node) {
-		final CompletableFuture<ParserState> current;
-
-		// If we're at the root of the radix tree (where the content is null), 
-		// use the parent future as the current future
-		if (node.getContent() == null) {
-			current = parent;
-		} else {
-			// Otherwise, apply the current node's stage to the parent
-			current = parent.thenApply(s -> { return node.getContent().apply(s); });
+	private static ParserState parse(ParserState parent, RadixTreeNode<ParserStage> node) {
+		// If we're at the root of the radix tree (where the content is null),
+		// use the parent state as the current state. Stages never modify their
+		// incoming state so it can safely be shared between sibling branches.
+		final ParserState current = node.getContent() == null ? parent : node.getContent().apply(parent);
+		if (current == null) {
+			return null;
 		}
 
-		// If the node has children, then recursively process the children. Do not
-		// add the current node to the finished futures list: we're only concerned
-		// with seeing if the leaf nodes complete, not the intermediate stages
 		if (node.getChildren() != null && node.getChildren().size() > 0) {
 			for (RadixTreeNode<ParserStage> child : node.getChildren()) {
-				addStageFutures(finishedFutures, current, child);
+				final ParserState result = parse(current, child);
+				if (result != null) {
+					return result;
+				}
 			}
+			return null;
 		} else {
-			// If the node is a leaf node, then add it to the list of futures
-			// that need to be evaluated as part of the parse tree
-			finishedFutures.add(current);
+			return current;
 		}
 	}
-
-	private static <T> CompletableFuture<T> firstNonNullResult(List<? extends CompletionStage<T>> futures) {
-
-		CompletableFuture<T> parent = new CompletableFuture<>();
-
-		CompletableFuture.allOf(
-			futures.stream().map(
-				s -> s.thenAccept(t -> {
-//					System.out.println("VALUE " + t);
-					// After each stage completes, if its result is non-null
-					// then complete the parent future
-					if (t != null) {
-						if (!parent.complete(t)) {
-							LOG.trace("More than one future completed with a non-null result");
-						} else {
-							LOG.trace("Non-null result returned");
-						}
-					}
-				})
-			).toArray(
-				CompletableFuture<?>[]::new
-			)
-		).exceptionally(ex -> {
-			// If all futures complete exceptionally, mark this future as exceptional as well
-//			parent.completeExceptionally(ex);
-			parent.complete(null);
-			return null;
-		}).thenAccept(v -> {
-			// If the parent isn't complete yet, then all children returned null so just
-			// complete with null
-			if (parent.complete(null)) {
-				LOG.debug("All futures completed with a null result");
-			}
-		});
-
-		return parent;
-	}
 }
@@ -30,6 +30,7 @@ package org.opennms.netmgt.syslogd;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.ZoneId;
@@ -84,6 +85,10 @@ public class SyslogMessage implements Cloneable {
     private String m_processId;
     private String m_messageId;
     private String m_message;
+    /**
+     * Undecoded message body, see {@link #setMessageBytes(ByteBuffer)}.
+     */
+    private ByteBuffer m_messageBytes;
 
     public SyslogMessage() {
     }
@@ -304,11 +309,39 @@ public class SyslogMessage implements Cloneable {
     }
 
     public String getMessage() {
+        if (m_messageBytes != null) {
+            m_message = decodeMessage(m_messageBytes);
+            m_messageBytes = null;
+        }
         return m_message;
     }
 
     public void setMessage(final String message) {
         m_message = message;
+        m_messageBytes = null;
+    }
+
+    /**
+     * Set the message body to the given bytes without decoding them. The
+     * bytes are converted into a trimmed string the first time that
+     * {@link #getMessage()} is called, so the buffer must not be modified
+     * after it is passed to this method.
+     */
+    public void setMessageBytes(final ByteBuffer message) {
+        m_message = null;
+        m_messageBytes = message;
+    }
+
+    /**
+     * Decode the bytes one character per byte, the same way that the
+     * {@link ParserStageSequenceBuilder} stages accumulate values.
+     */
+    private static String decodeMessage(final ByteBuffer bytes) {
+        final char[] chars = new char[bytes.remaining()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char)bytes.get(bytes.position() + i);
+        }
+        return new String(chars).trim();
     }
 
     private int getPriorityField() {
@@ -365,7 +398,7 @@ public class SyslogMessage implements Cloneable {
             .append("message ID", m_messageId)
             .append("process name", m_processName)
             .append("process ID", m_processId)
-            .append("message", m_message)
+            .append("message", getMessage())
             .toString();
     }
 
@@ -379,7 +412,7 @@ public class SyslogMessage implements Cloneable {
 
     @Override
     public SyslogMessage clone() {
-        return new SyslogMessage(
+        final SyslogMessage retval = new SyslogMessage(
             m_facility,
             m_severity,
             m_version,
@@ -398,5 +431,7 @@ public class SyslogMessage implements Cloneable {
             m_messageId,
             m_message
         );
+        retval.m_messageBytes = m_messageBytes;
+        return retval;
     }
 }
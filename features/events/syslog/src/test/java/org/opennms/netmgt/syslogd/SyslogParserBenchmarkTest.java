@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.config.SyslogdConfig;
+
+/**
+ * Compares the throughput and allocation rate of each of the {@link SyslogParser}
+ * implementations against the corpus of device messages in <i>syslogMessages.txt</i>.
+ *
+ * The throughput comparison is only meant to be run manually.
+ */
+public class SyslogParserBenchmarkTest {
+
+	private static final int ITERATIONS = 200;
+
+	private List<ByteBuffer> m_corpus;
+
+	@Before
+	public void setUp() throws IOException {
+		final Path resource = ConfigurationTestUtils.getFileForResource(this, "/syslogMessages.txt").toPath();
+		m_corpus = Files.lines(resource)
+			// Ignore comments and blank lines
+			.filter(syslog -> syslog.trim().length() > 0 && !syslog.trim().startsWith("#"))
+			// Same substitutions as ConvertToEventTest
+			.map(syslog -> syslog.replaceAll("\\\\u0000", "\u0000").replaceAll("\\\\uFEFF", "\uFEFF"))
+			.map(syslog -> ConvertToEvent.trimTrailingNulls(SyslogdTestUtils.toByteBuffer(syslog)))
+			.collect(Collectors.toList());
+	}
+
+	@Test
+	public void testRadixTreeParsesCorpus() throws Exception {
+		final SyslogConfigBean radixConfig = new SyslogConfigBean();
+		radixConfig.setParser(RadixTreeSyslogParser.class.getName());
+
+		// The grok patterns are expected to handle every message in the corpus
+		assertEquals(m_corpus.size(), run(radixConfig, 1));
+	}
+
+	@Test
+	@Ignore
+	public void testParserThroughput() throws Exception {
+		final Map<String,SyslogdConfig> configs = new LinkedHashMap<>();
+
+		final SyslogConfigBean customConfig = new SyslogConfigBean();
+		customConfig.setParser(CustomSyslogParser.class.getName());
+		customConfig.setForwardingRegexp("^.*\\s(19|20)\\d\\d([-/.])(0[1-9]|1[012])\\2(0[1-9]|[12][0-9]|3[01])(\\s+)(\\S+)(\\s)(\\S.+)");
+		customConfig.setMatchingGroupHost(6);
+		customConfig.setMatchingGroupMessage(8);
+		configs.put("custom", customConfig);
+
+		final SyslogConfigBean rfc5424Config = new SyslogConfigBean();
+		rfc5424Config.setParser(Rfc5424SyslogParser.class.getName());
+		configs.put("rfc5424", rfc5424Config);
+
+		final SyslogConfigBean syslogNgConfig = new SyslogConfigBean();
+		syslogNgConfig.setParser(SyslogNGParser.class.getName());
+		configs.put("syslogNg", syslogNgConfig);
+
+		final SyslogConfigBean radixConfig = new SyslogConfigBean();
+		radixConfig.setParser(RadixTreeSyslogParser.class.getName());
+		configs.put("radixTree", radixConfig);
+
+		for (Map.Entry<String,SyslogdConfig> entry : configs.entrySet()) {
+			// Warm up
+			run(entry.getValue(), ITERATIONS / 10);
+
+			final long allocatedBefore = getAllocatedBytes();
+			final long start = System.nanoTime();
+			final int parsed = run(entry.getValue(), ITERATIONS);
+			final long elapsed = System.nanoTime() - start;
+			final long allocatedAfter = getAllocatedBytes();
+
+			final long messages = (long)ITERATIONS * m_corpus.size();
+			System.err.printf("%-10s %8d msgs/sec, %6s bytes/msg, %d/%d messages parsed%n",
+				entry.getKey(),
+				messages * 1000000000L / Math.max(1, elapsed),
+				allocatedBefore < 0 ? "n/a" : String.valueOf((allocatedAfter - allocatedBefore) / messages),
+				parsed / ITERATIONS,
+				m_corpus.size()
+			);
+		}
+	}
+
+	/**
+	 * @return The number of messages that were parsed successfully
+	 */
+	private int run(SyslogdConfig config, int iterations) {
+		int parsed = 0;
+		for (int i = 0; i < iterations; i++) {
+			for (ByteBuffer message : m_corpus) {
+				try {
+					final SyslogParser parser = SyslogParser.getParserInstance(config, message);
+					if (parser.find() && parser.parse() != null) {
+						parsed++;
+					}
+				} catch (MessageDiscardedException | SyslogParserException e) {
+					// Not all parsers support all formats
+				}
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * @return The number of bytes allocated by the current thread, or -1 if
+	 * the JVM does not support allocation measurement
+	 */
+	private static long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
@@ -49,19 +49,47 @@ import org.opennms.netmgt.xml.event.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
 class EventCreator {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(EventCreator.class);
 
+    /**
+     * Maximum number of distinct varbind OIDs whose string forms are kept.
+     * Agents tend to send the same handful of OIDs over and over, so this
+     * lets every parm for a given OID share a single name string.
+     */
+    private static final long MAX_OID_NAMES = Long.getLong("org.opennms.netmgt.trapd.maxOidNames", 10000);
+
     private final InterfaceToNodeCache cache;
     private final EventConfDao eventConfDao;
 
+    private final LoadingCache<SnmpObjId, String> oidNames = CacheBuilder.newBuilder()
+            .maximumSize(MAX_OID_NAMES)
+            .build(new CacheLoader<SnmpObjId, String>() {
+                @Override
+                public String load(SnmpObjId oid) {
+                    return oid.toString();
+                }
+            });
+
     public EventCreator(InterfaceToNodeCache cache, EventConfDao eventConfDao) {
         this.cache = Objects.requireNonNull(cache);
         this.eventConfDao = Objects.requireNonNull(eventConfDao);
     }
 
     public Event createEventFrom(final TrapDTO trapDTO, final String systemId, final String location, final InetAddress trapAddress) {
+        return createEventFrom(trapDTO, systemId, trapAddress, resolveNodeId(location, trapAddress));
+    }
+
+    /**
+     * Create the event using a node id that has already been resolved. This allows
+     * callers to resolve the trap address once for a whole batch of traps.
+     */
+    public Event createEventFrom(final TrapDTO trapDTO, final String systemId, final InetAddress trapAddress, final Optional<Integer> nodeId) {
         LOG.debug("{} trap - trapInterface: {}", trapDTO.getVersion(), trapDTO.getAgentAddress());
 
         // Set event data
@@ -87,15 +115,14 @@ class EventCreator {
         for (SnmpResult eachResult : trapDTO.getResults()) {
             final SnmpObjId name = eachResult.getBase();
             final SnmpValue value = eachResult.getValue();
-            eventBuilder.addParam(SyntaxToEvent.processSyntax(name.toString(), value));
+            eventBuilder.addParam(SyntaxToEvent.processSyntax(getOidName(name), value));
             if (EventConstants.OID_SNMP_IFINDEX.isPrefixOf(name)) {
                 eventBuilder.setIfIndex(value.toInt());
             }
         }
 
-        // Resolve Node id and set, if known by OpenNMS
-        resolveNodeId(location, trapAddress)
-                .ifPresent(eventBuilder::setNodeid);
+        // Set node id, if known by OpenNMS
+        nodeId.ifPresent(eventBuilder::setNodeid);
 
         // If there was no systemId in the trap message, assume that
         // it was generated by this system. Eventd will fill in the
@@ -115,7 +142,7 @@ class EventCreator {
         return event;
     }
 
-    private Optional<Integer> resolveNodeId(String location, InetAddress trapAddress) {
+    public Optional<Integer> resolveNodeId(String location, InetAddress trapAddress) {
         // If there was no location in the trap message, assume that
         // it was generated in the default location
         if (location == null) {
@@ -123,4 +150,13 @@ class EventCreator {
         }
         return cache.getFirstNodeId(location, trapAddress);
     }
+
+    private String getOidName(SnmpObjId oid) {
+        // Subclasses such as SnmpInstId are equal to the plain SnmpObjId with the
+        // same ids, but don't render the same way, so only share plain OIDs
+        if (oid.getClass() != SnmpObjId.class) {
+            return oid.toString();
+        }
+        return oidNames.getUnchecked(oid);
+    }
 }
@@ -30,6 +30,8 @@ package org.opennms.netmgt.trapd;
 
 import static org.opennms.core.utils.InetAddressUtils.addr;
 
+import java.util.Optional;
+
 import javax.annotation.PostConstruct;
 
 import org.opennms.core.ipc.sink.api.MessageConsumer;
@@ -102,7 +104,9 @@ public class TrapSinkConsumer implements MessageConsumer<TrapInformationWrapper,
 		try (Logging.MDCCloseable mdc = Logging.withPrefixCloseable(Trapd.LOG4J_CATEGORY)) {
 			final Log eventLog = toLog(messageLog);
 
+			final long start = System.nanoTime();
 			eventForwarder.sendNowSync(eventLog);
+			trapdInstrumentation.addDispatchTime(System.nanoTime() - start);
 
 			// If configured, also send events for new suspects
 			if (config.getNewSuspectOnTrap()) {
@@ -121,13 +125,21 @@ public class TrapSinkConsumer implements MessageConsumer<TrapInformationWrapper,
 		final Events events = new Events();
 		log.setEvents(events);
 
+		// All of the traps in the log share the same trap address,
+		// so the node only needs to be looked up once per log
+		long start = System.nanoTime();
+		final Optional<Integer> nodeId = eventCreator.resolveNodeId(messageLog.getLocation(), messageLog.getTrapAddress());
+		trapdInstrumentation.addResolveTime(System.nanoTime() - start);
+
 		for (TrapDTO eachMessage : messageLog.getMessages()) {
 			try {
+				start = System.nanoTime();
 				final Event event = eventCreator.createEventFrom(
 						eachMessage,
 						messageLog.getSystemId(),
-						messageLog.getLocation(),
-						messageLog.getTrapAddress());
+						messageLog.getTrapAddress(),
+						nodeId);
+				trapdInstrumentation.addDecodeTime(System.nanoTime() - start);
 				if (!shouldDiscard(event)) {
 					if (event.getSnmp() != null) {
 						trapdInstrumentation.incTrapsReceivedCount(event.getSnmp().getVersion());
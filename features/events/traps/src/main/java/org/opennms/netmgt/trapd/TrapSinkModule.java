@@ -97,7 +97,7 @@ public class TrapSinkModule extends AbstractXmlSinkModule<TrapInformationWrapper
                 if(config.isIncludeRawMessage()) {
                     byte[] rawMessage = convertToRawMessage(trapInfo);
                     if (rawMessage != null) {
-                        trapDTO.setRawMessage(convertToRawMessage(trapInfo));
+                        trapDTO.setRawMessage(rawMessage);
                     }
                 }
 
@@ -92,6 +92,24 @@ public class Trapd extends AbstractSpringContextJmxServiceDaemon<org.opennms.net
         return getTrapdInstrumentation().getTrapsErrored();
     }
     
+    /** {@inheritDoc} */
+    @Override
+    public long getAverageDecodeTimeMicros() {
+        return getTrapdInstrumentation().getAverageDecodeTimeMicros();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getAverageResolveTimeMicros() {
+        return getTrapdInstrumentation().getAverageResolveTimeMicros();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getAverageDispatchTimeMicros() {
+        return getTrapdInstrumentation().getAverageDispatchTimeMicros();
+    }
+
     private TrapdInstrumentation getTrapdInstrumentation() {
         return TrapSinkConsumer.trapdInstrumentation;
     }
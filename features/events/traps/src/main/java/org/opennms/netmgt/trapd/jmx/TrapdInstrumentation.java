@@ -31,6 +31,7 @@ package org.opennms.netmgt.trapd.jmx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class TrapdInstrumentation {
@@ -44,6 +45,9 @@ public class TrapdInstrumentation {
     private final AtomicLong vUnknownTrapsReceived = new AtomicLong();
     private final AtomicLong trapsDiscarded = new AtomicLong();
     private final AtomicLong trapsErrored = new AtomicLong();
+    private final Latency decodeTime = new Latency();
+    private final Latency resolveTime = new Latency();
+    private final Latency dispatchTime = new Latency();
 
     public void incTrapsReceivedCount(String version) {
         trapsReceived.incrementAndGet();
@@ -67,6 +71,27 @@ public class TrapdInstrumentation {
         trapsErrored.incrementAndGet();
     }
 
+    /**
+     * @param nanos Time spent turning a single trap into an event
+     */
+    public void addDecodeTime(long nanos) {
+        decodeTime.add(nanos);
+    }
+
+    /**
+     * @param nanos Time spent resolving the node of a batch of traps
+     */
+    public void addResolveTime(long nanos) {
+        resolveTime.add(nanos);
+    }
+
+    /**
+     * @param nanos Time spent handing a batch of events off to eventd
+     */
+    public void addDispatchTime(long nanos) {
+        dispatchTime.add(nanos);
+    }
+
     public long getV1TrapsReceived() {
         return v1TrapsReceived.get();
     }
@@ -94,4 +119,31 @@ public class TrapdInstrumentation {
     public long getTrapsReceived() {
         return trapsReceived.get();
     }
+
+    public long getAverageDecodeTimeMicros() {
+        return decodeTime.getAverageMicros();
+    }
+
+    public long getAverageResolveTimeMicros() {
+        return resolveTime.getAverageMicros();
+    }
+
+    public long getAverageDispatchTimeMicros() {
+        return dispatchTime.getAverageMicros();
+    }
+
+    private static class Latency {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private void add(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+        }
+
+        private long getAverageMicros() {
+            final long n = count.get();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / n);
+        }
+    }
 }
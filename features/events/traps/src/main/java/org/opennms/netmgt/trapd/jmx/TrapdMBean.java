@@ -57,4 +57,13 @@ public interface TrapdMBean extends BaseOnmsMBean {
     
     /** @return The number of traps not processed due to errors since Trapd was last started */
     public long getTrapsErrored();
+
+    /** @return The average time in microseconds taken to turn a trap into an event */
+    public long getAverageDecodeTimeMicros();
+
+    /** @return The average time in microseconds taken to resolve the node for a batch of traps */
+    public long getAverageResolveTimeMicros();
+
+    /** @return The average time in microseconds taken to send a batch of trap events to eventd */
+    public long getAverageDispatchTimeMicros();
 }
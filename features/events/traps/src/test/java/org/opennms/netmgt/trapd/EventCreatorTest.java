@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.config.api.EventConfDao;
+import org.opennms.netmgt.dao.api.InterfaceToNodeCache;
+import org.opennms.netmgt.dao.api.MonitoringLocationDao;
+import org.opennms.netmgt.model.events.snmp.SyntaxToEvent;
+import org.opennms.netmgt.snmp.SnmpInstId;
+import org.opennms.netmgt.snmp.SnmpResult;
+import org.opennms.netmgt.snmp.snmp4j.Snmp4JTrapNotifier;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Parm;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Verifies that the events created with a node id resolved once per batch,
+ * and with the cached varbind names, are the same as the ones created by
+ * resolving the node and rendering the varbind names for every trap.
+ */
+public class EventCreatorTest {
+
+    private static final InetAddress TRAP_ADDRESS = InetAddressUtils.addr("192.168.1.1");
+
+    private final InterfaceToNodeCache cache = mock(InterfaceToNodeCache.class);
+
+    private final EventConfDao eventConfDao = mock(EventConfDao.class);
+
+    private EventCreator eventCreator;
+
+    @Before
+    public void setUp() {
+        when(cache.getFirstNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, TRAP_ADDRESS)).thenReturn(Optional.of(1));
+        when(cache.getFirstNodeId("Remote", TRAP_ADDRESS)).thenReturn(Optional.of(2));
+        when(cache.getFirstNodeId("Unknown", TRAP_ADDRESS)).thenReturn(Optional.empty());
+        eventCreator = new EventCreator(cache, eventConfDao);
+    }
+
+    @Test
+    public void createsTheSameParmsAsRenderingEveryVarbind() throws Exception {
+        final TrapDTO trapDTO = createTrap();
+        // Equal to the plain OID of the first varbind, but rendered without the leading dot
+        final SnmpResult first = trapDTO.getResults().get(0);
+        trapDTO.getResults().add(new SnmpResult(new SnmpInstId(first.getBase()), null, first.getValue()));
+
+        // Create the event more than once, so that the names are served from the cache
+        for (int i = 0; i < 3; i++) {
+            final Event event = eventCreator.createEventFrom(trapDTO, "system", TRAP_ADDRESS, Optional.empty());
+
+            final List<Parm> parms = event.getParmCollection();
+            assertEquals(trapDTO.getResults().size(), parms.size());
+            for (int j = 0; j < parms.size(); j++) {
+                final SnmpResult result = trapDTO.getResults().get(j);
+                assertParmEquals(SyntaxToEvent.processSyntax(result.getBase().toString(), result.getValue()), parms.get(j));
+            }
+            assertEquals(Integer.valueOf(3), event.getIfIndex());
+        }
+    }
+
+    @Test
+    public void resolvesTheSameNodeAsEveryTrap() throws Exception {
+        for (String location : new String[] { null, "Remote", "Unknown" }) {
+            final Optional<Integer> nodeId = eventCreator.resolveNodeId(location, TRAP_ADDRESS);
+            for (int i = 0; i < 3; i++) {
+                final TrapDTO trapDTO = createTrap();
+                final Event expected = eventCreator.createEventFrom(trapDTO, "system", location, TRAP_ADDRESS);
+                final Event actual = eventCreator.createEventFrom(trapDTO, "system", TRAP_ADDRESS, nodeId);
+
+                assertEquals(expected.getNodeid(), actual.getNodeid());
+                assertEquals(expected.getInterface(), actual.getInterface());
+                assertEquals(expected.getSnmphost(), actual.getSnmphost());
+                assertEquals(expected.getDistPoller(), actual.getDistPoller());
+            }
+        }
+
+        assertEquals(Long.valueOf(1), eventCreator.createEventFrom(createTrap(), "system", null, TRAP_ADDRESS).getNodeid());
+        assertEquals(Long.valueOf(2), eventCreator.createEventFrom(createTrap(), "system", "Remote", TRAP_ADDRESS).getNodeid());
+        assertFalse(eventCreator.createEventFrom(createTrap(), "system", "Unknown", TRAP_ADDRESS).hasNodeid());
+
+        // Once for the batch, three times for the traps, and once more above
+        verify(cache, times(5)).getFirstNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, TRAP_ADDRESS);
+    }
+
+    private static void assertParmEquals(Parm expected, Parm actual) {
+        assertEquals(expected.getParmName(), actual.getParmName());
+        assertEquals(expected.getValue().getContent(), actual.getValue().getContent());
+        assertEquals(expected.getValue().getType(), actual.getValue().getType());
+        assertEquals(expected.getValue().getEncoding(), actual.getValue().getEncoding());
+    }
+
+    private static TrapDTO createTrap() {
+        final PDU pdu = new PDU();
+        pdu.setType(PDU.TRAP);
+        pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(5000)));
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, new OID(".1.3.6.1.6.3.1.1.5.3")));
+        pdu.add(new VariableBinding(SnmpConstants.snmpTrapAddress, new IpAddress("192.168.1.1")));
+        pdu.add(new VariableBinding(new OID(".1.3.6.1.2.1.2.2.1.1.3"), new Integer32(3)));
+        pdu.add(new VariableBinding(new OID(".1.3.6.1.2.1.2.2.1.2.3"), new OctetString("eth0")));
+        pdu.add(new VariableBinding(new OID(".1.3.6.1.2.1.2.2.1.6.3"), new OctetString(new byte[] { 0, 0x1a, 0x2b, 0x3c, 0x4d, 0x5e })));
+        pdu.add(new VariableBinding(new OID(".1.3.6.1.2.1.2.2.1.2.3"), new OctetString("eth0 again")));
+
+        return new TrapDTO(new Snmp4JTrapNotifier.Snmp4JV2TrapInformation(TRAP_ADDRESS, "public", pdu));
+    }
+}
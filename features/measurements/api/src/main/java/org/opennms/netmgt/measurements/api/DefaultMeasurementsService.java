@@ -28,12 +28,15 @@
 
 package org.opennms.netmgt.measurements.api;
 
+import java.util.Arrays;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.opennms.netmgt.measurements.api.exceptions.FetchException;
 import org.opennms.netmgt.measurements.api.exceptions.MeasurementException;
 import org.opennms.netmgt.measurements.api.exceptions.ResourceNotFoundException;
 import org.opennms.netmgt.measurements.api.exceptions.ValidationException;
+import org.opennms.netmgt.measurements.model.Expression;
 import org.opennms.netmgt.measurements.model.QueryRequest;
 import org.opennms.netmgt.measurements.model.QueryResponse;
 import org.opennms.netmgt.measurements.model.Source;
@@ -41,11 +44,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 import com.google.common.collect.RowSortedTable;
 
 @Component("measurementsService")
 public class DefaultMeasurementsService implements MeasurementsService {
 
+    /**
+     * Smallest number of rows in a chunk, since consecutive chunks overlap by one row.
+     */
+    private static final int MIN_ROWS_PER_CHUNK = 2;
+
+    /**
+     * Matches expressions which refer to the row index, the sample arrays or the time span
+     * of the results, or which use functions that may do so.
+     */
+    private static final Pattern ROW_DEPENDENT_EXPRESSION = Pattern.compile("\\b(?:fn|jexl)\\s*:|\\b__(?!inf\\b|neg_inf\\b|E\\b|PI\\b)\\w");
+
     private final MeasurementFetchStrategy fetchStrategy;
     private final ExpressionEngine expressionEngine;
     private final FilterEngine filterEngine;
@@ -62,13 +77,37 @@ public class DefaultMeasurementsService implements MeasurementsService {
     public QueryResponse query(QueryRequest request) throws MeasurementException {
         validate(request);
 
+        final FetchResults results = execute(request, request.getStart(), request.getEnd(), request.getStep());
+
+        // Build the response
+        final QueryResponse response = new QueryResponse();
+        response.setStart(request.getStart());
+        response.setEnd(request.getEnd());
+        response.setStep(results.getStep());
+        response.setTimestamps(results.getTimestamps());
+        response.setColumns(results.getColumns());
+        response.setConstants(results.getConstants());
+        return response;
+    }
+
+    @Override
+    public QueryResponseStream stream(QueryRequest request, int rowsPerChunk) throws MeasurementException {
+        validate(request);
+
+        final ChunkedQueryResponseStream stream = new ChunkedQueryResponseStream(request,
+                canQueryInChunks(request) ? Math.max(MIN_ROWS_PER_CHUNK, rowsPerChunk) : 0);
+        stream.prefetch();
+        return stream;
+    }
+
+    private FetchResults execute(QueryRequest request, long start, long end, long step) throws MeasurementException {
         // Fetch the measurements
         FetchResults results;
         try {
             results = fetchStrategy.fetch(
-                    request.getStart(),
-                    request.getEnd(),
-                    request.getStep(),
+                    start,
+                    end,
+                    step,
                     request.getMaxRows(),
                     request.getHeartbeat(),
                     request.getInterval(),
@@ -98,19 +137,115 @@ public class DefaultMeasurementsService implements MeasurementsService {
                 columns.remove(source.getLabel());
             }
         }
+        return results;
+    }
 
-        // Build the response
-        final QueryResponse response = new QueryResponse();
-        response.setStart(request.getStart());
-        response.setEnd(request.getEnd());
-        response.setStep(results.getStep());
-        response.setTimestamps(results.getTimestamps());
-        response.setColumns(results.getColumns());
-        response.setConstants(results.getConstants());
-        return response;
+    /**
+     * Splitting the query in time ranges only yields the same results when
+     * every row can be computed independently of the others. Filters and
+     * expressions that refer to other rows or to the whole range, as well
+     * as queries with a limited number of rows, are executed in one chunk.
+     */
+    protected static boolean canQueryInChunks(QueryRequest request) {
+        if (request.getMaxRows() > 0 || !request.getFilters().isEmpty()) {
+            return false;
+        }
+        for (Expression expression : request.getExpressions()) {
+            if (ROW_DEPENDENT_EXPRESSION.matcher(expression.getExpression()).find()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void validate(QueryRequest request) throws ValidationException {
         queryRequestValidator.validate(request);
     }
+
+    private class ChunkedQueryResponseStream implements QueryResponseStream {
+        private final QueryRequest request;
+        private final int rowsPerChunk;
+
+        private long step;
+        private long nextStart;
+        private long lastTimestamp = Long.MIN_VALUE;
+        private boolean done = false;
+        private QueryResponse prefetched;
+
+        /**
+         * @param rowsPerChunk number of steps per chunk, or 0 to fetch all of the rows at once
+         */
+        private ChunkedQueryResponseStream(QueryRequest request, int rowsPerChunk) {
+            this.request = request;
+            this.rowsPerChunk = rowsPerChunk;
+            this.step = request.getStep();
+            this.nextStart = request.getStart();
+        }
+
+        private void prefetch() throws MeasurementException {
+            prefetched = fetchNext();
+        }
+
+        @Override
+        public QueryResponse next() throws MeasurementException {
+            if (prefetched != null) {
+                final QueryResponse response = prefetched;
+                prefetched = null;
+                return response;
+            }
+            return fetchNext();
+        }
+
+        private QueryResponse fetchNext() throws MeasurementException {
+            while (!done) {
+                final long start = nextStart;
+                final long end = rowsPerChunk > 0 ? Math.min(request.getEnd(), start + rowsPerChunk * step) : request.getEnd();
+                done = end >= request.getEnd();
+
+                final FetchResults results = execute(request, start, end, step);
+                // Use the actual step for the following chunks, so that every chunk has the same resolution
+                if (results.getStep() > 0) {
+                    step = results.getStep();
+                }
+                // Start the next chunk one step early so that rows on the boundary are not lost,
+                // the overlapping rows are skipped below
+                nextStart = Math.max(end - step, start + 1);
+
+                final QueryResponse response = toResponse(results, start, end);
+                if (response != null) {
+                    return response;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the rows that were not part of the previous chunks, or null if there are none
+         */
+        private QueryResponse toResponse(FetchResults results, long start, long end) {
+            final long[] timestamps = results.getTimestamps();
+            int offset = 0;
+            while (offset < timestamps.length && timestamps[offset] <= lastTimestamp) {
+                offset++;
+            }
+            if (offset == timestamps.length) {
+                return null;
+            }
+            lastTimestamp = timestamps[timestamps.length - 1];
+
+            final Map<String, double[]> columns = Maps.newLinkedHashMap();
+            for (Map.Entry<String, double[]> column : results.getColumns().entrySet()) {
+                columns.put(column.getKey(), Arrays.copyOfRange(column.getValue(), offset, timestamps.length));
+            }
+
+            final QueryResponse response = new QueryResponse();
+            response.setStart(start);
+            response.setEnd(end);
+            response.setStep(results.getStep());
+            response.setTimestamps(Arrays.copyOfRange(timestamps, offset, timestamps.length));
+            response.setColumns(columns);
+            response.setConstants(results.getConstants());
+            return response;
+        }
+    }
 }
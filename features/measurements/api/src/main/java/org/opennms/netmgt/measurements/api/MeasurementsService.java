@@ -34,4 +34,17 @@ import org.opennms.netmgt.measurements.model.QueryResponse;
 
 public interface MeasurementsService {
     QueryResponse query(QueryRequest request) throws MeasurementException;
+
+    /**
+     * Executes the query in consecutive time ranges, so that the results
+     * of long queries do not need to be held in memory all at once.
+     *
+     * The first chunk is fetched before this method returns, so that errors
+     * with the request are reported before any of the results are consumed.
+     *
+     * @param request the query
+     * @param rowsPerChunk maximum number of steps covered by a single chunk
+     * @return a stream of the results
+     */
+    QueryResponseStream stream(QueryRequest request, int rowsPerChunk) throws MeasurementException;
 }
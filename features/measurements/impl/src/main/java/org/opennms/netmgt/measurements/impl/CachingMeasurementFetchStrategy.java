@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.api.MeasurementFetchStrategy;
+import org.opennms.netmgt.measurements.model.Source;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+/**
+ * Caches the columns fetched by another {@link MeasurementFetchStrategy}.
+ *
+ * Columns are cached by source (resource, attribute, data source and
+ * aggregation) and by the requested step. Only the rows that are older than
+ * the settle time are cached, since the most recent rows may still change as
+ * new samples are persisted.
+ *
+ * When a query overlaps with the cached rows, the cached rows are used for
+ * the historical part of the window and only the tail is fetched from the
+ * underlying strategy. The tail is always fetched so that it overlaps with
+ * the last cached row. If the tail does not line up with the cached rows,
+ * or if the overlapping row has changed, the whole window is fetched
+ * instead, so that cache hits return the same results as uncached queries.
+ *
+ * This assumes that the underlying strategy returns rows aligned to the
+ * step, which is the case for the RRD and Newts based strategies.
+ * Results returned at a different step than the one requested, i.e. when
+ * the underlying strategy picked a coarser archive for a long window, are
+ * never cached since the same step may resolve to a different archive for
+ * another window.
+ * Queries using <code>maxrows</code> derive their step from the length
+ * of the window and are never cached.
+ */
+public class CachingMeasurementFetchStrategy implements MeasurementFetchStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingMeasurementFetchStrategy.class);
+
+    /**
+     * Maximum number of bytes used to store the cached samples, the cache is disabled when <= 0.
+     */
+    public static final long MAX_SIZE_BYTES = Long.getLong("org.opennms.netmgt.measurements.cache.maxSize", 64L * 1024L * 1024L);
+
+    /**
+     * Rows are only cached once they are older than this many milliseconds.
+     */
+    public static final long SETTLE_TIME_MS = Long.getLong("org.opennms.netmgt.measurements.cache.settleTime", TimeUnit.MINUTES.toMillis(15));
+
+    /**
+     * Cached columns are evicted this many milliseconds after they were written, so that
+     * rows which were rewritten or consolidated by the underlying store are eventually refreshed.
+     */
+    public static final long EXPIRE_AFTER_MS = Long.getLong("org.opennms.netmgt.measurements.cache.expireAfter", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * Estimated overhead of a cached column, in bytes.
+     */
+    private static final int COLUMN_OVERHEAD = 256;
+
+    private final MeasurementFetchStrategy delegate;
+    private final long maxSizeBytes;
+    private final long settleTimeMs;
+    private final Cache<ColumnKey, CachedColumn> cache;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Meter hits = metrics.meter("hits");
+    private final Meter partialHits = metrics.meter("partial-hits");
+    private final Meter misses = metrics.meter("misses");
+    private JmxReporter reporter;
+
+    public CachingMeasurementFetchStrategy(MeasurementFetchStrategy delegate) {
+        this(delegate, MAX_SIZE_BYTES, SETTLE_TIME_MS);
+    }
+
+    public CachingMeasurementFetchStrategy(MeasurementFetchStrategy delegate, long maxSizeBytes, long settleTimeMs) {
+        this(delegate, maxSizeBytes, settleTimeMs, EXPIRE_AFTER_MS);
+    }
+
+    public CachingMeasurementFetchStrategy(MeasurementFetchStrategy delegate, long maxSizeBytes, long settleTimeMs, long expireAfterMs) {
+        this.delegate = Objects.requireNonNull(delegate);
+        this.maxSizeBytes = maxSizeBytes;
+        this.settleTimeMs = settleTimeMs;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, maxSizeBytes))
+                .weigher((ColumnKey key, CachedColumn column) -> column.getSizeInBytes())
+                .expireAfterWrite(Math.max(1, expireAfterMs), TimeUnit.MILLISECONDS)
+                .build();
+
+        metrics.register("hit-ratio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount() + partialHits.getCount(),
+                        hits.getCount() + partialHits.getCount() + misses.getCount());
+            }
+        });
+        metrics.register("size-bytes", (Gauge<Long>) () -> cache.asMap().values().stream()
+                .mapToLong(CachedColumn::getSizeInBytes)
+                .sum());
+        metrics.register("columns", (Gauge<Long>) cache::size);
+    }
+
+    public void start() {
+        reporter = JmxReporter.forRegistry(metrics)
+                .inDomain("org.opennms.netmgt.measurements.cache")
+                .build();
+        reporter.start();
+    }
+
+    public void stop() {
+        if (reporter != null) {
+            reporter.stop();
+            reporter = null;
+        }
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FetchResults fetch(long start, long end, long step, int maxrows, Long interval, Long heartbeat,
+                              List<Source> sources, boolean relaxed) throws Exception {
+        if (maxSizeBytes <= 0 || maxrows > 0 || sources.isEmpty()) {
+            return delegate.fetch(start, end, step, maxrows, interval, heartbeat, sources, relaxed);
+        }
+
+        // Build the keys before calling the delegate, which may modify the sources
+        final List<ColumnKey> keys = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            keys.add(new ColumnKey(source, step, interval, heartbeat, relaxed));
+        }
+        final long now = currentTimeMillis();
+
+        final FetchResults cached = fetchFromCache(start, end, step, interval, heartbeat, sources, relaxed, keys, now);
+        if (cached != null) {
+            return cached;
+        }
+
+        misses.mark();
+        final FetchResults results = delegate.fetch(start, end, step, maxrows, interval, heartbeat, sources, relaxed);
+        // The columns are keyed by the requested step, so only cache the rows when the delegate honored it
+        if (results != null && results.getStep() == step) {
+            final long[] timestamps = results.getTimestamps();
+            if (timestamps.length > 0) {
+                store(sources, keys, results,
+                        timestamps[0] - alignDown(start, step),
+                        timestamps[timestamps.length - 1] - alignDown(end, step),
+                        now);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the results, or null if the window must be fetched from the delegate
+     */
+    private FetchResults fetchFromCache(long start, long end, long step, Long interval, Long heartbeat,
+                                        List<Source> sources, boolean relaxed, List<ColumnKey> keys, long now) throws Exception {
+        final CachedColumn[] cached = new CachedColumn[keys.size()];
+        for (int k = 0; k < cached.length; k++) {
+            cached[k] = cache.getIfPresent(keys.get(k));
+            if (cached[k] == null || !cached[k].isCompatibleWith(cached[0])) {
+                return null;
+            }
+        }
+
+        // Determine the rows that the delegate would return for this window
+        final long actualStep = cached[0].step;
+        if (actualStep != step) {
+            return null;
+        }
+        final long first = alignDown(start, actualStep) + cached[0].headOffset;
+        final long last = alignDown(end, actualStep) + cached[0].tailOffset;
+        if (last < first) {
+            return null;
+        }
+
+        long lastCached = Long.MAX_VALUE;
+        for (CachedColumn column : cached) {
+            if (column.firstTimestamp > first || column.getLastTimestamp() < first) {
+                return null;
+            }
+            lastCached = Math.min(lastCached, column.getLastTimestamp());
+        }
+
+        final int numRows = (int) ((last - first) / actualStep) + 1;
+        final long[] timestamps = new long[numRows];
+        for (int i = 0; i < numRows; i++) {
+            timestamps[i] = first + i * actualStep;
+        }
+        final Map<String, double[]> columns = Maps.newHashMapWithExpectedSize(sources.size());
+
+        if (last <= lastCached) {
+            // All of the rows are cached
+            final Map<String, Object> constants = Maps.newHashMap();
+            for (int k = 0; k < cached.length; k++) {
+                final String label = sources.get(k).getLabel();
+                columns.put(label, cached[k].copyRows(first, numRows));
+                for (Map.Entry<String, Object> constant : cached[k].constants.entrySet()) {
+                    constants.put(label + "." + constant.getKey(), constant.getValue());
+                }
+            }
+            hits.mark();
+            return new FetchResults(timestamps, columns, actualStep, constants);
+        }
+
+        // Fetch the tail, starting with the last cached row
+        final long tailStart = lastCached - cached[0].headOffset;
+        final FetchResults tail = delegate.fetch(tailStart, end, step, 0, interval, heartbeat, sources, relaxed);
+        if (tail == null || !isTailAligned(tail, actualStep, lastCached, last)) {
+            LOG.debug("Tail for [{}, {}] does not line up with the cached rows. Fetching the whole window.", tailStart, end);
+            return null;
+        }
+
+        final int numCachedRows = (int) ((lastCached - first) / actualStep);
+        for (int k = 0; k < cached.length; k++) {
+            final String label = sources.get(k).getLabel();
+            final double[] tailValues = tail.getColumns().get(label);
+            if (tailValues == null || tailValues.length != tail.getTimestamps().length) {
+                return null;
+            }
+            // The overlapping row should not have changed
+            final double lastValue = cached[k].getValue(lastCached);
+            if (Double.doubleToLongBits(lastValue) != Double.doubleToLongBits(tailValues[0])) {
+                LOG.debug("Cached value for {} at {} has changed. Fetching the whole window.", label, lastCached);
+                for (ColumnKey key : keys) {
+                    cache.invalidate(key);
+                }
+                return null;
+            }
+
+            final double[] values = new double[numRows];
+            System.arraycopy(cached[k].copyRows(first, numCachedRows), 0, values, 0, numCachedRows);
+            System.arraycopy(tailValues, 0, values, numCachedRows, tailValues.length);
+            columns.put(label, values);
+        }
+
+        final FetchResults results = new FetchResults(timestamps, columns, actualStep, tail.getConstants());
+        partialHits.mark();
+
+        // Remember the rows that have settled since
+        store(sources, keys, results, cached[0].headOffset, cached[0].tailOffset, now);
+        return results;
+    }
+
+    private static boolean isTailAligned(FetchResults tail, long step, long first, long last) {
+        final long[] timestamps = tail.getTimestamps();
+        if (tail.getStep() != step || timestamps.length < 1
+                || timestamps[0] != first || timestamps[timestamps.length - 1] != last) {
+            return false;
+        }
+        for (int i = 1; i < timestamps.length; i++) {
+            if (timestamps[i] - timestamps[i - 1] != step) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Caches the rows of the given results that have settled.
+     */
+    private void store(List<Source> sources, List<ColumnKey> keys, FetchResults results,
+                       long headOffset, long tailOffset, long now) {
+        final long[] timestamps = results.getTimestamps();
+        final long step = results.getStep();
+        if (step <= 0) {
+            return;
+        }
+        for (int i = 1; i < timestamps.length; i++) {
+            if (timestamps[i] - timestamps[i - 1] != step) {
+                // Not evenly spaced
+                return;
+            }
+        }
+
+        // Only keep the rows that cover an interval which ended before the settle time
+        int numRows = 0;
+        while (numRows < timestamps.length && timestamps[numRows] + step <= now - settleTimeMs) {
+            numRows++;
+        }
+        if (numRows < 1) {
+            return;
+        }
+
+        // All of the constants must belong to one of the sources
+        final Map<String, Map<String, Object>> constantsBySource = Maps.newHashMap();
+        for (Source source : sources) {
+            constantsBySource.put(source.getLabel(), Maps.newHashMap());
+        }
+        for (Map.Entry<String, Object> constant : results.getConstants().entrySet()) {
+            final String key = constant.getKey();
+            final int dot = key.indexOf('.');
+            final Map<String, Object> sourceConstants = dot > 0 ? constantsBySource.get(key.substring(0, dot)) : null;
+            if (sourceConstants == null) {
+                return;
+            }
+            sourceConstants.put(key.substring(dot + 1), constant.getValue());
+        }
+
+        for (int k = 0; k < sources.size(); k++) {
+            final String label = sources.get(k).getLabel();
+            final double[] values = results.getColumns().get(label);
+            if (values == null || values.length != timestamps.length) {
+                continue;
+            }
+            cache.put(keys.get(k), new CachedColumn(step, headOffset, tailOffset, timestamps[0],
+                    Arrays.copyOf(values, numRows), constantsBySource.get(label)));
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static long alignDown(long timestamp, long step) {
+        return step > 0 ? Math.floorDiv(timestamp, step) * step : timestamp;
+    }
+
+    private static class ColumnKey {
+        private final String resourceId;
+        private final String attribute;
+        private final String fallbackAttribute;
+        private final String dataSource;
+        private final String aggregation;
+        private final long step;
+        private final Long interval;
+        private final Long heartbeat;
+        private final boolean relaxed;
+
+        private ColumnKey(Source source, long step, Long interval, Long heartbeat, boolean relaxed) {
+            this.resourceId = source.getResourceId();
+            this.attribute = source.getAttribute();
+            this.fallbackAttribute = source.getFallbackAttribute();
+            this.dataSource = source.getEffectiveDataSource();
+            this.aggregation = source.getAggregation();
+            this.step = step;
+            this.interval = interval;
+            this.heartbeat = heartbeat;
+            this.relaxed = relaxed;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ColumnKey)) {
+                return false;
+            }
+            final ColumnKey other = (ColumnKey) obj;
+            return step == other.step
+                    && relaxed == other.relaxed
+                    && Objects.equals(resourceId, other.resourceId)
+                    && Objects.equals(attribute, other.attribute)
+                    && Objects.equals(fallbackAttribute, other.fallbackAttribute)
+                    && Objects.equals(dataSource, other.dataSource)
+                    && Objects.equals(aggregation, other.aggregation)
+                    && Objects.equals(interval, other.interval)
+                    && Objects.equals(heartbeat, other.heartbeat);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resourceId, attribute, fallbackAttribute, dataSource, aggregation, step, interval, heartbeat, relaxed);
+        }
+    }
+
+    /**
+     * The settled rows of a single column, along with the constants of its resource.
+     */
+    private static class CachedColumn {
+        private final long step;
+        /** Offset of the first row from the start of the window, aligned to the step. */
+        private final long headOffset;
+        /** Offset of the last row from the end of the window, aligned to the step. */
+        private final long tailOffset;
+        private final long firstTimestamp;
+        private final double[] values;
+        /** Constants with the source label prefix removed. */
+        private final Map<String, Object> constants;
+
+        private CachedColumn(long step, long headOffset, long tailOffset, long firstTimestamp, double[] values, Map<String, Object> constants) {
+            this.step = step;
+            this.headOffset = headOffset;
+            this.tailOffset = tailOffset;
+            this.firstTimestamp = firstTimestamp;
+            this.values = values;
+            this.constants = constants;
+        }
+
+        private long getLastTimestamp() {
+            return firstTimestamp + (values.length - 1) * step;
+        }
+
+        private double getValue(long timestamp) {
+            return values[(int) ((timestamp - firstTimestamp) / step)];
+        }
+
+        private double[] copyRows(long from, int numRows) {
+            final int offset = (int) ((from - firstTimestamp) / step);
+            return Arrays.copyOfRange(values, offset, offset + numRows);
+        }
+
+        private boolean isCompatibleWith(CachedColumn other) {
+            return step == other.step
+                    && headOffset == other.headOffset
+                    && tailOffset == other.tailOffset
+                    && (firstTimestamp - other.firstTimestamp) % step == 0;
+        }
+
+        private int getSizeInBytes() {
+            return COLUMN_OVERHEAD + values.length * 8;
+        }
+    }
+}
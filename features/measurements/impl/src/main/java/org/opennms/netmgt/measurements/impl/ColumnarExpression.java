@@ -0,0 +1,603 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A compiled expression that operates on whole columns of samples
+ * instead of on a single row at a time.
+ *
+ * The nodes mirror the semantics of the JEXL arithmetic used by the
+ * {@link JEXLExpressionEngine}, including its handling of NaN in comparisons
+ * and of division by zero. The {@link Kind} of every node is tracked so that
+ * the parser can reject the cases where JEXL's results depend on the runtime
+ * types of the operands.
+ *
+ * @see ColumnarExpressionParser
+ */
+abstract class ColumnarExpression {
+
+    /**
+     * The type JEXL would see for the values produced by a node.
+     */
+    enum Kind {
+        /** Boxed doubles, i.e. samples, expression results and most constants. */
+        DOUBLE,
+        /** JEXL parses decimal literals without a suffix as floats. */
+        FLOAT,
+        /** Integers and longs. */
+        INTEGRAL,
+        /** Either of the above, depending on the row. */
+        MIXED,
+        BOOLEAN;
+
+        boolean isFloatingPoint() {
+            return this == DOUBLE || this == FLOAT;
+        }
+
+        boolean isNumeric() {
+            return this != BOOLEAN;
+        }
+    }
+
+    /**
+     * The state shared by all of the expressions evaluated for a single request.
+     */
+    static class Context {
+        final int numRows;
+        final long[] timestamps;
+        /** The results of the expressions that have already been evaluated, by index. */
+        final double[][] values;
+
+        Context(long[] timestamps, int numExpressions) {
+            this.numRows = timestamps.length;
+            this.timestamps = timestamps;
+            this.values = new double[numExpressions][];
+        }
+    }
+
+    private final Kind kind;
+
+    protected ColumnarExpression(Kind kind) {
+        this.kind = Objects.requireNonNull(kind);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Evaluates a numeric expression.
+     *
+     * The returned array must not be modified when {@link #isShared()} is true.
+     */
+    double[] evaluate(Context ctx) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " is not numeric.");
+    }
+
+    /**
+     * Evaluates a boolean expression.
+     */
+    boolean[] test(Context ctx) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " is not boolean.");
+    }
+
+    /**
+     * JEXL results are converted to doubles using {@link org.opennms.netmgt.measurements.utils.Utils#toDouble(Object)},
+     * which goes through the string representation for floats.
+     *
+     * @return an expression that returns the converted values, or null if the
+     * results of this expression cannot be converted
+     */
+    ColumnarExpression asDoubles() {
+        switch (kind) {
+        case DOUBLE:
+        case INTEGRAL:
+            return this;
+        case FLOAT:
+            return new FloatToDouble(this);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return true if {@link #evaluate(Context)} returns an array that is
+     * referenced elsewhere, rather than a newly allocated one
+     */
+    boolean isShared() {
+        return false;
+    }
+
+    static class Constant extends ColumnarExpression {
+        private final double value;
+
+        Constant(double value, Kind kind) {
+            super(kind);
+            this.value = value;
+        }
+
+        double getValue() {
+            return value;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] out = new double[ctx.numRows];
+            Arrays.fill(out, value);
+            return out;
+        }
+    }
+
+    static class BooleanConstant extends ColumnarExpression {
+        private final boolean value;
+
+        BooleanConstant(boolean value) {
+            super(Kind.BOOLEAN);
+            this.value = value;
+        }
+
+        @Override
+        boolean[] test(Context ctx) {
+            final boolean[] out = new boolean[ctx.numRows];
+            Arrays.fill(out, value);
+            return out;
+        }
+    }
+
+    static class ColumnReference extends ColumnarExpression {
+        private final double[] column;
+
+        ColumnReference(double[] column) {
+            super(Kind.DOUBLE);
+            this.column = Objects.requireNonNull(column);
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            return column;
+        }
+
+        @Override
+        boolean isShared() {
+            return true;
+        }
+    }
+
+    static class ExpressionReference extends ColumnarExpression {
+        private final int index;
+
+        ExpressionReference(int index) {
+            super(Kind.DOUBLE);
+            this.index = index;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            return ctx.values[index];
+        }
+
+        @Override
+        boolean isShared() {
+            return true;
+        }
+    }
+
+    static class Timestamp extends ColumnarExpression {
+        Timestamp() {
+            super(Kind.INTEGRAL);
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] out = new double[ctx.numRows];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = ctx.timestamps[i];
+            }
+            return out;
+        }
+    }
+
+    static class RowIndex extends ColumnarExpression {
+        RowIndex() {
+            super(Kind.INTEGRAL);
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] out = new double[ctx.numRows];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = i;
+            }
+            return out;
+        }
+    }
+
+    static class Negate extends ColumnarExpression {
+        private final ColumnarExpression operand;
+
+        Negate(ColumnarExpression operand) {
+            super(operand.getKind());
+            this.operand = operand;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] a = operand.evaluate(ctx);
+            final double[] out = new double[a.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = -a[i];
+            }
+            return out;
+        }
+    }
+
+    enum ArithmeticOperator {
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, MODULO
+    }
+
+    /**
+     * Floating point arithmetic. JEXL only uses floating point arithmetic when
+     * at least one of the operands is a float or a double, the parser is
+     * responsible for making sure that this is always the case.
+     */
+    static class Arithmetic extends ColumnarExpression {
+        private final ArithmeticOperator operator;
+        private final ColumnarExpression left;
+        private final ColumnarExpression right;
+
+        Arithmetic(ArithmeticOperator operator, ColumnarExpression left, ColumnarExpression right) {
+            super(Kind.DOUBLE);
+            this.operator = Objects.requireNonNull(operator);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] a = left.evaluate(ctx);
+            final double[] b = right.evaluate(ctx);
+            final double[] out = new double[ctx.numRows];
+            switch (operator) {
+            case ADD:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = a[i] + b[i];
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = a[i] - b[i];
+                }
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = a[i] * b[i];
+                }
+                break;
+            case DIVIDE:
+                // JEXL is lenient and evaluates divisions by zero to 0
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = b[i] == 0d ? 0d : a[i] / b[i];
+                }
+                break;
+            case MODULO:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = b[i] == 0d ? 0d : a[i] % b[i];
+                }
+                break;
+            }
+            return out;
+        }
+    }
+
+    enum ComparisonOperator {
+        EQ, NE, LT, LE, GT, GE
+    }
+
+    static class Comparison extends ColumnarExpression {
+        private final ComparisonOperator operator;
+        private final ColumnarExpression left;
+        private final ColumnarExpression right;
+        /**
+         * JEXL compares operands of the same class using equals(), in which
+         * case NaN is equal to itself and 0.0 differs from -0.0.
+         */
+        private final boolean useEquals;
+
+        Comparison(ComparisonOperator operator, ColumnarExpression left, ColumnarExpression right) {
+            super(Kind.BOOLEAN);
+            this.operator = Objects.requireNonNull(operator);
+            this.left = left;
+            this.right = right;
+            this.useEquals = left.getKind() == right.getKind() && left.getKind().isFloatingPoint();
+        }
+
+        @Override
+        boolean[] test(Context ctx) {
+            final double[] a = left.evaluate(ctx);
+            final double[] b = right.evaluate(ctx);
+            final boolean[] out = new boolean[ctx.numRows];
+            switch (operator) {
+            case EQ:
+            case NE:
+                final boolean eq = operator == ComparisonOperator.EQ;
+                for (int i = 0; i < out.length; i++) {
+                    final boolean equal = useEquals
+                            ? Double.doubleToLongBits(a[i]) == Double.doubleToLongBits(b[i])
+                            : a[i] == b[i];
+                    out[i] = equal == eq;
+                }
+                break;
+            // JEXL treats NaN as equal to every other value when comparing
+            case LT:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = a[i] < b[i];
+                }
+                break;
+            case LE:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = !(a[i] > b[i]);
+                }
+                break;
+            case GT:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = a[i] > b[i];
+                }
+                break;
+            case GE:
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = !(a[i] < b[i]);
+                }
+                break;
+            }
+            return out;
+        }
+    }
+
+    static class And extends ColumnarExpression {
+        private final ColumnarExpression left;
+        private final ColumnarExpression right;
+
+        And(ColumnarExpression left, ColumnarExpression right) {
+            super(Kind.BOOLEAN);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean[] test(Context ctx) {
+            final boolean[] a = left.test(ctx);
+            final boolean[] b = right.test(ctx);
+            for (int i = 0; i < a.length; i++) {
+                a[i] = a[i] && b[i];
+            }
+            return a;
+        }
+    }
+
+    static class Or extends ColumnarExpression {
+        private final ColumnarExpression left;
+        private final ColumnarExpression right;
+
+        Or(ColumnarExpression left, ColumnarExpression right) {
+            super(Kind.BOOLEAN);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean[] test(Context ctx) {
+            final boolean[] a = left.test(ctx);
+            final boolean[] b = right.test(ctx);
+            for (int i = 0; i < a.length; i++) {
+                a[i] = a[i] || b[i];
+            }
+            return a;
+        }
+    }
+
+    static class Not extends ColumnarExpression {
+        private final ColumnarExpression operand;
+
+        Not(ColumnarExpression operand) {
+            super(Kind.BOOLEAN);
+            this.operand = operand;
+        }
+
+        @Override
+        boolean[] test(Context ctx) {
+            final boolean[] a = operand.test(ctx);
+            for (int i = 0; i < a.length; i++) {
+                a[i] = !a[i];
+            }
+            return a;
+        }
+    }
+
+    /**
+     * Converts numbers to booleans, in the same way as JEXL.
+     */
+    static class Truth extends ColumnarExpression {
+        private final ColumnarExpression operand;
+
+        Truth(ColumnarExpression operand) {
+            super(Kind.BOOLEAN);
+            this.operand = operand;
+        }
+
+        @Override
+        boolean[] test(Context ctx) {
+            final double[] a = operand.evaluate(ctx);
+            final boolean[] out = new boolean[a.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = !Double.isNaN(a[i]) && a[i] != 0d;
+            }
+            return out;
+        }
+    }
+
+    static class Conditional extends ColumnarExpression {
+        private final ColumnarExpression condition;
+        private final ColumnarExpression ifTrue;
+        private final ColumnarExpression ifFalse;
+
+        Conditional(ColumnarExpression condition, ColumnarExpression ifTrue, ColumnarExpression ifFalse) {
+            super(ifTrue.getKind() == ifFalse.getKind() ? ifTrue.getKind() : Kind.MIXED);
+            this.condition = condition;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final boolean[] c = condition.test(ctx);
+            final double[] a = ifTrue.evaluate(ctx);
+            final double[] b = ifFalse.evaluate(ctx);
+            final double[] out = new double[c.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = c[i] ? a[i] : b[i];
+            }
+            return out;
+        }
+
+        @Override
+        ColumnarExpression asDoubles() {
+            if (getKind() != Kind.MIXED) {
+                return super.asDoubles();
+            }
+            // Convert each of the branches separately
+            final ColumnarExpression a = ifTrue.asDoubles();
+            final ColumnarExpression b = ifFalse.asDoubles();
+            return a != null && b != null ? new Conditional(condition, a, b) : null;
+        }
+    }
+
+    static class FloatToDouble extends ColumnarExpression {
+        private final ColumnarExpression operand;
+
+        FloatToDouble(ColumnarExpression operand) {
+            super(Kind.DOUBLE);
+            this.operand = operand;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] a = operand.evaluate(ctx);
+            final double[] out = new double[a.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = Double.parseDouble(Float.toString((float)a[i]));
+            }
+            return out;
+        }
+    }
+
+    static class UnaryFunction extends ColumnarExpression {
+        private final DoubleUnaryOperator function;
+        private final ColumnarExpression operand;
+
+        UnaryFunction(DoubleUnaryOperator function, Kind kind, ColumnarExpression operand) {
+            super(kind);
+            this.function = Objects.requireNonNull(function);
+            this.operand = operand;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] a = operand.evaluate(ctx);
+            final double[] out = new double[a.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = function.applyAsDouble(a[i]);
+            }
+            return out;
+        }
+    }
+
+    static class BinaryFunction extends ColumnarExpression {
+        private final DoubleBinaryOperator function;
+        private final ColumnarExpression left;
+        private final ColumnarExpression right;
+
+        BinaryFunction(DoubleBinaryOperator function, Kind kind, ColumnarExpression left, ColumnarExpression right) {
+            super(kind);
+            this.function = Objects.requireNonNull(function);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] a = left.evaluate(ctx);
+            final double[] b = right.evaluate(ctx);
+            final double[] out = new double[a.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = function.applyAsDouble(a[i], b[i]);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Equivalent of the {@link SampleArrayFunctions}, which return the
+     * sample from <code>n</code> rows before the current one.
+     */
+    static class PriorSample extends ColumnarExpression {
+        private final double[] column;
+        private final int n;
+        /** The values used before the start of the column, or null to use the first sample. */
+        private final ColumnarExpression beforeStart;
+
+        PriorSample(double[] column, int n, ColumnarExpression beforeStart) {
+            super(Kind.DOUBLE);
+            this.column = Objects.requireNonNull(column);
+            this.n = n;
+            this.beforeStart = beforeStart;
+        }
+
+        @Override
+        double[] evaluate(Context ctx) {
+            final double[] start = beforeStart != null ? beforeStart.evaluate(ctx) : null;
+            final double[] out = new double[ctx.numRows];
+            for (int i = 0; i < out.length; i++) {
+                final int k = i - n;
+                if (k < 0) {
+                    out[i] = start != null ? start[i] : column[0];
+                } else if (k < column.length) {
+                    out[i] = column[k];
+                } else {
+                    out[i] = Double.NaN;
+                }
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.opennms.netmgt.measurements.api.ExpressionEngine;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.api.exceptions.ExpressionException;
+import org.opennms.netmgt.measurements.impl.ColumnarExpression.Kind;
+import org.opennms.netmgt.measurements.impl.ColumnarExpressionParser.UnsupportedExpressionException;
+import org.opennms.netmgt.measurements.model.Expression;
+import org.opennms.netmgt.measurements.model.QueryRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * An expression engine that evaluates every expression once per request,
+ * operating on whole columns of samples, instead of once per row.
+ *
+ * The expressions are compiled by the {@link ColumnarExpressionParser}. If
+ * any of the expressions in the request cannot be compiled, all of them
+ * are evaluated by the fallback engine instead, which is the
+ * {@link JEXLExpressionEngine} by default.
+ */
+public class ColumnarExpressionEngine implements ExpressionEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarExpressionEngine.class);
+
+    private final ExpressionEngine fallback;
+
+    public ColumnarExpressionEngine() {
+        this(new JEXLExpressionEngine());
+    }
+
+    public ColumnarExpressionEngine(ExpressionEngine fallback) {
+        this.fallback = Objects.requireNonNull(fallback);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void applyExpressions(final QueryRequest request, final FetchResults results) throws ExpressionException {
+        Preconditions.checkNotNull(request, "request argument");
+        Preconditions.checkNotNull(results, "results argument");
+
+        final List<Expression> expressions = request.getExpressions();
+
+        // Don't do anything if there are no expressions
+        if (expressions.size() < 1) {
+            return;
+        }
+
+        final List<ColumnarExpression> compiled;
+        try {
+            compiled = compile(expressions, results);
+        } catch (UnsupportedExpressionException e) {
+            LOG.debug("Using the fallback expression engine: {}", e.getMessage());
+            fallback.applyExpressions(request, results);
+            return;
+        }
+
+        final ColumnarExpression.Context ctx = new ColumnarExpression.Context(results.getTimestamps(), expressions.size());
+        for (int k = 0; k < compiled.size(); k++) {
+            final ColumnarExpression expression = compiled.get(k);
+            double[] values = expression.evaluate(ctx);
+            if (expression.isShared()) {
+                values = values.clone();
+            }
+            ctx.values[k] = values;
+        }
+
+        // Store the results, in the same order as which they appeared in the query
+        final Map<String, double[]> columns = results.getColumns();
+        for (int k = 0; k < expressions.size(); k++) {
+            final Expression e = expressions.get(k);
+            if (!e.getTransient()) {
+                columns.put(e.getLabel(), ctx.values[k]);
+            }
+        }
+    }
+
+    private static List<ColumnarExpression> compile(List<Expression> expressions, FetchResults results) throws UnsupportedExpressionException {
+        final long timestamps[] = results.getTimestamps();
+        final Map<String, double[]> columns = results.getColumns();
+        final int numRows = timestamps.length;
+
+        for (Map.Entry<String, double[]> column : columns.entrySet()) {
+            if (column.getValue() == null || column.getValue().length != numRows) {
+                throw new UnsupportedExpressionException("Column '%s' does not contain %d rows.", column.getKey(), numRows);
+            }
+        }
+
+        final List<String> labels = new ArrayList<>(expressions.size());
+        final Set<String> uniqueLabels = new HashSet<>();
+        for (Expression e : expressions) {
+            if (!uniqueLabels.add(e.getLabel())) {
+                throw new UnsupportedExpressionException("Duplicate expression label '%s'.", e.getLabel());
+            }
+            labels.add(e.getLabel());
+        }
+
+        // The same constants the JEXLExpressionEngine adds to its context
+        final Map<String, Object> specials = ImmutableMap.<String, Object>builder()
+                .put("__inf", Double.POSITIVE_INFINITY)
+                .put("__neg_inf", Double.NEGATIVE_INFINITY)
+                .put("NaN", Double.NaN)
+                .put("__E", java.lang.Math.E)
+                .put("__PI", java.lang.Math.PI)
+                .put("__diff_time", numRows < 1 ? 0d : timestamps[numRows-1] - timestamps[0])
+                .build();
+
+        final RequestScope scope = new RequestScope(columns, labels, specials, results.getConstants());
+        final List<ColumnarExpression> compiled = new ArrayList<>(expressions.size());
+        for (Expression e : expressions) {
+            final ColumnarExpression expression = ColumnarExpressionParser.parse(e.getExpression(), scope).asDoubles();
+            if (expression == null) {
+                throw new UnsupportedExpressionException("Expression '%s' does not return a double.", e.getLabel());
+            }
+            compiled.add(expression);
+            scope.current++;
+        }
+        return compiled;
+    }
+
+    /**
+     * Resolves variables in the same order as the JEXL context would.
+     */
+    private static class RequestScope implements ColumnarExpressionParser.Scope {
+        private final Map<String, double[]> columns;
+        private final List<String> labels;
+        private final Map<String, Object> specials;
+        private final Map<String, Object> constants;
+        /** The index of the expression being compiled. */
+        private int current = 0;
+
+        private RequestScope(Map<String, double[]> columns, List<String> labels, Map<String, Object> specials, Map<String, Object> constants) {
+            this.columns = columns;
+            this.labels = labels;
+            this.specials = specials;
+            this.constants = constants != null ? constants : Maps.newHashMap();
+        }
+
+        @Override
+        public ColumnarExpression lookup(String name) throws UnsupportedExpressionException {
+            final double[] column = columns.get(name);
+            if (column != null) {
+                return new ColumnarExpression.ColumnReference(column);
+            } else if (name.startsWith("__") && columns.containsKey(name.substring(2))) {
+                throw new UnsupportedExpressionException("Sample array '%s' can only be used with the fn: functions.", name);
+            } else if ("timestamp".equals(name)) {
+                return new ColumnarExpression.Timestamp();
+            } else if ("__i".equals(name)) {
+                return new ColumnarExpression.RowIndex();
+            }
+
+            final int index = labels.indexOf(name);
+            if (index >= 0) {
+                if (index < current) {
+                    return new ColumnarExpression.ExpressionReference(index);
+                }
+                // JEXL would use the value from the previous row
+                throw new UnsupportedExpressionException("Expression '%s' references '%s' before it is evaluated.", labels.get(current), name);
+            }
+
+            final Object value = specials.containsKey(name) ? specials.get(name) : constants.get(name);
+            if (value == null) {
+                return null;
+            } else if (value instanceof Double) {
+                return new ColumnarExpression.Constant((Double)value, Kind.DOUBLE);
+            } else if (value instanceof Float) {
+                return new ColumnarExpression.Constant((Float)value, Kind.FLOAT);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                return new ColumnarExpression.Constant(((Number)value).longValue(), Kind.INTEGRAL);
+            }
+            throw new UnsupportedExpressionException("Constant '%s' is not a number.", name);
+        }
+
+        @Override
+        public double[] getSamples(String sourceLabel) {
+            return columns.get(sourceLabel);
+        }
+    }
+}
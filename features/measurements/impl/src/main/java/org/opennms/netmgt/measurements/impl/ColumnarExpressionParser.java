@@ -0,0 +1,639 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import org.opennms.netmgt.measurements.impl.ColumnarExpression.ArithmeticOperator;
+import org.opennms.netmgt.measurements.impl.ColumnarExpression.ComparisonOperator;
+import org.opennms.netmgt.measurements.impl.ColumnarExpression.Kind;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Compiles the subset of the JEXL syntax used in graph definitions to
+ * {@link ColumnarExpression}s.
+ *
+ * This supports arithmetic, comparison and logical operators, the ternary
+ * operator, numeric literals, variables, and the <code>math:</code>,
+ * <code>strictmath:</code> and <code>fn:</code> functions. Anything else,
+ * or anything where the result could differ from the one computed by JEXL,
+ * is rejected with an {@link UnsupportedExpressionException} so that the
+ * expression can be evaluated by JEXL instead.
+ */
+class ColumnarExpressionParser {
+
+    /**
+     * Thrown when an expression cannot be compiled.
+     */
+    static class UnsupportedExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedExpressionException(String format, Object... args) {
+            super(String.format(format, args));
+        }
+    }
+
+    /**
+     * Resolves the variables referenced by an expression.
+     */
+    interface Scope {
+        /**
+         * @return the value of the variable, or null if it is not defined
+         */
+        ColumnarExpression lookup(String name) throws UnsupportedExpressionException;
+
+        /**
+         * @return the samples for the given source, or null if there is no such source
+         */
+        double[] getSamples(String sourceLabel);
+    }
+
+    private static class Functions {
+        /** Functions with a single signature, which take doubles. */
+        private final Map<String, DoubleUnaryOperator> unary;
+        private final Map<String, DoubleBinaryOperator> binary;
+        /** Functions that also have integer and float variants. */
+        private final Map<String, DoubleUnaryOperator> overloadedUnary;
+        private final Map<String, DoubleBinaryOperator> overloadedBinary;
+
+        private Functions(Map<String, DoubleUnaryOperator> unary, Map<String, DoubleBinaryOperator> binary,
+                Map<String, DoubleUnaryOperator> overloadedUnary, Map<String, DoubleBinaryOperator> overloadedBinary) {
+            this.unary = unary;
+            this.binary = binary;
+            this.overloadedUnary = overloadedUnary;
+            this.overloadedBinary = overloadedBinary;
+        }
+    }
+
+    private static final Functions MATH = new Functions(
+            ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("sin", Math::sin)
+                .put("cos", Math::cos)
+                .put("tan", Math::tan)
+                .put("asin", Math::asin)
+                .put("acos", Math::acos)
+                .put("atan", Math::atan)
+                .put("sinh", Math::sinh)
+                .put("cosh", Math::cosh)
+                .put("tanh", Math::tanh)
+                .put("toRadians", Math::toRadians)
+                .put("toDegrees", Math::toDegrees)
+                .put("exp", Math::exp)
+                .put("expm1", Math::expm1)
+                .put("log", Math::log)
+                .put("log10", Math::log10)
+                .put("log1p", Math::log1p)
+                .put("sqrt", Math::sqrt)
+                .put("cbrt", Math::cbrt)
+                .put("ceil", Math::ceil)
+                .put("floor", Math::floor)
+                .put("rint", Math::rint)
+                .build(),
+            ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("atan2", Math::atan2)
+                .put("pow", Math::pow)
+                .put("hypot", Math::hypot)
+                .put("IEEEremainder", Math::IEEEremainder)
+                .build(),
+            ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("abs", Math::abs)
+                .put("signum", Math::signum)
+                .put("ulp", Math::ulp)
+                .put("round", Math::round)
+                .build(),
+            ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("max", Math::max)
+                .put("min", Math::min)
+                .put("copySign", Math::copySign)
+                .build());
+
+    private static final Functions STRICT_MATH = new Functions(
+            ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("sin", StrictMath::sin)
+                .put("cos", StrictMath::cos)
+                .put("tan", StrictMath::tan)
+                .put("asin", StrictMath::asin)
+                .put("acos", StrictMath::acos)
+                .put("atan", StrictMath::atan)
+                .put("sinh", StrictMath::sinh)
+                .put("cosh", StrictMath::cosh)
+                .put("tanh", StrictMath::tanh)
+                .put("toRadians", StrictMath::toRadians)
+                .put("toDegrees", StrictMath::toDegrees)
+                .put("exp", StrictMath::exp)
+                .put("expm1", StrictMath::expm1)
+                .put("log", StrictMath::log)
+                .put("log10", StrictMath::log10)
+                .put("log1p", StrictMath::log1p)
+                .put("sqrt", StrictMath::sqrt)
+                .put("cbrt", StrictMath::cbrt)
+                .put("ceil", StrictMath::ceil)
+                .put("floor", StrictMath::floor)
+                .put("rint", StrictMath::rint)
+                .build(),
+            ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("atan2", StrictMath::atan2)
+                .put("pow", StrictMath::pow)
+                .put("hypot", StrictMath::hypot)
+                .put("IEEEremainder", StrictMath::IEEEremainder)
+                .build(),
+            ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("abs", StrictMath::abs)
+                .put("signum", StrictMath::signum)
+                .put("ulp", StrictMath::ulp)
+                .put("round", StrictMath::round)
+                .build(),
+            ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("max", StrictMath::max)
+                .put("min", StrictMath::min)
+                .put("copySign", StrictMath::copySign)
+                .build());
+
+    private static final Map<String, Functions> NAMESPACES = ImmutableMap.of(
+            "math", MATH,
+            "strictmath", STRICT_MATH);
+
+    /**
+     * Reserved words, which JEXL does not treat as variables.
+     */
+    private static final Set<String> KEYWORDS = ImmutableSet.of(
+            "or", "and", "not", "eq", "ne", "lt", "gt", "le", "ge", "div", "mod",
+            "empty", "size", "new", "null", "if", "else", "for", "foreach", "while",
+            "var", "return", "in");
+
+    private final String text;
+    private final Scope scope;
+    private int pos = 0;
+
+    private ColumnarExpressionParser(String text, Scope scope) {
+        this.text = text;
+        this.scope = scope;
+    }
+
+    /**
+     * Compiles the given expression.
+     *
+     * @throws UnsupportedExpressionException if the expression is not valid
+     * or uses a feature that is not supported
+     */
+    static ColumnarExpression parse(String text, Scope scope) throws UnsupportedExpressionException {
+        final ColumnarExpressionParser parser = new ColumnarExpressionParser(text, scope);
+        final ColumnarExpression expression = parser.parseTernary();
+        parser.skipWhitespace();
+        if (parser.pos < text.length()) {
+            throw new UnsupportedExpressionException("Unexpected character '%c' at position %d.", text.charAt(parser.pos), parser.pos);
+        }
+        return expression;
+    }
+
+    private ColumnarExpression parseTernary() throws UnsupportedExpressionException {
+        final ColumnarExpression condition = parseOr();
+        if (!accept("?")) {
+            return condition;
+        }
+        if (peek() == ':') {
+            throw new UnsupportedExpressionException("The ?: operator is not supported.");
+        }
+        final ColumnarExpression ifTrue = numeric(parseTernary());
+        expect(':');
+        final ColumnarExpression ifFalse = numeric(parseTernary());
+        return new ColumnarExpression.Conditional(bool(condition), ifTrue, ifFalse);
+    }
+
+    private ColumnarExpression parseOr() throws UnsupportedExpressionException {
+        ColumnarExpression left = parseAnd();
+        while (accept("||")) {
+            left = new ColumnarExpression.Or(bool(left), bool(parseAnd()));
+        }
+        return left;
+    }
+
+    private ColumnarExpression parseAnd() throws UnsupportedExpressionException {
+        ColumnarExpression left = parseEquality();
+        while (accept("&&")) {
+            left = new ColumnarExpression.And(bool(left), bool(parseEquality()));
+        }
+        return left;
+    }
+
+    private ColumnarExpression parseEquality() throws UnsupportedExpressionException {
+        ColumnarExpression left = parseRelational();
+        while (true) {
+            final ComparisonOperator operator;
+            if (accept("==")) {
+                operator = ComparisonOperator.EQ;
+            } else if (accept("!=")) {
+                operator = ComparisonOperator.NE;
+            } else {
+                return left;
+            }
+            final ColumnarExpression right = parseRelational();
+            if (numeric(left).getKind() == Kind.MIXED || numeric(right).getKind() == Kind.MIXED) {
+                // The result depends on the types of the operands
+                throw new UnsupportedExpressionException("Cannot compare operands of mixed types for equality.");
+            }
+            left = new ColumnarExpression.Comparison(operator, left, right);
+        }
+    }
+
+    private ColumnarExpression parseRelational() throws UnsupportedExpressionException {
+        ColumnarExpression left = parseAdditive();
+        while (true) {
+            final ComparisonOperator operator;
+            if (accept("<=")) {
+                operator = ComparisonOperator.LE;
+            } else if (accept(">=")) {
+                operator = ComparisonOperator.GE;
+            } else if (accept("<")) {
+                operator = ComparisonOperator.LT;
+            } else if (accept(">")) {
+                operator = ComparisonOperator.GT;
+            } else {
+                return left;
+            }
+            left = new ColumnarExpression.Comparison(operator, numeric(left), numeric(parseAdditive()));
+        }
+    }
+
+    private ColumnarExpression parseAdditive() throws UnsupportedExpressionException {
+        ColumnarExpression left = parseMultiplicative();
+        while (true) {
+            if (accept("+")) {
+                left = arithmetic(ArithmeticOperator.ADD, left, parseMultiplicative());
+            } else if (accept("-")) {
+                left = arithmetic(ArithmeticOperator.SUBTRACT, left, parseMultiplicative());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private ColumnarExpression parseMultiplicative() throws UnsupportedExpressionException {
+        ColumnarExpression left = parseUnary();
+        while (true) {
+            if (accept("*")) {
+                left = arithmetic(ArithmeticOperator.MULTIPLY, left, parseUnary());
+            } else if (accept("/")) {
+                left = arithmetic(ArithmeticOperator.DIVIDE, left, parseUnary());
+            } else if (accept("%")) {
+                left = arithmetic(ArithmeticOperator.MODULO, left, parseUnary());
+            } else {
+                return left;
+            }
+        }
+    }
+
+    private ColumnarExpression parseUnary() throws UnsupportedExpressionException {
+        if (accept("-")) {
+            return new ColumnarExpression.Negate(numeric(parseUnary()));
+        } else if (peek() == '!' && peek(1) != '=' && peek(1) != '~') {
+            pos++;
+            return new ColumnarExpression.Not(bool(parseUnary()));
+        }
+        return parsePrimary();
+    }
+
+    private ColumnarExpression parsePrimary() throws UnsupportedExpressionException {
+        final char c = peek();
+        if (c == '(') {
+            pos++;
+            final ColumnarExpression expression = parseTernary();
+            expect(')');
+            return expression;
+        } else if (isDigit(c)) {
+            return parseNumber();
+        } else if (isIdentifierStart(c)) {
+            return parseIdentifier();
+        } else if (c == 0) {
+            throw new UnsupportedExpressionException("Unexpected end of expression.");
+        }
+        throw new UnsupportedExpressionException("Unexpected character '%c' at position %d.", c, pos);
+    }
+
+    private ColumnarExpression parseNumber() throws UnsupportedExpressionException {
+        final int start = pos;
+        while (isDigit(charAt(pos))) {
+            pos++;
+        }
+        boolean real = false;
+        if (charAt(pos) == '.' && isDigit(charAt(pos + 1))) {
+            real = true;
+            pos++;
+            while (isDigit(charAt(pos))) {
+                pos++;
+            }
+            if (charAt(pos) == 'e' || charAt(pos) == 'E') {
+                pos++;
+                if (charAt(pos) == '+' || charAt(pos) == '-') {
+                    pos++;
+                }
+                if (!isDigit(charAt(pos))) {
+                    throw new UnsupportedExpressionException("Invalid exponent at position %d.", pos);
+                }
+                while (isDigit(charAt(pos))) {
+                    pos++;
+                }
+            }
+        }
+        final String literal = text.substring(start, pos);
+        final char suffix = charAt(pos);
+
+        if (real) {
+            if (suffix == 'd' || suffix == 'D') {
+                pos++;
+                return new ColumnarExpression.Constant(Double.parseDouble(literal), Kind.DOUBLE);
+            } else if (suffix == 'f' || suffix == 'F') {
+                pos++;
+            } else if (isIdentifierPart(suffix)) {
+                throw new UnsupportedExpressionException("Unsupported number literal '%s%c'.", literal, suffix);
+            }
+            // JEXL parses decimal literals without a suffix as floats
+            return new ColumnarExpression.Constant(Float.parseFloat(literal), Kind.FLOAT);
+        }
+
+        if (isIdentifierPart(suffix)) {
+            throw new UnsupportedExpressionException("Unsupported number literal '%s%c'.", literal, suffix);
+        } else if (literal.length() > 1 && literal.charAt(0) == '0') {
+            throw new UnsupportedExpressionException("Octal literals are not supported: '%s'.", literal);
+        }
+        try {
+            return new ColumnarExpression.Constant(Long.parseLong(literal), Kind.INTEGRAL);
+        } catch (NumberFormatException e) {
+            throw new UnsupportedExpressionException("Number literal '%s' is out of range.", literal);
+        }
+    }
+
+    private ColumnarExpression parseIdentifier() throws UnsupportedExpressionException {
+        final String name = readIdentifier();
+        if ("true".equals(name) || "false".equals(name)) {
+            return new ColumnarExpression.BooleanConstant(Boolean.parseBoolean(name));
+        } else if (KEYWORDS.contains(name)) {
+            throw new UnsupportedExpressionException("Unsupported keyword '%s'.", name);
+        }
+
+        // Namespaced function calls, i.e. math:sin(x)
+        final int mark = pos;
+        if (accept(":")) {
+            skipWhitespace();
+            if (isIdentifierStart(peek())) {
+                final String function = readIdentifier();
+                if (accept("(")) {
+                    return parseFunction(name, function);
+                }
+            }
+            // Not a function call, this must be part of a ternary operator
+            pos = mark;
+        }
+
+        if (accept("(")) {
+            throw new UnsupportedExpressionException("Unsupported function '%s'.", name);
+        }
+
+        if (peek() != '.') {
+            return lookup(name);
+        }
+
+        // JEXL treats a.b.c as a single variable, but only if 'a' is not defined
+        final StringBuilder dotted = new StringBuilder(name);
+        while (accept(".")) {
+            skipWhitespace();
+            if (!isIdentifierStart(peek())) {
+                throw new UnsupportedExpressionException("Unsupported property access at position %d.", pos);
+            }
+            dotted.append('.').append(readIdentifier());
+        }
+        if (scope.lookup(name) != null) {
+            throw new UnsupportedExpressionException("Unsupported property access on '%s'.", name);
+        }
+        return lookup(dotted.toString());
+    }
+
+    private ColumnarExpression lookup(String name) throws UnsupportedExpressionException {
+        final ColumnarExpression value = scope.lookup(name);
+        if (value == null) {
+            throw new UnsupportedExpressionException("Undefined variable '%s'.", name);
+        }
+        return value;
+    }
+
+    private ColumnarExpression parseFunction(String namespace, String function) throws UnsupportedExpressionException {
+        final List<Object> args = new ArrayList<>();
+        if (!accept(")")) {
+            do {
+                skipWhitespace();
+                if (peek() == '\'' || peek() == '"') {
+                    args.add(readString());
+                } else {
+                    args.add(parseTernary());
+                }
+            } while (accept(","));
+            expect(')');
+        }
+
+        if ("fn".equals(namespace)) {
+            return sampleFunction(function, args);
+        }
+
+        final Functions functions = NAMESPACES.get(namespace);
+        if (functions == null) {
+            throw new UnsupportedExpressionException("Unsupported namespace '%s'.", namespace);
+        }
+        for (Object arg : args) {
+            if (!(arg instanceof ColumnarExpression) || !((ColumnarExpression)arg).getKind().isNumeric()) {
+                throw new UnsupportedExpressionException("Function %s:%s only accepts numeric arguments.", namespace, function);
+            }
+        }
+
+        if (args.size() == 1 && functions.unary.containsKey(function)) {
+            return new ColumnarExpression.UnaryFunction(functions.unary.get(function), Kind.DOUBLE, (ColumnarExpression)args.get(0));
+        } else if (args.size() == 2 && functions.binary.containsKey(function)) {
+            return new ColumnarExpression.BinaryFunction(functions.binary.get(function), Kind.DOUBLE,
+                    (ColumnarExpression)args.get(0), (ColumnarExpression)args.get(1));
+        }
+
+        // The overloaded functions only behave the same when JEXL picks the double variant
+        for (Object arg : args) {
+            if (((ColumnarExpression)arg).getKind() != Kind.DOUBLE) {
+                throw new UnsupportedExpressionException("Function %s:%s is only supported with double arguments.", namespace, function);
+            }
+        }
+        if (args.size() == 1 && functions.overloadedUnary.containsKey(function)) {
+            // round() returns a long
+            final Kind kind = "round".equals(function) ? Kind.INTEGRAL : Kind.DOUBLE;
+            return new ColumnarExpression.UnaryFunction(functions.overloadedUnary.get(function), kind, (ColumnarExpression)args.get(0));
+        } else if (args.size() == 2 && functions.overloadedBinary.containsKey(function)) {
+            return new ColumnarExpression.BinaryFunction(functions.overloadedBinary.get(function), Kind.DOUBLE,
+                    (ColumnarExpression)args.get(0), (ColumnarExpression)args.get(1));
+        }
+        throw new UnsupportedExpressionException("Unsupported function %s:%s with %d arguments.", namespace, function, args.size());
+    }
+
+    /**
+     * Compiles the functions defined in {@link SampleArrayFunctions}.
+     */
+    private ColumnarExpression sampleFunction(String function, List<Object> args) throws UnsupportedExpressionException {
+        final int numArgs = "arrayStart".equals(function) ? 3 : 2;
+        if (args.size() != numArgs || !(args.get(0) instanceof String) || !isIntLiteral(args.get(1))) {
+            throw new UnsupportedExpressionException("Unsupported arguments for function fn:%s.", function);
+        }
+        final double[] samples = scope.getSamples((String)args.get(0));
+        if (samples == null) {
+            throw new UnsupportedExpressionException("Function fn:%s references unknown source '%s'.", function, args.get(0));
+        }
+        final int n = (int)((ColumnarExpression.Constant)args.get(1)).getValue();
+
+        switch (function) {
+        case "arrayZero":
+            return new ColumnarExpression.PriorSample(samples, n, new ColumnarExpression.Constant(0d, Kind.DOUBLE));
+        case "arrayFirst":
+            return new ColumnarExpression.PriorSample(samples, n, null);
+        case "arrayNaN":
+            return new ColumnarExpression.PriorSample(samples, n, new ColumnarExpression.Constant(Double.NaN, Kind.DOUBLE));
+        case "arrayStart":
+            if (!(args.get(2) instanceof ColumnarExpression) || !((ColumnarExpression)args.get(2)).getKind().isNumeric()) {
+                throw new UnsupportedExpressionException("Unsupported arguments for function fn:%s.", function);
+            }
+            return new ColumnarExpression.PriorSample(samples, n, (ColumnarExpression)args.get(2));
+        default:
+            throw new UnsupportedExpressionException("Unsupported function fn:%s.", function);
+        }
+    }
+
+    private static boolean isIntLiteral(Object arg) {
+        if (!(arg instanceof ColumnarExpression.Constant)) {
+            return false;
+        }
+        final ColumnarExpression.Constant constant = (ColumnarExpression.Constant)arg;
+        return constant.getKind() == Kind.INTEGRAL
+                && constant.getValue() >= Integer.MIN_VALUE
+                && constant.getValue() <= Integer.MAX_VALUE;
+    }
+
+    private static ColumnarExpression arithmetic(ArithmeticOperator operator, ColumnarExpression left, ColumnarExpression right) throws UnsupportedExpressionException {
+        numeric(left);
+        numeric(right);
+        if (!left.getKind().isFloatingPoint() && !right.getKind().isFloatingPoint()) {
+            // JEXL would use integer arithmetic here
+            throw new UnsupportedExpressionException("Integer arithmetic is not supported.");
+        }
+        return new ColumnarExpression.Arithmetic(operator, left, right);
+    }
+
+    private static ColumnarExpression numeric(ColumnarExpression expression) throws UnsupportedExpressionException {
+        if (!expression.getKind().isNumeric()) {
+            throw new UnsupportedExpressionException("Expected a numeric operand.");
+        }
+        return expression;
+    }
+
+    private static ColumnarExpression bool(ColumnarExpression expression) {
+        return expression.getKind() == Kind.BOOLEAN ? expression : new ColumnarExpression.Truth(expression);
+    }
+
+    private String readIdentifier() {
+        final int start = pos;
+        while (isIdentifierPart(charAt(pos))) {
+            pos++;
+        }
+        return text.substring(start, pos);
+    }
+
+    private String readString() throws UnsupportedExpressionException {
+        final char quote = text.charAt(pos++);
+        final int start = pos;
+        while (pos < text.length() && text.charAt(pos) != quote) {
+            if (text.charAt(pos) == '\\') {
+                throw new UnsupportedExpressionException("Escape sequences in strings are not supported.");
+            }
+            pos++;
+        }
+        if (pos >= text.length()) {
+            throw new UnsupportedExpressionException("Unterminated string literal.");
+        }
+        return text.substring(start, pos++);
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * @return the next non-whitespace character, or 0 if there are none left
+     */
+    private char peek() {
+        skipWhitespace();
+        return charAt(pos);
+    }
+
+    private char peek(int offset) {
+        skipWhitespace();
+        return charAt(pos + offset);
+    }
+
+    private char charAt(int index) {
+        return index < text.length() ? text.charAt(index) : 0;
+    }
+
+    private boolean accept(String token) {
+        skipWhitespace();
+        if (text.startsWith(token, pos)) {
+            pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws UnsupportedExpressionException {
+        if (peek() != c) {
+            throw new UnsupportedExpressionException("Expected '%c' at position %d.", c, pos);
+        }
+        pos++;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$' || c == '@';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+}
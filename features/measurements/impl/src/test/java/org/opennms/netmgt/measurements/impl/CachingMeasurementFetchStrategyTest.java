@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.api.MeasurementFetchStrategy;
+import org.opennms.netmgt.measurements.model.Source;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Verifies that the {@link CachingMeasurementFetchStrategy} returns the same
+ * results as the strategy it wraps.
+ */
+public class CachingMeasurementFetchStrategyTest {
+
+    private static final long STEP = TimeUnit.MINUTES.toMillis(5);
+    private static final long WINDOW = TimeUnit.DAYS.toMillis(1);
+    private static final long SETTLE_TIME = TimeUnit.MINUTES.toMillis(15);
+
+    private final GridFetchStrategy delegate = new GridFetchStrategy();
+
+    private long now = TimeUnit.DAYS.toMillis(365) + 12345;
+
+    private final CachingMeasurementFetchStrategy cachingStrategy = new CachingMeasurementFetchStrategy(delegate, 1024 * 1024, SETTLE_TIME) {
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void canReuseCachedRowsForSlidingWindows() throws Exception {
+        for (int i = 0; i < 24; i++) {
+            final long end = now;
+            final long start = end - WINDOW;
+            final FetchResults results = cachingStrategy.fetch(start, end, STEP, 0, null, null, getSources(), false);
+
+            if (i > 0) {
+                // Only the tail should have been fetched
+                assertTrue(delegate.lastStart > end - TimeUnit.HOURS.toMillis(1));
+            }
+            assertSameResults(delegate.fetch(start, end, STEP, 0, null, null, getSources(), false), results);
+            now += TimeUnit.MINUTES.toMillis(7);
+        }
+
+        assertEquals(1, cachingStrategy.getMetricRegistry().meter("misses").getCount());
+        assertEquals(23, cachingStrategy.getMetricRegistry().meter("partial-hits").getCount());
+    }
+
+    @Test
+    public void canServeSettledWindowsFromCache() throws Exception {
+        final long end = now - TimeUnit.HOURS.toMillis(1);
+        final long start = end - WINDOW;
+        final FetchResults results = cachingStrategy.fetch(start, end, STEP, 0, null, null, getSources(), false);
+        assertEquals(1, delegate.numFetches);
+
+        // Fully contained in the previous window
+        final long subStart = start + TimeUnit.HOURS.toMillis(2) + 17;
+        final long subEnd = end - TimeUnit.HOURS.toMillis(3);
+        final FetchResults subResults = cachingStrategy.fetch(subStart, subEnd, STEP, 0, null, null, getSources(), false);
+        assertEquals(1, delegate.numFetches);
+        assertEquals(1, cachingStrategy.getMetricRegistry().meter("hits").getCount());
+
+        assertSameResults(delegate.fetch(start, end, STEP, 0, null, null, getSources(), false), results);
+        assertSameResults(delegate.fetch(subStart, subEnd, STEP, 0, null, null, getSources(), false), subResults);
+    }
+
+    @Test
+    public void canFetchWholeWindowWhenCachedRowsChange() throws Exception {
+        final long start = now - WINDOW;
+        cachingStrategy.fetch(start, now, STEP, 0, null, null, getSources(), false);
+
+        // Change the value of every row, the overlapping row will no longer match
+        delegate.offset = 1.0;
+        now += TimeUnit.MINUTES.toMillis(30);
+        final FetchResults results = cachingStrategy.fetch(start, now, STEP, 0, null, null, getSources(), false);
+        assertEquals(start, delegate.lastStart);
+        assertSameResults(delegate.fetch(start, now, STEP, 0, null, null, getSources(), false), results);
+    }
+
+    @Test
+    public void canBypassCacheWhenLimitingRows() throws Exception {
+        final long start = now - WINDOW;
+        cachingStrategy.fetch(start, now, STEP, 100, null, null, getSources(), false);
+        cachingStrategy.fetch(start, now, STEP, 100, null, null, getSources(), false);
+        assertEquals(2, delegate.numFetches);
+        assertEquals(0, cachingStrategy.getMetricRegistry().meter("misses").getCount());
+    }
+
+    @Test
+    public void doesNotCacheRowsAtAnotherStep() throws Exception {
+        final GridFetchStrategy resolutionDelegate = new ResolutionChangingFetchStrategy();
+        final CachingMeasurementFetchStrategy strategy = new CachingMeasurementFetchStrategy(resolutionDelegate, 1024 * 1024, SETTLE_TIME) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+
+        // Long windows are served from a coarser archive
+        final long end = now - TimeUnit.HOURS.toMillis(1);
+        final long start = end - 7 * WINDOW;
+        final FetchResults results = strategy.fetch(start, end, STEP, 0, null, null, getSources(), false);
+        assertEquals(ResolutionChangingFetchStrategy.COARSE_STEP, results.getStep());
+
+        // Same requested step, but the shorter window resolves to the finer archive
+        final long subEnd = end - TimeUnit.HOURS.toMillis(3);
+        final long subStart = subEnd - WINDOW;
+        final FetchResults subResults = strategy.fetch(subStart, subEnd, STEP, 0, null, null, getSources(), false);
+        assertEquals(2, resolutionDelegate.numFetches);
+        assertEquals(0, strategy.getMetricRegistry().meter("hits").getCount());
+        assertSameResults(resolutionDelegate.fetch(subStart, subEnd, STEP, 0, null, null, getSources(), false), subResults);
+
+        // Rows at the requested step are cached
+        strategy.fetch(subStart + TimeUnit.HOURS.toMillis(1), subEnd, STEP, 0, null, null, getSources(), false);
+        assertEquals(3, resolutionDelegate.numFetches);
+        assertEquals(1, strategy.getMetricRegistry().meter("hits").getCount());
+    }
+
+    private static List<Source> getSources() {
+        return Lists.newArrayList(
+                new Source("in", "node[1].interfaceSnmp[eth0]", "ifHCInOctets", "ifHCInOctets", false),
+                new Source("out", "node[1].interfaceSnmp[eth0]", "ifHCOutOctets", "ifHCOutOctets", false));
+    }
+
+    private static void assertSameResults(FetchResults expected, FetchResults actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getStep(), actual.getStep());
+        assertArrayEquals(expected.getTimestamps(), actual.getTimestamps());
+        assertEquals(expected.getColumns().keySet(), actual.getColumns().keySet());
+        for (String label : expected.getColumns().keySet()) {
+            assertArrayEquals(expected.getColumns().get(label), actual.getColumns().get(label), 0);
+        }
+        assertEquals(expected.getConstants(), actual.getConstants());
+    }
+
+    private static long alignDown(long timestamp, long step) {
+        return Math.floorDiv(timestamp, step) * step;
+    }
+
+    /**
+     * Returns one row per step, aligned to the step boundaries.
+     */
+    private static class GridFetchStrategy implements MeasurementFetchStrategy {
+        private int numFetches = 0;
+        private long lastStart = -1;
+        private double offset = 0;
+
+        @Override
+        public FetchResults fetch(long start, long end, long step, int maxrows, Long interval, Long heartbeat,
+                                  List<Source> sources, boolean relaxed) {
+            numFetches++;
+            lastStart = start;
+
+            final long first = alignDown(start, step);
+            final int numRows = (int) ((alignDown(end, step) - first) / step) + 1;
+            final long[] timestamps = new long[numRows];
+            final Map<String, double[]> columns = Maps.newHashMap();
+            final Map<String, Object> constants = Maps.newHashMap();
+            for (int i = 0; i < numRows; i++) {
+                timestamps[i] = first + i * step;
+            }
+            for (Source source : sources) {
+                final double[] values = new double[numRows];
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = (timestamps[i] % 7919) * source.getAttribute().length() + offset;
+                }
+                columns.put(source.getLabel(), values);
+                constants.put(source.getLabel() + ".ifSpeed", "1000000000");
+            }
+            return new FetchResults(timestamps, columns, step, constants);
+        }
+    }
+
+    /**
+     * Returns coarser rows for windows longer than a day, regardless of the requested step.
+     */
+    private static class ResolutionChangingFetchStrategy extends GridFetchStrategy {
+        private static final long COARSE_STEP = TimeUnit.HOURS.toMillis(1);
+
+        @Override
+        public FetchResults fetch(long start, long end, long step, int maxrows, Long interval, Long heartbeat,
+                                  List<Source> sources, boolean relaxed) {
+            final long actualStep = end - start > WINDOW ? COARSE_STEP : step;
+            return super.fetch(start, end, actualStep, maxrows, interval, heartbeat, sources, relaxed);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.opennms.netmgt.measurements.api.ExpressionEngine;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.api.exceptions.ExpressionException;
+import org.opennms.netmgt.measurements.model.Expression;
+import org.opennms.netmgt.measurements.model.QueryRequest;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Verifies that the {@link ColumnarExpressionEngine} returns the same results
+ * as the {@link JEXLExpressionEngine}.
+ */
+public class ColumnarExpressionEngineTest {
+
+    private static final int N = 100;
+
+    private final ExpressionEngine jexlExpressionEngine = new JEXLExpressionEngine();
+
+    @Test
+    public void canEvaluateArithmetic() throws ExpressionException {
+        verifySameResults("x * 5 + 7");
+        verifySameResults("x / y");
+        verifySameResults("x / 0");
+        verifySameResults("x % 3.0");
+        verifySameResults("-x + y * 0.5");
+        verifySameResults("(x - y) * (x + 1.5d)");
+        verifySameResults("0.1");
+        verifySameResults("42");
+    }
+
+    @Test
+    public void canEvaluateComparisons() throws ExpressionException {
+        verifySameResults("( ( (x == __inf) || (x == __neg_inf) || (y < x) || (y > 50) ) ? NaN : y )");
+        verifySameResults("( ( x == NaN ) ? y : ( ( y == NaN ) ? x : math:min(x,y) ) )");
+        verifySameResults("x <= y ? 1 : 0.5");
+        verifySameResults("x >= y && !(y != 3.0) ? __inf : __neg_inf");
+        verifySameResults("x ? 1.5 : 2.5");
+        verifySameResults("x == 0 ? A : -x");
+    }
+
+    @Test
+    public void canEvaluateFunctions() throws ExpressionException {
+        verifySameResults("math:sin(x)");
+        verifySameResults("math:max(x, y)");
+        verifySameResults("math:abs(x - y)");
+        verifySameResults("math:round(x / 3.0)");
+        verifySameResults("math:pow(x, 2)");
+        verifySameResults("math:atan2(I, x)");
+        verifySameResults("strictmath:sqrt(x)");
+        verifySameResults("fn:arrayNaN(\"x\", 5)");
+        verifySameResults("fn:arrayZero('x', 1) - x");
+        verifySameResults("fn:arrayFirst(\"x\", 3)");
+        verifySameResults("fn:arrayStart(\"x\", 2, A)");
+    }
+
+    @Test
+    public void canReferenceVariables() throws ExpressionException {
+        verifySameResults("timestamp / 125.0d");
+        verifySameResults("__i * 2.0");
+        verifySameResults("1 * __diff_time");
+        verifySameResults("speed / 0.62137");
+        verifySameResults("ds.speed * 8.0");
+        verifySameResults(new Expression("z", "x + y", true),
+                new Expression("w", "z * 2.0", false),
+                new Expression("v", "w - z", false));
+    }
+
+    @Test
+    public void fallsBackForUnsupportedExpressions() throws ExpressionException {
+        verifyFallback("jexl:evaluate(__formula)");
+        verifyFallback("1 + 2");
+        verifyFallback("math:max(I, 1)");
+        verifyFallback("__x[0]");
+        verifyFallback("y = 1");
+        verifyFallback("undefined * 2.0");
+        verifyFallback("!(!true)");
+        verifyFallback("/");
+        // References its own value from the previous row
+        verifyFallback(new Expression("z", "z + x", false));
+    }
+
+    private void verifySameResults(String expression) throws ExpressionException {
+        verifySameResults(new Expression("z", expression, false));
+    }
+
+    private void verifySameResults(Expression... expressions) throws ExpressionException {
+        final FetchResults expected = createResults();
+        jexlExpressionEngine.applyExpressions(createRequest(expressions), expected);
+
+        final FetchResults actual = createResults();
+        new ColumnarExpressionEngine((request, results) -> {
+            fail("Expressions were not compiled: " + request.getExpressions());
+        }).applyExpressions(createRequest(expressions), actual);
+
+        assertEquals(expected.getColumns().keySet(), actual.getColumns().keySet());
+        for (String column : expected.getColumns().keySet()) {
+            assertArrayEquals(column, expected.getColumns().get(column), actual.getColumns().get(column), 0.0d);
+        }
+    }
+
+    private void verifyFallback(Expression... expressions) throws ExpressionException {
+        final boolean[] usedFallback = new boolean[] { false };
+        new ColumnarExpressionEngine((request, results) -> {
+            usedFallback[0] = true;
+        }).applyExpressions(createRequest(expressions), createResults());
+        assertTrue(usedFallback[0]);
+    }
+
+    private void verifyFallback(String expression) throws ExpressionException {
+        verifyFallback(new Expression("z", expression, false));
+    }
+
+    private static QueryRequest createRequest(Expression... expressions) {
+        final QueryRequest request = new QueryRequest();
+        request.setExpressions(Lists.newArrayList(expressions));
+        return request;
+    }
+
+    private static FetchResults createResults() {
+        final long timestamps[] = new long[N];
+        final double xValues[] = new double[N];
+        final double yValues[] = new double[N];
+        for (int i = 0; i < N; i++) {
+            timestamps[i] = i * 1000;
+            // Include some zeros, negative values, and NaNs
+            xValues[i] = i % 10 == 0 ? Double.NaN : i - 20;
+            yValues[i] = i % 7 == 0 ? 0d : Math.sqrt(i);
+        }
+        final Map<String, double[]> values = Maps.newHashMap();
+        values.put("x", xValues);
+        values.put("y", yValues);
+
+        final Map<String, Object> constants = Maps.newHashMap();
+        constants.put("A", 2.5d);
+        constants.put("I", 3);
+        constants.put("speed", 65);
+        constants.put("ds.speed", 100000000d);
+        constants.put("__formula", "x * 2");
+        return new FetchResults(timestamps, values, 1, constants);
+    }
+}
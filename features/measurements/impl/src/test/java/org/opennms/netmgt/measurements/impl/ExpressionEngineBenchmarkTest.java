@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.netmgt.measurements.api.ExpressionEngine;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.api.exceptions.ExpressionException;
+import org.opennms.netmgt.measurements.model.Expression;
+import org.opennms.netmgt.measurements.model.QueryRequest;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares the time taken by the {@link JEXLExpressionEngine} and the
+ * {@link ColumnarExpressionEngine} to evaluate a typical set of interface
+ * expressions over 30 days of 5 minute samples.
+ *
+ * Meant to be run manually, {@link ColumnarExpressionEngineTest} covers the
+ * results of both engines.
+ */
+public class ExpressionEngineBenchmarkTest {
+
+    private static final int NUM_ROWS = 30 * 24 * 12;
+
+    private static final int ITERATIONS = 10;
+
+    private static final String[] SOURCES = new String[] {
+            "ifHCInOctets", "ifHCOutOctets", "ifInErrors", "ifOutErrors", "ifInDiscards", "ifOutDiscards"
+    };
+
+    private static final List<Expression> EXPRESSIONS = Lists.newArrayList(
+            new Expression("octIn", "ifHCInOctets * 8", false),
+            new Expression("octOut", "ifHCOutOctets * 8", false),
+            new Expression("octOutNeg", "-1 * octOut", false),
+            new Expression("octTotal", "octIn + octOut", true),
+            new Expression("inPercent", "octIn / ifSpeed * 100.0", false),
+            new Expression("outPercent", "octOut / ifSpeed * 100.0", false),
+            new Expression("errors", "ifInErrors + ifOutErrors", true),
+            new Expression("discards", "ifInDiscards + ifOutDiscards", false),
+            new Expression("errorRatio", "octTotal == 0 ? 0 : errors / octTotal", false),
+            new Expression("octInLimited", "( (octIn < 0) || (octIn > ifSpeed) ) ? NaN : octIn", false),
+            new Expression("octInDelta", "octIn - fn:arrayNaN(\"ifHCInOctets\", 1) * 8", false),
+            new Expression("octTotalLog", "math:log10(math:max(octTotal, 1.0d))", false));
+
+    @Test
+    @Ignore
+    public void testEngineThroughput() throws ExpressionException {
+        final Map<String, ExpressionEngine> engines = Maps.newLinkedHashMap();
+        engines.put("jexl", new JEXLExpressionEngine());
+        engines.put("columnar", new ColumnarExpressionEngine((request, results) -> {
+            throw new IllegalStateException("Expressions were not compiled.");
+        }));
+
+        FetchResults expected = null;
+        for (Map.Entry<String, ExpressionEngine> entry : engines.entrySet()) {
+            // Warm up
+            run(entry.getValue(), ITERATIONS / 5);
+
+            final long start = System.nanoTime();
+            final FetchResults results = run(entry.getValue(), ITERATIONS);
+            final long elapsed = System.nanoTime() - start;
+
+            System.err.printf("%-10s %8.2f ms/request, %10d rows/sec%n",
+                    entry.getKey(),
+                    elapsed / 1000000d / ITERATIONS,
+                    (long)ITERATIONS * NUM_ROWS * 1000000000L / Math.max(1, elapsed));
+
+            if (expected == null) {
+                expected = results;
+            } else {
+                for (String column : expected.getColumns().keySet()) {
+                    assertArrayEquals(column, expected.getColumns().get(column), results.getColumns().get(column), 0.0d);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the results of the last iteration
+     */
+    private static FetchResults run(ExpressionEngine engine, int iterations) throws ExpressionException {
+        FetchResults results = null;
+        for (int i = 0; i < iterations; i++) {
+            final QueryRequest request = new QueryRequest();
+            request.setExpressions(EXPRESSIONS);
+            results = createResults();
+            engine.applyExpressions(request, results);
+        }
+        return results;
+    }
+
+    private static FetchResults createResults() {
+        // Use the same samples for every iteration
+        final Random random = new Random(42);
+        final long timestamps[] = new long[NUM_ROWS];
+        final Map<String, double[]> columns = Maps.newHashMap();
+        for (String source : SOURCES) {
+            columns.put(source, new double[NUM_ROWS]);
+        }
+        for (int i = 0; i < NUM_ROWS; i++) {
+            timestamps[i] = 1500000000000L + i * 300000L;
+            for (String source : SOURCES) {
+                columns.get(source)[i] = i % 100 == 0 ? Double.NaN : random.nextDouble() * 1000000d;
+            }
+        }
+
+        final Map<String, Object> constants = Maps.newHashMap();
+        constants.put("ifSpeed", 100000000d);
+        return new FetchResults(timestamps, columns, 300000L, constants);
+    }
+}
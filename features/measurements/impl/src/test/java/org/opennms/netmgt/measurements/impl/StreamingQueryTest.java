@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.measurements.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.netmgt.measurements.api.DefaultMeasurementsService;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.api.FilterEngine;
+import org.opennms.netmgt.measurements.api.MeasurementFetchStrategy;
+import org.opennms.netmgt.measurements.api.QueryResponseStream;
+import org.opennms.netmgt.measurements.model.Expression;
+import org.opennms.netmgt.measurements.model.QueryRequest;
+import org.opennms.netmgt.measurements.model.QueryResponse;
+import org.opennms.netmgt.measurements.model.Source;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+
+/**
+ * Verifies that streaming a query in chunks yields the same rows
+ * as executing it all at once.
+ */
+public class StreamingQueryTest {
+
+    private static final long STEP = TimeUnit.MINUTES.toMillis(5);
+
+    private final GridFetchStrategy fetchStrategy = new GridFetchStrategy();
+
+    private final DefaultMeasurementsService service = new DefaultMeasurementsService(fetchStrategy,
+            new ColumnarExpressionEngine(), new FilterEngine());
+
+    @Test
+    public void canStreamInChunks() throws Exception {
+        final QueryRequest request = buildRequest(new Expression("bits", "in * 8 + out", false));
+
+        fetchStrategy.numFetches = 0;
+        final QueryResponse expected = service.query(request);
+        assertEquals(1, fetchStrategy.numFetches);
+
+        fetchStrategy.numFetches = 0;
+        final int numChunks = verifySameRows(expected, service.stream(request, 100));
+        assertEquals(fetchStrategy.numFetches, numChunks);
+        assertEquals(3, numChunks);
+    }
+
+    @Test
+    public void canStreamRowDependentExpressionsInOneChunk() throws Exception {
+        final QueryRequest request = buildRequest(new Expression("index", "__i + in", false));
+
+        final QueryResponse expected = service.query(request);
+
+        fetchStrategy.numFetches = 0;
+        assertEquals(1, verifySameRows(expected, service.stream(request, 100)));
+        assertEquals(1, fetchStrategy.numFetches);
+    }
+
+    private static QueryRequest buildRequest(Expression expression) {
+        final QueryRequest request = new QueryRequest();
+        request.setStart(TimeUnit.DAYS.toMillis(100) + 1234);
+        request.setEnd(request.getStart() + TimeUnit.DAYS.toMillis(1));
+        request.setStep(STEP);
+        request.setSources(Lists.newArrayList(
+                new Source("in", "node[1].interfaceSnmp[eth0]", "ifHCInOctets", "ifHCInOctets", false),
+                new Source("out", "node[1].interfaceSnmp[eth0]", "ifHCOutOctets", "ifHCOutOctets", true)));
+        request.setExpressions(Lists.newArrayList(expression));
+        return request;
+    }
+
+    /**
+     * @return the number of chunks in the stream
+     */
+    private static int verifySameRows(QueryResponse expected, QueryResponseStream stream) throws Exception {
+        final List<Long> timestamps = Lists.newArrayList();
+        final Map<String, List<Double>> columns = Maps.newHashMap();
+        int numChunks = 0;
+        QueryResponse chunk;
+        while ((chunk = stream.next()) != null) {
+            numChunks++;
+            assertEquals(expected.getStep(), chunk.getStep());
+            assertEquals(getConstants(expected), getConstants(chunk));
+            timestamps.addAll(Longs.asList(chunk.getTimestamps()));
+            for (Map.Entry<String, double[]> column : chunk.columnsWithLabels().entrySet()) {
+                if (!columns.containsKey(column.getKey())) {
+                    columns.put(column.getKey(), Lists.<Double>newArrayList());
+                }
+                columns.get(column.getKey()).addAll(Doubles.asList(column.getValue()));
+            }
+        }
+        assertNull(stream.next());
+
+        assertArrayEquals(expected.getTimestamps(), Longs.toArray(timestamps));
+        final Map<String, double[]> expectedColumns = expected.columnsWithLabels();
+        assertEquals(expectedColumns.keySet(), columns.keySet());
+        for (String label : expectedColumns.keySet()) {
+            assertArrayEquals(expectedColumns.get(label), Doubles.toArray(columns.get(label)), 0);
+        }
+        return numChunks;
+    }
+
+    private static Map<String, String> getConstants(QueryResponse response) {
+        final Map<String, String> constants = Maps.newHashMap();
+        for (QueryResponse.QueryConstant constant : response.getConstants()) {
+            constants.put(constant.getKey(), constant.getValue());
+        }
+        return constants;
+    }
+
+    /**
+     * Returns one row per step, aligned to the step boundaries.
+     */
+    private static class GridFetchStrategy implements MeasurementFetchStrategy {
+        private int numFetches = 0;
+
+        @Override
+        public FetchResults fetch(long start, long end, long step, int maxrows, Long interval, Long heartbeat,
+                                  List<Source> sources, boolean relaxed) {
+            numFetches++;
+
+            final long first = Math.floorDiv(start, step) * step;
+            final int numRows = (int) ((Math.floorDiv(end, step) * step - first) / step) + 1;
+            final long[] timestamps = new long[numRows];
+            final Map<String, double[]> columns = Maps.newHashMap();
+            final Map<String, Object> constants = Maps.newHashMap();
+            for (int i = 0; i < numRows; i++) {
+                timestamps[i] = first + i * step;
+            }
+            for (Source source : sources) {
+                final double[] values = new double[numRows];
+                for (int i = 0; i < numRows; i++) {
+                    values[i] = (timestamps[i] % 7919) * source.getAttribute().length();
+                }
+                columns.put(source.getLabel(), values);
+                constants.put(source.getLabel() + ".ifSpeed", "1000000000");
+            }
+            return new FetchResults(timestamps, columns, step, constants);
+        }
+    }
+}
@@ -28,8 +28,11 @@
 
 package org.opennms.web.rest.v1;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
@@ -43,12 +46,18 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import org.opennms.netmgt.measurements.api.FilterEngine;
 import org.opennms.netmgt.measurements.api.MeasurementsService;
+import org.opennms.netmgt.measurements.api.QueryResponseStream;
 import org.opennms.netmgt.measurements.api.exceptions.ExpressionException;
 import org.opennms.netmgt.measurements.api.exceptions.FetchException;
 import org.opennms.netmgt.measurements.api.exceptions.FilterException;
@@ -64,7 +73,10 @@ import org.slf4j.helpers.MessageFormatter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
 
 /**
  * The Measurements API provides read-only access to values
@@ -91,12 +103,17 @@ public class MeasurementsRestService {
 
     private static final Logger LOG = LoggerFactory.getLogger(MeasurementsRestService.class);
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     @Autowired
     private MeasurementsService service;
 
     @Autowired
     private FilterEngine filterEngine;
 
+    @Autowired
+    private TransactionOperations transactionOperations;
+
     @GET
     @Path("filters")
     @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, MediaType.APPLICATION_ATOM_XML})
@@ -174,16 +191,8 @@ public class MeasurementsRestService {
         QueryResponse response = null;
         try {
             response = service.query(request);
-        } catch (ExpressionException e) {
-            throw getException(Status.BAD_REQUEST, e, "An error occurred while evaluating an expression: {}", e.getMessage());
-        } catch (FilterException  | ValidationException e) {
-            throw getException(Status.BAD_REQUEST, e, e.getMessage());
-        } catch (ResourceNotFoundException e) {
-            throw getException(Status.NOT_FOUND, e, e.getMessage());
-        } catch (FetchException e) {
-            throw getException(Status.INTERNAL_SERVER_ERROR, e, e.getMessage());
         } catch (Exception e) {
-            throw getException(Status.INTERNAL_SERVER_ERROR, e, "Query failed: {}", e.getMessage());
+            throw toWebApplicationException(e);
         }
 
         // Return a 204 if there are no columns
@@ -194,6 +203,141 @@ public class MeasurementsRestService {
         return response;
     }
 
+    /**
+     * Executes the query in consecutive time ranges and writes the results
+     * as they become available, so that the memory used by the query does not
+     * grow with the length of the time range.
+     *
+     * Since the rows are written in chunks, the response contains a list of
+     * chunks, each of which has its own timestamps and columns. The columns
+     * of every chunk are ordered in the same way as the labels.
+     */
+    @POST
+    @Path("stream")
+    @Consumes({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, MediaType.APPLICATION_ATOM_XML})
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response streamingQuery(final QueryRequest request,
+            @DefaultValue("10000") @QueryParam("chunkSize") final int chunkSize) {
+        Preconditions.checkState(service != null);
+        LOG.debug("Executing streaming query with {}", request);
+
+        // Fetch the first chunk before sending the response, so that errors are reported with the appropriate status
+        final QueryResponseStream stream = transactionOperations.execute(new TransactionCallback<QueryResponseStream>() {
+            @Override
+            public QueryResponseStream doInTransaction(TransactionStatus status) {
+                try {
+                    return service.stream(request, chunkSize);
+                } catch (Exception e) {
+                    throw toWebApplicationException(e);
+                }
+            }
+        });
+        final QueryResponse first = nextChunk(stream);
+
+        // Return a 204 if there are no columns
+        if (first == null || first.getColumns().length == 0) {
+            throw getException(Status.NO_CONTENT, "No content.");
+        }
+
+        final StreamingOutput output = new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                final JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+                generator.writeStartObject();
+                generator.writeNumberField("step", first.getStep());
+                generator.writeNumberField("start", request.getStart());
+                generator.writeNumberField("end", request.getEnd());
+
+                final String[] labels = first.getLabels();
+                generator.writeArrayFieldStart("labels");
+                for (String label : labels) {
+                    generator.writeString(label);
+                }
+                generator.writeEndArray();
+
+                generator.writeArrayFieldStart("constants");
+                for (QueryResponse.QueryConstant constant : first.getConstants()) {
+                    generator.writeStartObject();
+                    generator.writeStringField("key", constant.getKey());
+                    generator.writeStringField("value", constant.getValue());
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+
+                generator.writeArrayFieldStart("chunks");
+                QueryResponse chunk = first;
+                while (chunk != null) {
+                    writeChunk(generator, labels, chunk);
+                    // Don't hold on to the rows that were already written
+                    generator.flush();
+
+                    chunk = nextChunk(stream);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.close();
+            }
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Fetches the next chunk in its own transaction, since the rows
+     * are written after the request method has returned.
+     */
+    private QueryResponse nextChunk(final QueryResponseStream stream) {
+        return transactionOperations.execute(new TransactionCallback<QueryResponse>() {
+            @Override
+            public QueryResponse doInTransaction(TransactionStatus status) {
+                try {
+                    return stream.next();
+                } catch (Exception e) {
+                    throw toWebApplicationException(e);
+                }
+            }
+        });
+    }
+
+    private static void writeChunk(JsonGenerator generator, String[] labels, QueryResponse chunk) throws IOException {
+        final Map<String, double[]> columns = chunk.columnsWithLabels();
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("timestamps");
+        for (long timestamp : chunk.getTimestamps()) {
+            generator.writeNumber(timestamp);
+        }
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("columns");
+        for (String label : labels) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("values");
+            final double[] values = columns.get(label);
+            if (values != null) {
+                for (double value : values) {
+                    generator.writeNumber(value);
+                }
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    private static WebApplicationException toWebApplicationException(Exception e) {
+        if (e instanceof WebApplicationException) {
+            return (WebApplicationException)e;
+        } else if (e instanceof ExpressionException) {
+            return getException(Status.BAD_REQUEST, e, "An error occurred while evaluating an expression: {}", e.getMessage());
+        } else if (e instanceof FilterException || e instanceof ValidationException) {
+            return getException(Status.BAD_REQUEST, e, e.getMessage());
+        } else if (e instanceof ResourceNotFoundException) {
+            return getException(Status.NOT_FOUND, e, e.getMessage());
+        } else if (e instanceof FetchException) {
+            return getException(Status.INTERNAL_SERVER_ERROR, e, e.getMessage());
+        }
+        return getException(Status.INTERNAL_SERVER_ERROR, e, "Query failed: {}", e.getMessage());
+    }
+
     protected static WebApplicationException getException(final Status status, String msg, Object... params) throws WebApplicationException {
         if (params != null) msg = MessageFormatter.arrayFormat(msg, params).getMessage();
         LOG.error(msg);
@@ -35,11 +35,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.opennms.netmgt.dao.api.ResourceDao;
@@ -66,19 +68,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Used to retrieve measurements from {@link org.opennms.newts.api.SampleRepository}.
  *
  * If a request to {@link #fetch} spans multiple resources, separate calls to
- * the {@link SampleRepository} will be performed in parallel.
+ * the {@link SampleRepository} will be performed in parallel, using a thread pool
+ * of fixed size which is shared by all requests. All of the sources that map
+ * to the same Newts resource are retrieved with a single select.
+ *
+ * The number of selects that are performed concurrently is limited both per request,
+ * so that a single large request cannot monopolize the pool, and globally, in order
+ * to limit the load on Cassandra.
  *
  * Reading the samples and computing the aggregated values can be very CPU intensive.
  * The "parallelism" attribute is used to set an upper limit on how may concurrent threads
@@ -86,6 +99,9 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * cores, but can be reduced if the operator wishes to ensure cores are available
  * for other purposes.
  *
+ * Resolved resources are cached for a short period of time, since graphs
+ * are typically refreshed with the same set of resources.
+ *
  * @author jwhite
  */
 public class NewtsFetchStrategy implements MeasurementFetchStrategy {
@@ -100,6 +116,32 @@ public class NewtsFetchStrategy implements MeasurementFetchStrategy {
 
     public static final int PARALLELISM = Integer.getInteger("org.opennms.newts.query.parallelism", Runtime.getRuntime().availableProcessors());
 
+    public static final int POOL_SIZE = Integer.getInteger("org.opennms.newts.query.pool_size", 4 * Runtime.getRuntime().availableProcessors());
+
+    public static final int MAX_CONCURRENT_SELECTS = Integer.getInteger("org.opennms.newts.query.max_concurrent_selects", 2 * Runtime.getRuntime().availableProcessors());
+
+    public static final int MAX_CONCURRENT_SELECTS_PER_REQUEST = Integer.getInteger("org.opennms.newts.query.max_concurrent_selects_per_request", 8);
+
+    public static final long RESOURCE_CACHE_MAX_ENTRIES = Long.getLong("org.opennms.newts.query.resource_cache.max_entries", 10000L);
+
+    public static final long RESOURCE_CACHE_EXPIRATION_MS = Long.getLong("org.opennms.newts.query.resource_cache.expiration", 60L * 1000L);
+
+    private static final ThreadFactory NAMED_THREAD_FACTORY = new ThreadFactoryBuilder()
+            .setNameFormat("NewtsFetchStrateg-%d")
+            .setDaemon(true)
+            .build();
+
+    // Shared by all of the requests, idle threads are allowed to terminate
+    private static final ThreadPoolExecutor THREAD_POOL = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), NAMED_THREAD_FACTORY);
+
+    static {
+        THREAD_POOL.allowCoreThreadTimeOut(true);
+    }
+
+    // Used to limit the number of selects that are performed in parallel, across all requests
+    private static final Semaphore AVAILABLE_SELECTS = new Semaphore(MAX_CONCURRENT_SELECTS);
+
     @Autowired
     private Context m_context;
 
@@ -109,13 +151,29 @@ public class NewtsFetchStrategy implements MeasurementFetchStrategy {
     @Autowired
     private SampleRepository m_sampleRepository;
 
-    private final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("NewtsFetchStrateg-%d").build();
-
-    private final ExecutorService threadPool = Executors.newCachedThreadPool(namedThreadFactory);
-
     // Used to limit the number of threads that are performing aggregation calculations in parallel
     private final Semaphore availableAggregationThreads = new Semaphore(PARALLELISM);
 
+    private final Cache<ResourceId, OnmsResource> m_resourceCache = CacheBuilder.newBuilder()
+            .maximumSize(RESOURCE_CACHE_EXPIRATION_MS > 0 ? RESOURCE_CACHE_MAX_ENTRIES : 0)
+            .expireAfterWrite(Math.max(0, RESOURCE_CACHE_EXPIRATION_MS), TimeUnit.MILLISECONDS)
+            .build();
+
+    private Timer m_resolveTimer;
+    private Timer m_selectTimer;
+    private Timer m_aggregationTimer;
+
+    public NewtsFetchStrategy() {
+        setMetricRegistry(new MetricRegistry());
+    }
+
+    @Autowired(required = false)
+    public void setMetricRegistry(MetricRegistry registry) {
+        m_resolveTimer = registry.timer(MetricRegistry.name("fetch", "resolve"));
+        m_selectTimer = registry.timer(MetricRegistry.name("fetch", "select"));
+        m_aggregationTimer = registry.timer(MetricRegistry.name("fetch", "aggregation"));
+    }
+
     @Override
     public FetchResults fetch(long start, long end, long step, int maxrows, Long interval, Long heartbeat, List<Source> sources, boolean relaxed) {
         final LateAggregationParams lag = getLagParams(step, interval, heartbeat);
@@ -128,10 +186,18 @@ public class NewtsFetchStrategy implements MeasurementFetchStrategy {
         Map<ResourceId, List<Source>> sourcesByResourceId = sources.stream()
                 .collect(Collectors.groupingBy((source) -> ResourceId.fromString(source.getResourceId())));
 
-        // Lookup the OnmsResources in parallel
+        // Limits the number of tasks this request can have running at once
+        final Semaphore availableRequestThreads = new Semaphore(MAX_CONCURRENT_SELECTS_PER_REQUEST);
+
+        // Lookup the OnmsResources that aren't already cached in parallel
         Map<ResourceId, Future<OnmsResource>> resourceFuturesById = Maps.newHashMapWithExpectedSize(sourcesByResourceId.size());
         for (ResourceId resourceId : sourcesByResourceId.keySet()) {
-            resourceFuturesById.put(resourceId, threadPool.submit(getResourceByIdCallable(resourceId)));
+            final OnmsResource resource = m_resourceCache.getIfPresent(resourceId);
+            if (resource != null) {
+                resourceFuturesById.put(resourceId, Futures.immediateFuture(resource));
+            } else {
+                resourceFuturesById.put(resourceId, submit(availableRequestThreads, getResourceByIdCallable(resourceId)));
+            }
         }
 
         // Gather the results, fail if any of the resources were not found
@@ -195,7 +261,7 @@ public class NewtsFetchStrategy implements MeasurementFetchStrategy {
         // so we perform multiple queries in parallel, and aggregate the results.
         Map<String, Future<Collection<Row<Measurement>>>> measurementsByNewtsResourceId = Maps.newHashMapWithExpectedSize(sourcesByNewtsResourceId.size());
         for (Entry<String, List<Source>> entry : sourcesByNewtsResourceId.entrySet()) {
-            measurementsByNewtsResourceId.put(entry.getKey(), threadPool.submit(
+            measurementsByNewtsResourceId.put(entry.getKey(), submit(availableRequestThreads,
                     getMeasurementsForResourceCallable(entry.getKey(), entry.getValue(), startTs, endTs, lag)));
         }
 
@@ -243,37 +309,85 @@ public class NewtsFetchStrategy implements MeasurementFetchStrategy {
         return fetchResults;
     }
 
+    /**
+     * Submits the given task to the shared thread pool, blocking while
+     * the request already has as many tasks running as it is allowed to.
+     */
+    private static <T> Future<T> submit(final Semaphore availableRequestThreads, final Callable<T> callable) {
+        try {
+            availableRequestThreads.acquire();
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+        try {
+            return THREAD_POOL.submit(() -> {
+                try {
+                    return callable.call();
+                } finally {
+                    availableRequestThreads.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            availableRequestThreads.release();
+            throw e;
+        }
+    }
+
     private Callable<OnmsResource> getResourceByIdCallable(final ResourceId resourceId) {
         return new Callable<OnmsResource>() {
             @Override
             public OnmsResource call() throws IllegalArgumentException {
-                final OnmsResource resource = m_resourceDao.getResourceById(resourceId);
-                if (resource != null) {
-                    // The attributes are typically lazy loaded, so we trigger the load here
-                    // while we're in a threaded context
-                    resource.getAttributes();
+                try (Timer.Context ctx = m_resolveTimer.time()) {
+                    final OnmsResource resource = m_resourceDao.getResourceById(resourceId);
+                    if (resource != null) {
+                        // The attributes are typically lazy loaded, so we trigger the load here
+                        // while we're in a threaded context
+                        resource.getAttributes();
+                        m_resourceCache.put(resourceId, resource);
+                    }
+                    return resource;
                 }
-                return resource;
             }
         };
     }
 
-    private SampleSelectCallback limitConcurrentAggregationsCallback = new SampleSelectCallback() {
+    /**
+     * Limits the number of concurrent aggregations and times the different
+     * phases of a single select.
+     */
+    private class TimedSelectCallback implements SampleSelectCallback {
+        private final Timer.Context selectContext = m_selectTimer.time();
+        private Timer.Context aggregationContext;
+        private boolean selected = false;
 
         @Override
         public void beforeProcess() {
+            // The samples have been read, and are about to be aggregated
+            selected();
             try {
                 availableAggregationThreads.acquire();
             } catch (InterruptedException e) {
                 throw Throwables.propagate(e);
             }
+            aggregationContext = m_aggregationTimer.time();
         }
 
         @Override
         public void afterProcess() {
+            if (aggregationContext != null) {
+                aggregationContext.stop();
+                aggregationContext = null;
+            }
             availableAggregationThreads.release();
         }
-    };
+
+        private void selected() {
+            if (!selected) {
+                selectContext.stop();
+                selected = true;
+            }
+        }
+    }
 
     private Callable<Collection<Row<Measurement>>> getMeasurementsForResourceCallable(final String newtsResourceId, final List<Source> listOfSources, final Optional<Timestamp> start, final Optional<Timestamp> end, final LateAggregationParams lag) {
         return new Callable<Collection<Row<Measurement>>>() {
@@ -290,8 +404,16 @@ public class NewtsFetchStrategy implements MeasurementFetchStrategy {
                 }
 
                 LOG.debug("Querying Newts for resource id {} with result descriptor: {}", newtsResourceId, resultDescriptor);
-                Results<Measurement> results = m_sampleRepository.select(m_context, new Resource(newtsResourceId), start, end,
-                        resultDescriptor, Optional.of(Duration.millis(lag.getStep())), limitConcurrentAggregationsCallback);
+                final Results<Measurement> results;
+                AVAILABLE_SELECTS.acquire();
+                try {
+                    final TimedSelectCallback callback = new TimedSelectCallback();
+                    results = m_sampleRepository.select(m_context, new Resource(newtsResourceId), start, end,
+                            resultDescriptor, Optional.of(Duration.millis(lag.getStep())), callback);
+                    callback.selected();
+                } finally {
+                    AVAILABLE_SELECTS.release();
+                }
                 Collection<Row<Measurement>> rows = results.getRows();
                 LOG.debug("Found {} rows.", rows.size());
                 return rows;
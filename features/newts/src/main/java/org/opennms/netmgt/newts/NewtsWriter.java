@@ -31,7 +31,10 @@ package org.opennms.netmgt.newts;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -50,8 +53,10 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -70,12 +75,33 @@ import com.swrve.ratelimitedlogger.RateLimitedLog;
  * Calls to {@link #insert()} publish the samples to a ring buffer so
  * that they don't block while the data is being persisted.
  *
+ * The consumers move the samples from the ring buffer to a shared buffer, where
+ * they are grouped by Cassandra partition, and insert them once enough samples
+ * have accumulated or once the ring buffer is empty. This coalesces the many small
+ * batches handed over by the collectors into fewer, larger inserts.
+ *
+ * The number of samples per insert adapts to the measured insert latency: it is
+ * halved whenever an insert takes longer than the target latency, and grows back
+ * slowly, up to max_batch_size, while inserts are fast enough.
+ *
  * @author jwhite
  */
 public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(NewtsWriter.class);
 
+    /**
+     * Inserts that take longer than this are considered to be too large.
+     */
+    public static final long TARGET_INSERT_LATENCY_MS = Long.getLong("org.opennms.newts.config.target_insert_latency", 100L);
+
+    /**
+     * Interval at which samples left in the buffer are inserted when the ring buffer is idle.
+     */
+    public static final long FLUSH_INTERVAL_MS = Long.getLong("org.opennms.newts.config.flush_interval", 500L);
+
+    private static final long RESOURCE_SHARD_MS = Long.getLong("org.opennms.newts.config.resource_shard", 604800L) * 1000L;
+
     private static final RateLimitedLog RATE_LIMITED_LOGGER = RateLimitedLog
             .withRateLimit(LOG)
             .maxRate(5).every(Duration.standardSeconds(30))
@@ -99,6 +125,21 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
 
     private final Meter m_droppedSamples;
 
+    private final Histogram m_ringBufferOccupancy;
+
+    private final Histogram m_batchSizes;
+
+    private final Timer m_insertTimer;
+
+    private final PartitionedSampleBuffer m_pendingSamples = new PartitionedSampleBuffer(RESOURCE_SHARD_MS);
+
+    /**
+     * Current number of samples to insert at once, adjusted based on the insert latency.
+     */
+    private final AtomicInteger m_targetBatchSize;
+
+    private ScheduledExecutorService m_flushExecutor;
+
     /**
      * The {@link RingBuffer} doesn't appear to expose any methods that indicate the number
      * of elements that are currently "queued", so we keep track of them with this atomic counter.
@@ -135,6 +176,18 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
                 });
 
         m_droppedSamples = registry.meter(MetricRegistry.name("ring-buffer", "dropped-samples"));
+        m_ringBufferOccupancy = registry.histogram(MetricRegistry.name("ring-buffer", "occupancy"));
+
+        m_targetBatchSize = new AtomicInteger(maxBatchSize);
+        m_batchSizes = registry.histogram(MetricRegistry.name("insert", "batch-size"));
+        m_insertTimer = registry.timer(MetricRegistry.name("insert", "latency"));
+        registry.register(MetricRegistry.name("insert", "target-batch-size"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return m_targetBatchSize.get();
+                    }
+                });
 
         LOG.debug("Using max_batch_size: {} and ring_buffer_size: {}", maxBatchSize, m_ringBufferSize);
         setUpWorkerPool();
@@ -161,6 +214,15 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
         m_ringBuffer.addGatingSequences(m_workerPool.getWorkerSequences());
 
         m_workerPool.start(executor);
+
+        // Inserts the samples left behind in the buffer if the consumers go idle
+        m_flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("NewtsWriter-Flush-%d").setDaemon(true).build());
+        m_flushExecutor.scheduleWithFixedDelay(() -> {
+            if (m_numEntriesOnRingBuffer.get() <= 0) {
+                flush(true);
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -168,6 +230,12 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
         if (m_workerPool != null) {
             m_workerPool.drainAndHalt();
         }
+        if (m_flushExecutor != null) {
+            m_flushExecutor.shutdown();
+            m_flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        // Insert any remaining samples
+        flush(true);
     }
 
     public void insert(List<Sample> samples) {
@@ -179,8 +247,13 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
     }
 
     private void pushToRingBuffer(List<Sample> samples, EventTranslatorOneArg<SampleBatchEvent, List<Sample>> translator) {
+        // Increase our entry counter before publishing, so that consumers never see it drop to zero
+        // while there are still entries on the ring buffer
+        m_numEntriesOnRingBuffer.incrementAndGet();
+
         // Add the samples to the ring buffer
         if (!m_ringBuffer.tryPublishEvent(translator, samples)) {
+            m_numEntriesOnRingBuffer.decrementAndGet();
             RATE_LIMITED_LOGGER.error("The ring buffer is full. {} samples associated with resource ids {} will be dropped.",
                     samples.size(), new Object() {
                         @Override
@@ -194,10 +267,7 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
                         }
                     });
             m_droppedSamples.mark(samples.size());
-            return;
         }
-        // Increase our entry counter
-        m_numEntriesOnRingBuffer.incrementAndGet();
     }
 
     @Override
@@ -206,30 +276,85 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
         Logging.putPrefix("collectd");
 
         List<Sample> samples = event.getSamples();
-        // Decrement our entry counter
-        m_numEntriesOnRingBuffer.decrementAndGet();
+        m_ringBufferOccupancy.update(m_numEntriesOnRingBuffer.get());
 
-        // Partition the samples into collections smaller then max_batch_size
-        for (List<Sample> batch : Lists.partition(samples, m_maxBatchSize)) {
-            try {
-                if (event.isIndexOnly() && !NewtsUtils.DISABLE_INDEXING) {
+        if (event.isIndexOnly() && !NewtsUtils.DISABLE_INDEXING) {
+            // Decrement our entry counter, and insert what's left if this was the last entry
+            if (m_numEntriesOnRingBuffer.decrementAndGet() <= 0) {
+                flush(true);
+            }
+
+            // Partition the samples into collections smaller then max_batch_size
+            for (List<Sample> batch : Lists.partition(samples, m_maxBatchSize)) {
+                try {
                     LOG.debug("Indexing {} samples", batch.size());
                     m_indexer.update(batch);
-                } else {
-                    LOG.debug("Inserting {} samples", batch.size());
-                    m_sampleRepository.insert(batch);
+                } catch (Throwable t) {
+                    RATE_LIMITED_LOGGER.error("An error occurred while indexing samples.", t);
                 }
+            }
+            return;
+        }
 
-                if (LOG.isDebugEnabled()) {
-                    String uniqueResourceIds = batch.stream()
-                        .map(s -> s.getResource().getId())
-                        .distinct()
-                        .collect(Collectors.joining(", "));
-                    LOG.debug("Successfully inserted samples for resources with ids {}", uniqueResourceIds);
-                }
-            } catch (Throwable t) {
-                RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", t);
+        // Add the samples to the buffer before decrementing the counter, so that the
+        // consumer that empties the ring buffer also sees these
+        m_pendingSamples.addAll(samples);
+        final boolean ringBufferEmpty = m_numEntriesOnRingBuffer.decrementAndGet() <= 0;
+        flush(ringBufferEmpty);
+    }
+
+    /**
+     * Inserts the buffered samples in batches of the target size.
+     *
+     * @param all when false, a partial batch is left in the buffer
+     * so that it can be combined with samples from subsequent events
+     */
+    private void flush(boolean all) {
+        while (true) {
+            final int targetBatchSize = m_targetBatchSize.get();
+            if (m_pendingSamples.size() < (all ? 1 : targetBatchSize)) {
+                return;
+            }
+            final List<Sample> batch = m_pendingSamples.drain(targetBatchSize);
+            if (batch.isEmpty()) {
+                return;
+            }
+            insertBatch(batch, targetBatchSize);
+        }
+    }
+
+    private void insertBatch(List<Sample> batch, int targetBatchSize) {
+        try {
+            LOG.debug("Inserting {} samples", batch.size());
+            final long elapsedNanos;
+            final Timer.Context ctx = m_insertTimer.time();
+            try {
+                m_sampleRepository.insert(batch);
+            } finally {
+                elapsedNanos = ctx.stop();
+            }
+            m_batchSizes.update(batch.size());
+            adjustTargetBatchSize(batch.size(), targetBatchSize, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+
+            if (LOG.isDebugEnabled()) {
+                String uniqueResourceIds = batch.stream()
+                    .map(s -> s.getResource().getId())
+                    .distinct()
+                    .collect(Collectors.joining(", "));
+                LOG.debug("Successfully inserted samples for resources with ids {}", uniqueResourceIds);
             }
+        } catch (Throwable t) {
+            RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", t);
+        }
+    }
+
+    private void adjustTargetBatchSize(int batchSize, int targetBatchSize, long latencyMs) {
+        if (latencyMs > TARGET_INSERT_LATENCY_MS) {
+            // Back off quickly
+            m_targetBatchSize.compareAndSet(targetBatchSize, Math.max(1, targetBatchSize / 2));
+        } else if (batchSize >= targetBatchSize && targetBatchSize < m_maxBatchSize) {
+            // Grow slowly, only when the batch was full
+            m_targetBatchSize.compareAndSet(targetBatchSize, Math.min(m_maxBatchSize, targetBatchSize + Math.max(1, m_maxBatchSize / 16)));
         }
     }
 
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.opennms.newts.api.Sample;
+
+/**
+ * Accumulates samples from multiple batches and groups them by the
+ * Cassandra partition they will be stored in, so that the samples
+ * of a partition end up in the same insert.
+ *
+ * Samples are stored in partitions keyed by context, resource and
+ * time shard, which matches the partition key of the samples table.
+ */
+public class PartitionedSampleBuffer {
+
+    private final long m_resourceShardMs;
+
+    private final Map<PartitionKey, List<Sample>> m_partitions = new LinkedHashMap<>();
+
+    private int m_size = 0;
+
+    public PartitionedSampleBuffer(long resourceShardMs) {
+        m_resourceShardMs = resourceShardMs;
+    }
+
+    public synchronized void addAll(List<Sample> samples) {
+        for (Sample sample : samples) {
+            final PartitionKey key = new PartitionKey(sample, m_resourceShardMs);
+            List<Sample> partition = m_partitions.get(key);
+            if (partition == null) {
+                partition = new ArrayList<>();
+                m_partitions.put(key, partition);
+            }
+            partition.add(sample);
+        }
+        m_size += samples.size();
+    }
+
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * Removes up to maxSamples samples from the buffer, in the order in which
+     * their partitions were first added.
+     *
+     * Partitions are only split when they are larger than maxSamples by themselves.
+     *
+     * @return the removed samples, or an empty list if the buffer is empty
+     */
+    public synchronized List<Sample> drain(int maxSamples) {
+        final List<Sample> batch = new ArrayList<>(Math.min(m_size, maxSamples));
+        final Iterator<List<Sample>> it = m_partitions.values().iterator();
+        while (it.hasNext() && batch.size() < maxSamples) {
+            final List<Sample> partition = it.next();
+            final int remaining = maxSamples - batch.size();
+            if (partition.size() <= remaining) {
+                batch.addAll(partition);
+                it.remove();
+            } else if (batch.isEmpty()) {
+                final List<Sample> head = partition.subList(0, remaining);
+                batch.addAll(head);
+                head.clear();
+            } else {
+                // Leave the partition for the next batch
+                break;
+            }
+        }
+        m_size -= batch.size();
+        return batch;
+    }
+
+    private static class PartitionKey {
+        private final String m_context;
+        private final String m_resourceId;
+        private final long m_shard;
+
+        private PartitionKey(Sample sample, long resourceShardMs) {
+            m_context = sample.getContext().getId();
+            m_resourceId = sample.getResource().getId();
+            m_shard = sample.getTimestamp().asMillis() / resourceShardMs;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PartitionKey)) {
+                return false;
+            }
+            final PartitionKey other = (PartitionKey) obj;
+            return m_shard == other.m_shard
+                    && Objects.equals(m_resourceId, other.m_resourceId)
+                    && Objects.equals(m_context, other.m_context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_context, m_resourceId, m_shard);
+        }
+    }
+}
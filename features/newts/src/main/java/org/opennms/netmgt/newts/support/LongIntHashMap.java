@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts.support;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from primitive longs to primitive ints.
+ *
+ * Used in place of a {@link java.util.Map} where the number of entries is
+ * large enough for the boxed keys and map entries to matter. Keys must be
+ * non-negative. This class is not thread-safe.
+ */
+final class LongIntHashMap {
+
+    private static final long EMPTY = -1L;
+
+    private long[] m_keys;
+    private int[] m_values;
+    private int m_mask;
+    private int m_resizeAt;
+    private int m_size;
+
+    LongIntHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int get(long key, int missingValue) {
+        int i = slot(key);
+        while (m_keys[i] != EMPTY) {
+            if (m_keys[i] == key) {
+                return m_values[i];
+            }
+            i = (i + 1) & m_mask;
+        }
+        return missingValue;
+    }
+
+    public void put(long key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Keys must be non-negative: " + key);
+        }
+        int i = slot(key);
+        while (m_keys[i] != EMPTY) {
+            if (m_keys[i] == key) {
+                m_values[i] = value;
+                return;
+            }
+            i = (i + 1) & m_mask;
+        }
+        m_keys[i] = key;
+        m_values[i] = value;
+        if (++m_size >= m_resizeAt) {
+            rehash(m_keys.length * 2);
+        }
+    }
+
+    public int remove(long key, int missingValue) {
+        int i = slot(key);
+        while (m_keys[i] != key) {
+            if (m_keys[i] == EMPTY) {
+                return missingValue;
+            }
+            i = (i + 1) & m_mask;
+        }
+        final int value = m_values[i];
+
+        // Shift the entries that follow back into the freed slot, so that lookups never need tombstones
+        int j = i;
+        while (true) {
+            j = (j + 1) & m_mask;
+            if (m_keys[j] == EMPTY) {
+                break;
+            }
+            final int k = slot(m_keys[j]);
+            if ((j > i && (k <= i || k > j)) || (j < i && k <= i && k > j)) {
+                m_keys[i] = m_keys[j];
+                m_values[i] = m_values[j];
+                i = j;
+            }
+        }
+        m_keys[i] = EMPTY;
+        m_size--;
+        return value;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public long getSizeInBytes() {
+        return (long)m_keys.length * (Long.BYTES + Integer.BYTES);
+    }
+
+    private int slot(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & m_mask;
+    }
+
+    private void allocate(int capacity) {
+        m_keys = new long[capacity];
+        m_values = new int[capacity];
+        Arrays.fill(m_keys, EMPTY);
+        m_mask = capacity - 1;
+        m_resizeAt = capacity / 4 * 3;
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = m_keys;
+        final int[] values = m_values;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                int j = slot(keys[i]);
+                while (m_keys[j] != EMPTY) {
+                    j = (j + 1) & m_mask;
+                }
+                m_keys[j] = keys[i];
+                m_values[j] = values[i];
+            }
+        }
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        final int minCapacity = Math.max(4, (int)Math.min((1L << 30), (long)expectedSize * 4 / 3 + 1));
+        return Integer.highestOneBit(minCapacity - 1) << 1;
+    }
+}
@@ -0,0 +1,464 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts.support;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.nustaq.serialization.FSTConfiguration;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.cassandra.search.ResourceIdSplitter;
+import org.opennms.newts.cassandra.search.ResourceMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * An in-memory caching strategy that keeps the {@link org.opennms.newts.cassandra.search.ResourceMetadata}
+ * outside of the heap.
+ *
+ * The {@link GuavaSearchableResourceMetadataCache} keeps several objects on the heap for every
+ * cached resource, which makes it the largest heap consumer on systems with many resources.
+ * Here, the metadata is serialized and stored in direct buffers, while the resource ids are
+ * interned by a {@link ResourceIdTrie} which also serves as the prefix index.
+ *
+ * Entries are spread across a number of segments, each with its own lock, LRU ordering and
+ * buffer. The maximum number of entries is divided evenly amongst the segments, and each
+ * segment evicts its least recently used entries independently.
+ *
+ * Like the {@link RedisResourceMetadataCache}, FST is used for serialization and calls to
+ * {@link #get(Context, Resource)} return a copy of the cached metadata.
+ */
+public class OffHeapSearchableResourceMetadataCache implements SearchableResourceMetadataCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapSearchableResourceMetadataCache.class);
+
+    private static final FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private static final long[] NO_KEYS = new long[0];
+
+    private final ResourceIdTrie m_resourceIds;
+
+    private final Segment[] m_segments;
+
+    private final long m_maxSize;
+
+    @Inject
+    public OffHeapSearchableResourceMetadataCache(@Named("search.resourceMetadata.maxCacheEntries") long maxSize, @Named("search.resourceMetadata.cacheSegments") Integer numSegments, MetricRegistry registry, ResourceIdSplitter resourceIdSplitter) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+        Preconditions.checkNotNull(numSegments, "numSegments argument");
+        Preconditions.checkArgument(numSegments > 0, "numSegments must be positive");
+        Preconditions.checkNotNull(registry, "registry argument");
+
+        m_maxSize = maxSize;
+        m_resourceIds = new ResourceIdTrie(resourceIdSplitter);
+
+        // Round the number of segments up to the next power of two
+        int segmentCount = 1;
+        while (segmentCount < Math.min(numSegments, MAX_SEGMENTS)) {
+            segmentCount <<= 1;
+        }
+        final int maxEntriesPerSegment = (int)Math.min(Integer.MAX_VALUE - 1, (maxSize + segmentCount - 1) / segmentCount);
+        LOG.info("Initializing off-heap resource metadata cache ({} max entries, {} segments)", maxSize, segmentCount);
+        m_segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            m_segments[i] = new Segment(maxEntriesPerSegment);
+        }
+
+        registry.register(MetricRegistry.name("cache", "size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return size();
+                    }
+                });
+        registry.register(MetricRegistry.name("cache", "max-size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return m_maxSize;
+                    }
+                });
+        registry.register(MetricRegistry.name("cache", "offheap-bytes"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return getOffHeapSizeInBytes();
+                    }
+                });
+        registry.register(MetricRegistry.name("cache", "size-bytes"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return getSizeInBytes();
+                    }
+                });
+    }
+
+    @Override
+    public Optional<ResourceMetadata> get(Context context, Resource resource) {
+        final long key = m_resourceIds.find(context.getId(), resource.getId());
+        if (key == ResourceIdTrie.NOT_FOUND) {
+            return Optional.absent();
+        }
+        final byte[] bytes = segmentFor(key).get(key);
+        return (bytes != null) ? Optional.of((ResourceMetadata)conf.asObject(bytes)) : Optional.absent();
+    }
+
+    @Override
+    public void merge(Context context, Resource resource, ResourceMetadata metadata) {
+        // Update the existing entry in place when there is one
+        long key = m_resourceIds.find(context.getId(), resource.getId());
+        if (key != ResourceIdTrie.NOT_FOUND) {
+            final Segment segment = segmentFor(key);
+            synchronized (segment) {
+                if (mergeExisting(segment, key, metadata)) {
+                    return;
+                }
+            }
+        }
+
+        // Otherwise intern the resource id and add a new entry, the reference we
+        // acquire is held by the entry until it is evicted or deleted
+        key = m_resourceIds.acquire(context.getId(), resource.getId());
+        final Segment segment = segmentFor(key);
+        final boolean added;
+        final long[] evictedKeys;
+        synchronized (segment) {
+            added = !mergeExisting(segment, key, metadata);
+            if (added) {
+                final ResourceMetadata newMetadata = new ResourceMetadata();
+                newMetadata.merge(metadata);
+                segment.put(key, conf.asByteArray(newMetadata));
+            }
+            evictedKeys = segment.evict();
+        }
+
+        if (!added) {
+            // Another thread added the entry before we did
+            m_resourceIds.release(key);
+        }
+        for (long evictedKey : evictedKeys) {
+            m_resourceIds.release(evictedKey);
+        }
+    }
+
+    @Override
+    public void delete(final Context context, final Resource resource) {
+        final long key = m_resourceIds.find(context.getId(), resource.getId());
+        if (key != ResourceIdTrie.NOT_FOUND && segmentFor(key).remove(key)) {
+            m_resourceIds.release(key);
+        }
+    }
+
+    @Override
+    public List<String> getResourceIdsWithPrefix(Context context, String resourceIdPrefix) {
+        return m_resourceIds.getResourceIdsWithPrefix(context.getId(), resourceIdPrefix);
+    }
+
+    /**
+     * Returns the number of cached entries.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : m_segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes allocated outside of the heap for storing the metadata.
+     */
+    public long getOffHeapSizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : m_segments) {
+            bytes += segment.getOffHeapSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns an estimate of the total footprint of the cache in bytes, including the
+     * off-heap buffers, the segment indexes and the interned resource ids.
+     */
+    public long getSizeInBytes() {
+        long bytes = m_resourceIds.getSizeInBytes();
+        for (Segment segment : m_segments) {
+            bytes += segment.getOffHeapSizeInBytes() + segment.getIndexSizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Merges the given metadata into the existing entry, if any. Must be called
+     * while holding the segment's monitor.
+     *
+     * @return <code>true</code> if the entry exists
+     */
+    private static boolean mergeExisting(Segment segment, long key, ResourceMetadata metadata) {
+        final byte[] bytes = segment.get(key);
+        if (bytes == null) {
+            return false;
+        }
+        final ResourceMetadata existingMetadata = (ResourceMetadata)conf.asObject(bytes);
+        if (existingMetadata.merge(metadata)) {
+            // Only rewrite the entry if it was changed as a result of the merge
+            segment.put(key, conf.asByteArray(existingMetadata));
+        }
+        return true;
+    }
+
+    private Segment segmentFor(long key) {
+        // Node ids are allocated in sequence along each path, so mix the bits before
+        // picking a segment or the ids at a given depth could all land in the same few
+        int h = (int)(key ^ (key >>> 32)) * 0x9E3779B9;
+        h ^= h >>> 16;
+        return m_segments[h & (m_segments.length - 1)];
+    }
+
+    /**
+     * A bounded LRU map from keys to byte arrays, stored in a direct buffer.
+     *
+     * Entries are appended to the buffer, and the space used by replaced or removed
+     * entries is reclaimed when the buffer fills up, by copying the live entries into
+     * a new buffer sized according to the amount of live data.
+     */
+    private static class Segment {
+        private static final int NONE = -1;
+        private static final int MIN_BUFFER_SIZE = 64 * 1024;
+        private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+        private static final int INITIAL_SLOTS = 16;
+
+        private final int m_maxEntries;
+        private final LongIntHashMap m_slotsByKey = new LongIntHashMap(INITIAL_SLOTS);
+
+        private long[] m_keys = new long[INITIAL_SLOTS];
+        private int[] m_offsets = new int[INITIAL_SLOTS];
+        private int[] m_lengths = new int[INITIAL_SLOTS];
+        private int[] m_prev = new int[INITIAL_SLOTS];
+        private int[] m_next = new int[INITIAL_SLOTS];
+        private int m_numSlots = 0;
+        private int m_freeSlot = NONE;
+        // Most recently used entry
+        private int m_head = NONE;
+        // Least recently used entry
+        private int m_tail = NONE;
+        private int m_size = 0;
+
+        private ByteBuffer m_buffer;
+        private int m_writePosition = 0;
+        private long m_liveBytes = 0;
+
+        private Segment(int maxEntries) {
+            m_maxEntries = maxEntries;
+        }
+
+        public synchronized byte[] get(long key) {
+            final int slot = m_slotsByKey.get(key, NONE);
+            if (slot == NONE) {
+                return null;
+            }
+            moveToHead(slot);
+
+            final byte[] bytes = new byte[m_lengths[slot]];
+            final ByteBuffer source = m_buffer.duplicate();
+            source.position(m_offsets[slot]);
+            source.get(bytes);
+            return bytes;
+        }
+
+        public synchronized void put(long key, byte[] bytes) {
+            int slot = m_slotsByKey.get(key, NONE);
+            if (slot == NONE) {
+                slot = allocateSlot();
+                m_keys[slot] = key;
+                m_slotsByKey.put(key, slot);
+                linkAtHead(slot);
+                m_size++;
+            } else {
+                // Mark the previous value as garbage before we possibly compact the buffer
+                m_liveBytes -= m_lengths[slot];
+                m_lengths[slot] = 0;
+                moveToHead(slot);
+            }
+
+            if (m_buffer == null || m_writePosition + bytes.length > m_buffer.capacity()) {
+                compact(bytes.length);
+            }
+            final ByteBuffer target = m_buffer.duplicate();
+            target.position(m_writePosition);
+            target.put(bytes);
+            m_offsets[slot] = m_writePosition;
+            m_lengths[slot] = bytes.length;
+            m_writePosition += bytes.length;
+            m_liveBytes += bytes.length;
+        }
+
+        public synchronized boolean remove(long key) {
+            final int slot = m_slotsByKey.remove(key, NONE);
+            if (slot == NONE) {
+                return false;
+            }
+            removeSlot(slot);
+            return true;
+        }
+
+        /**
+         * Removes the least recently used entries until the segment is within its bounds.
+         *
+         * @return the keys of the removed entries
+         */
+        public synchronized long[] evict() {
+            if (m_size <= m_maxEntries) {
+                return NO_KEYS;
+            }
+            final long[] evictedKeys = new long[m_size - m_maxEntries];
+            for (int i = 0; i < evictedKeys.length; i++) {
+                final int slot = m_tail;
+                evictedKeys[i] = m_keys[slot];
+                m_slotsByKey.remove(m_keys[slot], NONE);
+                removeSlot(slot);
+            }
+            return evictedKeys;
+        }
+
+        public synchronized int size() {
+            return m_size;
+        }
+
+        public synchronized long getOffHeapSizeInBytes() {
+            return m_buffer != null ? m_buffer.capacity() : 0;
+        }
+
+        public synchronized long getIndexSizeInBytes() {
+            return (long)m_keys.length * (Long.BYTES + 4 * Integer.BYTES) + m_slotsByKey.getSizeInBytes();
+        }
+
+        private void removeSlot(int slot) {
+            unlink(slot);
+            m_liveBytes -= m_lengths[slot];
+            m_lengths[slot] = 0;
+            m_next[slot] = m_freeSlot;
+            m_freeSlot = slot;
+            m_size--;
+        }
+
+        private int allocateSlot() {
+            if (m_freeSlot != NONE) {
+                final int slot = m_freeSlot;
+                m_freeSlot = m_next[slot];
+                return slot;
+            }
+            if (m_numSlots == m_keys.length) {
+                final int capacity = m_keys.length * 2;
+                m_keys = Arrays.copyOf(m_keys, capacity);
+                m_offsets = Arrays.copyOf(m_offsets, capacity);
+                m_lengths = Arrays.copyOf(m_lengths, capacity);
+                m_prev = Arrays.copyOf(m_prev, capacity);
+                m_next = Arrays.copyOf(m_next, capacity);
+            }
+            return m_numSlots++;
+        }
+
+        private void linkAtHead(int slot) {
+            m_prev[slot] = NONE;
+            m_next[slot] = m_head;
+            if (m_head != NONE) {
+                m_prev[m_head] = slot;
+            }
+            m_head = slot;
+            if (m_tail == NONE) {
+                m_tail = slot;
+            }
+        }
+
+        private void unlink(int slot) {
+            final int prev = m_prev[slot];
+            final int next = m_next[slot];
+            if (prev != NONE) {
+                m_next[prev] = next;
+            } else {
+                m_head = next;
+            }
+            if (next != NONE) {
+                m_prev[next] = prev;
+            } else {
+                m_tail = prev;
+            }
+        }
+
+        private void moveToHead(int slot) {
+            if (slot != m_head) {
+                unlink(slot);
+                linkAtHead(slot);
+            }
+        }
+
+        /**
+         * Copies the live entries into a new buffer with enough room
+         * for another entry of the given length.
+         */
+        private void compact(int length) {
+            final long required = m_liveBytes + length;
+            if (required > MAX_BUFFER_SIZE) {
+                throw new IllegalStateException("Segment cannot hold more than " + MAX_BUFFER_SIZE + " bytes.");
+            }
+            long capacity = MIN_BUFFER_SIZE;
+            while (capacity < required + required / 2) {
+                capacity *= 2;
+            }
+            capacity = Math.min(capacity, MAX_BUFFER_SIZE);
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect((int)capacity);
+            for (int slot = m_head; slot != NONE; slot = m_next[slot]) {
+                if (m_lengths[slot] > 0) {
+                    final ByteBuffer source = m_buffer.duplicate();
+                    source.limit(m_offsets[slot] + m_lengths[slot]);
+                    source.position(m_offsets[slot]);
+                    m_offsets[slot] = buffer.position();
+                    buffer.put(source);
+                }
+            }
+            m_writePosition = buffer.position();
+            m_buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opennms.newts.cassandra.search.ResourceIdSplitter;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Interns resource ids and indexes them by prefix.
+ *
+ * Resource ids are split into their elements, and each distinct element is
+ * stored once in a reference counted dictionary. The ids are then stored as paths
+ * in a trie of dictionary-encoded elements, rooted at the context id, so that ids
+ * which share a prefix also share the nodes for that prefix. All of the nodes are
+ * kept in parallel primitive arrays instead of individual objects.
+ *
+ * Every interned id is identified by a key, which combines the id's node with a
+ * generation that changes whenever the node is recycled, so that stale keys never
+ * resolve to a different resource id. Ids remain interned until every reference
+ * acquired with {@link #acquire(String, String)} has been released.
+ */
+final class ResourceIdTrie {
+
+    public static final long NOT_FOUND = -1L;
+
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Rough size of a String and of its entry in the dictionary map, excluding the characters
+    private static final int ELEMENT_OVERHEAD_BYTES = 96;
+
+    private final ResourceIdSplitter m_resourceIdSplitter;
+    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> m_elementIds = new HashMap<>();
+    private String[] m_elements = new String[INITIAL_CAPACITY];
+    private int[] m_elementRefs = new int[INITIAL_CAPACITY];
+    private int[] m_freeElements = new int[INITIAL_CAPACITY];
+    private int m_numFreeElements = 0;
+    private int m_numElements = 0;
+    private long m_elementChars = 0;
+
+    private final LongIntHashMap m_edges = new LongIntHashMap(INITIAL_CAPACITY);
+    private int[] m_parent = new int[INITIAL_CAPACITY];
+    private int[] m_element = new int[INITIAL_CAPACITY];
+    private int[] m_firstChild = new int[INITIAL_CAPACITY];
+    private int[] m_nextSibling = new int[INITIAL_CAPACITY];
+    private int[] m_prevSibling = new int[INITIAL_CAPACITY];
+    private int[] m_refs = new int[INITIAL_CAPACITY];
+    private int[] m_generation = new int[INITIAL_CAPACITY];
+    private int m_numNodes = 1;
+    private int m_freeNode = NONE;
+    private int m_numIds = 0;
+
+    public ResourceIdTrie(ResourceIdSplitter resourceIdSplitter) {
+        m_resourceIdSplitter = Preconditions.checkNotNull(resourceIdSplitter, "resourceIdSplitter argument");
+        m_parent[ROOT] = NONE;
+        m_element[ROOT] = NONE;
+        m_firstChild[ROOT] = NONE;
+        m_nextSibling[ROOT] = NONE;
+        m_prevSibling[ROOT] = NONE;
+    }
+
+    /**
+     * Retrieves the key of the given resource id.
+     *
+     * @return the key, or {@link #NOT_FOUND} if the id is not interned
+     */
+    public long find(String contextId, String resourceId) {
+        final List<String> elements = m_resourceIdSplitter.splitIdIntoElements(resourceId);
+        m_lock.readLock().lock();
+        try {
+            final int node = findNode(contextId, elements);
+            return node != NONE && m_refs[node] > 0 ? key(node) : NOT_FOUND;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Interns the given resource id, if necessary, and acquires a reference to it.
+     *
+     * @return the key of the id
+     */
+    public long acquire(String contextId, String resourceId) {
+        final List<String> elements = m_resourceIdSplitter.splitIdIntoElements(resourceId);
+        m_lock.writeLock().lock();
+        try {
+            int node = child(ROOT, contextId);
+            for (String element : elements) {
+                node = child(node, element);
+            }
+            if (m_refs[node]++ == 0) {
+                m_numIds++;
+            }
+            return key(node);
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Releases a reference acquired with {@link #acquire(String, String)}, removing
+     * the resource id once it is no longer referenced.
+     */
+    public void release(long key) {
+        final int node = (int)key;
+        m_lock.writeLock().lock();
+        try {
+            if (node >= m_numNodes || key(node) != key || m_refs[node] <= 0) {
+                return;
+            }
+            if (--m_refs[node] == 0) {
+                m_numIds--;
+                prune(node);
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves all of the interned resource ids whose elements start with
+     * the elements of the given prefix.
+     */
+    public List<String> getResourceIdsWithPrefix(String contextId, String resourceIdPrefix) {
+        final List<String> elements = m_resourceIdSplitter.splitIdIntoElements(resourceIdPrefix);
+        final List<String> resourceIds = new ArrayList<>();
+        m_lock.readLock().lock();
+        try {
+            final int prefixNode = findNode(contextId, elements);
+            if (prefixNode == NONE) {
+                return resourceIds;
+            }
+
+            final LinkedList<Integer> stack = new LinkedList<>();
+            stack.push(prefixNode);
+            while (!stack.isEmpty()) {
+                final int node = stack.pop();
+                if (m_refs[node] > 0) {
+                    resourceIds.add(resourceId(node));
+                }
+                for (int child = m_firstChild[node]; child != NONE; child = m_nextSibling[child]) {
+                    stack.push(child);
+                }
+            }
+            return resourceIds;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of interned resource ids.
+     */
+    public int size() {
+        m_lock.readLock().lock();
+        try {
+            return m_numIds;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes used by the dictionary and the index.
+     */
+    public long getSizeInBytes() {
+        m_lock.readLock().lock();
+        try {
+            final long nodeBytes = (long)m_parent.length * 7 * Integer.BYTES + m_edges.getSizeInBytes();
+            final long elementBytes = (long)m_elements.length * (8 + 2 * Integer.BYTES)
+                    + (long)(m_numElements - m_numFreeElements) * ELEMENT_OVERHEAD_BYTES + m_elementChars * 2;
+            return nodeBytes + elementBytes;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    private int findNode(String contextId, List<String> elements) {
+        int node = findChild(ROOT, contextId);
+        for (int i = 0; i < elements.size() && node != NONE; i++) {
+            node = findChild(node, elements.get(i));
+        }
+        return node;
+    }
+
+    private int findChild(int parent, String element) {
+        final Integer elementId = m_elementIds.get(element);
+        return elementId != null ? m_edges.get(edge(parent, elementId), NONE) : NONE;
+    }
+
+    private int child(int parent, String element) {
+        final int child = findChild(parent, element);
+        return child != NONE ? child : newNode(parent, internElement(element));
+    }
+
+    private String resourceId(int node) {
+        final LinkedList<String> elements = new LinkedList<>();
+        // Stop before the context node
+        for (int n = node; m_parent[n] != ROOT; n = m_parent[n]) {
+            elements.addFirst(m_elements[m_element[n]]);
+        }
+        return m_resourceIdSplitter.joinElementsToId(elements);
+    }
+
+    private int newNode(int parent, int elementId) {
+        final int node;
+        if (m_freeNode != NONE) {
+            node = m_freeNode;
+            m_freeNode = m_nextSibling[node];
+        } else {
+            if (m_numNodes == m_parent.length) {
+                growNodes();
+            }
+            node = m_numNodes++;
+        }
+
+        m_parent[node] = parent;
+        m_element[node] = elementId;
+        m_firstChild[node] = NONE;
+        m_refs[node] = 0;
+
+        // Link the node in as the first child of its parent
+        final int next = m_firstChild[parent];
+        m_prevSibling[node] = NONE;
+        m_nextSibling[node] = next;
+        if (next != NONE) {
+            m_prevSibling[next] = node;
+        }
+        m_firstChild[parent] = node;
+
+        m_edges.put(edge(parent, elementId), node);
+        return node;
+    }
+
+    /**
+     * Removes the given node, along with any of its ancestors that
+     * are left without children or references.
+     */
+    private void prune(int node) {
+        while (node != ROOT && m_refs[node] == 0 && m_firstChild[node] == NONE) {
+            final int parent = m_parent[node];
+            final int prev = m_prevSibling[node];
+            final int next = m_nextSibling[node];
+            if (prev != NONE) {
+                m_nextSibling[prev] = next;
+            } else {
+                m_firstChild[parent] = next;
+            }
+            if (next != NONE) {
+                m_prevSibling[next] = prev;
+            }
+
+            m_edges.remove(edge(parent, m_element[node]), NONE);
+            releaseElement(m_element[node]);
+
+            m_parent[node] = NONE;
+            m_generation[node] = (m_generation[node] + 1) & Integer.MAX_VALUE;
+            m_nextSibling[node] = m_freeNode;
+            m_freeNode = node;
+
+            node = parent;
+        }
+    }
+
+    private int internElement(String element) {
+        Integer elementId = m_elementIds.get(element);
+        if (elementId == null) {
+            if (m_numFreeElements > 0) {
+                elementId = m_freeElements[--m_numFreeElements];
+            } else {
+                if (m_numElements == m_elements.length) {
+                    m_elements = Arrays.copyOf(m_elements, m_elements.length * 2);
+                    m_elementRefs = Arrays.copyOf(m_elementRefs, m_elementRefs.length * 2);
+                    m_freeElements = Arrays.copyOf(m_freeElements, m_freeElements.length * 2);
+                }
+                elementId = m_numElements++;
+            }
+            m_elements[elementId] = element;
+            m_elementIds.put(element, elementId);
+            m_elementChars += element.length();
+        }
+        m_elementRefs[elementId]++;
+        return elementId;
+    }
+
+    private void releaseElement(int elementId) {
+        if (--m_elementRefs[elementId] == 0) {
+            final String element = m_elements[elementId];
+            m_elementIds.remove(element);
+            m_elementChars -= element.length();
+            m_elements[elementId] = null;
+            m_freeElements[m_numFreeElements++] = elementId;
+        }
+    }
+
+    private void growNodes() {
+        final int capacity = m_parent.length * 2;
+        m_parent = Arrays.copyOf(m_parent, capacity);
+        m_element = Arrays.copyOf(m_element, capacity);
+        m_firstChild = Arrays.copyOf(m_firstChild, capacity);
+        m_nextSibling = Arrays.copyOf(m_nextSibling, capacity);
+        m_prevSibling = Arrays.copyOf(m_prevSibling, capacity);
+        m_refs = Arrays.copyOf(m_refs, capacity);
+        m_generation = Arrays.copyOf(m_generation, capacity);
+    }
+
+    private long key(int node) {
+        return ((long)m_generation[node] << 32) | node;
+    }
+
+    private static long edge(int parent, int elementId) {
+        return ((long)parent << 32) | elementId;
+    }
+}
@@ -29,6 +29,7 @@
 package org.opennms.netmgt.measurements.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -171,6 +172,22 @@ public class NewtsFetchStrategyTest {
         assertEquals(1, fetchResults.getColumns().keySet().size());
     }
 
+    @Test
+    public void canReuseResolvedResources() throws Exception {
+        List<Source> sources = Lists.newArrayList(
+            createMockResource("icmplocalhost", "icmp", "127.0.0.1")
+        );
+        // Expect a second select, but no additional lookups via the ResourceDao
+        createMockResource("icmplocalhost", "icmp", "127.0.0.1");
+        replay();
+
+        for (int i = 0; i < 2; i++) {
+            FetchResults fetchResults = m_newtsFetchStrategy.fetch(1431047069000L - (60 * 60 * 1000), 1431047069000L, 300 * 1000, 0, null, null, sources, false);
+            assertNotNull(fetchResults);
+            assertTrue(fetchResults.getColumns().containsKey("icmplocalhost"));
+        }
+    }
+
     @Test
     public void canLimitStepSize() {
         replay();
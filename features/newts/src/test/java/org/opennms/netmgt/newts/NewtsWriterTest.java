@@ -29,12 +29,16 @@
 package org.opennms.netmgt.newts;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
 
 import org.junit.Test;
 import org.opennms.newts.api.Context;
@@ -119,6 +123,68 @@ public class NewtsWriterTest {
         assertEquals(ringBufferSize, sampleRepo.getNumSamplesInserted());
     }
 
+    /**
+     * Blocks the only writer thread while events are published, and verifies
+     * that the queued samples are then inserted in larger batches,
+     * with the samples of every resource kept together.
+     */
+    @Test
+    public void canCoalesceSamplesAcrossEvents() throws Exception {
+        Resource x = new Resource("x");
+        Resource y = new Resource("y");
+        int maxBatchSize = 16;
+        int numEvents = 64;
+
+        Lock lock = new ReentrantLock();
+        RecordingSampleRepository sampleRepo = new RecordingSampleRepository(lock);
+        MetricRegistry registry = new MetricRegistry();
+        NewtsWriter writer = new NewtsWriter(maxBatchSize, 1024, 1, registry);
+        writer.setSampleRepository(sampleRepo);
+
+        lock.lock();
+        for (int i = 0; i < numEvents; i++) {
+            Sample s = new Sample(Timestamp.now(), i % 2 == 0 ? x : y, "y", MetricType.COUNTER, new Counter(i));
+            writer.insert(Lists.newArrayList(s));
+        }
+
+        // Unlock the writer thread and wait for the ring buffer to drain
+        lock.unlock();
+        writer.destroy();
+
+        List<List<Sample>> batches = sampleRepo.getBatches();
+        assertEquals(numEvents, batches.stream().mapToInt(List::size).sum());
+        assertTrue(batches.size() < numEvents / 2);
+        for (List<Sample> batch : batches) {
+            assertTrue(batch.size() <= maxBatchSize);
+            // The samples for a given resource should be contiguous
+            long numResourceChanges = IntStream.range(1, batch.size())
+                    .filter(i -> !batch.get(i).getResource().getId().equals(batch.get(i - 1).getResource().getId()))
+                    .count();
+            assertTrue(numResourceChanges <= 1);
+        }
+        assertEquals(numEvents, registry.histogram(MetricRegistry.name("ring-buffer", "occupancy")).getCount());
+    }
+
+    private static class RecordingSampleRepository extends MockSampleRepository {
+        private final Lock lock;
+        private final List<List<Sample>> batches = new CopyOnWriteArrayList<>();
+
+        public RecordingSampleRepository(Lock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public void insert(Collection<Sample> samples, boolean calculateTimeToLive) {
+            lock.lock();
+            batches.add(Lists.newArrayList(samples));
+            lock.unlock();
+        }
+
+        public List<List<Sample>> getBatches() {
+            return batches;
+        }
+    }
+
     private static class LatchedSampleRepository extends MockSampleRepository {
         private final CountDownLatch latch;
 
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.newts.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.cassandra.search.EscapableResourceIdSplitter;
+import org.opennms.newts.cassandra.search.ResourceMetadata;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class OffHeapSearchableResourceMetadataCacheTest {
+
+    private MetricRegistry m_registry = new MetricRegistry();
+
+    @Test
+    public void canGetEntriesWithPrefix() {
+        Context ctx = Context.DEFAULT_CONTEXT;
+        OffHeapSearchableResourceMetadataCache cache = new OffHeapSearchableResourceMetadataCache(2048, 4, m_registry, new EscapableResourceIdSplitter());
+
+        assertTrue(cache.getResourceIdsWithPrefix(ctx, "a").isEmpty());
+
+        Resource resource = new Resource("a:b:c");
+        ResourceMetadata resourceMetadata = new ResourceMetadata();
+        cache.merge(ctx, resource, resourceMetadata);
+
+        assertTrue(cache.getResourceIdsWithPrefix(ctx, "a").contains("a:b:c"));
+        assertTrue(cache.getResourceIdsWithPrefix(ctx, "a:b").contains("a:b:c"));
+        assertTrue(cache.getResourceIdsWithPrefix(ctx, "a:b:c").contains("a:b:c"));
+        assertTrue(cache.getResourceIdsWithPrefix(ctx, "a:b:c:d").isEmpty());
+        assertTrue(cache.getResourceIdsWithPrefix(new Context("other"), "a").isEmpty());
+    }
+
+    @Test
+    public void canUpdateEntry() {
+        Context ctx = Context.DEFAULT_CONTEXT;
+        OffHeapSearchableResourceMetadataCache cache = new OffHeapSearchableResourceMetadataCache(2048, 4, m_registry, new EscapableResourceIdSplitter());
+
+        // Insert
+        Resource resource = new Resource("a:b:c");
+        ResourceMetadata resourceMetadata = new ResourceMetadata();
+        resourceMetadata.putAttribute("a1", "1");
+        cache.merge(ctx, resource, resourceMetadata);
+
+        // Verify
+        assertTrue("attribute a1 must be set", cache.get(ctx, resource).get().containsAttribute("a1", "1"));
+
+        // Update
+        resourceMetadata = new ResourceMetadata();
+        resourceMetadata.putAttribute("a2", "2");
+        cache.merge(ctx, resource, resourceMetadata);
+
+        // Verify
+        assertTrue("attribute a1 must be set", cache.get(ctx, resource).get().containsAttribute("a1", "1"));
+        assertTrue("attribute a2 must be set", cache.get(ctx, resource).get().containsAttribute("a2", "2"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void canDeleteEntry() {
+        Context ctx = Context.DEFAULT_CONTEXT;
+        OffHeapSearchableResourceMetadataCache cache = new OffHeapSearchableResourceMetadataCache(2048, 4, m_registry, new EscapableResourceIdSplitter());
+
+        cache.merge(ctx, new Resource("a:b:c"), new ResourceMetadata());
+        cache.merge(ctx, new Resource("a:b:d"), new ResourceMetadata());
+        cache.delete(ctx, new Resource("a:b:c"));
+
+        assertFalse(cache.get(ctx, new Resource("a:b:c")).isPresent());
+        assertTrue(cache.get(ctx, new Resource("a:b:d")).isPresent());
+        assertEquals(1, cache.getResourceIdsWithPrefix(ctx, "a").size());
+        assertTrue(cache.getResourceIdsWithPrefix(ctx, "a").contains("a:b:d"));
+    }
+
+    @Test
+    public void canEvictLeastRecentlyUsedEntries() {
+        Context ctx = Context.DEFAULT_CONTEXT;
+        OffHeapSearchableResourceMetadataCache cache = new OffHeapSearchableResourceMetadataCache(4, 1, m_registry, new EscapableResourceIdSplitter());
+
+        for (int k = 0; k < 4; k++) {
+            cache.merge(ctx, new Resource("snmp:" + k), new ResourceMetadata());
+        }
+        // Touch the first entry, making the second one the least recently used
+        assertTrue(cache.get(ctx, new Resource("snmp:0")).isPresent());
+
+        cache.merge(ctx, new Resource("snmp:4"), new ResourceMetadata());
+
+        assertEquals(4, cache.size());
+        assertTrue(cache.get(ctx, new Resource("snmp:0")).isPresent());
+        assertFalse(cache.get(ctx, new Resource("snmp:1")).isPresent());
+        assertFalse(cache.getResourceIdsWithPrefix(ctx, "snmp").contains("snmp:1"));
+        assertEquals(4, cache.getResourceIdsWithPrefix(ctx, "snmp").size());
+
+        // The evicted entry can be added again
+        cache.merge(ctx, new Resource("snmp:1"), new ResourceMetadata());
+        assertTrue(cache.get(ctx, new Resource("snmp:1")).isPresent());
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void canReportFootprint() {
+        Context ctx = Context.DEFAULT_CONTEXT;
+        OffHeapSearchableResourceMetadataCache cache = new OffHeapSearchableResourceMetadataCache(4096, 4, m_registry, new EscapableResourceIdSplitter());
+
+        final long initialSize = cache.getSizeInBytes();
+        assertEquals(0, cache.getOffHeapSizeInBytes());
+
+        for (int k = 0; k < 1024; k++) {
+            ResourceMetadata resourceMetadata = new ResourceMetadata();
+            resourceMetadata.putMetric("ifHCInOctets");
+            cache.merge(ctx, new Resource(String.format("snmp:%d:eth0-x", k)), resourceMetadata);
+        }
+
+        assertEquals(1024, cache.size());
+        assertTrue(cache.getOffHeapSizeInBytes() > 0);
+        assertTrue(cache.getSizeInBytes() > initialSize + cache.getOffHeapSizeInBytes());
+        assertEquals(cache.getSizeInBytes(), m_registry.getGauges().get("cache.size-bytes").getValue());
+    }
+}
@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.elasticsearch.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.core.queue.MappedSegmentQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.gson.Gson;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
+import io.searchbox.core.DocumentResult;
+import io.searchbox.core.Index;
+import io.searchbox.core.Update;
+
+/**
+ * Forwards documents to Elasticsearch using pipelined bulk requests.
+ *
+ * <p>Documents are queued per index and up to {@link #getMaxInFlightRequests()}
+ * bulk requests may be outstanding for each index at any time. A new request
+ * is issued as soon as a slot frees up, so the size of the requests grows with
+ * the load. Each index adjusts its target request size to the observed latency:
+ * the size is increased while requests complete within the target latency and
+ * halved when they are slow, throttled or fail.</p>
+ *
+ * <p>Only the items that failed within a bulk request are retried. When the
+ * in-memory buffer is full, documents are spilled to an on-disk queue and
+ * replayed in order once the cluster catches up, so {@link #offer(List)}
+ * never blocks the caller.</p>
+ *
+ * <p>Documents are not guaranteed to be applied in order. Several requests may
+ * be in flight for the same index, and failed items are retried ahead of the
+ * queued documents but after the ones that were sent with or after them. An
+ * older {@link Update} for a given document may therefore be applied after a
+ * newer one.</p>
+ */
+public class BulkIndexingPipeline implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BulkIndexingPipeline.class);
+
+	public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+
+	public static final int DEFAULT_MAX_BULK_SIZE = 5 * 1024 * 1024;
+
+	public static final long DEFAULT_TARGET_BULK_LATENCY = 1000;
+
+	public static final long DEFAULT_MAX_BUFFER_SIZE = 32 * 1024 * 1024;
+
+	public static final int DEFAULT_BULK_RETRIES = 5;
+
+	private static final int MIN_BULK_SIZE = 16 * 1024;
+
+	private static final int INITIAL_BULK_SIZE = 256 * 1024;
+
+	private static final long INITIAL_BACKOFF_MS = 250;
+
+	private static final long MAX_BACKOFF_MS = 30000;
+
+	private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+
+	/**
+	 * Executes the bulk requests on behalf of the pipeline.
+	 */
+	public interface BulkClient {
+		/**
+		 * @return the result of the request, or <code>null</code> if it could not be executed
+		 */
+		BulkResult execute(Bulk bulk) throws IOException;
+
+		void createIndex(String index, String type) throws IOException;
+	}
+
+	private final BulkClient client;
+
+	private final MappedSegmentQueue spill;
+
+	private final int maxInFlightRequests;
+
+	private final int maxBulkSize;
+
+	private final long targetBulkLatency;
+
+	private final long maxBufferSize;
+
+	private final int bulkRetries;
+
+	private final Gson gson = new Gson();
+
+	private final Map<String,IndexQueue> queues = new HashMap<>();
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	// Guarded by this
+	private long bufferedBytes = 0;
+
+	// Requests that were handed to the executor, but not yet started
+	private final Set<Batch> queuedBatches = new LinkedHashSet<>();
+
+	private int inFlightRequests = 0;
+
+	private boolean closed = false;
+
+	private final Meter indexed;
+
+	private final Meter retried;
+
+	private final Meter spilled;
+
+	private final Counter rejected;
+
+	private final Timer bulkRequests;
+
+	public BulkIndexingPipeline(BulkClient client, MappedSegmentQueue spill, MetricRegistry metrics, int threads,
+			int maxInFlightRequests, int maxBulkSize, long targetBulkLatency, long maxBufferSize, int bulkRetries) {
+		this.client = client;
+		this.spill = spill;
+		this.maxInFlightRequests = maxInFlightRequests > 0 ? maxInFlightRequests : DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+		this.maxBulkSize = Math.max(MIN_BULK_SIZE, maxBulkSize);
+		this.targetBulkLatency = targetBulkLatency > 0 ? targetBulkLatency : DEFAULT_TARGET_BULK_LATENCY;
+		this.maxBufferSize = maxBufferSize > 0 ? maxBufferSize : DEFAULT_MAX_BUFFER_SIZE;
+		this.bulkRetries = Math.max(0, bulkRetries);
+
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new ThreadFactory() {
+			final AtomicInteger index = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, BulkIndexingPipeline.class.getSimpleName() + "-Thread-" + String.valueOf(index.incrementAndGet()));
+			}
+		});
+		// Drop the pending retries from the queue as soon as they are cancelled on close
+		executor.setRemoveOnCancelPolicy(true);
+
+		indexed = metrics.meter("indexed");
+		retried = metrics.meter("retried");
+		spilled = metrics.meter("spilled");
+		rejected = metrics.counter("rejected");
+		bulkRequests = metrics.timer("bulk-requests");
+		metrics.register("in-flight", (Gauge<Integer>) this::getInFlightRequests);
+		metrics.register("buffered-bytes", (Gauge<Long>) this::getBufferedBytes);
+		metrics.register("spilled-documents", (Gauge<Long>) () -> spill != null ? spill.getNumRecords() : 0L);
+
+		synchronized (this) {
+			// Replay any documents that were spilled before the last shutdown
+			scheduleAll(refill());
+		}
+	}
+
+	/**
+	 * Queues the given actions for indexing. Actions that don't fit in
+	 * the buffer are spilled to disk, or rejected if there is no room left.
+	 */
+	public void offer(List<BulkableAction<DocumentResult>> actions) {
+		final List<Document> documents = new ArrayList<>(actions.size());
+		for (BulkableAction<DocumentResult> action : actions) {
+			documents.add(new Document(action.getBulkMethodName(), action.getIndex(), action.getType(), action.getId(), action.getData(gson)));
+		}
+
+		synchronized (this) {
+			final Set<IndexQueue> touched = new LinkedHashSet<>();
+			for (Document document : documents) {
+				if (closed) {
+					reject(document, "the pipeline is closed");
+				} else if ((spill != null && !spill.isEmpty()) || bufferedBytes + document.size > maxBufferSize) {
+					// Keep the documents in order by spilling behind the ones that are already on disk
+					spill(document);
+				} else {
+					final IndexQueue queue = getQueue(document.index);
+					queue.pending.addLast(document);
+					bufferedBytes += document.size;
+					touched.add(queue);
+				}
+			}
+			touched.addAll(refill());
+			scheduleAll(touched);
+		}
+	}
+
+	public synchronized int getInFlightRequests() {
+		return inFlightRequests;
+	}
+
+	public synchronized long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	/**
+	 * @return the current target size of the bulk requests for the given index, in bytes
+	 */
+	public synchronized int getBulkSize(String index) {
+		final IndexQueue queue = queues.get(index);
+		return queue != null ? queue.bulkSize : Math.min(INITIAL_BULK_SIZE, maxBulkSize);
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			// Don't wait for pending retries, the documents are spilled instead
+			for (IndexQueue queue : queues.values()) {
+				if (queue.backoff != null) {
+					queue.backoff.cancel(false);
+				}
+			}
+		}
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				LOG.warn("Timed out waiting for in-flight bulk requests to complete.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			// Save the documents that were never sent, and those that are still queued,
+			// so that they can be sent after a restart
+			for (Batch batch : queuedBatches) {
+				for (Document document : batch.documents) {
+					spill(document);
+				}
+			}
+			queuedBatches.clear();
+			for (IndexQueue queue : queues.values()) {
+				for (Document document : queue.pending) {
+					spill(document);
+				}
+				queue.pending.clear();
+			}
+			bufferedBytes = 0;
+
+			if (spill != null) {
+				try {
+					spill.close();
+				} catch (IOException e) {
+					LOG.warn("Failed to close the spill queue.", e);
+				}
+			}
+		}
+	}
+
+	private IndexQueue getQueue(String index) {
+		return queues.computeIfAbsent(index, IndexQueue::new);
+	}
+
+	private void scheduleAll(Set<IndexQueue> touched) {
+		for (IndexQueue queue : touched) {
+			schedule(queue);
+		}
+	}
+
+	/**
+	 * Issues bulk requests for the given index until all of its documents
+	 * are in flight, or the maximum number of in-flight requests is reached.
+	 */
+	private void schedule(IndexQueue queue) {
+		while (!closed && !queue.backingOff && queue.inFlight < maxInFlightRequests && !queue.pending.isEmpty()) {
+			final List<Document> batch = new ArrayList<>();
+			long batchBytes = 0;
+			while (!queue.pending.isEmpty() && (batch.isEmpty() || batchBytes + queue.pending.peekFirst().size <= queue.bulkSize)) {
+				final Document document = queue.pending.pollFirst();
+				batchBytes += document.size;
+				batch.add(document);
+			}
+
+			queue.inFlight++;
+			inFlightRequests++;
+			final Batch request = new Batch(queue, batch, batchBytes);
+			queuedBatches.add(request);
+			executor.execute(request);
+		}
+	}
+
+	/**
+	 * Moves spilled documents back into memory while there is room in the buffer.
+	 *
+	 * @return the queues that received documents
+	 */
+	private Set<IndexQueue> refill() {
+		final Set<IndexQueue> touched = new LinkedHashSet<>();
+		if (spill == null || closed) {
+			return touched;
+		}
+		try {
+			byte[] record;
+			while ((record = spill.peek()) != null) {
+				final Document document;
+				try {
+					document = Document.decode(record);
+				} catch (IOException e) {
+					spill.remove(1);
+					reject(null, "the spilled record could not be decoded: " + e.getMessage());
+					continue;
+				}
+				if (bufferedBytes + document.size > maxBufferSize && bufferedBytes > 0) {
+					break;
+				}
+				spill.remove(1);
+				final IndexQueue queue = getQueue(document.index);
+				queue.pending.addLast(document);
+				bufferedBytes += document.size;
+				touched.add(queue);
+			}
+		} catch (IOException e) {
+			LOG.warn("Failed to read documents from the spill queue.", e);
+		}
+		return touched;
+	}
+
+	private void spill(Document document) {
+		if (spill == null) {
+			reject(document, "the buffer is full");
+			return;
+		}
+		try {
+			if (spill.offer(document.encode())) {
+				spilled.mark();
+			} else {
+				reject(document, "the buffer and the spill queue are full");
+			}
+		} catch (IOException e) {
+			LOG.warn("Failed to spill document to disk.", e);
+			reject(document, "the document could not be spilled");
+		}
+	}
+
+	private void reject(Document document, String reason) {
+		rejected.inc();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Rejected document for index {}: {}", document != null ? document.index : null, reason);
+		}
+	}
+
+	private void send(IndexQueue queue, List<Document> batch, long batchBytes) {
+		final Bulk.Builder builder = new Bulk.Builder()
+				.defaultIndex(queue.index)
+				.defaultType(batch.get(0).type);
+		for (Document document : batch) {
+			builder.addAction(document.toAction());
+		}
+
+		List<BulkResultItem> items = null;
+		boolean responded = false;
+		final long start = System.nanoTime();
+		try (Timer.Context ctx = bulkRequests.time()) {
+			final BulkResult result = client.execute(builder.build());
+			if (result == null) {
+				EventToIndex.logEsError("Bulk API action", queue.index, batch.get(0).type, null, -1, null);
+			} else {
+				responded = true;
+				// Items are matched to the documents by position
+				items = new ArrayList<>(result.getItems());
+				if (items.size() != batch.size()) {
+					EventToIndex.logEsError("Bulk API action", queue.index, batch.get(0).type, result.getJsonString(), result.getResponseCode(), result.getErrorMessage());
+					items = null;
+				}
+			}
+		} catch (Throwable e) {
+			LOG.error("Unexpected problem sending bulk request to Elasticsearch", e);
+		}
+		final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		final List<Document> retries = new ArrayList<>();
+		long completedBytes = 0;
+		boolean throttled = false;
+		boolean createIndex = false;
+
+		if (items == null) {
+			// The request failed as a whole. Documents are retried for as long as the cluster
+			// is unreachable, but only a limited number of times if it refused the request.
+			for (Document document : batch) {
+				if (!responded || document.attempts < bulkRetries) {
+					document.attempts += responded ? 1 : 0;
+					retries.add(document);
+				} else {
+					rejected.inc();
+					completedBytes += document.size;
+				}
+			}
+			throttled = true;
+		} else {
+			for (int i = 0; i < items.size(); i++) {
+				final BulkResultItem item = items.get(i);
+				final Document document = batch.get(i);
+				if (item.status >= 200 && item.status < 300) {
+					indexed.mark();
+					completedBytes += document.size;
+					if (LOG.isDebugEnabled()) {
+						EventToIndex.logEsDebug(item.operation, queue.index, item.type, "none", item.status, item.error);
+					}
+				} else if ((item.status == 404 || item.status == 429 || item.status >= 500) && document.attempts < bulkRetries) {
+					// The index doesn't exist for the upsert, or the cluster is overloaded
+					document.attempts++;
+					retries.add(document);
+					createIndex |= item.status == 404;
+					throttled |= item.status != 404;
+				} else {
+					EventToIndex.logEsError(item.operation, queue.index, item.type, "none", item.status, item.error);
+					rejected.inc();
+					completedBytes += document.size;
+				}
+			}
+		}
+
+		if (createIndex) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("index name {} doesn't exist, creating new index", queue.index);
+			}
+			try {
+				client.createIndex(queue.index, batch.get(0).type);
+			} catch (Throwable e) {
+				LOG.error("Unexpected problem creating index {}", queue.index, e);
+			}
+		}
+
+		synchronized (this) {
+			queue.inFlight--;
+			inFlightRequests--;
+			bufferedBytes -= completedBytes;
+
+			// Resize the requests for the index based on how the cluster coped with this one
+			if (throttled || latency > targetBulkLatency) {
+				queue.bulkSize = Math.max(MIN_BULK_SIZE, queue.bulkSize / 2);
+			} else if (batchBytes >= queue.bulkSize / 2) {
+				queue.bulkSize = Math.min(maxBulkSize, queue.bulkSize + queue.bulkSize / 4);
+			}
+
+			// Put the failed documents back at the head of the queue, in their original order
+			for (int i = retries.size() - 1; i >= 0; i--) {
+				queue.pending.addFirst(retries.get(i));
+			}
+			retried.mark(retries.size());
+
+			if (throttled) {
+				backoff(queue);
+			} else {
+				queue.failures = 0;
+			}
+
+			final Set<IndexQueue> touched = refill();
+			touched.add(queue);
+			scheduleAll(touched);
+		}
+	}
+
+	/**
+	 * Delays the next request for the given index, doubling the delay
+	 * with every consecutive failure.
+	 */
+	private void backoff(IndexQueue queue) {
+		if (closed || queue.backingOff) {
+			return;
+		}
+		final long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(queue.failures, 16));
+		queue.failures++;
+		queue.backingOff = true;
+		queue.backoff = executor.schedule(() -> {
+			synchronized (BulkIndexingPipeline.this) {
+				queue.backingOff = false;
+				queue.backoff = null;
+				schedule(queue);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A bulk request that was handed to the executor.
+	 */
+	private class Batch implements Runnable {
+		private final IndexQueue queue;
+
+		private final List<Document> documents;
+
+		private final long bytes;
+
+		private Batch(IndexQueue queue, List<Document> documents, long bytes) {
+			this.queue = queue;
+			this.documents = documents;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public void run() {
+			synchronized (BulkIndexingPipeline.this) {
+				if (!queuedBatches.remove(this)) {
+					// The documents were spilled when the pipeline was closed
+					return;
+				}
+			}
+			send(queue, documents, bytes);
+		}
+	}
+
+	private class IndexQueue {
+		private final String index;
+
+		private final Deque<Document> pending = new ArrayDeque<>();
+
+		private int inFlight = 0;
+
+		private int bulkSize = Math.min(INITIAL_BULK_SIZE, maxBulkSize);
+
+		private int failures = 0;
+
+		private boolean backingOff = false;
+
+		private ScheduledFuture<?> backoff;
+
+		private IndexQueue(String index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * A serialized document, along with the metadata needed to rebuild the bulk action.
+	 */
+	static class Document {
+		private static final String UPDATE = "update";
+
+		private final String method;
+
+		private final String index;
+
+		private final String type;
+
+		private final String id;
+
+		private final String source;
+
+		private final int size;
+
+		private int attempts = 0;
+
+		Document(String method, String index, String type, String id, String source) {
+			this.method = method;
+			this.index = index;
+			this.type = type;
+			this.id = id;
+			this.source = source;
+			// Approximate the size of the document in the request
+			this.size = source.length() + index.length() + type.length() + (id != null ? id.length() : 0);
+		}
+
+		BulkableAction<DocumentResult> toAction() {
+			if (UPDATE.equals(method)) {
+				return new Update.Builder(source).index(index).type(type).id(id).build();
+			}
+			final Index.Builder builder = new Index.Builder(source).index(index).type(type);
+			return id != null ? builder.id(id).build() : builder.build();
+		}
+
+		byte[] encode() throws IOException {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 32);
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeUTF(method);
+				out.writeUTF(index);
+				out.writeUTF(type);
+				out.writeBoolean(id != null);
+				if (id != null) {
+					out.writeUTF(id);
+				}
+				// The source may exceed the length supported by writeUTF()
+				final byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(sourceBytes.length);
+				out.write(sourceBytes);
+			}
+			return bytes.toByteArray();
+		}
+
+		static Document decode(byte[] record) throws IOException {
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+				final String method = in.readUTF();
+				final String index = in.readUTF();
+				final String type = in.readUTF();
+				final String id = in.readBoolean() ? in.readUTF() : null;
+				final byte[] sourceBytes = new byte[in.readInt()];
+				in.readFully(sourceBytes);
+				return new Document(method, index, type, id, new String(sourceBytes, StandardCharsets.UTF_8));
+			}
+		}
+	}
+}
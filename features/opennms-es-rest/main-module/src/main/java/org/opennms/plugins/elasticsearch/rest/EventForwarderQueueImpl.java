@@ -58,7 +58,8 @@ public class EventForwarderQueueImpl implements EventForwarder, AutoCloseable {
 	private ElasticSearchInitialiser elasticSearchInitialiser = null;
 
 	/**
-	 * Disable batching by default
+	 * Hand off events individually by default, the bulk requests
+	 * are sized by the {@link BulkIndexingPipeline}
 	 */
 	private int batchSize = 1;
 
@@ -29,6 +29,8 @@
 package org.opennms.plugins.elasticsearch.rest;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -42,13 +44,13 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 import javax.xml.bind.DatatypeConverter;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.opennms.core.queue.MappedSegmentQueue;
 import org.opennms.netmgt.events.api.EventParameterUtils;
 import org.opennms.netmgt.model.OnmsSeverity;
 import org.opennms.netmgt.xml.event.Event;
@@ -56,12 +58,14 @@ import org.opennms.netmgt.xml.event.Parm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+
 import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
 import io.searchbox.core.Bulk;
 import io.searchbox.core.BulkResult;
-import io.searchbox.core.BulkResult.BulkResultItem;
 import io.searchbox.core.DocumentResult;
 import io.searchbox.core.Index;
 import io.searchbox.core.Update;
@@ -143,6 +147,10 @@ public class EventToIndex implements AutoCloseable {
 
 	public static final int DEFAULT_NUMBER_OF_THREADS = Runtime.getRuntime().availableProcessors() * 2;
 
+	public static final long DEFAULT_MAX_SPILL_SIZE = 256 * 1024 * 1024;
+
+	private static final int SPILL_SEGMENT_SIZE = 8 * 1024 * 1024;
+
 	private boolean logEventDescription=false;
 
 	private boolean logAllEvents=false;
@@ -165,6 +173,26 @@ public class EventToIndex implements AutoCloseable {
 
 	private int threads = DEFAULT_NUMBER_OF_THREADS;
 
+	private int maxInFlightRequests = BulkIndexingPipeline.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+	private int maxBulkSize = BulkIndexingPipeline.DEFAULT_MAX_BULK_SIZE;
+
+	private long targetBulkLatency = BulkIndexingPipeline.DEFAULT_TARGET_BULK_LATENCY;
+
+	private long maxBufferSize = BulkIndexingPipeline.DEFAULT_MAX_BUFFER_SIZE;
+
+	private int bulkRetries = BulkIndexingPipeline.DEFAULT_BULK_RETRIES;
+
+	private String spillDirectory = null;
+
+	private long maxSpillSize = DEFAULT_MAX_SPILL_SIZE;
+
+	private BulkIndexingPipeline pipeline = null;
+
+	private final MetricRegistry metrics = new MetricRegistry();
+
+	private JmxReporter reporter = null;
+
 	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
 		threads,
 		threads,
@@ -278,6 +306,90 @@ public class EventToIndex implements AutoCloseable {
 		this.archiveNewAlarmValues = archiveNewAlarmValues;
 	}
 
+	public int getMaxInFlightRequests() {
+		return maxInFlightRequests;
+	}
+
+	/**
+	 * Set the maximum number of bulk requests that may be outstanding for each index.
+	 */
+	public void setMaxInFlightRequests(int maxInFlightRequests) {
+		this.maxInFlightRequests = maxInFlightRequests;
+	}
+
+	public int getMaxBulkSize() {
+		return maxBulkSize;
+	}
+
+	/**
+	 * Set the upper bound of the adaptive bulk request size, in bytes.
+	 */
+	public void setMaxBulkSize(int maxBulkSize) {
+		this.maxBulkSize = maxBulkSize;
+	}
+
+	public long getTargetBulkLatency() {
+		return targetBulkLatency;
+	}
+
+	/**
+	 * Set the latency in milliseconds above which bulk requests are made smaller.
+	 */
+	public void setTargetBulkLatency(long targetBulkLatency) {
+		this.targetBulkLatency = targetBulkLatency;
+	}
+
+	public long getMaxBufferSize() {
+		return maxBufferSize;
+	}
+
+	/**
+	 * Set the number of bytes of documents that may be held in memory
+	 * before they are spilled to disk.
+	 */
+	public void setMaxBufferSize(long maxBufferSize) {
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	public int getBulkRetries() {
+		return bulkRetries;
+	}
+
+	/**
+	 * Set the number of times a document that was refused by Elasticsearch is retried.
+	 */
+	public void setBulkRetries(int bulkRetries) {
+		this.bulkRetries = bulkRetries;
+	}
+
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Set the directory used to spill documents to disk. Defaults to a
+	 * directory in the Karaf data directory when empty.
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public long getMaxSpillSize() {
+		return maxSpillSize;
+	}
+
+	/**
+	 * Set the maximum size of the on-disk spill queue in bytes. Set to zero
+	 * to reject documents instead of spilling them when the buffer is full.
+	 */
+	public void setMaxSpillSize(long maxSpillSize) {
+		this.maxSpillSize = maxSpillSize;
+	}
+
+	public MetricRegistry getMetrics() {
+		return metrics;
+	}
+
 
 	/**
 	 * returns a singleton jest client from factory for use by this class
@@ -308,12 +420,74 @@ public class EventToIndex implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * returns a singleton bulk indexing pipeline for use by this class
+	 * @return
+	 */
+	private BulkIndexingPipeline getPipeline() {
+		if (pipeline == null) {
+			synchronized(this){
+				if (pipeline == null){
+					pipeline = new BulkIndexingPipeline(new BulkIndexingPipeline.BulkClient() {
+						@Override
+						public BulkResult execute(Bulk bulk) throws IOException {
+							try {
+								return getJestClient().execute(bulk);
+							} catch (IOException|RuntimeException e) {
+								// Shutdown the ES client, it will be recreated as needed
+								closeJestClient();
+								throw e;
+							}
+						}
+
+						@Override
+						public void createIndex(String index, String type) throws IOException {
+							EventToIndex.createIndex(getJestClient(), index, type);
+						}
+					}, openSpillQueue(), metrics, threads, maxInFlightRequests, maxBulkSize, targetBulkLatency, maxBufferSize, bulkRetries);
+
+					reporter = JmxReporter.forRegistry(metrics)
+							.inDomain(EventToIndex.class.getPackage().getName())
+							.build();
+					reporter.start();
+				}
+			}
+		}
+		return pipeline;
+	}
+
+	private MappedSegmentQueue openSpillQueue() {
+		if (maxSpillSize <= 0) {
+			return null;
+		}
+		final Path directory = spillDirectory != null && !spillDirectory.trim().isEmpty()
+				? Paths.get(spillDirectory)
+				: Paths.get(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "elasticsearch", "spill");
+		try {
+			return new MappedSegmentQueue(directory, (int)Math.min(SPILL_SEGMENT_SIZE, maxSpillSize), maxSpillSize);
+		} catch (IOException e) {
+			LOG.warn("Failed to open the spill queue in {}. Documents will be rejected when the buffer is full.", directory, e);
+			return null;
+		}
+	}
+
 	@Override
 	public void close(){
-		closeJestClient();
-
 		// Shutdown the thread pool
 		executor.shutdown();
+
+		synchronized(this){
+			if (pipeline != null) {
+				// Keep the closed pipeline around so that late events are rejected
+				pipeline.close();
+			}
+			if (reporter != null) {
+				reporter.close();
+				reporter = null;
+			}
+		}
+
+		closeJestClient();
 	}
 
 	/**
@@ -328,8 +502,8 @@ public class EventToIndex implements AutoCloseable {
 				LOG.error("Unexpected exception during task execution: " + e.getMessage(), e);
 				return null;
 			})
-			// Send the events to Elasticsearch
-			.thenAcceptAsync(this::sendEvents, executor)
+			// Queue the actions for Elasticsearch, this never blocks on the cluster
+			.thenAccept(this::sendEvents)
 			// Log any uncaught exceptions
 			.exceptionally(e -> {
 				LOG.error("Unexpected exception during task completion: " + e.getMessage(), e);
@@ -339,107 +513,11 @@ public class EventToIndex implements AutoCloseable {
 
 	private void sendEvents(final List<BulkableAction<DocumentResult>> actions) {
 		if (actions != null && actions.size() > 0) {
-			// Split the actions up by index
-			for (Map.Entry<String,List<BulkableAction<DocumentResult>>> entry : actions.stream().collect(Collectors.groupingBy(BulkableAction::getIndex)).entrySet()) {
-
-				try {
-					final List<BulkableAction<DocumentResult>> actionList = entry.getValue();
-
-					if (entry.getValue().size() == 1) {
-						// Not bulk
-						final BulkableAction<DocumentResult> action = actionList.get(0);
-						executeSingleAction(getJestClient(), action);
-					} else {
-						// The type will be identical for all events in the same index
-						final String type = actionList.get(0).getType();
-
-						final Bulk.Builder builder = new Bulk.Builder()
-								.defaultIndex(entry.getKey())
-								.defaultType(type);
-
-						// Add all actions to the bulk operation
-						builder.addAction(actionList);
-
-						final Bulk bulk = builder.build();
-
-						BulkResult result = getJestClient().execute(bulk);
-
-						// If the bulk command fails completely...
-						if (result == null || !result.isSucceeded()) {
-							if (result == null) {
-								logEsError("Bulk API action", entry.getKey(), type, null, -1, null);
-							} else {
-								logEsError("Bulk API action", entry.getKey(), type, result.getJsonString(), result.getResponseCode(), result.getErrorMessage());
-							}
-
-							// Try and issue the bulk actions individually as a fallback
-							for (BulkableAction<DocumentResult> action : entry.getValue()) {
-								executeSingleAction(getJestClient(), action);
-							}
-
-							continue;
-						}
-
-						// Check the return codes of the results
-						List<BulkResultItem> items = result.getItems();
-						boolean all404s = true;
-						for (BulkResultItem item : items) {
-							if (item.status != 404) {
-								all404s = false;
-								break;
-							}
-						}
-
-						if(all404s){
-							// index doesn't exist for upsert command so create new index and try again
-
-							if(LOG.isDebugEnabled()) {
-								LOG.debug("index name "+entry.getKey() + " doesn't exist, creating new index");
-							}
-
-							createIndex(getJestClient(), entry.getKey(), type);
-
-							result = getJestClient().execute(bulk);
-						}
-
-						// If the bulk command fails completely...
-						if (result == null || !result.isSucceeded()) {
-							if (result == null) {
-								logEsError("Bulk API action", entry.getKey(), type, null, -1, null);
-							} else {
-								logEsError("Bulk API action", entry.getKey(), type, result.getJsonString(), result.getResponseCode(), result.getErrorMessage());
-							}
-
-							// Try and issue the bulk actions individually as a fallback
-							for (BulkableAction<DocumentResult> action : entry.getValue()) {
-								executeSingleAction(getJestClient(), action);
-							}
-
-							continue;
-						}
-
-						// Log any unsuccessful completions as errors
-						for (BulkResultItem item : result.getItems()) {
-							if(item.status >= 200 && item.status < 300){
-								if (LOG.isDebugEnabled()) {
-									// If debug is enabled, log all completions
-									logEsDebug(item.operation, entry.getKey(), item.type, "none", item.status, item.error);
-								}
-							} else {
-								logEsError(item.operation, entry.getKey(), item.type, "none", item.status, item.error);
-							}
-						}
-					}
-				} catch (Throwable ex){
-					LOG.error("Unexpected problem sending event to Elasticsearch", ex);
-					// Shutdown the ES client, it will be recreated as needed
-					closeJestClient();
-				}
-			}
+			getPipeline().offer(actions);
 		}
 	}
 
-	private static final void logEsError(String operation, String index, String type, String result, int responseCode, String errorMessage) {
+	static final void logEsError(String operation, String index, String type, String result, int responseCode, String errorMessage) {
 		LOG.error("Error while performing {} on Elasticsearch index: {}, type: {}\n" +
 				"   received result: {}\n" + 
 				"   response code: {}\n" + 
@@ -448,7 +526,7 @@ public class EventToIndex implements AutoCloseable {
 		);
 	}
 
-	private static final void logEsDebug(String operation, String index, String type, String result, int responseCode, String errorMessage) {
+	static final void logEsDebug(String operation, String index, String type, String result, int responseCode, String errorMessage) {
 		LOG.debug("Performed {} on Elasticsearch index: {}, type: {}\n" +
 				"   received result: {}\n" + 
 				"   response code: {}\n" + 
@@ -457,43 +535,6 @@ public class EventToIndex implements AutoCloseable {
 		);
 	}
 
-	/**
-	 * This executes single Elasticsearch actions, creating indices as needed.
-	 * 
-	 * @param client
-	 * @param action
-	 * @throws IOException
-	 */
-	private static void executeSingleAction(JestClient client, BulkableAction<DocumentResult> action) throws IOException {
-
-		DocumentResult result = client.execute(action);
-
-		if(result == null || result.getResponseCode() == 404){
-			// index doesn't exist for upsert command so create new index and try again
-
-			if(LOG.isDebugEnabled()) {
-				if (result == null) {
-					logEsDebug(action.getRestMethodName(), action.getIndex(), action.getType(), null, -1, null);
-				} else {
-					logEsDebug(action.getRestMethodName(), action.getIndex(), action.getType(), result.getJsonString(), result.getResponseCode(), result.getErrorMessage());
-				}
-				LOG.debug("index name "+action.getIndex() + " doesn't exist, creating new index");
-			}
-
-			createIndex(client, action.getIndex(), action.getType());
-
-			result = client.execute(action);
-		}
-
-		if (result == null) {
-			logEsError(action.getRestMethodName(), action.getIndex(), action.getType(), null, -1, null);
-		} else if (!result.isSucceeded()){
-			logEsError(action.getRestMethodName(), action.getIndex(), action.getType(), result.getJsonString(), result.getResponseCode(), result.getErrorMessage());
-		} else if(LOG.isDebugEnabled()) {
-			logEsDebug(action.getRestMethodName(), action.getIndex(), action.getType(), result.getJsonString(), result.getResponseCode(), result.getErrorMessage());
-		}
-	}
-
 	/** 
 	 * <p>This method converts events into a sequence of Elasticsearch index/update commands.
 	 * Three types of actions are possible:</p>
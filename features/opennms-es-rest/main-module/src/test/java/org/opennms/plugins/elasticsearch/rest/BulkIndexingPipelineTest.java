@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.elasticsearch.rest;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.core.queue.MappedSegmentQueue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.DocumentResult;
+import io.searchbox.core.Index;
+
+public class BulkIndexingPipelineTest {
+
+	private static final String INDEX = "opennms-events-raw-2018.05";
+
+	private static final String TYPE = "eventdata";
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private final Gson gson = new Gson();
+
+	/**
+	 * Only the items that failed with a retryable status should be sent again.
+	 */
+	@Test
+	public void testRetriesOnlyFailedItems() throws Exception {
+		final Map<String,Integer> attempts = new ConcurrentHashMap<>();
+		final MockBulkClient client = new MockBulkClient((id, attempt) -> {
+			if (id.equals("7")) {
+				// Mapping errors are not retried
+				return 400;
+			}
+			return Integer.parseInt(id) % 3 == 0 && attempt == 1 ? 429 : 201;
+		}, attempts);
+
+		final MetricRegistry metrics = new MetricRegistry();
+		try (BulkIndexingPipeline pipeline = new BulkIndexingPipeline(client, null, metrics, 2, 2, 1024 * 1024, 1000, 1024 * 1024, 3)) {
+			pipeline.offer(createActions(0, 20));
+
+			await().atMost(10, TimeUnit.SECONDS).until(() -> metrics.meter("indexed").getCount(), equalTo(19L));
+			await().atMost(10, TimeUnit.SECONDS).until(pipeline::getBufferedBytes, equalTo(0L));
+		}
+
+		for (Map.Entry<String,Integer> entry : attempts.entrySet()) {
+			final int id = Integer.parseInt(entry.getKey());
+			final int expected = id != 7 && id % 3 == 0 ? 2 : 1;
+			assertEquals("attempts for document " + id, Integer.valueOf(expected), entry.getValue());
+		}
+		assertEquals(1, metrics.counter("rejected").getCount());
+		assertEquals(7, metrics.meter("retried").getCount());
+	}
+
+	/**
+	 * Documents should be spilled to disk while the cluster is unreachable,
+	 * and sent once it is available again.
+	 */
+	@Test
+	public void testSpillsWhenClusterIsUnavailable() throws Exception {
+		final Map<String,Integer> attempts = new ConcurrentHashMap<>();
+		final MockBulkClient client = new MockBulkClient((id, attempt) -> 201, attempts);
+		client.available = false;
+
+		final MetricRegistry metrics = new MetricRegistry();
+		try (BulkIndexingPipeline pipeline = new BulkIndexingPipeline(client, createSpill(), metrics, 2, 2, 1024 * 1024, 1000, 256, 3)) {
+			for (int i = 0; i < 50; i++) {
+				pipeline.offer(createActions(i, 1));
+			}
+			assertTrue(metrics.meter("spilled").getCount() > 0);
+			assertEquals(0, metrics.counter("rejected").getCount());
+		}
+
+		// Restart the pipeline against the same spill directory
+		client.available = true;
+		final MetricRegistry restartedMetrics = new MetricRegistry();
+		try (BulkIndexingPipeline pipeline = new BulkIndexingPipeline(client, createSpill(), restartedMetrics, 2, 2, 1024 * 1024, 1000, 256, 3)) {
+			await().atMost(10, TimeUnit.SECONDS).until(() -> restartedMetrics.meter("indexed").getCount(), equalTo(50L));
+		}
+		assertEquals(50, attempts.size());
+	}
+
+	/**
+	 * Documents of the requests that were queued, but not yet sent,
+	 * when the pipeline is closed should not be lost.
+	 */
+	@Test
+	public void testKeepsQueuedRequestsOnClose() throws Exception {
+		final Map<String,Integer> attempts = new ConcurrentHashMap<>();
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final MockBulkClient client = new MockBulkClient((id, attempt) -> {
+			sending.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return 201;
+		}, attempts);
+
+		final MetricRegistry metrics = new MetricRegistry();
+		final BulkIndexingPipeline pipeline = new BulkIndexingPipeline(client, createSpill(), metrics, 1, 4, 1024 * 1024, 1000, 1024 * 1024, 3);
+		// With a single thread, the first request blocks the next three in the executor's queue
+		for (int i = 0; i < 10; i++) {
+			pipeline.offer(createActions(i, 1));
+		}
+		assertTrue(sending.await(10, TimeUnit.SECONDS));
+		assertEquals(4, pipeline.getInFlightRequests());
+
+		final Thread closer = new Thread(pipeline::close);
+		closer.start();
+		await().atMost(10, TimeUnit.SECONDS).until(closer::getState, equalTo(Thread.State.TIMED_WAITING));
+		release.countDown();
+		closer.join(TimeUnit.SECONDS.toMillis(60));
+
+		final MetricRegistry restartedMetrics = new MetricRegistry();
+		try (BulkIndexingPipeline restarted = new BulkIndexingPipeline(client, createSpill(), restartedMetrics, 1, 4, 1024 * 1024, 1000, 1024 * 1024, 3)) {
+			await().atMost(10, TimeUnit.SECONDS).until(() -> metrics.meter("indexed").getCount()
+					+ restartedMetrics.meter("indexed").getCount(), equalTo(10L));
+		}
+		assertEquals(10, attempts.size());
+		assertEquals(0, metrics.counter("rejected").getCount());
+	}
+
+	private MappedSegmentQueue createSpill() throws IOException {
+		return new MappedSegmentQueue(tempFolder.getRoot().toPath().resolve("spill"), 4096, 1024 * 1024);
+	}
+
+	private static List<BulkableAction<DocumentResult>> createActions(int start, int count) {
+		final List<BulkableAction<DocumentResult>> actions = new ArrayList<>(count);
+		for (int i = start; i < start + count; i++) {
+			actions.add(new Index.Builder("{\"eventuei\":\"uei.opennms.org/test/" + i + "\"}")
+					.index(INDEX)
+					.type(TYPE)
+					.id(Integer.toString(i))
+					.build());
+		}
+		return actions;
+	}
+
+	/**
+	 * Answers bulk requests with the status returned by the given function
+	 * for each document id and attempt.
+	 */
+	private class MockBulkClient implements BulkIndexingPipeline.BulkClient {
+		private final BiFunction<String,Integer,Integer> statuses;
+
+		private final Map<String,Integer> attempts;
+
+		private volatile boolean available = true;
+
+		private MockBulkClient(BiFunction<String,Integer,Integer> statuses, Map<String,Integer> attempts) {
+			this.statuses = statuses;
+			this.attempts = attempts;
+		}
+
+		@Override
+		public BulkResult execute(Bulk bulk) throws IOException {
+			if (!available) {
+				return null;
+			}
+
+			final JsonArray items = new JsonArray();
+			final String[] lines = bulk.getData(gson).split("\n");
+			// Every action is followed by its source
+			for (int i = 0; i < lines.length; i += 2) {
+				final JsonObject action = new JsonParser().parse(lines[i]).getAsJsonObject();
+				final String operation = action.entrySet().iterator().next().getKey();
+				final String id = action.getAsJsonObject(operation).get("_id").getAsString();
+				final int status = statuses.apply(id, attempts.merge(id, 1, Integer::sum));
+
+				final JsonObject values = new JsonObject();
+				values.addProperty("_index", INDEX);
+				values.addProperty("_type", TYPE);
+				values.addProperty("_id", id);
+				values.addProperty("status", status);
+				if (status >= 300) {
+					values.addProperty("error", "failed");
+				}
+				final JsonObject item = new JsonObject();
+				item.add(operation, values);
+				items.add(item);
+			}
+
+			final JsonObject json = new JsonObject();
+			json.add("items", items);
+			final BulkResult result = new BulkResult(gson);
+			result.setJsonObject(json);
+			result.setJsonString(json.toString());
+			result.setResponseCode(200);
+			return result;
+		}
+
+		@Override
+		public void createIndex(String index, String type) {
+			// The index is created on demand
+		}
+	}
+}
@@ -35,7 +35,10 @@ import org.opennms.netmgt.collection.api.CollectionAgent;
 import org.opennms.netmgt.collection.api.CollectionSet;
 import org.opennms.netmgt.collection.support.builder.CollectionSetBuilder;
 import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.script.Bindings;
 import javax.script.Compilable;
 import javax.script.CompiledScript;
 import javax.script.ScriptEngine;
@@ -45,17 +48,37 @@ import javax.script.SimpleBindings;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Objects;
 
 /**
  * Uses an external script, executed via JSR-223, to generate a
  * {@link CollectionSet} from some given object using the
  * {@link CollectionSetBuilder}.
  *
+ * The script is compiled once, and recompiled when the file is modified.
+ * The bindings passed to the script are pooled per thread, so a single
+ * instance can be shared between threads provided that the script engine
+ * supports concurrent evaluations of a compiled script, as is the case
+ * with Groovy.
+ *
  * @author jwhite
  */
 public class ScriptedCollectionSetBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(ScriptedCollectionSetBuilder.class);
+
+    /**
+     * Minimum amount of time between checks for modifications of the script.
+     */
+    public static final long DEFAULT_RELOAD_CHECK_INTERVAL_MS = 5000;
+
+    private final File script;
+    private final Compilable compilable;
+    private final ThreadLocal<Bindings> bindings = ThreadLocal.withInitial(SimpleBindings::new);
 
-    private CompiledScript compiledScript;
+    private volatile CompiledScript compiledScript;
+    private volatile long lastModified;
+    private volatile long nextReloadCheck;
+    private long reloadCheckIntervalMs = DEFAULT_RELOAD_CHECK_INTERVAL_MS;
 
     public ScriptedCollectionSetBuilder(File script) throws IOException, ScriptException {
         this(script, new ScriptEngineManager());
@@ -66,6 +89,7 @@ public class ScriptedCollectionSetBuilder {
     }
 
     public ScriptedCollectionSetBuilder(File script, ScriptEngineManager manager) throws IOException, ScriptException {
+        this.script = Objects.requireNonNull(script);
         if (!script.canRead()) {
             throw new IllegalStateException("Cannot read script at '" + script + "'.");
         }
@@ -80,17 +104,51 @@ public class ScriptedCollectionSetBuilder {
         if (!(engine instanceof Compilable)) {
             throw new IllegalStateException("Only engines that can compile scripts are supported.");
         }
-        final Compilable compilable = (Compilable) engine;
+        compilable = (Compilable) engine;
+        compile();
+    }
+
+    private void compile() throws IOException, ScriptException {
+        // Grab the timestamp before reading, so that we don't miss any changes made while compiling
+        final long modified = script.lastModified();
         try (FileReader reader = new FileReader(script)) {
             compiledScript = compilable.compile(reader);
         }
+        lastModified = modified;
+        nextReloadCheck = System.currentTimeMillis() + reloadCheckIntervalMs;
+    }
+
+    /**
+     * Recompiles the script if the file was modified since it was last compiled.
+     * If the script fails to compile, we keep using the previous version.
+     */
+    private void reloadIfModified() {
+        if (System.currentTimeMillis() < nextReloadCheck) {
+            return;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() < nextReloadCheck) {
+                return;
+            }
+            nextReloadCheck = System.currentTimeMillis() + reloadCheckIntervalMs;
+            if (script.lastModified() == lastModified) {
+                return;
+            }
+            try {
+                compile();
+                LOG.info("Reloaded script '{}'.", script);
+            } catch (IOException|ScriptException e) {
+                LOG.warn("Failed to reload script '{}'. The previous version will continue to be used.", script, e);
+            }
+        }
     }
 
     /**
      * Builds a collection set from the given message.
      *
-     * WARNING: This method is not necessarily thread safe. This depends on the
-     * script, and the script engine that is being used.
+     * This method can be called concurrently from multiple threads, provided
+     * that the script engine supports concurrent evaluations of the compiled
+     * script, and that the script does not share state between evaluations.
      *
      * @param agent
      *            the agent associated with the collection set
@@ -100,13 +158,27 @@ public class ScriptedCollectionSetBuilder {
      * @throws ScriptException
      */
     public CollectionSet build(CollectionAgent agent, Object message) throws ScriptException {
+        reloadIfModified();
         final CollectionSetBuilder builder = new CollectionSetBuilder(agent);
-        final SimpleBindings globals = new SimpleBindings();
-        globals.put("agent", agent);
-        globals.put("builder", builder);
-        globals.put("msg", message);
-        compiledScript.eval(globals);
+        final Bindings globals = bindings.get();
+        try {
+            globals.put("agent", agent);
+            globals.put("builder", builder);
+            globals.put("msg", message);
+            compiledScript.eval(globals);
+        } finally {
+            // Don't hold on to any references while the bindings are pooled
+            globals.clear();
+        }
         return builder.build();
     }
 
+    public long getReloadCheckIntervalMs() {
+        return reloadCheckIntervalMs;
+    }
+
+    public void setReloadCheckIntervalMs(long reloadCheckIntervalMs) {
+        this.reloadCheckIntervalMs = reloadCheckIntervalMs;
+        nextReloadCheck = Math.min(nextReloadCheck, System.currentTimeMillis() + reloadCheckIntervalMs);
+    }
 }
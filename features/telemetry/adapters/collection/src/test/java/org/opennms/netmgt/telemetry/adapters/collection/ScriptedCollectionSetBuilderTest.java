@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.adapters.collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.netmgt.collection.api.CollectionAgent;
+
+import com.google.common.io.Files;
+
+public class ScriptedCollectionSetBuilderTest {
+
+    private static final String SCRIPT = "import org.opennms.netmgt.collection.support.builder.CollectionSetBuilder\n" +
+            "\n" +
+            "def generate(CollectionSetBuilder builder, Long msg) {\n" +
+            "    builder.withTimestamp(new Date(msg * %d))\n" +
+            "}\n" +
+            "\n" +
+            "generate(builder, msg)\n";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final CollectionAgent agent = mock(CollectionAgent.class);
+
+    @Test
+    public void canBuildCollectionSets() throws Exception {
+        final ScriptedCollectionSetBuilder builder = new ScriptedCollectionSetBuilder(writeScript(1));
+
+        assertEquals(42L, builder.build(agent, 42L).getCollectionTimestamp().getTime());
+    }
+
+    @Test
+    public void canReloadModifiedScript() throws Exception {
+        final File script = writeScript(1);
+        final ScriptedCollectionSetBuilder builder = new ScriptedCollectionSetBuilder(script);
+        builder.setReloadCheckIntervalMs(0);
+        assertEquals(42L, builder.build(agent, 42L).getCollectionTimestamp().getTime());
+
+        // Modify the script, and make sure the timestamp changes even on file systems with coarse resolution
+        final long lastModified = script.lastModified();
+        Files.write(String.format(SCRIPT, 2), script, StandardCharsets.UTF_8);
+        script.setLastModified(lastModified + 2000);
+        assertEquals(84L, builder.build(agent, 42L).getCollectionTimestamp().getTime());
+
+        // A broken script should not replace the working one
+        Files.write("this is not { valid groovy", script, StandardCharsets.UTF_8);
+        script.setLastModified(lastModified + 4000);
+        assertEquals(84L, builder.build(agent, 42L).getCollectionTimestamp().getTime());
+    }
+
+    @Test
+    public void canBuildConcurrently() throws Exception {
+        final ScriptedCollectionSetBuilder builder = new ScriptedCollectionSetBuilder(writeScript(1));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final long offset = t * 100000L;
+                futures.add(executor.submit(() -> {
+                    for (long i = 0; i < 1000; i++) {
+                        assertEquals(offset + i, builder.build(agent, offset + i).getCollectionTimestamp().getTime());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Measures the number of messages per second handled on a single thread.
+     */
+    @Test
+    @Ignore
+    public void measureThroughput() throws Exception {
+        final ScriptedCollectionSetBuilder builder = new ScriptedCollectionSetBuilder(writeScript(1));
+        final int numMessages = 50000;
+
+        // Warm up
+        for (long i = 0; i < 5000; i++) {
+            builder.build(agent, i);
+        }
+
+        final long start = System.nanoTime();
+        for (long i = 0; i < numMessages; i++) {
+            builder.build(agent, i);
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.err.printf("msgs/sec: %d%n", numMessages * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1));
+    }
+
+    private File writeScript(int multiplier) throws IOException {
+        final File script = tempFolder.newFile("script.groovy");
+        Files.write(String.format(SCRIPT, multiplier), script, StandardCharsets.UTF_8);
+        return script;
+    }
+}
@@ -83,21 +83,30 @@ public class NxosGpbAdapter extends AbstractPersistingAdapter {
 
     private String script;
 
-    private final ThreadLocal<ScriptedCollectionSetBuilder> scriptedCollectionSetBuilders = new ThreadLocal<ScriptedCollectionSetBuilder>() {
-        @Override
-        protected ScriptedCollectionSetBuilder initialValue() {
-            try {
-                if (bundleContext != null) {
-                    return new ScriptedCollectionSetBuilder(new File(script), bundleContext);
-                } else {
-                    return new ScriptedCollectionSetBuilder(new File(script));
+    // The compiled script is shared by all threads, the bindings are pooled per thread
+    private volatile ScriptedCollectionSetBuilder scriptedCollectionSetBuilder;
+
+    private ScriptedCollectionSetBuilder getScriptedCollectionSetBuilder() {
+        ScriptedCollectionSetBuilder builder = scriptedCollectionSetBuilder;
+        if (builder == null) {
+            synchronized (this) {
+                builder = scriptedCollectionSetBuilder;
+                if (builder == null) {
+                    try {
+                        if (bundleContext != null) {
+                            builder = new ScriptedCollectionSetBuilder(new File(script), bundleContext);
+                        } else {
+                            builder = new ScriptedCollectionSetBuilder(new File(script));
+                        }
+                        scriptedCollectionSetBuilder = builder;
+                    } catch (Exception e) {
+                        LOG.error("Failed to create builder for script '{}'.", script, e);
+                    }
                 }
-            } catch (Exception e) {
-                LOG.error("Failed to create builder for script '{}'.", script, e);
-                return null;
             }
         }
-    };
+        return builder;
+    }
 
     public String getScript() {
         return script;
@@ -145,7 +154,7 @@ public class NxosGpbAdapter extends AbstractPersistingAdapter {
             return Optional.empty();
         }
 
-        final ScriptedCollectionSetBuilder builder = scriptedCollectionSetBuilders.get();
+        final ScriptedCollectionSetBuilder builder = getScriptedCollectionSetBuilder();
         if (builder == null) {
             throw new Exception(String.format("Error compiling script '%s'. See logs for details.", script));
         }
@@ -45,16 +45,43 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.context.ApplicationContext;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 import javax.annotation.PostConstruct;
 
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Handles the message logs received via the Sink API with the configured adapters.
+ *
+ * By default, the adapters are run on the Sink consumer thread that received the
+ * message log.
+ *
+ * When a number of adapter threads is configured, the adapters are instead run on
+ * that many partitions, each with its own thread and bounded queue. Message logs are
+ * assigned to a partition using the address of the exporter, so that the logs of a
+ * given source are always handled in order, while the logs of different sources are
+ * handled in parallel. When the queue of a partition is full, the Sink consumer thread
+ * blocks until there is room.
+ */
 public class TelemetryMessageConsumer implements MessageConsumer<TelemetryMessage, TelemetryProtos.TelemetryMessageLog> {
     private final Logger LOG = LoggerFactory.getLogger(TelemetryMessageConsumer.class);
 
+    public static final int DEFAULT_ADAPTER_THREADS = 0;
+
+    public static final int DEFAULT_ADAPTER_QUEUE_SIZE = 1000;
+
     @Autowired
     private ApplicationContext applicationContext;
 
@@ -64,11 +91,19 @@ public class TelemetryMessageConsumer implements MessageConsumer<TelemetryMessag
     private final Protocol protocolDef;
     private final TelemetrySinkModule sinkModule;
     private final List<Adapter> adapters;
+    private final List<Timer> adapterTimers;
+    private final List<Meter> adapterFailures;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private JmxReporter reporter;
+    private Partition[] partitions = new Partition[0];
 
     public TelemetryMessageConsumer(Protocol protocol, TelemetrySinkModule sinkModule) throws Exception {
         this.protocolDef = Objects.requireNonNull(protocol);
         this.sinkModule = Objects.requireNonNull(sinkModule);
         adapters = new ArrayList<>(protocol.getAdapters().size());
+        adapterTimers = new ArrayList<>(protocol.getAdapters().size());
+        adapterFailures = new ArrayList<>(protocol.getAdapters().size());
     }
 
     @PostConstruct
@@ -80,18 +115,79 @@ public class TelemetryMessageConsumer implements MessageConsumer<TelemetryMessag
             } catch (Exception e) {
                 throw new Exception("Failed to create adapter from definition: " + adapterDef, e);
             }
+            final String prefix = MetricRegistry.name("adapters", protocolDef.getName(), adapterDef.getName());
+            adapterTimers.add(metrics.timer(MetricRegistry.name(prefix, "latency")));
+            adapterFailures.add(metrics.meter(MetricRegistry.name(prefix, "failures")));
+        }
+
+        final int numPartitions = protocolDef.getAdapterThreads().orElse(DEFAULT_ADAPTER_THREADS);
+        final int queueSize = protocolDef.getAdapterQueueSize().orElse(DEFAULT_ADAPTER_QUEUE_SIZE);
+        partitions = new Partition[Math.max(numPartitions, 0)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(i, queueSize);
+        }
+        metrics.register(MetricRegistry.name("adapters", protocolDef.getName(), "queue-depth"), (Gauge<Integer>) () -> {
+            int depth = 0;
+            for (Partition partition : partitions) {
+                depth += partition.queue.size();
+            }
+            return depth;
+        });
+        for (Partition partition : partitions) {
+            partition.start();
+        }
+
+        reporter = JmxReporter.forRegistry(metrics)
+                .inDomain("org.opennms.netmgt.telemetry")
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        reporter.start();
+    }
+
+    /**
+     * Stops the adapter threads. Message logs that are still queued are discarded.
+     */
+    public void destroy() {
+        for (Partition partition : partitions) {
+            partition.stop();
         }
+        for (Partition partition : partitions) {
+            partition.join();
+        }
+        if (reporter != null) {
+            reporter.stop();
+            reporter = null;
+        }
+        metrics.removeMatching(MetricFilter.ALL);
     }
 
     @Override
     public void handleMessage(TelemetryProtos.TelemetryMessageLog messageLog) {
+        if (partitions.length < 1) {
+            handleMessageWithAdapters(messageLog);
+            return;
+        }
+        // Use the address of the exporter to pick the partition, maintaining the ordering per source
+        final Partition partition = partitions[Math.floorMod(messageLog.getSourceAddress().hashCode(), partitions.length)];
+        try {
+            // Block the Sink consumer thread when the partition is full
+            partition.queue.put(messageLog);
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while queuing message log from {}. Dropping.", messageLog.getSourceAddress());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleMessageWithAdapters(TelemetryProtos.TelemetryMessageLog messageLog) {
         try (Logging.MDCCloseable mdc = Logging.withPrefixCloseable(Telemetryd.LOG_PREFIX)) {
             LOG.trace("Received message log: {}", messageLog);
             // Handle the message with all of the adapters
-            for (Adapter adapter : adapters) {
-                try {
+            for (int i = 0; i < adapters.size(); i++) {
+                final Adapter adapter = adapters.get(i);
+                try (Timer.Context ctx = adapterTimers.get(i).time()) {
                     adapter.handleMessageLog(messageLog);
                 } catch (RuntimeException e) {
+                    adapterFailures.get(i).mark();
                     LOG.warn("Adapter: {} failed to handle message log: {}. Skipping.", adapter, messageLog);
                     continue;
                 }
@@ -146,4 +242,63 @@ public class TelemetryMessageConsumer implements MessageConsumer<TelemetryMessag
     public Protocol getProtocol() {
         return protocolDef;
     }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * A thread with its own queue of message logs.
+     */
+    private class Partition implements Runnable {
+        private final BlockingQueue<TelemetryProtos.TelemetryMessageLog> queue;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        private Partition(int index, int queueSize) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+            thread = new Thread(this, String.format("Telemetryd-%s-Adapter-%d", protocolDef.getName(), index));
+            thread.setDaemon(true);
+            metrics.register(MetricRegistry.name("adapters", protocolDef.getName(), "partition" + index, "queue-depth"),
+                    (Gauge<Integer>) queue::size);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void stop() {
+            running = false;
+            thread.interrupt();
+        }
+
+        private void join() {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!queue.isEmpty()) {
+                LOG.warn("Discarding {} message logs that were queued for the adapters.", queue.size());
+                queue.clear();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                final TelemetryProtos.TelemetryMessageLog messageLog;
+                try {
+                    messageLog = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    handleMessageWithAdapters(messageLog);
+                } catch (Throwable t) {
+                    LOG.error("Unexpected error while handling message log from {}.", messageLog.getSourceAddress(), t);
+                }
+            }
+        }
+    }
 }
@@ -167,6 +167,7 @@ public class Telemetryd implements SpringServiceDaemon {
             try {
                 LOG.info("Stopping consumer for {} protocol.", consumer.getProtocol().getName());
                 messageConsumerManager.unregisterConsumer(consumer);
+                consumer.destroy();
             } catch (Exception e) {
                 LOG.error("Error while stopping consumer.", e);
             }
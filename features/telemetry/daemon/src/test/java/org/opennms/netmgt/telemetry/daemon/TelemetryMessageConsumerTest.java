@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.features.telemetry.adapters.registry.api.TelemetryAdapterRegistry;
+import org.opennms.netmgt.telemetry.adapters.api.Adapter;
+import org.opennms.netmgt.telemetry.adapters.api.TelemetryMessageLog;
+import org.opennms.netmgt.telemetry.config.model.Protocol;
+import org.opennms.netmgt.telemetry.ipc.TelemetryProtos;
+import org.opennms.netmgt.telemetry.ipc.TelemetrySinkModule;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TelemetryMessageConsumerTest {
+
+    private TelemetryMessageConsumer consumer;
+
+    @After
+    public void tearDown() {
+        if (consumer != null) {
+            consumer.destroy();
+        }
+    }
+
+    @Test
+    public void handlesMessageLogsInlineByDefault() throws Exception {
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        final RecordingAdapter adapter = new RecordingAdapter() {
+            @Override
+            public void handleMessageLog(TelemetryMessageLog messageLog) {
+                threads.add(Thread.currentThread());
+                super.handleMessageLog(messageLog);
+            }
+        };
+        consumer = createConsumer(adapter, null, null);
+
+        assertFalse(consumer.getMetrics().getGauges().containsKey("adapters.test.partition0.queue-depth"));
+
+        consumer.handleMessage(messageLog(0, 0));
+        assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void maintainsOrderingPerSource() throws Exception {
+        final int numSources = 16;
+        final int numLogsPerSource = 500;
+        final RecordingAdapter adapter = new RecordingAdapter();
+        consumer = createConsumer(adapter, 4, 8);
+
+        for (int i = 0; i < numLogsPerSource; i++) {
+            for (int source = 0; source < numSources; source++) {
+                consumer.handleMessage(messageLog(source, i));
+            }
+        }
+        assertTrue(adapter.await(numSources * numLogsPerSource));
+
+        assertEquals(numSources, adapter.portsBySource.size());
+        for (List<Integer> ports : adapter.portsBySource.values()) {
+            assertEquals(numLogsPerSource, ports.size());
+            for (int i = 0; i < numLogsPerSource; i++) {
+                assertEquals(i, ports.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void blocksWhenThePartitionIsFull() throws Exception {
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingAdapter adapter = new RecordingAdapter() {
+            @Override
+            public void handleMessageLog(TelemetryMessageLog messageLog) {
+                handling.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handleMessageLog(messageLog);
+            }
+        };
+        consumer = createConsumer(adapter, 1, 2);
+
+        // The first log is taken by the adapter thread, the next two fill the queue
+        consumer.handleMessage(messageLog(0, 0));
+        assertTrue(handling.await(10, TimeUnit.SECONDS));
+        consumer.handleMessage(messageLog(0, 1));
+        consumer.handleMessage(messageLog(0, 2));
+
+        final CountDownLatch queued = new CountDownLatch(1);
+        final Thread sinkThread = new Thread(() -> {
+            consumer.handleMessage(messageLog(0, 3));
+            queued.countDown();
+        });
+        sinkThread.start();
+
+        // The caller is blocked until the adapter frees up room in the queue
+        assertFalse(queued.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(2, consumer.getMetrics().getGauges().get("adapters.test.queue-depth").getValue());
+
+        release.countDown();
+        assertTrue(queued.await(10, TimeUnit.SECONDS));
+        assertTrue(adapter.await(4));
+    }
+
+    private static TelemetryMessageConsumer createConsumer(Adapter adapter, Integer adapterThreads, Integer adapterQueueSize) throws Exception {
+        final org.opennms.netmgt.telemetry.config.model.Adapter adapterDef = new org.opennms.netmgt.telemetry.config.model.Adapter();
+        adapterDef.setName("recording");
+        adapterDef.setClassName(RecordingAdapter.class.getCanonicalName());
+
+        final Protocol protocol = new Protocol();
+        protocol.setName("test");
+        protocol.setAdapterThreads(adapterThreads);
+        protocol.setAdapterQueueSize(adapterQueueSize);
+        protocol.getAdapters().add(adapterDef);
+
+        final TelemetryMessageConsumer consumer = new TelemetryMessageConsumer(protocol, new TelemetrySinkModule(protocol));
+        ReflectionTestUtils.setField(consumer, "adapterRegistry", (TelemetryAdapterRegistry) (className, p, properties) -> adapter);
+        consumer.init();
+        return consumer;
+    }
+
+    private static TelemetryProtos.TelemetryMessageLog messageLog(int source, int sequence) {
+        return TelemetryProtos.TelemetryMessageLog.newBuilder()
+                .setLocation("Default")
+                .setSystemId("test")
+                .setSourceAddress("10.0.0." + source)
+                .setSourcePort(sequence)
+                .build();
+    }
+
+    private static class RecordingAdapter implements Adapter {
+        private final Map<String, List<Integer>> portsBySource = new ConcurrentHashMap<>();
+        private final Object lock = new Object();
+        private int count = 0;
+
+        @Override
+        public void setProtocol(org.opennms.netmgt.telemetry.config.api.Protocol protocol) {
+            // pass
+        }
+
+        @Override
+        public void handleMessageLog(TelemetryMessageLog messageLog) {
+            portsBySource.computeIfAbsent(messageLog.getSourceAddress(), k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(messageLog.getSourcePort());
+            synchronized (lock) {
+                count++;
+                lock.notifyAll();
+            }
+        }
+
+        private boolean await(int expected) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            synchronized (lock) {
+                while (count < expected) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    lock.wait(remaining);
+                }
+                return count == expected;
+            }
+        }
+    }
+}
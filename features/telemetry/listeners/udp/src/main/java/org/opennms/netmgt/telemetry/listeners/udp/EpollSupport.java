@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.listeners.udp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+
+/**
+ * Isolates all references to the native epoll transport, so that the
+ * listener can still be loaded when the transport is not on the classpath.
+ */
+class EpollSupport {
+
+    private EpollSupport() {}
+
+    static boolean isAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    static Throwable unavailabilityCause() {
+        try {
+            return Epoll.unavailabilityCause();
+        } catch (LinkageError e) {
+            return e;
+        }
+    }
+
+    static EventLoopGroup newEventLoopGroup(int numThreads) {
+        return new EpollEventLoopGroup(numThreads);
+    }
+
+    /**
+     * Configures the bootstrap to bind multiple sockets to the same address
+     * with SO_REUSEPORT, letting the kernel balance the packets between them.
+     */
+    static Bootstrap configure(Bootstrap bootstrap) {
+        return bootstrap.channel(EpollDatagramChannel.class)
+                .option(EpollChannelOption.SO_REUSEPORT, true);
+    }
+
+    /**
+     * Retrieves the inode of the socket backing the given channel, which can be
+     * used to find the socket in /proc/net/udp.
+     *
+     * @return the inode, or <code>null</code> if it could not be determined
+     */
+    static Long getSocketInode(Channel channel) {
+        if (!(channel instanceof EpollDatagramChannel)) {
+            return null;
+        }
+        final int fd = ((EpollDatagramChannel)channel).fd().intValue();
+        try {
+            // The link target looks like: socket:[12345]
+            final Path target = Files.readSymbolicLink(Paths.get("/proc/self/fd", Integer.toString(fd)));
+            final String link = target.toString();
+            if (link.startsWith("socket:[") && link.endsWith("]")) {
+                return Long.parseLong(link.substring("socket:[".length(), link.length() - 1));
+            }
+        } catch (Exception e) {
+            // Not available on this platform
+        }
+        return null;
+    }
+}
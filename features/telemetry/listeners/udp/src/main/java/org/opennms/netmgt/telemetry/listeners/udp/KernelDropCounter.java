@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.listeners.udp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reads the number of datagrams dropped by the kernel for UDP sockets,
+ * i.e. because the receive buffer of the socket overflowed.
+ *
+ * The counters are taken from the last column of /proc/net/udp and
+ * /proc/net/udp6, so they are only available on Linux.
+ */
+class KernelDropCounter {
+
+    private static final Path[] PROC_FILES = new Path[] {
+            Paths.get("/proc/net/udp"),
+            Paths.get("/proc/net/udp6")
+    };
+
+    private static final int LOCAL_ADDRESS_COLUMN = 1;
+    private static final int INODE_COLUMN = 9;
+    private static final int DROPS_COLUMN = 12;
+
+    private final Long inode;
+    private final int port;
+
+    /**
+     * @param inode the inode of the socket, or <code>null</code> to sum
+     *              the drops for all of the sockets bound to the port
+     * @param port the local port of the socket
+     */
+    KernelDropCounter(Long inode, int port) {
+        this.inode = inode;
+        this.port = port;
+    }
+
+    /**
+     * @return the number of dropped datagrams, or -1 if the counters are not available
+     */
+    long getDrops() {
+        long drops = 0;
+        boolean found = false;
+        for (Path procFile : PROC_FILES) {
+            if (!Files.isReadable(procFile)) {
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(procFile, StandardCharsets.US_ASCII)) {
+                // Skip the header
+                String line = reader.readLine();
+                while ((line = reader.readLine()) != null) {
+                    final String[] columns = line.trim().split("\\s+");
+                    if (columns.length <= DROPS_COLUMN || !matches(columns)) {
+                        continue;
+                    }
+                    drops += Long.parseLong(columns[DROPS_COLUMN]);
+                    found = true;
+                }
+            } catch (IOException|NumberFormatException e) {
+                return -1;
+            }
+        }
+        return found ? drops : -1;
+    }
+
+    private boolean matches(String[] columns) {
+        if (inode != null) {
+            return Long.toString(inode).equals(columns[INODE_COLUMN]);
+        }
+        final String localAddress = columns[LOCAL_ADDRESS_COLUMN];
+        final int idx = localAddress.lastIndexOf(':');
+        return idx >= 0 && Integer.parseInt(localAddress.substring(idx + 1), 16) == port;
+    }
+}
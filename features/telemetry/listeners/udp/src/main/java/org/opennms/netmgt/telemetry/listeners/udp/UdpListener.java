@@ -30,6 +30,8 @@ package org.opennms.netmgt.telemetry.listeners.udp;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
@@ -48,60 +50,148 @@ import org.opennms.netmgt.telemetry.listeners.api.TelemetryMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
+/**
+ * Receives datagrams and dispatches them as {@link TelemetryMessage}s.
+ *
+ * By default, a single socket is bound using the NIO transport. When the number
+ * of threads is greater than one, that many sockets are bound to the same address
+ * with SO_REUSEPORT on the native epoll transport, each on its own event loop, and
+ * the kernel spreads the incoming datagrams across them. If the native transport
+ * is not available, the listener falls back to a single NIO socket.
+ *
+ * Datagrams are read into pooled buffers, which are only released once the message
+ * has been handled by the dispatcher.
+ */
 public class UdpListener implements Listener {
     private static final Logger LOG = LoggerFactory.getLogger(UdpListener.class);
 
     private AsyncDispatcher<TelemetryMessage> dispatcher;
     private String name;
     private EventLoopGroup bossGroup;
-    private ChannelFuture future;
+    private final List<Channel> channels = new ArrayList<>();
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private JmxReporter reporter;
 
     private String host = "0.0.0.0";
     private int port = 50000;
     private int maxPacketSize = 8096;
+    private int threads = 1;
 
     public void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup();
-        final Bootstrap b = new Bootstrap()
-                .group(bossGroup)
-                .channel(NioDatagramChannel.class)
+        int numSockets = 1;
+        boolean useEpoll = false;
+        if (threads > 1) {
+            if (EpollSupport.isAvailable()) {
+                numSockets = threads;
+                useEpoll = true;
+            } else {
+                LOG.warn("The native epoll transport is not available. Listener {} will use a single socket instead of {}.",
+                        name, threads, EpollSupport.unavailabilityCause());
+            }
+        }
+
+        Bootstrap b = new Bootstrap()
                 .option(ChannelOption.SO_REUSEADDR, true)
                 .option(ChannelOption.SO_RCVBUF, Integer.MAX_VALUE)
-                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(maxPacketSize))
-                .handler(new ChannelInitializer<DatagramChannel>() {
-                    @Override
-                    protected void initChannel(DatagramChannel ch) throws Exception {
-                        ChannelPipeline p = ch.pipeline();
-                        p.addLast(new MessageToMessageDecoder<DatagramPacket>() {
-                            @Override
-                            protected void decode(ChannelHandlerContext ctx, DatagramPacket packet, List<Object> out) throws Exception {
-                                // Wrap the contents of the packet in a ByteBuffer, referencing
-                                // the underlying byte array if possible
-                                final ByteBuffer buffer = wrapContentsWithNioByteBuffer(packet);
-                                // Build the message to dispatch via the Sink API
-                                final TelemetryMessage msg = new TelemetryMessage(packet.sender(), buffer);
-                                // Dispatch and retain a reference to the packet
-                                // in the case that we are sharing the underlying byte array
-                                final CompletableFuture<TelemetryMessage> future = dispatcher.send(msg);
-                                packet.retain();
-                                future.whenComplete((res,ex) -> packet.release());
-                            }
-                        });
-                    }
-                });
-        future = b.bind(host, port).await();
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(maxPacketSize));
+        if (useEpoll) {
+            // Each socket is registered with the next event loop in the group
+            bossGroup = EpollSupport.newEventLoopGroup(numSockets);
+            b = EpollSupport.configure(b.group(bossGroup));
+        } else {
+            bossGroup = new NioEventLoopGroup();
+            b = b.group(bossGroup).channel(NioDatagramChannel.class);
+        }
+
+        for (int i = 0; i < numSockets; i++) {
+            final SocketMetrics socketMetrics = new SocketMetrics(i);
+            final ChannelFuture future = b.clone()
+                    .handler(new ChannelInitializer<DatagramChannel>() {
+                        @Override
+                        protected void initChannel(DatagramChannel ch) throws Exception {
+                            ChannelPipeline p = ch.pipeline();
+                            p.addLast(new MessageToMessageDecoder<DatagramPacket>() {
+                                @Override
+                                protected void decode(ChannelHandlerContext ctx, DatagramPacket packet, List<Object> out) throws Exception {
+                                    socketMetrics.received.mark();
+                                    dispatch(packet, socketMetrics);
+                                }
+                            });
+                        }
+                    })
+                    .bind(host, port).await();
+            if (!future.isSuccess()) {
+                LOG.error("Failed to bind socket {} of listener {} to {}:{}.", i, name, host, port, future.cause());
+                continue;
+            }
+            final Channel channel = future.channel();
+            socketMetrics.register(useEpoll ? EpollSupport.getSocketInode(channel) : null);
+            channels.add(channel);
+        }
+
+        reporter = JmxReporter.forRegistry(metrics)
+                .inDomain("org.opennms.netmgt.telemetry")
+                .build();
+        reporter.start();
+        LOG.info("Listener {} bound {} socket(s) to {}:{} using the {} transport.", name, channels.size(), host, port, useEpoll ? "epoll" : "NIO");
+    }
+
+    private void dispatch(DatagramPacket packet, SocketMetrics socketMetrics) {
+        // Wrap the contents of the packet in a ByteBuffer, referencing
+        // the underlying buffer instead of copying it
+        final ByteBuffer buffer = wrapContentsWithNioByteBuffer(packet);
+        // Build the message to dispatch via the Sink API
+        final TelemetryMessage msg = new TelemetryMessage(packet.sender(), buffer);
+        // Retain a reference to the packet, since we are sharing the underlying
+        // buffer, and only release it once the message was dispatched
+        packet.retain();
+        final CompletableFuture<TelemetryMessage> future;
+        try {
+            future = dispatcher.send(msg);
+        } catch (RuntimeException e) {
+            packet.release();
+            socketMetrics.dropped.inc();
+            throw e;
+        }
+        future.whenComplete((res,ex) -> {
+            if (ex != null) {
+                socketMetrics.dropped.inc();
+            }
+            packet.release();
+        });
     }
 
     public void stop() throws InterruptedException {
-        LOG.info("Closing channel...");
-        ChannelFuture cf = future.channel().closeFuture();
+        LOG.info("Closing channels...");
+        final List<ChannelFuture> closeFutures = new ArrayList<>(channels.size());
+        for (Channel channel : channels) {
+            closeFutures.add(channel.closeFuture());
+        }
         LOG.info("Closing boss group...");
         bossGroup.shutdownGracefully().sync();
-        cf.sync();
+        for (ChannelFuture cf : closeFutures) {
+            cf.sync();
+        }
+        channels.clear();
+        if (reporter != null) {
+            reporter.stop();
+            reporter = null;
+        }
+        metrics.removeMatching(MetricFilter.ALL);
     }
 
     public String getHost() {
@@ -128,6 +218,18 @@ public class UdpListener implements Listener {
         this.maxPacketSize = maxPacketSize;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
     @Override
     public String getName() {
         return name;
@@ -145,17 +247,29 @@ public class UdpListener implements Listener {
 
     protected static ByteBuffer wrapContentsWithNioByteBuffer(DatagramPacket packet) {
         final ByteBuf content = packet.content();
-        final int length = content.readableBytes();
-        final byte[] array;
-        final int offset;
-        if (content.hasArray()) {
-            array = content.array();
-            offset = content.arrayOffset() + content.readerIndex();
-        } else {
-            array = new byte[length];
-            content.getBytes(content.readerIndex(), array, 0, length);
-            offset = 0;
+        // Returns a view of the readable bytes, which shares the content of the
+        // buffer when backed by either a heap array or direct memory
+        return content.nioBuffer(content.readerIndex(), content.readableBytes());
+    }
+
+    /**
+     * Counters for a single socket.
+     */
+    private class SocketMetrics {
+        private final String prefix;
+        private final Meter received;
+        private final Counter dropped;
+
+        private SocketMetrics(int index) {
+            prefix = MetricRegistry.name("listeners", name, "socket" + index);
+            received = metrics.meter(MetricRegistry.name(prefix, "received"));
+            dropped = metrics.counter(MetricRegistry.name(prefix, "dropped"));
+        }
+
+        private void register(Long inode) {
+            // Drops by the kernel, i.e. because the socket receive buffer overflowed
+            final KernelDropCounter kernelDrops = new KernelDropCounter(inode, port);
+            metrics.register(MetricRegistry.name(prefix, "kernel-drops"), (Gauge<Long>) kernelDrops::getDrops);
         }
-        return ByteBuffer.wrap(array, offset, length);
     }
 }
@@ -28,8 +28,15 @@
 
 package org.opennms.netmgt.alarmd.api.support;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -40,6 +47,7 @@ import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.namespace.QName;
 
@@ -50,7 +58,9 @@ import org.opennms.netmgt.alarmd.api.NorthboundAlarm.x733ProbableCause;
 import org.opennms.netmgt.alarmd.api.Northbounder;
 import org.opennms.netmgt.alarmd.api.NorthbounderException;
 import org.opennms.netmgt.dao.api.DistPollerDao;
+import org.opennms.netmgt.model.OnmsDistPoller;
 import org.opennms.netmgt.model.OnmsEventParameter;
+import org.opennms.netmgt.model.OnmsMonitoringSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,6 +74,9 @@ import org.slf4j.LoggerFactory;
  * 
  * <p>Preserve, accept and discard are called to add the Alarms to the queue as appropriate.</p>
  * 
+ * <p>When the journal is enabled, preserved alarms are written to disk instead of being held in memory,
+ * and are replayed after a restart.</p>
+ * 
  * @author <a href="mailto:david@opennms.org">David Hustace</a>
  * @author <a href="mailto:agalue@opennms.org">Alejandro Galue</a>
  */
@@ -72,6 +85,15 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
     /** The Constant LOG. */
     private static final Logger LOG = LoggerFactory.getLogger(AbstractNorthbounder.class);
 
+    public static final String JOURNAL_ENABLED_SYS_PROP = "org.opennms.alarmd.northbounder.journal.enabled";
+    public static final String JOURNAL_DIRECTORY_SYS_PROP = "org.opennms.alarmd.northbounder.journal.directory";
+    public static final String JOURNAL_MAX_BYTES_SYS_PROP = "org.opennms.alarmd.northbounder.journal.maxBytes";
+    public static final String JOURNAL_SEGMENT_SIZE_SYS_PROP = "org.opennms.alarmd.northbounder.journal.segmentSize";
+    public static final String JOURNAL_REPLAY_BATCH_SIZE_SYS_PROP = "org.opennms.alarmd.northbounder.journal.replayBatchSize";
+
+    /** The max amount of time to wait for the forwarding thread when stopping. */
+    private static final long THREAD_STOP_TIMEOUT_MS = 30000;
+
     /** The NBI name. */
     private final String m_name;
 
@@ -83,10 +105,32 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
 
     /** The retry interval. */
     private long m_retryInterval = 1000;
+
+    /** The journal enabled flag. */
+    private boolean m_journalEnabled = Boolean.getBoolean(JOURNAL_ENABLED_SYS_PROP);
+
+    /** The journal directory. */
+    private String m_journalDirectory = System.getProperty(JOURNAL_DIRECTORY_SYS_PROP,
+            Paths.get(System.getProperty("opennms.home", ""), "data", "northbounder").toString());
+
+    /** The max bytes used by the journal. */
+    private long m_journalMaxBytes = Long.getLong(JOURNAL_MAX_BYTES_SYS_PROP, 256L * 1024 * 1024);
+
+    /** The size of the journal segments. */
+    private int m_journalSegmentSize = Integer.getInteger(JOURNAL_SEGMENT_SIZE_SYS_PROP, 8 * 1024 * 1024);
+
+    /** The journal, while started. */
+    private AlarmJournal<NorthboundAlarm> m_journal;
+
+    /** The thread forwarding the alarms, while started. */
+    private Thread m_thread;
     
     //JAXBContexts are thread safe, but marshalers are not
     /** JAXBContext for EventParms class */
     private static JAXBContext ONMS_EVENT_PARM_CONTEXT = initOnmsEventParameterContext();
+
+    /** JAXBContext for the NorthboundAlarm class */
+    private static JAXBContext NORTHBOUND_ALARM_CONTEXT = initNorthboundAlarmContext();
     
     private static JAXBContext initOnmsEventParameterContext() {
         try {
@@ -95,6 +139,14 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
             throw new RuntimeException(e);
         }
     }
+
+    private static JAXBContext initNorthboundAlarmContext() {
+        try {
+            return JAXBContext.newInstance(NorthboundAlarm.class);
+        } catch (JAXBException e) {
+            throw new RuntimeException(e);
+        }
+    }
     
     /**
      * Instantiates a new abstract northbounder.
@@ -104,6 +156,7 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
     protected AbstractNorthbounder(String name) {
         m_name = name;
         m_queue = new AlarmQueue<NorthboundAlarm>(this);
+        m_queue.setMaxReplayBatchSize(Integer.getInteger(JOURNAL_REPLAY_BATCH_SIZE_SYS_PROP, m_queue.getMaxReplayBatchSize()));
         LOG.debug("Creating Northbounder instance {}", getName());
     }
 
@@ -151,6 +204,44 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
         m_queue.setMaxPreservedAlarms(maxPreservedAlarms);
     }
 
+    /**
+     * Sets whether preserved alarms are written to a journal on disk. When enabled,
+     * the number of preserved alarms is bounded by the size of the journal instead
+     * of the max preserved alarms.
+     *
+     * @param journalEnabled the new journal enabled flag
+     */
+    public void setJournalEnabled(boolean journalEnabled) {
+        m_journalEnabled = journalEnabled;
+    }
+
+    /**
+     * Sets the directory in which the journal is stored. Each NBI uses a sub-directory named after it.
+     *
+     * @param journalDirectory the new journal directory
+     */
+    public void setJournalDirectory(String journalDirectory) {
+        m_journalDirectory = journalDirectory;
+    }
+
+    /**
+     * Sets the max number of bytes used by the journal.
+     *
+     * @param journalMaxBytes the new journal max bytes
+     */
+    public void setJournalMaxBytes(long journalMaxBytes) {
+        m_journalMaxBytes = journalMaxBytes;
+    }
+
+    /**
+     * Sets the max number of preserved alarms that are forwarded at once when recovering.
+     *
+     * @param maxReplayBatchSize the new max replay batch size
+     */
+    public void setMaxReplayBatchSize(int maxReplayBatchSize) {
+        m_queue.setMaxReplayBatchSize(maxReplayBatchSize);
+    }
+
     /** Override this to perform actions before startup. **/
     protected void onPreStart() {
     }
@@ -167,11 +258,24 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
         if (!m_stopped) {
             return;
         }
+        if (m_thread != null && m_thread.isAlive()) {
+            throw new NorthbounderException("Thread '" + m_thread.getName() + "' from the previous start is still running.");
+        }
         this.onPreStart();
+        if (m_journalEnabled) {
+            final String name = getName().replaceAll("[^A-Za-z0-9._-]", "_");
+            final Path directory = Paths.get(m_journalDirectory, name);
+            try {
+                m_journal = new AlarmJournal<>(name, directory, m_journalSegmentSize, m_journalMaxBytes, new NorthboundAlarmCodec());
+            } catch (IOException e) {
+                throw new NorthbounderException("Failed to open the journal for " + getName() + " in " + directory, e);
+            }
+        }
+        m_queue.setJournal(m_journal);
         m_stopped = false;
         m_queue.init();
-        Thread thread = new Thread(this, getName() + "-Thread");
-        thread.start();
+        m_thread = new Thread(this, getName() + "-Thread");
+        m_thread.start();
         this.onPostStart();
     }
 
@@ -228,6 +332,35 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
     public final void stop() throws NorthbounderException {
         this.onStop();
         m_stopped = true;
+        if (m_thread != null) {
+            // Wake up the thread if it is waiting for alarms, or for a retry
+            m_thread.interrupt();
+            try {
+                m_thread.join(THREAD_STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (m_thread.isAlive()) {
+                // The thread may still be using the queue, so leave the journal to it
+                LOG.warn("Thread '{}' did not stop within {} ms. The journal will be closed when it does.", m_thread.getName(), THREAD_STOP_TIMEOUT_MS);
+                return;
+            }
+            m_thread = null;
+        }
+        closeJournal();
+    }
+
+    /**
+     * Closes the journal once the forwarding thread has stopped. Called from
+     * both {@link #stop()} and the thread itself, whichever is last.
+     */
+    private synchronized void closeJournal() {
+        if (m_journal != null) {
+            // Keep the preserved alarms that were never forwarded, so that they are replayed after a restart
+            m_queue.preserveQueuedAlarms();
+            m_journal.close();
+            m_journal = null;
+        }
     }
 
     /* (non-Javadoc)
@@ -250,7 +383,14 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
                 }
             }
         } catch (InterruptedException e) {
-            LOG.warn("Thread '{}' was interrupted unexpected.", getName());
+            if (!m_stopped) {
+                LOG.warn("Thread '{}' was interrupted unexpected.", getName());
+            }
+        } finally {
+            if (m_stopped) {
+                // stop() may have given up waiting for us
+                closeJournal();
+            }
         }
     }
 
@@ -409,6 +549,66 @@ public abstract class AbstractNorthbounder implements Northbounder, Runnable, St
         }
     }
     
+    /**
+     * Stores northbound alarms in the journal.
+     *
+     * The alarms are serialized to XML, prefixed with the distributed poller,
+     * which isn't part of the XML representation.
+     */
+    static class NorthboundAlarmCodec implements AlarmJournal.Codec<NorthboundAlarm> {
+
+        @Override
+        public byte[] encode(NorthboundAlarm alarm) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            final OnmsMonitoringSystem poller = alarm.getPoller();
+            out.writeBoolean(poller != null);
+            if (poller != null) {
+                out.writeUTF(nullToEmpty(poller.getId()));
+                out.writeUTF(nullToEmpty(poller.getLocation()));
+            }
+            try {
+                NORTHBOUND_ALARM_CONTEXT.createMarshaller().marshal(alarm, out);
+            } catch (JAXBException e) {
+                throw new IOException("Failed to marshal alarm " + alarm.getId(), e);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public NorthboundAlarm decode(byte[] record) throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            OnmsDistPoller poller = null;
+            if (in.readBoolean()) {
+                poller = new OnmsDistPoller(in.readUTF());
+                poller.setLocation(in.readUTF());
+            }
+            final NorthboundAlarm alarm;
+            try {
+                final Unmarshaller unmarshaller = NORTHBOUND_ALARM_CONTEXT.createUnmarshaller();
+                alarm = (NorthboundAlarm)unmarshaller.unmarshal(in);
+            } catch (JAXBException e) {
+                throw new IOException("Failed to unmarshal alarm", e);
+            }
+            if (NorthboundAlarm.SYNC_LOST_ALARM.getId().equals(alarm.getId())) {
+                return NorthboundAlarm.SYNC_LOST_ALARM;
+            }
+            alarm.setPoller(poller);
+            // The parameter map isn't part of the XML representation
+            final Map<String, String> parameters = new HashMap<>();
+            for (OnmsEventParameter parm : alarm.getEventParametersCollection()) {
+                parameters.put(parm.getName(), parm.getValue());
+            }
+            alarm.setEventParametersMap(parameters);
+            return alarm;
+        }
+
+        private static String nullToEmpty(String s) {
+            return s == null ? "" : s;
+        }
+    }
+
     /**
      * wraps a list of OnmsEventParameters for XML serialization purposes
      * @author <a href="mailto:dschlenk@convergeone.com">David Schlenk</a>
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd.api.support;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.core.queue.MappedSegmentQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Journal of preserved alarms, used by the {@link AlarmQueue} in place of an
+ * in-memory queue so that preserved alarms survive restarts.
+ *
+ * Alarms are appended to memory-mapped segment files, and are only removed
+ * from the journal once they were forwarded successfully.
+ *
+ * @param <T> the alarm type
+ */
+class AlarmJournal<T> implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AlarmJournal.class);
+
+    /**
+     * Converts alarms to and from the records stored in the journal.
+     *
+     * @param <T> the alarm type
+     */
+    interface Codec<T> {
+
+        byte[] encode(T alarm) throws IOException;
+
+        T decode(byte[] record) throws IOException;
+
+    }
+
+    private final String m_name;
+
+    private final MappedSegmentQueue m_queue;
+
+    private final Codec<T> m_codec;
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+
+    private final Meter m_journaled;
+
+    private final Meter m_replayed;
+
+    private final JmxReporter m_reporter;
+
+    /** The number of records returned by the last call to {@link #peek(int)}. */
+    private int m_numPeeked = 0;
+
+    private boolean m_closed = false;
+
+    /**
+     * Instantiates a new alarm journal.
+     *
+     * @param name the name of the journal, used to identify its metrics
+     * @param directory the directory in which the segments are stored
+     * @param segmentSize the size of the segments, in bytes
+     * @param maxBytes the maximum number of bytes used by the journal
+     * @param codec the codec
+     * @throws IOException if the journal cannot be opened
+     */
+    AlarmJournal(String name, Path directory, int segmentSize, long maxBytes, Codec<T> codec) throws IOException {
+        m_name = name;
+        m_queue = new MappedSegmentQueue(directory, segmentSize, maxBytes);
+        m_codec = codec;
+
+        m_journaled = m_metrics.meter(MetricRegistry.name(name, "journaled"));
+        m_replayed = m_metrics.meter(MetricRegistry.name(name, "replayed"));
+        m_metrics.register(MetricRegistry.name(name, "backlog-bytes"), (Gauge<Long>) m_queue::getSizeInBytes);
+        m_metrics.register(MetricRegistry.name(name, "backlog-alarms"), (Gauge<Long>) m_queue::getNumRecords);
+        m_reporter = JmxReporter.forRegistry(m_metrics)
+                .inDomain("org.opennms.netmgt.alarmd.northbounder")
+                .build();
+        m_reporter.start();
+
+        if (!m_queue.isEmpty()) {
+            LOG.info("Found {} preserved alarms in the journal for {}.", m_queue.getNumRecords(), name);
+        }
+    }
+
+    /**
+     * Appends the alarm to the journal.
+     *
+     * @param alarm the alarm
+     * @return false if the journal is full
+     * @throws IllegalStateException if the journal is closed
+     */
+    public synchronized boolean offer(T alarm) {
+        if (m_closed) {
+            throw new IllegalStateException("The journal for " + m_name + " is closed. Cannot preserve alarm " + alarm + ".");
+        }
+
+        final byte[] record;
+        try {
+            record = m_codec.encode(alarm);
+        } catch (IOException e) {
+            LOG.warn("Failed to encode alarm {} for {}. Discarding it.", alarm, m_name, e);
+            return true;
+        }
+
+        try {
+            if (!m_queue.offer(record)) {
+                return false;
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to append alarm {} to the journal for {}.", alarm, m_name, e);
+            return false;
+        }
+        m_journaled.mark();
+        return true;
+    }
+
+    /**
+     * Retrieves, but does not remove, up to the given number of alarms from
+     * the head of the journal. The alarms are removed by calling
+     * {@link #removePeeked()} once they were forwarded.
+     *
+     * @param maxAlarms the maximum number of alarms
+     * @return the alarms, in the order in which they were added
+     */
+    public synchronized List<T> peek(int maxAlarms) {
+        final List<T> alarms = new ArrayList<>();
+        if (m_closed) {
+            m_numPeeked = 0;
+            return alarms;
+        }
+
+        final List<byte[]> records;
+        try {
+            records = m_queue.peek(maxAlarms);
+        } catch (IOException e) {
+            LOG.error("Failed to read from the journal for {}.", m_name, e);
+            m_numPeeked = 0;
+            return alarms;
+        }
+
+        for (byte[] record : records) {
+            try {
+                alarms.add(m_codec.decode(record));
+            } catch (IOException e) {
+                // Skip the alarm, it will be removed along with the others
+                LOG.warn("Failed to decode a preserved alarm for {}. Discarding it.", m_name, e);
+            }
+        }
+        m_numPeeked = records.size();
+        return alarms;
+    }
+
+    /**
+     * Removes the alarms returned by the last call to {@link #peek(int)}.
+     */
+    public synchronized void removePeeked() {
+        if (m_closed || m_numPeeked == 0) {
+            return;
+        }
+        try {
+            m_replayed.mark(m_queue.remove(m_numPeeked));
+        } catch (IOException e) {
+            LOG.error("Failed to remove forwarded alarms from the journal for {}.", m_name, e);
+        }
+        m_numPeeked = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return m_closed || m_queue.isEmpty();
+    }
+
+    /**
+     * Removes all of the alarms from the journal.
+     */
+    public synchronized void clear() {
+        m_numPeeked = 0;
+        if (m_closed) {
+            return;
+        }
+        try {
+            m_queue.clear();
+        } catch (IOException e) {
+            LOG.error("Failed to clear the journal for {}.", m_name, e);
+        }
+    }
+
+    public long getSizeInBytes() {
+        return m_queue.getSizeInBytes();
+    }
+
+    public long getNumAlarms() {
+        return m_queue.getNumRecords();
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return m_metrics;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (m_closed) {
+            return;
+        }
+        m_closed = true;
+        m_reporter.stop();
+        try {
+            m_queue.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close the journal for {}.", m_name, e);
+        }
+    }
+}
@@ -87,6 +87,15 @@ class AlarmQueue<T extends Preservable> {
          * @param a the alarm
          */
         protected void addToPreservedQueue(T a) {
+            if (m_journal != null) {
+                if (!m_journal.offer(a)) {
+                    m_nextBatch.clear();
+                    m_journal.clear();
+                    m_journal.offer(m_statusFactory.createSyncLostMessage());
+                    m_journal.offer(a);
+                }
+                return;
+            }
             if (m_preservedQueue.size() >= m_maxPreservedAlarms) {
                 m_nextBatch.clear();
                 m_preservedQueue.clear();
@@ -123,9 +132,35 @@ class AlarmQueue<T extends Preservable> {
          * Load next batch.
          */
         protected void loadNextBatch() {
+            if (m_journal != null) {
+                // The batch stays in the journal until it was forwarded, so only load it once
+                if (m_nextBatch.isEmpty()) {
+                    m_nextBatch.addAll(m_journal.peek(m_maxReplayBatchSize));
+                }
+                return;
+            }
             m_preservedQueue.drainTo(m_nextBatch, m_maxBatchSize - m_nextBatch.size());
         }
 
+        /**
+         * Clears the next batch, once it was forwarded.
+         */
+        protected void nextBatchForwarded() {
+            m_nextBatch.clear();
+            if (m_journal != null) {
+                m_journal.removePeeked();
+            }
+        }
+
+        /**
+         * Checks if there are no preserved alarms left to forward.
+         *
+         * @return true, if empty
+         */
+        protected boolean isPreservedQueueEmpty() {
+            return m_journal != null ? m_journal.isEmpty() : m_preservedQueue.isEmpty();
+        }
+
     }
 
     /** The forwarding. */
@@ -169,7 +204,7 @@ class AlarmQueue<T extends Preservable> {
         public void forwardFailed(List<T> alarms) {
             addPreservedToPreservedQueue(alarms);
 
-            if (!m_preservedQueue.isEmpty()) {
+            if (!isPreservedQueueEmpty()) {
                 setState(FAILING);
             }
         }
@@ -198,8 +233,8 @@ class AlarmQueue<T extends Preservable> {
 
         @Override
         public void forwardSuccessful(List<T> alarms) {
-            m_nextBatch.clear();
-            if (m_preservedQueue.isEmpty()) {
+            nextBatchForwarded();
+            if (isPreservedQueueEmpty()) {
                 setState(FORWARDING);
             } else {
                 setState(RECOVERING);
@@ -227,8 +262,8 @@ class AlarmQueue<T extends Preservable> {
 
         @Override
         public void forwardSuccessful(List<T> alarms) {
-            m_nextBatch.clear();
-            if (m_preservedQueue.isEmpty()) {
+            nextBatchForwarded();
+            if (isPreservedQueueEmpty()) {
                 setState(FORWARDING);
             }
         }
@@ -250,6 +285,9 @@ class AlarmQueue<T extends Preservable> {
     /** The nagles delay. */
     private long m_naglesDelay = 1000;
 
+    /** The max number of alarms replayed from the journal at once. */
+    private int m_maxReplayBatchSize = 1000;
+
     /** The queue. */
     // queue for all alarms to be forwarded
     private BlockingQueue<T> m_queue = new LinkedBlockingQueue<>();
@@ -258,6 +296,10 @@ class AlarmQueue<T extends Preservable> {
     // queue for preserving alarms that are being saved during a forwarding failure
     private BlockingQueue<T> m_preservedQueue = new LinkedBlockingQueue<>();
 
+    /** The journal. */
+    // used instead of the preserved queue when set, so that preserved alarms survive restarts
+    private AlarmJournal<T> m_journal;
+
     /** The next batch. */
     // a list of alarms that are pending due to a forwarding failure
     private List<T> m_nextBatch;
@@ -345,11 +387,65 @@ class AlarmQueue<T extends Preservable> {
         m_maxBatchSize = maxBatchSize;
     }
 
+    /**
+     * Gets the max replay batch size.
+     *
+     * @return the max replay batch size
+     */
+    public int getMaxReplayBatchSize() {
+        return m_maxReplayBatchSize;
+    }
+
+    /**
+     * Sets the max number of alarms that are loaded from the journal, and
+     * forwarded, at once when recovering.
+     *
+     * @param maxReplayBatchSize the new max replay batch size
+     */
+    public void setMaxReplayBatchSize(int maxReplayBatchSize) {
+        m_maxReplayBatchSize = maxReplayBatchSize;
+    }
+
+    /**
+     * Gets the journal.
+     *
+     * @return the journal, or null if preserved alarms are kept in memory
+     */
+    public AlarmJournal<T> getJournal() {
+        return m_journal;
+    }
+
+    /**
+     * Sets the journal used to store preserved alarms. Must be set before
+     * calling {@link #init()}.
+     *
+     * @param journal the journal, or null to keep preserved alarms in memory
+     */
+    public void setJournal(AlarmJournal<T> journal) {
+        m_journal = journal;
+    }
+
     /**
      * Initialization.
      */
     public void init() {
         m_nextBatch = new ArrayList<T>(m_maxBatchSize); 
+        if (m_journal != null && !m_journal.isEmpty()) {
+            // Replay the alarms that were preserved before we were stopped
+            setState(RECOVERING);
+        }
+    }
+
+    /**
+     * Moves the preserved alarms that were queued, but not yet forwarded, to
+     * the journal so that they are replayed after a restart. Alarms that are not
+     * preserved are discarded. Must only be called once the thread forwarding
+     * the alarms has stopped, and before the journal is closed.
+     */
+    public void preserveQueuedAlarms() {
+        if (m_journal != null) {
+            m_state.discardNonPreservedAlarms();
+        }
     }
 
     /**
@@ -30,11 +30,14 @@ package org.opennms.netmgt.alarmd.api.support;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.opennms.netmgt.alarmd.api.NorthboundAlarm;
 import org.opennms.netmgt.alarmd.api.NorthbounderException;
 import org.opennms.netmgt.alarmd.api.support.AbstractNorthbounder;
@@ -48,6 +51,10 @@ import org.opennms.netmgt.model.OnmsAlarm;
  */
 public class AbstractNorthbounderTest {
 
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     /**
      * The Class TestNorthbounder.
      */
@@ -86,7 +93,7 @@ public class AbstractNorthbounderTest {
          */
         @Override
         public void forwardAlarms(List<NorthboundAlarm> alarms) throws NorthbounderException {
-            m_alarms = alarms;
+            m_alarms = new ArrayList<>(alarms);
             m_forwardAlarmsCalled.countDown();
         }
 
@@ -218,6 +225,55 @@ public class AbstractNorthbounderTest {
         assertTrue(tnb.getAlarms().contains(a3));
     }
 
+    /**
+     * Test that the preserved alarms that were never forwarded are kept in the
+     * journal when stopping, and replayed after a restart.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void testStopJournalsQueuedAlarms() throws Exception {
+        final String journalDirectory = tempFolder.newFolder().getAbsolutePath();
+        final CountDownLatch forwarding = new CountDownLatch(1);
+        TestNorthbounder tnb = new TestNorthbounder() {
+            @Override
+            public void forwardAlarms(List<NorthboundAlarm> alarms) throws NorthbounderException {
+                forwarding.countDown();
+                try {
+                    // Hang until the thread is interrupted
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    throw new NorthbounderException(e);
+                }
+            }
+        };
+        tnb.setJournalEnabled(true);
+        tnb.setJournalDirectory(journalDirectory);
+        tnb.setNaglesDelay(0);
+        tnb.start();
+
+        tnb.preserve(createNorthboundAlarm(1));
+        assertTrue(forwarding.await(2000, TimeUnit.MILLISECONDS));
+        // Still queued when stopping
+        tnb.preserve(createNorthboundAlarm(2));
+        tnb.stop();
+
+        // Restart
+        tnb = new TestNorthbounder();
+        tnb.setAccepting(true);
+        tnb.setJournalEnabled(true);
+        tnb.setJournalDirectory(journalDirectory);
+        tnb.start();
+
+        tnb.waitForForwardToBeCalled(2000);
+        tnb.stop();
+
+        assertNotNull(tnb.getAlarms());
+        assertEquals(2, tnb.getAlarms().size());
+        assertEquals(1, tnb.getAlarms().get(0).getId().intValue());
+        assertEquals(2, tnb.getAlarms().get(1).getId().intValue());
+    }
+
     /**
      * Creates the northbound alarm.
      *
@@ -30,9 +30,12 @@ package org.opennms.netmgt.alarmd.api.support;
 
 import static org.junit.Assert.*;
 
+import java.nio.file.Path;
 import java.util.List;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.opennms.netmgt.alarmd.api.NorthboundAlarm;
 import org.opennms.netmgt.alarmd.api.support.AlarmQueue;
 import org.opennms.netmgt.model.OnmsAlarm;
@@ -45,6 +48,9 @@ import org.opennms.netmgt.model.OnmsAlarm;
  */
 public class AlarmQueueTest implements StatusFactory<NorthboundAlarm>{
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     /** The alarm number. */
     public int alarmNumber = 0;
 
@@ -174,6 +180,111 @@ public class AlarmQueueTest implements StatusFactory<NorthboundAlarm>{
         queue.forwardSuccessful(alarms);
     }
 
+    /**
+     * Test that preserved alarms are replayed from the journal after a restart.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void testJournalReplaysPreservedAlarms() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+
+        AlarmJournal<NorthboundAlarm> journal = createJournal(dir, 1024 * 1024);
+        AlarmQueue<NorthboundAlarm> queue = new AlarmQueue<NorthboundAlarm>(this);
+        queue.setMaxBatchSize(3);
+        queue.setJournal(journal);
+        queue.init();
+
+        queue.preserve(createAlarm()); // 1
+        queue.accept(createAlarm());  // 2
+        queue.preserve(createAlarm()); // 3
+
+        List<NorthboundAlarm> alarms = queue.getAlarmsToForward();
+        assertEquals(3, alarms.size());
+        queue.forwardFailed(alarms);
+        assertEquals(2, journal.getNumAlarms());
+
+        queue.preserve(createAlarm()); // 4
+        alarms = queue.getAlarmsToForward();
+        assertEquals(3, alarms.size());
+        queue.forwardFailed(alarms);
+        journal.close();
+
+        // Restart
+        journal = createJournal(dir, 1024 * 1024);
+        queue = new AlarmQueue<NorthboundAlarm>(this);
+        queue.setMaxBatchSize(3);
+        queue.setMaxReplayBatchSize(2);
+        queue.setJournal(journal);
+        queue.init();
+
+        queue.accept(createAlarm());  // 5
+
+        alarms = queue.getAlarmsToForward();
+        assertEquals(2, alarms.size());
+        assertPreservedAlarm(alarms, 0, 1);
+        assertPreservedAlarm(alarms, 1, 3);
+        queue.forwardSuccessful(alarms);
+
+        alarms = queue.getAlarmsToForward();
+        assertEquals(1, alarms.size());
+        assertPreservedAlarm(alarms, 0, 4);
+        queue.forwardSuccessful(alarms);
+        assertTrue(journal.isEmpty());
+
+        alarms = queue.getAlarmsToForward();
+        assertEquals(1, alarms.size());
+        assertEquals(5, alarms.get(0).getId().intValue());
+        queue.forwardSuccessful(alarms);
+        journal.close();
+    }
+
+    /**
+     * Test that the sync lost message is preserved when the journal is full.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void testJournalOverflow() throws Exception {
+        final NorthboundAlarm alarm = createAlarm();
+        alarm.setPreserved(true);
+        final int alarmSize = new AbstractNorthbounder.NorthboundAlarmCodec().encode(alarm).length;
+
+        final AlarmJournal<NorthboundAlarm> journal = createJournal(tempFolder.newFolder().toPath(), 5 * (alarmSize + 16));
+        final AlarmQueue<NorthboundAlarm> queue = new AlarmQueue<NorthboundAlarm>(this);
+        queue.setMaxBatchSize(10);
+        queue.setJournal(journal);
+        queue.init();
+
+        for (int i = 0; i < 10; i++) {
+            queue.preserve(createAlarm());
+        }
+        List<NorthboundAlarm> alarms = queue.getAlarmsToForward();
+        assertEquals(10, alarms.size());
+        queue.forwardFailed(alarms);
+
+        alarms = queue.getAlarmsToForward();
+        assertSame(NorthboundAlarm.SYNC_LOST_ALARM, alarms.get(0));
+        assertTrue(alarms.size() < 10);
+        journal.close();
+    }
+
+    /**
+     * Test that alarms are not silently dropped once the journal is closed.
+     *
+     * @throws Exception the exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testClosedJournalRejectsAlarms() throws Exception {
+        final AlarmJournal<NorthboundAlarm> journal = createJournal(tempFolder.newFolder().toPath(), 1024 * 1024);
+        journal.close();
+        journal.offer(createAlarm());
+    }
+
+    private static AlarmJournal<NorthboundAlarm> createJournal(Path dir, long maxBytes) throws Exception {
+        return new AlarmJournal<>("test", dir, 1024, maxBytes, new AbstractNorthbounder.NorthboundAlarmCodec());
+    }
+
     /**
      * Assert preserved alarm.
      *
@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.opennms.netmgt.model.OnmsAlarm;
 import org.opennms.netmgt.xml.event.Event;
 
@@ -47,4 +49,17 @@ public interface AlarmPersister {
      */
     OnmsAlarm persist(Event event);
 
+    /**
+     * <p>persistAsync</p>
+     *
+     * Events that share a reduction key are persisted, and their futures
+     * completed, in the order in which they were submitted. Blocks while
+     * too many events are already waiting to be persisted.
+     *
+     * @param event a {@link org.opennms.netmgt.xml.event.Event} object.
+     * @return a future that completes with the alarm once it was committed,
+     * or with <code>null</code> if the event is not persisted as an alarm
+     */
+    CompletableFuture<OnmsAlarm> persistAsync(Event event);
+
 }
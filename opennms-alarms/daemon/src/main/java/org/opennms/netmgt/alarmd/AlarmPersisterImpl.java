@@ -28,7 +28,21 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import org.hibernate.Hibernate;
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
 import org.opennms.netmgt.dao.api.AlarmDao;
 import org.opennms.netmgt.dao.api.EventDao;
 import org.opennms.netmgt.events.api.EventConstants;
@@ -41,25 +55,78 @@ import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.UpdateField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.util.Assert;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
 /**
  * Singleton to persist OnmsAlarms.
  *
+ * When batching is enabled, events are handed to one of several partitions
+ * based on their reduction key. Each partition persists the events it has
+ * accumulated over a short interval in a single transaction, reducing
+ * events that share a reduction key onto the same alarm so that the alarm
+ * is only written once per flush. Since a reduction key always maps to the
+ * same partition, events for the same alarm are persisted in order.
+ * The partition queues are bounded, and callers wait for room in a full
+ * queue. On {@link #destroy()}, the partitions persist the events that
+ * are still queued before stopping.
+ *
+ * The futures returned by {@link #persistAsync(Event)} are completed on
+ * the partition threads, so the callbacks that Alarmd registers on them,
+ * including the calls to the northbounders' <code>onAlarm</code>, run
+ * concurrently from several threads. Alarms are only passed to the
+ * northbounders in order for a given reduction key, not across keys.
+ *
  * @author <a href="mailto:david@opennms.org">David Hustace</a>
  * @version $Id: $
  */
-public class AlarmPersisterImpl implements AlarmPersister {
+public class AlarmPersisterImpl implements AlarmPersister, InitializingBean, DisposableBean {
     private static final Logger LOG = LoggerFactory.getLogger(AlarmPersisterImpl.class);
 
+    public static final String BATCH_ENABLED_SYS_PROP = "org.opennms.alarmd.batch.enabled";
+    public static final String BATCH_PARTITIONS_SYS_PROP = "org.opennms.alarmd.batch.partitions";
+    public static final String BATCH_SIZE_SYS_PROP = "org.opennms.alarmd.batch.size";
+    public static final String BATCH_FLUSH_INTERVAL_SYS_PROP = "org.opennms.alarmd.batch.flushIntervalMs";
+    public static final String BATCH_CACHE_SIZE_SYS_PROP = "org.opennms.alarmd.batch.cacheSize";
+    public static final String BATCH_QUEUE_SIZE_SYS_PROP = "org.opennms.alarmd.batch.queueSize";
+
     private AlarmDao m_alarmDao;
     private EventDao m_eventDao;
     private EventForwarder m_eventForwarder;
     private TransactionOperations m_transactionOperations;
 
+    private boolean m_batchEnabled = Boolean.getBoolean(BATCH_ENABLED_SYS_PROP);
+    private final int m_numPartitions = Math.max(1, Integer.getInteger(BATCH_PARTITIONS_SYS_PROP, 4));
+    private final int m_batchSize = Math.max(1, Integer.getInteger(BATCH_SIZE_SYS_PROP, 100));
+    private final long m_flushIntervalMs = Math.max(0, Long.getLong(BATCH_FLUSH_INTERVAL_SYS_PROP, 10));
+    private final int m_cacheSize = Math.max(0, Integer.getInteger(BATCH_CACHE_SIZE_SYS_PROP, 10000));
+    private final int m_queueSize = Math.max(1, Integer.getInteger(BATCH_QUEUE_SIZE_SYS_PROP, 10 * m_batchSize));
+
+    /**
+     * The partitions, or <code>null</code> when events are persisted by the calling thread.
+     */
+    private volatile Partition[] m_partitions;
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+    private final Meter m_eventsPersisted = m_metrics.meter("events");
+    private final Meter m_alarmsWritten = m_metrics.meter("alarmWrites");
+    private final Meter m_cacheHits = m_metrics.meter("cacheHits");
+    private final Meter m_cacheMisses = m_metrics.meter("cacheMisses");
+    private final Meter m_queueFull = m_metrics.meter("queueFull");
+    private final Timer m_flushes = m_metrics.timer("flushes");
+    private JmxReporter m_reporter;
+
     private static class OnmsAlarmAndLifecycleEvent {
         private final OnmsAlarm m_alarm;
         private final Event m_event;
@@ -78,6 +145,120 @@ public class AlarmPersisterImpl implements AlarmPersister {
         }
     }
 
+    /**
+     * The alarms touched by a single transaction.
+     *
+     * Alarms are looked up by reduction key once per transaction, and the
+     * deletion of previous events for auto-clean alarms is deferred until
+     * the last event for the alarm was reduced.
+     */
+    private static class Batch {
+        private final Map<String, OnmsAlarm> m_alarms = new HashMap<>();
+        private final Map<String, OnmsEvent> m_autoCleans = new HashMap<>();
+        private final List<OnmsAlarmAndLifecycleEvent> m_results = new ArrayList<>();
+    }
+
+    private static class PendingEvent {
+        private final Event m_event;
+        private final CompletableFuture<OnmsAlarm> m_future = new CompletableFuture<>();
+
+        private PendingEvent(Event event) {
+            m_event = event;
+        }
+    }
+
+    /**
+     * Queued by {@link #destroy()} to tell a partition to stop.
+     */
+    private static final PendingEvent STOP = new PendingEvent(null);
+
+    public AlarmPersisterImpl() {
+        m_metrics.register("coalesceRatio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(m_eventsPersisted.getCount(), m_alarmsWritten.getCount());
+            }
+        });
+        m_metrics.register("queued", (Gauge<Integer>) () -> {
+            final Partition[] partitions = m_partitions;
+            int queued = 0;
+            if (partitions != null) {
+                for (Partition partition : partitions) {
+                    queued += partition.m_queue.size();
+                }
+            }
+            return queued;
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (m_reporter == null) {
+            m_reporter = JmxReporter.forRegistry(m_metrics)
+                    .inDomain("org.opennms.netmgt.alarmd")
+                    .build();
+            m_reporter.start();
+        }
+
+        if (m_batchEnabled && m_partitions == null) {
+            LOG.info("Persisting alarms in batches of up to {} events using {} partitions of {} events.", m_batchSize, m_numPartitions, m_queueSize);
+            final LogPreservingThreadFactory threadFactory = new LogPreservingThreadFactory(AlarmPersisterImpl.class.getSimpleName(), m_numPartitions);
+            final Partition[] partitions = new Partition[m_numPartitions];
+            for (int i = 0; i < partitions.length; i++) {
+                final Partition partition = new Partition(Math.max(1, m_cacheSize / m_numPartitions));
+                partition.m_thread = threadFactory.newThread(partition);
+                m_metrics.register(MetricRegistry.name("queued", Integer.toString(i)), (Gauge<Integer>) partition.m_queue::size);
+                partitions[i] = partition;
+            }
+            for (Partition partition : partitions) {
+                partition.m_thread.start();
+            }
+            m_partitions = partitions;
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        final Partition[] partitions = m_partitions;
+        m_partitions = null;
+        if (partitions != null) {
+            // Don't interrupt the partitions, that would abort a flush in progress
+            for (Partition partition : partitions) {
+                partition.m_stopped = true;
+                if (!partition.m_queue.offer(STOP, 30, TimeUnit.SECONDS)) {
+                    LOG.warn("Partition thread {} is not taking events.", partition.m_thread.getName());
+                }
+            }
+            for (Partition partition : partitions) {
+                partition.m_thread.join(TimeUnit.SECONDS.toMillis(30));
+                if (partition.m_thread.isAlive()) {
+                    LOG.warn("Partition thread {} did not stop within 30 seconds.", partition.m_thread.getName());
+                    continue;
+                }
+                // Persist the events that were queued after the partition took the poison pill
+                final List<PendingEvent> remaining = new ArrayList<>();
+                partition.m_queue.drainTo(remaining);
+                for (PendingEvent pendingEvent : remaining) {
+                    if (pendingEvent != STOP) {
+                        try {
+                            pendingEvent.m_future.complete(persistNow(pendingEvent.m_event));
+                        } catch (RuntimeException e) {
+                            pendingEvent.m_future.completeExceptionally(e);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < partitions.length; i++) {
+                m_metrics.remove(MetricRegistry.name("queued", Integer.toString(i)));
+            }
+        }
+
+        if (m_reporter != null) {
+            m_reporter.stop();
+            m_reporter = null;
+        }
+    }
+
     /** {@inheritDoc} 
      * @return */
     @Override
@@ -86,17 +267,41 @@ public class AlarmPersisterImpl implements AlarmPersister {
             return null;
         }
 
+        final Partition[] partitions = m_partitions;
+        if (partitions == null) {
+            return persistNow(event);
+        }
+
+        try {
+            return enqueue(partitions, event).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CompletableFuture<OnmsAlarm> persistAsync(Event event) {
+        if (!checkEventSanityAndDoWeProcess(event)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final Partition[] partitions = m_partitions;
+        if (partitions == null) {
+            return CompletableFuture.completedFuture(persistNow(event));
+        }
+        return enqueue(partitions, event);
+    }
+
+    private OnmsAlarm persistNow(Event event) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("process: {}; nodeid: {}; ipaddr: {}; serviceid: {}", event.getUei(), event.getNodeid(), event.getInterface(), event.getService());
         }
 
-        // Process the alarm inside a transaction
-        OnmsAlarmAndLifecycleEvent alarmAndEvent = m_transactionOperations.execute(new TransactionCallback<OnmsAlarmAndLifecycleEvent>() {
-            @Override
-            public OnmsAlarmAndLifecycleEvent doInTransaction(TransactionStatus arg0) {
-                return addOrReduceEventAsAlarm(event);
-            }
-        });
+        final OnmsAlarmAndLifecycleEvent alarmAndEvent = persistInTransaction(Collections.singletonList(event), null).get(0);
 
         // Send the event outside of the database transaction
         m_eventForwarder.sendNow(alarmAndEvent.getEvent());
@@ -104,14 +309,83 @@ public class AlarmPersisterImpl implements AlarmPersister {
         return alarmAndEvent.getAlarm();
     }
 
-    private OnmsAlarmAndLifecycleEvent addOrReduceEventAsAlarm(Event event) {
+    private CompletableFuture<OnmsAlarm> enqueue(Partition[] partitions, Event event) {
+        final String reductionKey = event.getAlarmData().getReductionKey();
+        final Partition partition = partitions[(Objects.hashCode(reductionKey) & Integer.MAX_VALUE) % partitions.length];
+        final PendingEvent pendingEvent = new PendingEvent(event);
+        if (partition.m_queue.offer(pendingEvent)) {
+            return pendingEvent.m_future;
+        }
+
+        // Wait for the partition to catch up
+        m_queueFull.mark();
+        try {
+            while (!partition.m_stopped) {
+                if (partition.m_queue.offer(pendingEvent, 100, TimeUnit.MILLISECONDS)) {
+                    return pendingEvent.m_future;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pendingEvent.m_future.completeExceptionally(e);
+            return pendingEvent.m_future;
+        }
+
+        // The partition was stopped while we were waiting
+        try {
+            pendingEvent.m_future.complete(persistNow(event));
+        } catch (RuntimeException e) {
+            pendingEvent.m_future.completeExceptionally(e);
+        }
+        return pendingEvent.m_future;
+    }
+
+    /**
+     * Persists the given events in a single transaction.
+     *
+     * @param alarmIds the ids of recently persisted alarms, keyed by reduction key, or <code>null</code>
+     */
+    private List<OnmsAlarmAndLifecycleEvent> persistInTransaction(List<Event> events, Map<String, Integer> alarmIds) {
+        final Timer.Context context = m_flushes.time();
+        try {
+            // Process the alarms inside a transaction
+            final Batch batch = m_transactionOperations.execute(new TransactionCallback<Batch>() {
+                @Override
+                public Batch doInTransaction(TransactionStatus arg0) {
+                    final Batch batch = new Batch();
+                    for (Event event : events) {
+                        addOrReduceEventAsAlarm(event, batch, alarmIds);
+                    }
+                    for (Map.Entry<String, OnmsEvent> autoClean : batch.m_autoCleans.entrySet()) {
+                        m_eventDao.deletePreviousEventsForAlarm(batch.m_alarms.get(autoClean.getKey()).getId(), autoClean.getValue());
+                    }
+                    return batch;
+                }
+            });
+
+            if (alarmIds != null) {
+                for (OnmsAlarm alarm : batch.m_alarms.values()) {
+                    alarmIds.put(alarm.getReductionKey(), alarm.getId());
+                }
+            }
+            m_eventsPersisted.mark(events.size());
+            m_alarmsWritten.mark(batch.m_alarms.size());
+            return batch.m_results;
+        } finally {
+            context.stop();
+        }
+    }
+
+    private void addOrReduceEventAsAlarm(Event event, Batch batch, Map<String, Integer> alarmIds) {
         // 2012-03-11 pbrane: for some reason when we get here the event from the DB doesn't have the LogMsg (in my tests anyway)
         OnmsEvent e = m_eventDao.get(event.getDbid());
         Assert.notNull(e, "Event was deleted before we could retrieve it and create an alarm.");
 
         String reductionKey = event.getAlarmData().getReductionKey();
-        LOG.debug("addOrReduceEventAsAlarm: looking for existing reduction key: {}", reductionKey);
-        OnmsAlarm alarm = m_alarmDao.findByReductionKey(reductionKey);
+        OnmsAlarm alarm = batch.m_alarms.get(reductionKey);
+        if (alarm == null) {
+            alarm = findAlarm(reductionKey, alarmIds);
+        }
 
         EventBuilder ebldr = null;
         if (alarm == null) {
@@ -129,16 +403,26 @@ public class AlarmPersisterImpl implements AlarmPersister {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("addOrReduceEventAsAlarm: reductionKey:{} found, reducing event to existing alarm: {}", reductionKey, alarm.getIpAddr());
             }
+            if (!event.getAlarmData().isAutoClean()) {
+                // Apply the pending auto-clean before this event is attached to the alarm, so that it is kept
+                final OnmsEvent autoCleanEvent = batch.m_autoCleans.remove(reductionKey);
+                if (autoCleanEvent != null) {
+                    m_eventDao.deletePreviousEventsForAlarm(alarm.getId(), autoCleanEvent);
+                }
+            }
+
             reduceEvent(e, alarm, event);
             m_alarmDao.update(alarm);
             m_eventDao.update(e);
 
             if (event.getAlarmData().isAutoClean()) {
-                m_eventDao.deletePreviousEventsForAlarm(alarm.getId(), e);
+                // A later auto-clean for the same alarm deletes everything this one would
+                batch.m_autoCleans.put(reductionKey, e);
             }
 
             ebldr = new EventBuilder(EventConstants.ALARM_UPDATED_WITH_REDUCED_EVENT_UEI, Alarmd.NAME);
         }
+        batch.m_alarms.put(reductionKey, alarm);
 
         if (alarm.getNodeId() != null) {
             alarm.getNode().getForeignSource(); // This should trigger the lazy loading of the node object, to properly populate the NorthboundAlarm class.
@@ -149,7 +433,28 @@ public class AlarmPersisterImpl implements AlarmPersister {
 
         Hibernate.initialize(alarm.getEventParameters());
 
-        return new OnmsAlarmAndLifecycleEvent(alarm, ebldr.getEvent());
+        batch.m_results.add(new OnmsAlarmAndLifecycleEvent(alarm, ebldr.getEvent()));
+    }
+
+    private OnmsAlarm findAlarm(String reductionKey, Map<String, Integer> alarmIds) {
+        if (alarmIds != null) {
+            // Loading the alarm by id does not flush the alarms already modified by this transaction,
+            // which a query by reduction key would
+            final Integer alarmId = alarmIds.get(reductionKey);
+            if (alarmId != null) {
+                final OnmsAlarm alarm = m_alarmDao.get(alarmId);
+                if (alarm != null && Objects.equals(reductionKey, alarm.getReductionKey())) {
+                    m_cacheHits.mark();
+                    return alarm;
+                }
+                // The alarm was deleted or its reduction key was changed since we last saw it
+                alarmIds.remove(reductionKey);
+            }
+            m_cacheMisses.mark();
+        }
+
+        LOG.debug("addOrReduceEventAsAlarm: looking for existing reduction key: {}", reductionKey);
+        return m_alarmDao.findByReductionKey(reductionKey);
     }
 
     private static void reduceEvent(OnmsEvent e, OnmsAlarm alarm, Event event) {
@@ -319,4 +624,123 @@ public class AlarmPersisterImpl implements AlarmPersister {
     public EventForwarder getEventForwarder() {
         return m_eventForwarder;
     }
+
+    public boolean isBatchEnabled() {
+        return m_batchEnabled;
+    }
+
+    /**
+     * Whether or not events are persisted in batches. Must be set before
+     * {@link #afterPropertiesSet()} is called, and defaults to the value of
+     * the {@value #BATCH_ENABLED_SYS_PROP} system property.
+     */
+    public void setBatchEnabled(boolean batchEnabled) {
+        m_batchEnabled = batchEnabled;
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return m_metrics;
+    }
+
+    /**
+     * A queue of events, along with the thread that persists them.
+     */
+    private class Partition implements Runnable {
+        private final BlockingQueue<PendingEvent> m_queue = new LinkedBlockingQueue<>(m_queueSize);
+
+        /**
+         * The ids of the most recently persisted alarms, keyed by reduction key.
+         * Only accessed by the partition's thread.
+         */
+        private final Map<String, Integer> m_alarmIds;
+
+        private Thread m_thread;
+
+        private volatile boolean m_stopped = false;
+
+        private Partition(int cacheSize) {
+            m_alarmIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            final List<PendingEvent> batch = new ArrayList<>(m_batchSize);
+            boolean stopping = false;
+            try {
+                while (!stopping) {
+                    PendingEvent pendingEvent = m_queue.take();
+                    if (pendingEvent == STOP) {
+                        break;
+                    }
+                    batch.add(pendingEvent);
+                    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_flushIntervalMs);
+                    while (batch.size() < m_batchSize) {
+                        pendingEvent = m_queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        if (pendingEvent == null) {
+                            break;
+                        } else if (pendingEvent == STOP) {
+                            stopping = true;
+                            break;
+                        }
+                        batch.add(pendingEvent);
+                    }
+                    flush(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                LOG.warn("Partition thread was interrupted. Persisting the queued events before stopping.");
+                // Send new events to the callers' threads, and clear the flag so the final flush can complete
+                m_stopped = true;
+                Thread.interrupted();
+            }
+
+            // Persist whatever was queued before we were stopped
+            m_queue.drainTo(batch);
+            batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+        }
+
+        private void flush(List<PendingEvent> batch) {
+            final List<Event> events = new ArrayList<>(batch.size());
+            for (PendingEvent pendingEvent : batch) {
+                events.add(pendingEvent.m_event);
+            }
+
+            final List<OnmsAlarmAndLifecycleEvent> results;
+            try {
+                results = persistInTransaction(events, m_alarmIds);
+            } catch (RuntimeException e) {
+                if (batch.size() == 1) {
+                    batch.get(0).m_future.completeExceptionally(e);
+                } else {
+                    // Don't let a single bad event fail the others
+                    LOG.warn("Failed to persist a batch of {} events. Persisting them individually.", batch.size(), e);
+                    for (PendingEvent pendingEvent : batch) {
+                        flush(Collections.singletonList(pendingEvent));
+                    }
+                }
+                return;
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                final OnmsAlarmAndLifecycleEvent alarmAndEvent = results.get(i);
+                try {
+                    // Send the event outside of the database transaction
+                    m_eventForwarder.sendNow(alarmAndEvent.getEvent());
+                    batch.get(i).m_future.complete(alarmAndEvent.getAlarm());
+                } catch (RuntimeException e) {
+                    batch.get(i).m_future.completeExceptionally(e);
+                }
+            }
+        }
+    }
 }
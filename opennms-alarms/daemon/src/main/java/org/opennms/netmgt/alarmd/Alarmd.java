@@ -40,7 +40,6 @@ import org.opennms.netmgt.events.api.EventProxy;
 import org.opennms.netmgt.events.api.EventProxyException;
 import org.opennms.netmgt.events.api.annotations.EventHandler;
 import org.opennms.netmgt.events.api.annotations.EventListener;
-import org.opennms.netmgt.model.OnmsAlarm;
 import org.opennms.netmgt.model.events.EventBuilder;
 import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.Parm;
@@ -88,16 +87,21 @@ public class Alarmd implements SpringServiceDaemon, DisposableBean {
            return;
     	}
     	
-        OnmsAlarm alarm = m_persister.persist(e);
-        
-        if (alarm != null) {
-        	NorthboundAlarm a = new NorthboundAlarm(alarm);
-
-            for (Northbounder nbi : m_northboundInterfaces) {
-                nbi.onAlarm(a);
+        // Don't wait for the alarm to be persisted, so that events can be batched.
+        // When batching, this callback runs on the persister's partition threads, so
+        // the northbounders are called concurrently and only ordered per reduction key.
+        m_persister.persistAsync(e).whenComplete((alarm, ex) -> {
+            if (ex != null) {
+                LOG.error("Failed to persist alarm for event {}", e.getUei(), ex);
+            } else if (alarm != null) {
+                NorthboundAlarm a = new NorthboundAlarm(alarm);
+
+                for (Northbounder nbi : m_northboundInterfaces) {
+                    nbi.onAlarm(a);
+                }
             }
-        }
-        
+        });
+
     }
 
     private void handleReloadEvent(Event e) {
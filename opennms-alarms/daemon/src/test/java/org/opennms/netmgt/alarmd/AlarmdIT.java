@@ -28,6 +28,9 @@
 
 package org.opennms.netmgt.alarmd;
 
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -75,6 +78,9 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.util.StringUtils;
 
 
@@ -308,6 +314,138 @@ public class AlarmdIT implements TemporaryDatabaseAware<MockDatabase>, Initializ
 
     }
 
+    @Test
+    public void testPersistAlarmsInBatches() throws Exception {
+        assertEmptyAlarmTable();
+
+        final AlarmPersisterImpl persister = (AlarmPersisterImpl)m_alarmd.getPersister();
+        final AlarmPersisterImpl batchingPersister = new AlarmPersisterImpl();
+        batchingPersister.setAlarmDao(persister.getAlarmDao());
+        batchingPersister.setEventDao(persister.getEventDao());
+        batchingPersister.setEventForwarder(persister.getEventForwarder());
+        batchingPersister.setTransactionOperations(persister.getTransactionOperations());
+        batchingPersister.setBatchEnabled(true);
+        batchingPersister.afterPropertiesSet();
+        m_alarmd.setPersister(batchingPersister);
+
+        try {
+            final MockNode node = m_mockNetwork.getNode(1);
+            for (int i = 0; i < 20; i++) {
+                sendNodeDownEvent(i % 2 == 0 ? "batchedEven" : "batchedOdd", node);
+            }
+            await().atMost(1, MINUTES).until(() -> m_jdbcTemplate.queryForObject("select sum(counter) from alarms", Integer.class), equalTo(20));
+        } finally {
+            m_alarmd.setPersister(persister);
+            batchingPersister.destroy();
+        }
+
+        assertEquals(2, m_jdbcTemplate.queryForObject("select count(*) from alarms", Integer.class).intValue());
+        assertEquals(10, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = ?", new Object[] { "batchedEven" }, Integer.class).intValue());
+        assertEquals(20, m_jdbcTemplate.queryForObject("select count(*) from events where alarmid is not null", Integer.class).intValue());
+    }
+
+    @Test
+    public void testAutoCleanInBatches() throws Exception {
+        assertEmptyAlarmTable();
+
+        // Hold the first transaction so that the remaining events are persisted in a single batch
+        final CountDownLatch flushing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AlarmPersisterImpl persister = (AlarmPersisterImpl)m_alarmd.getPersister();
+        final TransactionOperations transactionOperations = persister.getTransactionOperations();
+        final AlarmPersisterImpl batchingPersister = new AlarmPersisterImpl();
+        batchingPersister.setAlarmDao(persister.getAlarmDao());
+        batchingPersister.setEventDao(persister.getEventDao());
+        batchingPersister.setEventForwarder(persister.getEventForwarder());
+        batchingPersister.setTransactionOperations(new TransactionOperations() {
+            @Override
+            public <T> T execute(TransactionCallback<T> action) throws TransactionException {
+                flushing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return transactionOperations.execute(action);
+            }
+        });
+        batchingPersister.setBatchEnabled(true);
+        batchingPersister.afterPropertiesSet();
+        m_alarmd.setPersister(batchingPersister);
+
+        try {
+            final MockNode node = m_mockNetwork.getNode(1);
+            sendNodeDownEvent("batchedAutoClean", node);
+            flushing.await();
+
+            sendNodeDownEvent("batchedAutoClean", node);
+            sendNodeDownEvent("batchedAutoClean", node, true);
+            sendNodeDownEvent("batchedAutoClean", node);
+            sendNodeDownEvent("batchedAutoClean", node, true);
+            sendNodeDownEvent("batchedAutoClean", node);
+            release.countDown();
+
+            await().atMost(1, MINUTES).until(() -> m_jdbcTemplate.queryForObject("select sum(counter) from alarms", Integer.class), equalTo(6));
+        } finally {
+            release.countDown();
+            m_alarmd.setPersister(persister);
+            batchingPersister.destroy();
+        }
+
+        // Only the last auto-clean event and the event reduced after it are kept
+        final Integer alarmId = m_jdbcTemplate.queryForObject("select alarmId from alarms where reductionKey = ?", new Object[] { "batchedAutoClean" }, Integer.class);
+        assertEquals(2, m_jdbcTemplate.queryForObject("select count(*) from events where alarmid = ?", new Object[] { alarmId }, Integer.class).intValue());
+        assertEquals(1, m_jdbcTemplate.queryForObject("select count(*) from alarms a join events e on a.lastEventId = e.eventId where a.alarmId = ?", new Object[] { alarmId }, Integer.class).intValue());
+    }
+
+    @Test
+    public void testDestroyPersistsQueuedEvents() throws Exception {
+        assertEmptyAlarmTable();
+
+        // Hold the first transaction so that the remaining events are still queued when the persister is destroyed
+        final CountDownLatch flushing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AlarmPersisterImpl persister = (AlarmPersisterImpl)m_alarmd.getPersister();
+        final TransactionOperations transactionOperations = persister.getTransactionOperations();
+        final AlarmPersisterImpl batchingPersister = new AlarmPersisterImpl();
+        batchingPersister.setAlarmDao(persister.getAlarmDao());
+        batchingPersister.setEventDao(persister.getEventDao());
+        batchingPersister.setEventForwarder(persister.getEventForwarder());
+        batchingPersister.setTransactionOperations(new TransactionOperations() {
+            @Override
+            public <T> T execute(TransactionCallback<T> action) throws TransactionException {
+                flushing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return transactionOperations.execute(action);
+            }
+        });
+        batchingPersister.setBatchEnabled(true);
+        batchingPersister.afterPropertiesSet();
+        m_alarmd.setPersister(batchingPersister);
+
+        try {
+            final MockNode node = m_mockNetwork.getNode(1);
+            sendNodeDownEvent("batchedDestroy", node);
+            flushing.await();
+
+            for (int i = 0; i < 4; i++) {
+                sendNodeDownEvent("batchedDestroy", node);
+            }
+            await().atMost(1, MINUTES).until(() -> (Integer)batchingPersister.getMetricRegistry().getGauges().get("queued").getValue(), equalTo(4));
+        } finally {
+            m_alarmd.setPersister(persister);
+            release.countDown();
+            batchingPersister.destroy();
+        }
+
+        // The flush in progress and the queued events were persisted before destroy() returned
+        assertEquals(5, m_jdbcTemplate.queryForObject("select counter from alarms where reductionKey = ?", new Object[] { "batchedDestroy" }, Integer.class).intValue());
+    }
+
     @Test
     public void testNullEvent() throws Exception {
         ThrowableAnticipator ta = new ThrowableAnticipator();
@@ -552,12 +690,17 @@ public class AlarmdIT implements TemporaryDatabaseAware<MockDatabase>, Initializ
     }
 
     private void sendNodeDownEvent(String reductionKey, MockNode node) throws SQLException {
+        sendNodeDownEvent(reductionKey, node, false);
+    }
+
+    private void sendNodeDownEvent(String reductionKey, MockNode node, boolean autoClean) throws SQLException {
         EventBuilder event = MockEventUtil.createNodeDownEventBuilder("Test", node);
 
         if (reductionKey != null) {
             AlarmData data = new AlarmData();
             data.setAlarmType(1);
             data.setReductionKey(reductionKey);            
+            data.setAutoClean(autoClean);
             event.setAlarmData(data);
         } else {
             event.setAlarmData(null);
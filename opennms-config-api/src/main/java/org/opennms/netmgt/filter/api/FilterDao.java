@@ -65,6 +65,18 @@ public interface FilterDao {
 
     void flushActiveIpAddressListCache();
 
+    /**
+     * Notify the DAO that the interfaces, services, categories or attributes
+     * of a node have changed. Implementations that cache the results of rules
+     * can use this to update them for the given node only, the default is to
+     * flush everything.
+     *
+     * @param nodeId the node that changed
+     */
+    default void flushActiveIpAddressListCache(int nodeId) {
+        flushActiveIpAddressListCache();
+    }
+
     /**
      * Get the (non-deleted) IP addresses that match the specified rule.
      *
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.filter;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.opennms.netmgt.filter.api.FilterParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Keeps the set of active interfaces that match each filter rule in memory so
+ * that membership checks can be answered without a database round trip.
+ *
+ * The results for a rule are loaded in full the first time that the rule is
+ * used, and are then updated one node at a time as nodes change. Each update
+ * copies the results of the rule, which keeps lookups lock-free and
+ * consistent at the cost of O(results) work per rule and node update. Entries
+ * older than the maximum age are reloaded in full, which guards against
+ * changes that were made without sending the corresponding events.
+ */
+public class FilterRuleCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilterRuleCache.class);
+
+    /**
+     * Loads the active interfaces matching a rule, along with their node ids.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * @param rule the filter rule
+         * @param nodeId only return interfaces on the given node, or null for all nodes
+         * @return the matching interfaces mapped to the ids of the nodes they belong to, since
+         * the same address may be used by interfaces on several nodes
+         */
+        Map<InetAddress, Set<Integer>> load(String rule, Integer nodeId) throws FilterParseException;
+    }
+
+    /**
+     * The results for a rule. Entries are never modified once they were put
+     * in the cache, updates build a new entry and replace the previous one.
+     */
+    private static class Entry {
+        /**
+         * An address stays in the map for as long as at least one of its nodes matches the rule.
+         */
+        private final Map<InetAddress, Set<Integer>> nodeIdsByAddress;
+        private final Map<Integer, Set<InetAddress>> addressesByNodeId;
+        private final long loadedAt;
+
+        private Entry(Map<InetAddress, Set<Integer>> matches, long loadedAt) {
+            this(new HashMap<>(), new HashMap<>(), loadedAt);
+            add(matches);
+        }
+
+        private Entry(Map<InetAddress, Set<Integer>> nodeIdsByAddress, Map<Integer, Set<InetAddress>> addressesByNodeId, long loadedAt) {
+            this.nodeIdsByAddress = nodeIdsByAddress;
+            this.addressesByNodeId = addressesByNodeId;
+            this.loadedAt = loadedAt;
+        }
+
+        private void add(Map<InetAddress, Set<Integer>> matches) {
+            matches.forEach((addr, nodeIds) -> nodeIds.forEach(nodeId -> add(addr, nodeId)));
+        }
+
+        // The sets may be shared with the entry this one was copied from, so they are replaced instead of modified
+        private void add(InetAddress addr, Integer nodeId) {
+            nodeIdsByAddress.compute(addr, (k, nodeIds) -> {
+                final Set<Integer> updated = nodeIds != null ? new HashSet<>(nodeIds) : new HashSet<>();
+                updated.add(nodeId);
+                return updated;
+            });
+            addressesByNodeId.compute(nodeId, (k, addrs) -> {
+                final Set<InetAddress> updated = addrs != null ? new HashSet<>(addrs) : new HashSet<>();
+                updated.add(addr);
+                return updated;
+            });
+        }
+
+        private void removeNode(int nodeId) {
+            final Set<InetAddress> addrs = addressesByNodeId.remove(nodeId);
+            if (addrs != null) {
+                for (InetAddress addr : addrs) {
+                    nodeIdsByAddress.computeIfPresent(addr, (k, nodeIds) -> {
+                        final Set<Integer> updated = new HashSet<>(nodeIds);
+                        updated.remove(nodeId);
+                        return updated.isEmpty() ? null : updated;
+                    });
+                }
+            }
+        }
+
+        /**
+         * @return a copy of this entry in which the interfaces of the given node are replaced
+         */
+        private Entry withNode(int nodeId, Map<InetAddress, Set<Integer>> matches) {
+            final Entry updated = new Entry(new HashMap<>(nodeIdsByAddress), new HashMap<>(addressesByNodeId), loadedAt);
+            updated.removeNode(nodeId);
+            updated.add(matches);
+            return updated;
+        }
+    }
+
+    private final Loader m_loader;
+    private final long m_maxAgeMs;
+    private final Map<String, Entry> m_entries = new ConcurrentHashMap<>();
+
+    /**
+     * Serializes all of the writers. Readers never wait on this lock unless
+     * the rule they are looking up has not been loaded yet.
+     */
+    private final ReentrantLock m_writeLock = new ReentrantLock();
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+    private final Meter m_hits = m_metrics.meter("hits");
+    private final Meter m_misses = m_metrics.meter("misses");
+    private final Timer m_loads = m_metrics.timer("loads");
+    private final Timer m_nodeUpdates = m_metrics.timer("node-updates");
+
+    public FilterRuleCache(Loader loader, long maxAgeMs) {
+        m_loader = Objects.requireNonNull(loader);
+        m_maxAgeMs = maxAgeMs;
+        m_metrics.register("rules", (Gauge<Integer>) m_entries::size);
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return m_metrics;
+    }
+
+    /**
+     * @return true if the given address is an active interface that matches the rule
+     */
+    public boolean contains(String rule, InetAddress addr) throws FilterParseException {
+        return getEntry(rule).nodeIdsByAddress.containsKey(addr);
+    }
+
+    /**
+     * @return the active interfaces that match the rule
+     */
+    public Set<InetAddress> getAddresses(String rule) throws FilterParseException {
+        return Collections.unmodifiableSet(getEntry(rule).nodeIdsByAddress.keySet());
+    }
+
+    /**
+     * Re-evaluates all of the cached rules against the given node. If the node
+     * was deleted, this removes its interfaces from all of the rules.
+     */
+    public void updateNode(int nodeId) {
+        m_writeLock.lock();
+        try {
+            for (Map.Entry<String, Entry> entry : m_entries.entrySet()) {
+                try (Timer.Context ctx = m_nodeUpdates.time()) {
+                    // Swap in the updated results in one step, so that readers never see the node half updated
+                    m_entries.put(entry.getKey(), entry.getValue().withNode(nodeId, m_loader.load(entry.getKey(), nodeId)));
+                } catch (FilterParseException e) {
+                    LOG.warn("Failed to update rule '{}' for node {}, removing it from the cache.", entry.getKey(), nodeId, e);
+                    m_entries.remove(entry.getKey());
+                }
+            }
+        } finally {
+            m_writeLock.unlock();
+        }
+    }
+
+    public void clear() {
+        m_writeLock.lock();
+        try {
+            m_entries.clear();
+        } finally {
+            m_writeLock.unlock();
+        }
+    }
+
+    private Entry getEntry(String rule) {
+        final Entry entry = m_entries.get(rule);
+        if (entry != null) {
+            if (!isExpired(entry)) {
+                m_hits.mark();
+                return entry;
+            }
+            // Keep serving the expired results while another thread reloads them
+            if (!m_writeLock.tryLock()) {
+                m_hits.mark();
+                return entry;
+            }
+        } else {
+            m_writeLock.lock();
+        }
+
+        try {
+            // Check again now that we hold the lock
+            final Entry current = m_entries.get(rule);
+            if (current != null && !isExpired(current)) {
+                m_hits.mark();
+                return current;
+            }
+
+            m_misses.mark();
+            final Entry loaded;
+            try (Timer.Context ctx = m_loads.time()) {
+                loaded = new Entry(m_loader.load(rule, null), System.currentTimeMillis());
+            }
+            m_entries.put(rule, loaded);
+            return loaded;
+        } finally {
+            m_writeLock.unlock();
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return m_maxAgeMs > 0 && System.currentTimeMillis() - entry.loadedAt > m_maxAgeMs;
+    }
+}
@@ -38,12 +38,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,12 +59,15 @@ import org.opennms.netmgt.filter.api.FilterDao;
 import org.opennms.netmgt.filter.api.FilterParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
+import com.codahale.metrics.JmxReporter;
+
 /**
  * <p>JdbcFilterDao class.</p>
  *
@@ -70,7 +75,7 @@ import org.springframework.util.Assert;
  * @version $Id: $
  */
 @Transactional
-public class JdbcFilterDao implements FilterDao, InitializingBean {
+public class JdbcFilterDao implements FilterDao, InitializingBean, DisposableBean {
     private static final Logger LOG = LoggerFactory.getLogger(JdbcFilterDao.class);
     private static final Pattern SQL_KEYWORD_PATTERN = Pattern.compile("\\s+(?:AND|OR|(?:NOT )?(?:LIKE|IN)|IS (?:NOT )?DISTINCT FROM)\\s+|(?:\\s+IS (?:NOT )?NULL|::(?:TIMESTAMP|INET))(?!\\w)|(?<!\\w)(?:NOT\\s+|IPLIKE(?=\\())", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
     private static final Pattern SQL_QUOTE_PATTERN = Pattern.compile("'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"");
@@ -79,9 +84,18 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
 	private static final Pattern SQL_IPLIKE_PATTERN = Pattern.compile("(\\w+)\\s+IPLIKE\\s+([0-9a-f.:*,-]+|###@\\d+@###)", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
 	private static final String SQL_IPLIKE6_RHS_REGEX = "^[0-9A-Fa-f:*,-]+$";
 
+    /**
+     * Maximum age of the results cached for {@link #isValid(String, String)}
+     * before they are reloaded in full, in milliseconds. 0 disables reloading.
+     */
+    private static final long RULE_CACHE_MAX_AGE_MS = Long.getLong("org.opennms.netmgt.filter.ruleCacheMaxAge", TimeUnit.MINUTES.toMillis(5));
+
 	private DataSource m_dataSource;
     private DatabaseSchemaConfig m_databaseSchemaConfigFactory;
 
+    private final FilterRuleCache m_ruleCache = new FilterRuleCache(this::getActiveIPAddressNodeMap, RULE_CACHE_MAX_AGE_MS);
+    private JmxReporter m_ruleCacheReporter;
+
     /**
      * <p>setDataSource</p>
      *
@@ -125,6 +139,24 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
     public void afterPropertiesSet() {
         Assert.state(m_dataSource != null, "property dataSource cannot be null");
         Assert.state(m_databaseSchemaConfigFactory != null, "property databaseSchemaConfigFactory cannot be null");
+
+        if (m_ruleCacheReporter == null) {
+            m_ruleCacheReporter = JmxReporter.forRegistry(m_ruleCache.getMetricRegistry())
+                    .inDomain("org.opennms.netmgt.filter.ruleCache")
+                    .build();
+            m_ruleCacheReporter.start();
+        }
+    }
+
+    /**
+     * <p>destroy</p>
+     */
+    @Override
+    public void destroy() {
+        if (m_ruleCacheReporter != null) {
+            m_ruleCacheReporter.stop();
+            m_ruleCacheReporter = null;
+        }
     }
 
     /**
@@ -244,7 +276,20 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
 
     @Override
     @CacheEvict(value="activeIpAddressList", allEntries=true)
-    public void flushActiveIpAddressListCache() {}
+    public void flushActiveIpAddressListCache() {
+        m_ruleCache.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Updates the rule results cached for {@link #isValid(String, String)} by
+     * re-evaluating each rule against the given node only.
+     */
+    @Override
+    public void flushActiveIpAddressListCache(final int nodeId) {
+        m_ruleCache.updateNode(nodeId);
+    }
 
     /**
      * {@inheritDoc}
@@ -318,6 +363,71 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
         return resultList;
     }
 
+    /**
+     * Get the non-deleted IP addresses that match the rule along with the ids
+     * of the nodes that they belong to, optionally limited to a single node.
+     * The same address may belong to several nodes.
+     */
+    private Map<InetAddress, Set<Integer>> getActiveIPAddressNodeMap(final String rule, final Integer nodeId) throws FilterParseException {
+        final Map<InetAddress, Set<Integer>> results = new HashMap<>();
+
+        LOG.debug("Filter.getActiveIPAddressNodeMap({}, {})", rule, nodeId);
+
+        Connection conn = null;
+        final DBUtils d = new DBUtils(getClass());
+        try {
+            final List<Table> tables = new ArrayList<>();
+            final String columns = m_databaseSchemaConfigFactory.addColumn(tables, "ipAddr") + ", " + m_databaseSchemaConfigFactory.addColumn(tables, "nodeID");
+
+            // Wrap the rule so that its OR clauses do not swallow the conditions appended below
+            final String ruleWhere = parseRule(tables, rule);
+            final StringBuilder where = new StringBuilder("WHERE ");
+            if (ruleWhere.isEmpty()) {
+                where.append("TRUE");
+            } else {
+                where.append('(').append(ruleWhere.substring("WHERE ".length())).append(')');
+            }
+            if (nodeId != null) {
+                where.append(" AND " + m_databaseSchemaConfigFactory.addColumn(tables, "nodeID") + " = " + nodeId);
+            }
+            if (where.indexOf("isManaged") < 0) {
+                where.append(" AND (ipInterface.isManaged != 'D' or ipInterface.isManaged IS NULL)");
+            }
+
+            final String from = m_databaseSchemaConfigFactory.constructJoinExprForTables(tables);
+            final String sqlString = "SELECT DISTINCT " + columns + " " + from + " " + where;
+
+            conn = getDataSource().getConnection();
+            d.watch(conn);
+
+            LOG.debug("Filter.getActiveIPAddressNodeMap({}, {}): SQL statement: {}", rule, nodeId, sqlString);
+
+            final Statement stmt = conn.createStatement();
+            d.watch(stmt);
+            final ResultSet rset = stmt.executeQuery(sqlString);
+            d.watch(rset);
+
+            if (rset != null) {
+                while (rset.next()) {
+                    results.computeIfAbsent(addr(rset.getString(1)), k -> new TreeSet<Integer>()).add(rset.getInt(2));
+                }
+            }
+        } catch (final FilterParseException e) {
+            LOG.warn("Filter Parse Exception occurred getting IP List.", e);
+            throw new FilterParseException("Filter Parse Exception occurred getting IP List: " + e.getLocalizedMessage(), e);
+        } catch (final SQLException e) {
+            LOG.warn("SQL Exception occurred getting IP List.", e);
+            throw new FilterParseException("SQL Exception occurred getting IP List: " + e.getLocalizedMessage(), e);
+        } catch (final Throwable e) {
+            LOG.error("Exception getting database connection.", e);
+            throw new UndeclaredThrowableException(e);
+        } finally {
+            d.cleanUp();
+        }
+
+        return results;
+    }
+
 	/**
      * {@inheritDoc}
      *
@@ -332,10 +442,10 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
             return true;
         } else {
             /*
-             * see if the ip address is contained in the list that the
+             * see if the ip address is contained in the set that the
              * rule returns
              */
-            return getActiveIPAddressList(rule).contains(addr(addr));
+            return m_ruleCache.contains(rule, addr(addr));
         }
     }
 
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.opennms.core.utils.InetAddressUtils.addr;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FilterRuleCacheTest {
+
+    private static final String RULE = "IPADDR != '0.0.0.0'";
+
+    /**
+     * Interfaces in the "database", mapped to the ids of their nodes.
+     */
+    private final Map<InetAddress, Set<Integer>> m_interfaces = new HashMap<>();
+
+    private final AtomicInteger m_fullLoads = new AtomicInteger();
+    private final AtomicInteger m_nodeLoads = new AtomicInteger();
+
+    private FilterRuleCache m_cache;
+
+    @Before
+    public void setUp() {
+        addInterface("10.0.0.1", 1);
+        addInterface("10.0.0.2", 1);
+        addInterface("10.0.0.3", 2);
+
+        m_cache = new FilterRuleCache((rule, nodeId) -> {
+            final Map<InetAddress, Set<Integer>> matches = new HashMap<>();
+            m_interfaces.forEach((addr, ids) -> {
+                for (Integer id : ids) {
+                    if (nodeId == null || nodeId.equals(id)) {
+                        matches.computeIfAbsent(addr, k -> new HashSet<>()).add(id);
+                    }
+                }
+            });
+            (nodeId == null ? m_fullLoads : m_nodeLoads).incrementAndGet();
+            return matches;
+        }, 0);
+    }
+
+    @Test
+    public void canAnswerFromMemory() {
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.1")));
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.3")));
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.4")));
+
+        // Only the first lookup should have hit the loader
+        assertEquals(1, m_fullLoads.get());
+        assertEquals(1, m_cache.getMetricRegistry().meter("misses").getCount());
+        assertEquals(2, m_cache.getMetricRegistry().meter("hits").getCount());
+    }
+
+    @Test
+    public void canUpdateSingleNode() {
+        assertEquals(3, m_cache.getAddresses(RULE).size());
+
+        // Node 1 loses an interface and node 2 gains one
+        m_interfaces.remove(addr("10.0.0.2"));
+        addInterface("10.0.0.4", 2);
+        m_cache.updateNode(1);
+        m_cache.updateNode(2);
+
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.1")));
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.2")));
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.4")));
+        assertEquals(1, m_fullLoads.get());
+        assertEquals(2, m_nodeLoads.get());
+
+        // Node 2 is deleted
+        deleteNode(2);
+        m_cache.updateNode(2);
+
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.3")));
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.4")));
+        assertEquals(1, m_cache.getAddresses(RULE).size());
+    }
+
+    @Test
+    public void canShareAddressesBetweenNodes() {
+        // Node 2 uses the same address as node 1
+        addInterface("10.0.0.1", 2);
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.1")));
+        assertEquals(3, m_cache.getAddresses(RULE).size());
+
+        // The address still matches while one of its nodes does
+        deleteNode(1);
+        m_cache.updateNode(1);
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.1")));
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.2")));
+
+        deleteNode(2);
+        m_cache.updateNode(2);
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.1")));
+        assertEquals(0, m_cache.getAddresses(RULE).size());
+        assertEquals(1, m_fullLoads.get());
+    }
+
+    @Test
+    public void canKeepPreviousResultsUnchanged() {
+        final Set<InetAddress> before = m_cache.getAddresses(RULE);
+
+        // Node 1 moves to another address
+        deleteNode(1);
+        addInterface("10.0.0.5", 1);
+        m_cache.updateNode(1);
+
+        // The results that were handed out earlier must not see the update
+        assertEquals(3, before.size());
+        assertTrue(before.contains(addr("10.0.0.1")));
+        assertFalse(before.contains(addr("10.0.0.5")));
+
+        assertEquals(2, m_cache.getAddresses(RULE).size());
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.5")));
+    }
+
+    @Test
+    public void canClear() {
+        assertTrue(m_cache.contains(RULE, addr("10.0.0.1")));
+        m_interfaces.clear();
+        m_cache.clear();
+        assertFalse(m_cache.contains(RULE, addr("10.0.0.1")));
+        assertEquals(2, m_fullLoads.get());
+    }
+
+    private void addInterface(String ipAddr, int nodeId) {
+        m_interfaces.computeIfAbsent(addr(ipAddr), k -> new HashSet<>()).add(nodeId);
+    }
+
+    private void deleteNode(int nodeId) {
+        m_interfaces.values().forEach(ids -> ids.remove(nodeId));
+        m_interfaces.values().removeIf(Set::isEmpty);
+    }
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.dao.hibernate;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * An open-addressing table that maps IP addresses to the nodes they belong to.
+ *
+ * IPv4 addresses are keyed by their 32-bit value and IPv6 addresses by
+ * the two halves of their 128-bit value, so no key objects are needed. The
+ * entries stored for an address are sorted longs that hold the rank of the
+ * interface's {@link org.opennms.netmgt.model.PrimaryType} in the upper 32 bits
+ * and the node id in the lower 32 bits, so that their natural order matches
+ * the order of the primary types followed by the node ids.
+ *
+ * Instances are not thread-safe, but they are never modified once they are
+ * shared with readers. Updates are applied to a {@link #copy()} instead.
+ */
+final class AddressTable {
+
+    static final long[] NO_ENTRIES = new long[0];
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] m_v4Keys;
+    private long[][] m_v4Entries;
+    private int m_v4Size;
+
+    private long[] m_v6Keys;
+    private long[][] m_v6Entries;
+    private int m_v6Size;
+
+    private int m_numEntries;
+
+    AddressTable() {
+        this(0);
+    }
+
+    AddressTable(final int expectedSize) {
+        final int capacity = capacityFor(expectedSize);
+        m_v4Keys = new int[capacity];
+        m_v4Entries = new long[capacity][];
+        m_v6Keys = new long[2 * MIN_CAPACITY];
+        m_v6Entries = new long[MIN_CAPACITY][];
+    }
+
+    private AddressTable(final AddressTable other) {
+        m_v4Keys = other.m_v4Keys.clone();
+        m_v4Entries = other.m_v4Entries.clone();
+        m_v4Size = other.m_v4Size;
+        m_v6Keys = other.m_v6Keys.clone();
+        m_v6Entries = other.m_v6Entries.clone();
+        m_v6Size = other.m_v6Size;
+        m_numEntries = other.m_numEntries;
+    }
+
+    /**
+     * @return the entries stored for the given address, or <code>null</code> if
+     * the address is not in the table
+     */
+    long[] get(final InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // The hash code of an IPv4 address is its 32-bit value
+            return getV4(address.hashCode());
+        }
+        final byte[] bytes = address.getAddress();
+        return getV6(toLong(bytes, 0), toLong(bytes, 8));
+    }
+
+    /**
+     * Replaces the entries stored for the given address. An empty array
+     * records that the address has no nodes, hiding any entries stored for
+     * the address in an older table.
+     */
+    void put(final InetAddress address, final long[] entries) {
+        if (address instanceof Inet4Address) {
+            putV4(address.hashCode(), entries);
+        } else {
+            final byte[] bytes = address.getAddress();
+            putV6(toLong(bytes, 0), toLong(bytes, 8), entries);
+        }
+    }
+
+    AddressTable copy() {
+        return new AddressTable(this);
+    }
+
+    /**
+     * @return the number of addresses in the table
+     */
+    int getNumAddresses() {
+        return m_v4Size + m_v6Size;
+    }
+
+    /**
+     * @return the total number of entries stored for all addresses
+     */
+    int getNumEntries() {
+        return m_numEntries;
+    }
+
+    /**
+     * Builds a new table that contains the entries of the given overlay and
+     * the entries of the base table for addresses that are not in the overlay.
+     * Addresses without any entries are dropped.
+     */
+    static AddressTable merge(final AddressTable base, final AddressTable overlay) {
+        final AddressTable merged = new AddressTable(base.getNumAddresses() + overlay.getNumAddresses());
+        for (int i = 0; i < base.m_v4Entries.length; i++) {
+            final long[] entries = base.m_v4Entries[i];
+            if (entries != null && entries.length > 0 && overlay.getV4(base.m_v4Keys[i]) == null) {
+                merged.putV4(base.m_v4Keys[i], entries);
+            }
+        }
+        for (int i = 0; i < base.m_v6Entries.length; i++) {
+            final long[] entries = base.m_v6Entries[i];
+            if (entries != null && entries.length > 0 && overlay.getV6(base.m_v6Keys[2 * i], base.m_v6Keys[2 * i + 1]) == null) {
+                merged.putV6(base.m_v6Keys[2 * i], base.m_v6Keys[2 * i + 1], entries);
+            }
+        }
+        for (int i = 0; i < overlay.m_v4Entries.length; i++) {
+            final long[] entries = overlay.m_v4Entries[i];
+            if (entries != null && entries.length > 0) {
+                merged.putV4(overlay.m_v4Keys[i], entries);
+            }
+        }
+        for (int i = 0; i < overlay.m_v6Entries.length; i++) {
+            final long[] entries = overlay.m_v6Entries[i];
+            if (entries != null && entries.length > 0) {
+                merged.putV6(overlay.m_v6Keys[2 * i], overlay.m_v6Keys[2 * i + 1], entries);
+            }
+        }
+        return merged;
+    }
+
+    static long toEntry(final int rank, final int nodeId) {
+        return ((long)rank << 32) | (nodeId & 0xFFFFFFFFL);
+    }
+
+    static int getNodeId(final long entry) {
+        return (int)entry;
+    }
+
+    /**
+     * @return the given entries with the entry added, or the same array if
+     * the entry was already present
+     */
+    static long[] addEntry(final long[] entries, final long entry) {
+        final int index = Arrays.binarySearch(entries, entry);
+        if (index >= 0) {
+            return entries;
+        }
+        final int insertionPoint = -index - 1;
+        final long[] updated = new long[entries.length + 1];
+        System.arraycopy(entries, 0, updated, 0, insertionPoint);
+        updated[insertionPoint] = entry;
+        System.arraycopy(entries, insertionPoint, updated, insertionPoint + 1, entries.length - insertionPoint);
+        return updated;
+    }
+
+    /**
+     * Removes the entry with the highest rank for the given node.
+     *
+     * @return the given entries without the entry, or the same array if there
+     * is no entry for the node
+     */
+    static long[] removeEntry(final long[] entries, final int nodeId) {
+        for (int i = entries.length - 1; i >= 0; i--) {
+            if (getNodeId(entries[i]) == nodeId) {
+                final long[] updated = new long[entries.length - 1];
+                System.arraycopy(entries, 0, updated, 0, i);
+                System.arraycopy(entries, i + 1, updated, i, entries.length - i - 1);
+                return updated;
+            }
+        }
+        return entries;
+    }
+
+    private long[] getV4(final int key) {
+        final int mask = m_v4Entries.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            final long[] entries = m_v4Entries[slot];
+            if (entries == null || m_v4Keys[slot] == key) {
+                return entries;
+            }
+        }
+    }
+
+    private long[] getV6(final long high, final long low) {
+        final int mask = m_v6Entries.length - 1;
+        for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+            final long[] entries = m_v6Entries[slot];
+            if (entries == null || (m_v6Keys[2 * slot] == high && m_v6Keys[2 * slot + 1] == low)) {
+                return entries;
+            }
+        }
+    }
+
+    private void putV4(final int key, final long[] entries) {
+        if (2 * (m_v4Size + 1) > m_v4Entries.length) {
+            final int[] keys = m_v4Keys;
+            final long[][] values = m_v4Entries;
+            m_v4Keys = new int[2 * keys.length];
+            m_v4Entries = new long[2 * values.length][];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    final int slot = findV4Slot(keys[i]);
+                    m_v4Keys[slot] = keys[i];
+                    m_v4Entries[slot] = values[i];
+                }
+            }
+        }
+        final int slot = findV4Slot(key);
+        final long[] previous = m_v4Entries[slot];
+        if (previous == null) {
+            m_v4Size++;
+        } else {
+            m_numEntries -= previous.length;
+        }
+        m_v4Keys[slot] = key;
+        m_v4Entries[slot] = entries;
+        m_numEntries += entries.length;
+    }
+
+    private void putV6(final long high, final long low, final long[] entries) {
+        if (2 * (m_v6Size + 1) > m_v6Entries.length) {
+            final long[] keys = m_v6Keys;
+            final long[][] values = m_v6Entries;
+            m_v6Keys = new long[2 * keys.length];
+            m_v6Entries = new long[2 * values.length][];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    final int slot = findV6Slot(keys[2 * i], keys[2 * i + 1]);
+                    m_v6Keys[2 * slot] = keys[2 * i];
+                    m_v6Keys[2 * slot + 1] = keys[2 * i + 1];
+                    m_v6Entries[slot] = values[i];
+                }
+            }
+        }
+        final int slot = findV6Slot(high, low);
+        final long[] previous = m_v6Entries[slot];
+        if (previous == null) {
+            m_v6Size++;
+        } else {
+            m_numEntries -= previous.length;
+        }
+        m_v6Keys[2 * slot] = high;
+        m_v6Keys[2 * slot + 1] = low;
+        m_v6Entries[slot] = entries;
+        m_numEntries += entries.length;
+    }
+
+    private int findV4Slot(final int key) {
+        final int mask = m_v4Entries.length - 1;
+        int slot = hash(key) & mask;
+        while (m_v4Entries[slot] != null && m_v4Keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int findV6Slot(final long high, final long low) {
+        final int mask = m_v6Entries.length - 1;
+        int slot = hash(high, low) & mask;
+        while (m_v6Entries[slot] != null && (m_v6Keys[2 * slot] != high || m_v6Keys[2 * slot + 1] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int capacityFor(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(final int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(final long high, final long low) {
+        final long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+        final long m = h * 0xC2B2AE3D27D4EB4FL;
+        return (int)(m ^ (m >>> 32));
+    }
+
+    private static long toLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -31,11 +31,13 @@ package org.opennms.netmgt.dao.hibernate;
 import static org.opennms.core.utils.InetAddressUtils.str;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Objects;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
 
 import org.opennms.core.criteria.CriteriaBuilder;
 import org.opennms.core.utils.LocationUtils;
@@ -49,135 +51,121 @@ import org.opennms.netmgt.model.OnmsNode.NodeType;
 import org.opennms.netmgt.model.PrimaryType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 
-import com.google.common.collect.ComparisonChain;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SortedSetMultimap;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
  * This class represents a singular instance that is used to map IP
  * addresses to known nodes.
  *
+ * The addresses of each location are kept in an immutable {@link AddressTable}.
+ * Lookups read the current tables without taking any locks, while updates
+ * are applied to copies which are then published. To avoid copying the whole
+ * table for every update, updates are collected in a small overlay table
+ * which is merged into the base table once it grows too large.
+ *
  * @author Seth
  * @author <a href="mailto:joed@opennms.org">Johan Edstrom</a>
  * @author <a href="mailto:weave@oculan.com">Brian Weaver </a>
  * @author <a href="mailto:tarus@opennms.org">Tarus Balog </a>
  * @author <a href="http://www.opennms.org/">OpenNMS </a>
  */
-public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache implements InterfaceToNodeCache {
+public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache implements InterfaceToNodeCache, InitializingBean, DisposableBean {
     private static final Logger LOG = LoggerFactory.getLogger(InterfaceToNodeCacheDaoImpl.class);
 
-    private static class Key {
-        private final String location;
-        private final InetAddress ipAddress;
+    /**
+     * The primary types in ascending order. Nodes are returned in this order.
+     */
+    private static final List<PrimaryType> PRIMARY_TYPES = PrimaryType.getAllTypes();
 
-        public Key(String location, InetAddress ipAddress) {
-            // Use the default location when location is null
-            this.location = LocationUtils.getEffectiveLocationName(location);
-            this.ipAddress = Objects.requireNonNull(ipAddress);
-        }
+    private static final int MIN_OVERLAY_SIZE = 64;
 
-        public InetAddress getIpAddress() {
-            return ipAddress;
-        }
+    /**
+     * The addresses of a single location.
+     */
+    private static class Partition {
+        private static final Partition EMPTY = new Partition(new AddressTable(), new AddressTable());
 
-        public String getLocation() {
-            return location;
-        }
+        private final AddressTable m_base;
+        private final AddressTable m_overlay;
 
-        @Override
-        public boolean equals(final Object obj) {
-            if (obj == null) {
-                return false;
-            }
-            if (obj == this) {
-                return true;
-            }
-            if (obj.getClass() != getClass()) {
-                return false;
-            }
-            final Key that = (Key) obj;
-            return Objects.equals(this.ipAddress, that.ipAddress)
-                    && Objects.equals(this.location, that.location);
+        private Partition(final AddressTable base, final AddressTable overlay) {
+            m_base = base;
+            m_overlay = overlay;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(this.ipAddress, this.location);
+        private long[] get(final InetAddress address) {
+            final long[] entries = m_overlay.get(address);
+            return entries != null ? entries : m_base.get(address);
         }
 
-        @Override
-        public String toString() {
-            return String.format("Key[location='%s', ipAddress='%s']", this.location, this.ipAddress);
+        private Partition with(final InetAddress address, final long[] entries) {
+            final AddressTable overlay = m_overlay.copy();
+            overlay.put(address, entries);
+            // The cost of copying the overlay is balanced with the cost of merging it into the base
+            if (overlay.getNumAddresses() > Math.max(MIN_OVERLAY_SIZE, (int)Math.sqrt(m_base.getNumAddresses()))) {
+                return new Partition(AddressTable.merge(m_base, overlay), new AddressTable());
+            }
+            return new Partition(m_base, overlay);
         }
     }
 
-    private static class Value implements Comparable<Value> {
-        private final int nodeId;
-        private final PrimaryType type;
+    @Autowired
+    private NodeDao m_nodeDao;
 
+    @Autowired
+    private IpInterfaceDao m_ipInterfaceDao;
 
-        private Value(final int nodeId,
-                      final PrimaryType type) {
-            this.nodeId = nodeId;
-            this.type = type;
-        }
+    private volatile Map<String, Partition> m_partitions = Collections.emptyMap();
 
-        public int getNodeId() {
-            return this.nodeId;
-        }
+    /**
+     * The number of entries in all partitions, maintained along with the partitions.
+     */
+    private volatile int m_size = 0;
 
-        public PrimaryType getType() {
-            return this.type;
-        }
+    private final Object m_updateLock = new Object();
 
-        @Override
-        public boolean equals(final Object obj) {
-            if (obj == null) {
-                return false;
-            }
-            if (obj == this) {
-                return true;
-            }
-            if (obj.getClass() != getClass()) {
-                return false;
-            }
-            final Value that = (Value) obj;
-            return Objects.equals(this.nodeId, that.nodeId)
-                    && Objects.equals(this.type, that.type);
-        }
+    private final MetricRegistry m_metrics = new MetricRegistry();
+    private final Meter m_lookups = m_metrics.meter("lookups");
+    private final Meter m_misses = m_metrics.meter("misses");
+    private final Meter m_updates = m_metrics.meter("updates");
+    private final Timer m_syncs = m_metrics.timer("syncs");
+    private JmxReporter m_reporter;
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(this.nodeId, this.type.getCharCode());
-        }
+    public InterfaceToNodeCacheDaoImpl() {
+        m_metrics.register("size", (Gauge<Integer>) this::size);
+        m_metrics.register("locations", (Gauge<Integer>) () -> m_partitions.size());
+    }
 
-        @Override
-        public String toString() {
-            return String.format("Value[nodeId='%s', type='%s']", this.nodeId, this.type);
+    @Override
+    public void afterPropertiesSet() {
+        if (m_reporter == null) {
+            m_reporter = JmxReporter.forRegistry(m_metrics)
+                    .inDomain("org.opennms.netmgt.dao.interfaceToNodeCache")
+                    .build();
+            m_reporter.start();
         }
+    }
 
-        @Override
-        public int compareTo(final Value that) {
-            return ComparisonChain.start()
-                    .compare(this.type, that.type)
-                    .compare(this.nodeId, that.nodeId)
-                    .result();
+    @Override
+    public void destroy() {
+        if (m_reporter != null) {
+            m_reporter.stop();
+            m_reporter = null;
         }
     }
 
-    @Autowired
-    private NodeDao m_nodeDao;
-
-    @Autowired
-    private IpInterfaceDao m_ipInterfaceDao;
-
-    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
-    private final SortedSetMultimap<Key, Value> m_managedAddresses = Multimaps.newSortedSetMultimap(Maps.newHashMap(), TreeSet::new);
+    public MetricRegistry getMetricRegistry() {
+        return m_metrics;
+    }
 
     public NodeDao getNodeDao() {
         return m_nodeDao;
@@ -207,31 +195,45 @@ public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache im
     @Override
     @Transactional
     public void dataSourceSync() {
-        /*
-         * Make a new list with which we'll replace the existing one, that way
-         * if something goes wrong with the DB we won't lose whatever was already
-         * in there
-         */
-        final SortedSetMultimap<Key, Value> newAlreadyDiscovered = Multimaps.newSortedSetMultimap(Maps.newHashMap(), TreeSet::new);
-
-        // Fetch all non-deleted nodes
-        final CriteriaBuilder builder = new CriteriaBuilder(OnmsNode.class);
-        builder.ne("type", String.valueOf(NodeType.DELETED.value()));
-
-        for (OnmsNode node : m_nodeDao.findMatching(builder.toCriteria())) {
-            for (final OnmsIpInterface iface : node.getIpInterfaces()) {
-                // Skip deleted interfaces
-                // TODO: Refactor the 'D' value with an enumeration
-                if ("D".equals(iface.getIsManaged())) {
-                    continue;
+        try (Timer.Context ctx = m_syncs.time()) {
+            /*
+             * Make new tables with which we'll replace the existing ones, that way
+             * if something goes wrong with the DB we won't lose whatever was already
+             * in there
+             */
+            final Map<String, AddressTable> tables = new HashMap<>();
+
+            // Fetch all non-deleted nodes
+            final CriteriaBuilder builder = new CriteriaBuilder(OnmsNode.class);
+            builder.ne("type", String.valueOf(NodeType.DELETED.value()));
+
+            for (OnmsNode node : m_nodeDao.findMatching(builder.toCriteria())) {
+                final String location = LocationUtils.getEffectiveLocationName(node.getLocation().getLocationName());
+                final AddressTable table = tables.computeIfAbsent(location, l -> new AddressTable());
+                for (final OnmsIpInterface iface : node.getIpInterfaces()) {
+                    // Skip deleted interfaces
+                    // TODO: Refactor the 'D' value with an enumeration
+                    if ("D".equals(iface.getIsManaged())) {
+                        continue;
+                    }
+                    LOG.debug("Adding entry: {}:{} -> {}", location, iface.getIpAddress(), node.getId());
+                    final long[] entries = table.get(iface.getIpAddress());
+                    table.put(iface.getIpAddress(), AddressTable.addEntry(entries != null ? entries : AddressTable.NO_ENTRIES, toEntry(iface.getIsSnmpPrimary(), node.getId())));
                 }
-                LOG.debug("Adding entry: {}:{} -> {}", node.getLocation().getLocationName(), iface.getIpAddress(), node.getId());
-                newAlreadyDiscovered.put(new Key(node.getLocation().getLocationName(), iface.getIpAddress()), new Value(node.getId(), iface.getIsSnmpPrimary()));
             }
+
+            final Map<String, Partition> partitions = new HashMap<>();
+            int size = 0;
+            for (Map.Entry<String, AddressTable> table : tables.entrySet()) {
+                partitions.put(table.getKey(), new Partition(table.getValue(), new AddressTable()));
+                size += table.getValue().getNumEntries();
+            }
+            synchronized (m_updateLock) {
+                m_partitions = partitions;
+                m_size = size;
+            }
+            LOG.info("dataSourceSync: initialized list of managed IP addresses with {} members", size);
         }
-        m_managedAddresses.clear();
-        m_managedAddresses.putAll(newAlreadyDiscovered);
-        LOG.info("dataSourceSync: initialized list of managed IP addresses with {} members", m_managedAddresses.size());
     }
 
     /**
@@ -244,18 +246,25 @@ public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache im
      * @return The node ID of the IP Address if known.
      */
     @Override
-    public synchronized Iterable<Integer> getNodeId(final String location, final InetAddress address) {
+    public Iterable<Integer> getNodeId(final String location, final InetAddress address) {
         if (address == null) {
             return Collections.emptySet();
         }
 
-        m_lock.readLock().lock();
-        try {
-            return Iterables.transform(m_managedAddresses.get(new Key(location, address)),
-                    Value::getNodeId);
-        } finally {
-            m_lock.readLock().unlock();
+        m_lookups.mark();
+        final Partition partition = m_partitions.get(LocationUtils.getEffectiveLocationName(location));
+        final long[] entries = partition != null ? partition.get(address) : null;
+        if (entries == null || entries.length == 0) {
+            m_misses.mark();
+            return Collections.emptySet();
+        } else if (entries.length == 1) {
+            return Collections.singleton(AddressTable.getNodeId(entries[0]));
         }
+        final List<Integer> nodeIds = new ArrayList<>(entries.length);
+        for (final long entry : entries) {
+            nodeIds.add(AddressTable.getNodeId(entry));
+        }
+        return nodeIds;
     }
 
     /**
@@ -279,12 +288,10 @@ public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache im
 
         LOG.debug("setNodeId: adding IP address to cache: {}:{} -> {}", location, str(addr), nodeid);
 
-        m_lock.writeLock().lock();
-        try {
-            return m_managedAddresses.put(new Key(location, addr), new Value(nodeid, iface.getIsSnmpPrimary()));
-        } finally {
-            m_lock.writeLock().unlock();
-        }
+        // Replace any entry with a different primary type for the same node
+        final long entry = toEntry(iface.getIsSnmpPrimary(), nodeid);
+        return update(location, addr, entries -> Arrays.binarySearch(entries, entry) >= 0 ? entries
+                : AddressTable.addEntry(AddressTable.removeEntry(entries, nodeid), entry));
     }
 
     /**
@@ -302,34 +309,50 @@ public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache im
 
         LOG.debug("removeNodeId: removing IP address from cache: {}:{}", location, str(address));
 
-        m_lock.writeLock().lock();
-        try {
-            final Key key = new Key(location, address);
-            return m_managedAddresses.remove(key, new Value(nodeId, PrimaryType.PRIMARY)) ||
-                    m_managedAddresses.remove(key, new Value(nodeId, PrimaryType.SECONDARY)) ||
-                    m_managedAddresses.remove(key, new Value(nodeId, PrimaryType.NOT_ELIGIBLE));
-        } finally {
-            m_lock.writeLock().unlock();
-        }
+        return update(location, address, entries -> AddressTable.removeEntry(entries, nodeId));
     }
 
     @Override
     public int size() {
-        m_lock.readLock().lock();
-        try {
-            return m_managedAddresses.size();
-        } finally {
-            m_lock.readLock().unlock();
-        }
+        return m_size;
     }
 
     @Override
     public void clear() {
-        m_lock.writeLock().lock();
-        try {
-            m_managedAddresses.clear();
-        } finally {
-            m_lock.writeLock().unlock();
+        synchronized (m_updateLock) {
+            m_partitions = Collections.emptyMap();
+            m_size = 0;
         }
     }
+
+    /**
+     * Applies the given function to the entries of an address and publishes
+     * the result.
+     *
+     * @return <code>true</code> if the entries were changed
+     */
+    private boolean update(final String location, final InetAddress address, final UnaryOperator<long[]> function) {
+        final String effectiveLocation = LocationUtils.getEffectiveLocationName(location);
+        synchronized (m_updateLock) {
+            final Partition partition = m_partitions.getOrDefault(effectiveLocation, Partition.EMPTY);
+            final long[] existing = partition.get(address);
+            final long[] entries = existing != null ? existing : AddressTable.NO_ENTRIES;
+            final long[] updated = function.apply(entries);
+            if (updated == entries) {
+                return false;
+            }
+
+            final Map<String, Partition> partitions = new HashMap<>(m_partitions);
+            partitions.put(effectiveLocation, partition.with(address, updated));
+            m_partitions = partitions;
+            m_size += updated.length - entries.length;
+            m_updates.mark();
+            return true;
+        }
+    }
+
+    private static long toEntry(final PrimaryType type, final int nodeId) {
+        final int rank = PRIMARY_TYPES.indexOf(type != null ? type : PrimaryType.NOT_ELIGIBLE);
+        return AddressTable.toEntry(rank, nodeId);
+    }
 }
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.dao.support;
+
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.annotations.EventHandler;
+import org.opennms.netmgt.events.api.annotations.EventListener;
+import org.opennms.netmgt.filter.api.FilterDao;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Parm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Keeps the rule results cached by the {@link FilterDao} up to date by
+ * telling it which node changed whenever the inventory is modified.
+ */
+@EventListener(name="OpenNMS.FilterDao", logPrefix="eventd")
+public class FilterDaoEventProcessor {
+    private static final Logger LOG = LoggerFactory.getLogger(FilterDaoEventProcessor.class);
+
+    @Autowired
+    private FilterDao m_filterDao;
+
+    @EventHandler(ueis={
+            EventConstants.NODE_ADDED_EVENT_UEI,
+            EventConstants.NODE_UPDATED_EVENT_UEI,
+            EventConstants.NODE_DELETED_EVENT_UEI,
+            EventConstants.NODE_LABEL_CHANGED_EVENT_UEI,
+            EventConstants.NODE_CATEGORY_MEMBERSHIP_CHANGED_EVENT_UEI,
+            EventConstants.ASSET_INFO_CHANGED_EVENT_UEI,
+            EventConstants.NODE_GAINED_INTERFACE_EVENT_UEI,
+            EventConstants.INTERFACE_DELETED_EVENT_UEI,
+            EventConstants.NODE_GAINED_SERVICE_EVENT_UEI,
+            EventConstants.SERVICE_DELETED_EVENT_UEI
+    })
+    public void handleNodeChanged(Event event) {
+        LOG.debug("Received event: {}", event.getUei());
+        final Long nodeId = event.getNodeid();
+        if (nodeId == null) {
+            LOG.error(event.getUei() + ": Event with no node ID: " + event.toString());
+            return;
+        }
+        m_filterDao.flushActiveIpAddressListCache(nodeId.intValue());
+    }
+
+    @EventHandler(uei=EventConstants.INTERFACE_REPARENTED_EVENT_UEI)
+    public void handleInterfaceReparented(Event event) {
+        LOG.debug("Received event: {}", event.getUei());
+        final Parm oldNodeId = event.getParm(EventConstants.PARM_OLD_NODEID);
+        final Parm newNodeId = event.getParm(EventConstants.PARM_NEW_NODEID);
+        if (oldNodeId == null || newNodeId == null) {
+            LOG.error(EventConstants.INTERFACE_REPARENTED_EVENT_UEI + ": Event with no node ID: " + event.toString());
+            return;
+        }
+        try {
+            m_filterDao.flushActiveIpAddressListCache(Integer.parseInt(oldNodeId.getValue().getContent()));
+            m_filterDao.flushActiveIpAddressListCache(Integer.parseInt(newNodeId.getValue().getContent()));
+        } catch (NumberFormatException e) {
+            LOG.warn("{}: Invalid node ID, flushing all cached filter results: {}", EventConstants.INTERFACE_REPARENTED_EVENT_UEI, event, e);
+            m_filterDao.flushActiveIpAddressListCache();
+        }
+    }
+}
@@ -59,11 +59,10 @@ public class InterfaceToNodeCacheEventProcessor implements InitializingBean {
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        // Initialize the cache when this listener is created
-        //
-        // TODO: Should we periodically rebuild the cache from
-        // scratch?
-        //
+        // Initialize the cache when this listener is created, after which
+        // it is kept up to date by the events handled below. Deleted nodes
+        // are covered as well since an interfaceDeleted event is sent for
+        // each of their interfaces.
         m_cache.dataSourceSync();
     }
 
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.dao.hibernate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class AddressTableTest {
+
+    @Test
+    public void canStoreIpv4AndIpv6Addresses() throws UnknownHostException {
+        final AddressTable table = new AddressTable();
+        for (int i = 0; i < 1000; i++) {
+            table.put(addr("10.0." + (i / 256) + "." + (i % 256)), new long[] { AddressTable.toEntry(0, i) });
+            table.put(addr("fe80::" + Integer.toHexString(i)), new long[] { AddressTable.toEntry(1, i) });
+        }
+        assertEquals(2000, table.getNumAddresses());
+        assertEquals(2000, table.getNumEntries());
+
+        assertArrayEquals(new long[] { AddressTable.toEntry(0, 513) }, table.get(addr("10.0.2.1")));
+        assertArrayEquals(new long[] { AddressTable.toEntry(1, 513) }, table.get(addr("fe80::201")));
+        assertNull(table.get(addr("10.0.4.0")));
+        assertNull(table.get(addr("fe80::1:0")));
+        // IPv4 and IPv6 addresses are never equal
+        assertNull(table.get(addr("::a00:201")));
+    }
+
+    @Test
+    public void canMergeOverlay() throws UnknownHostException {
+        final AddressTable base = new AddressTable();
+        base.put(addr("192.168.1.1"), new long[] { AddressTable.toEntry(2, 1) });
+        base.put(addr("192.168.1.2"), new long[] { AddressTable.toEntry(2, 2) });
+
+        final AddressTable overlay = base.copy();
+        overlay.put(addr("192.168.1.1"), AddressTable.NO_ENTRIES);
+        overlay.put(addr("192.168.1.3"), new long[] { AddressTable.toEntry(2, 3) });
+
+        // The original table is not modified by updates to its copy
+        assertEquals(2, base.getNumAddresses());
+        assertNull(base.get(addr("192.168.1.3")));
+
+        final AddressTable merged = AddressTable.merge(base, overlay);
+        assertEquals(2, merged.getNumAddresses());
+        assertNull(merged.get(addr("192.168.1.1")));
+        assertArrayEquals(new long[] { AddressTable.toEntry(2, 2) }, merged.get(addr("192.168.1.2")));
+        assertArrayEquals(new long[] { AddressTable.toEntry(2, 3) }, merged.get(addr("192.168.1.3")));
+    }
+
+    @Test
+    public void canAddAndRemoveEntries() {
+        long[] entries = AddressTable.NO_ENTRIES;
+        entries = AddressTable.addEntry(entries, AddressTable.toEntry(2, 5));
+        entries = AddressTable.addEntry(entries, AddressTable.toEntry(0, 7));
+        entries = AddressTable.addEntry(entries, AddressTable.toEntry(2, 3));
+        assertSame(entries, AddressTable.addEntry(entries, AddressTable.toEntry(2, 3)));
+
+        // Entries are sorted by rank first, and then by node id
+        assertEquals(7, AddressTable.getNodeId(entries[0]));
+        assertEquals(3, AddressTable.getNodeId(entries[1]));
+        assertEquals(5, AddressTable.getNodeId(entries[2]));
+
+        assertSame(entries, AddressTable.removeEntry(entries, 9));
+        entries = AddressTable.removeEntry(entries, 3);
+        assertArrayEquals(new long[] { AddressTable.toEntry(0, 7), AddressTable.toEntry(2, 5) }, entries);
+    }
+
+    private static InetAddress addr(final String address) throws UnknownHostException {
+        return InetAddress.getByName(address);
+    }
+}
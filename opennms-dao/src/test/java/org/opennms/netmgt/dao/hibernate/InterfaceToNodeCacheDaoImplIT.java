@@ -106,6 +106,25 @@ public class InterfaceToNodeCacheDaoImplIT implements InitializingBean {
         Assert.assertEquals(false, m_cache.setNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, addr("192.168.1.3"), nodeId));
     }
 
+    @Test
+    @Transactional
+    public void testRemoveId() throws Exception {
+        m_cache.dataSourceSync();
+        final int size = m_cache.size();
+
+        final InetAddress ipAddr = m_databasePopulator.getNode2().getPrimaryInterface().getIpAddress();
+        final int nodeId = m_databasePopulator.getNode2().getId();
+
+        Assert.assertEquals(false, m_cache.removeNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, ipAddr, m_databasePopulator.getNode1().getId()));
+        Assert.assertEquals(true, m_cache.removeNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, ipAddr, nodeId));
+        Assert.assertEquals(false, m_cache.getFirstNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, ipAddr).isPresent());
+        Assert.assertEquals(size - 1, m_cache.size());
+
+        Assert.assertEquals(true, m_cache.setNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, ipAddr, nodeId));
+        Assert.assertEquals(nodeId, m_cache.getFirstNodeId(MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID, ipAddr).get().intValue());
+        Assert.assertEquals(size, m_cache.size());
+    }
+
     @Test
     @Transactional
     public void testSetIdWithDifferentNodes() throws Exception {
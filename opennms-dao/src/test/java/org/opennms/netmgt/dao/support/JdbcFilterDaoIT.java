@@ -69,6 +69,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
@@ -310,6 +311,28 @@ public class JdbcFilterDaoIT implements InitializingBean {
         assertFalse("There is nothing in the database, so isValid shouldn't match non-empty rules", m_dao.isValid("1.1.1.1", "ipaddr == '1.1.1.1'"));
     }
 
+    @Test
+    public void testIsValidWithOrRuleAfterNodeUpdate() throws Exception {
+        final String rule = "ipaddr == '192.168.1.1' | ipaddr == '192.168.1.2'";
+        assertTrue(m_dao.isValid("192.168.1.1", rule));
+
+        final Integer nodeId = m_transTemplate.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(TransactionStatus status) {
+                final OnmsIpInterface iface = m_interfaceDao.findByIpAddress("192.168.1.1").get(0);
+                iface.setIsManaged("D");
+                m_interfaceDao.save(iface);
+                m_interfaceDao.flush();
+                return iface.getNode().getId();
+            }
+        });
+
+        // The node and deleted interface conditions must apply to both sides of the OR
+        m_dao.flushActiveIpAddressListCache(nodeId);
+        assertFalse(m_dao.isValid("192.168.1.1", rule));
+        assertTrue(m_dao.isValid("192.168.1.2", rule));
+    }
+
     @Test
     public void testIsValidEmptyRule() throws Exception {
         assertTrue("isValid should return true for non-empty rules", m_dao.isValid("1.1.1.1", ""));
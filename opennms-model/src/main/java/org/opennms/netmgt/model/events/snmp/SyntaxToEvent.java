@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.model.events.snmp;
 
+import java.util.regex.Pattern;
+
 import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.snmp.SnmpValue;
 import org.opennms.netmgt.xml.event.Parm;
@@ -37,6 +39,8 @@ import org.opennms.netmgt.xml.event.Value;
  * <p>SyntaxToEvent class.</p>
  */
 public class SyntaxToEvent {
+    private static final Pattern MAC_PATTERN = Pattern.compile(".*[Mm][Aa][Cc].*");
+
     int m_typeId;
 
     String m_type;
@@ -119,7 +123,7 @@ public class SyntaxToEvent {
                     // This should not be necessary when NMS-7547 is fixed
                 }
                 if (displayable) {
-                    if (name.matches(".*[Mm][Aa][Cc].*")) {
+                    if (MAC_PATTERN.matcher(name).matches()) {
                         encoding = EventConstants.XML_ENCODING_MAC_ADDRESS;
                     } else {
                         encoding = EventConstants.XML_ENCODING_TEXT;
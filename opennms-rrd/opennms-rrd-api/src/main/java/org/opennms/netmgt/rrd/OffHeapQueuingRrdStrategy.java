@@ -0,0 +1,935 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.joda.time.Duration;
+import org.opennms.core.logging.Logging;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.swrve.ratelimitedlogger.RateLimitedLog;
+
+/**
+ * Queuing implementation of RrdStrategy that keeps pending updates off-heap.
+ *
+ * Unlike {@link QueuingRrdStrategy}, which keeps one heap object per pending
+ * update, this strategy encodes every update into a direct {@link ByteBuffer}
+ * as a primitive record:
+ *
+ * <pre>
+ *   int fileId | long timestamp | short numValues | numValues * (byte type | 8 byte value)
+ * </pre>
+ *
+ * File names are interned to integer ids once, so the pending queue itself
+ * holds no strings. Integral values are stored as longs so that large
+ * COUNTER values are written back without any loss of precision. Updates
+ * that cannot be represented this way (i.e. "N" timestamps or values that do
+ * not fit in a long) are stored as raw UTF-8 bytes instead.
+ *
+ * Files are striped across the write threads by id, so a given file is always
+ * handled by the same thread and no locking is required between stripes.
+ * Each stripe owns two buffers: the collection threads append to the active
+ * buffer while the write thread drains the other one. When a buffer is
+ * drained, the records are grouped by file and all of the rows for a file
+ * are written with a single open and close of the file. If the I/O system
+ * falls behind, more rows accumulate per file and the writes are coalesced
+ * further.
+ *
+ * Creates are always processed synchronously.
+ *
+ * System properties effecting the operation:
+ *
+ * org.opennms.rrd.queuing.writethreads: (default 2) The number of stripes and
+ * rrd write threads that process them
+ *
+ * org.opennms.rrd.queuing.offheap.bufferSize: (default 8388608) the size in
+ * bytes of each of the two buffers allocated per stripe
+ *
+ * org.opennms.rrd.queuing.modulus: (default 10000) the number of updates
+ * written between statistics output
+ *
+ * org.opennms.rrd.queuing.category: (default "queued") the log routing prefix
+ * to place the statistics output in
+ */
+public class OffHeapQueuingRrdStrategy implements RrdStrategy<OffHeapQueuingRrdStrategy.CreateRequest,String> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapQueuingRrdStrategy.class);
+
+    private static final RateLimitedLog RATE_LIMITED_LOG = RateLimitedLog
+            .withRateLimit(LOG)
+            .maxRate(5).every(Duration.standardSeconds(30))
+            .build();
+
+    private static final byte TYPE_UNKNOWN = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+
+    private static final short RAW_RECORD = -1;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 2;
+    private static final int VALUE_SIZE = 1 + 8;
+
+    private static final int NAME_PAGE_BITS = 12;
+    private static final int NAME_PAGE_SIZE = 1 << NAME_PAGE_BITS;
+    private static final int NAME_PAGES = 1 << 16;
+
+    private final RrdStrategy<Object, Object> m_delegate;
+
+    private Properties m_configurationProperties;
+
+    private int m_writeThreads = 2;
+
+    private int m_bufferSize = 8 * 1024 * 1024;
+
+    private long m_modulus = 10000;
+
+    private String m_category = "queued";
+
+    private long m_writeThreadSleepTime = 50;
+
+    private final ConcurrentHashMap<String, Integer> m_fileIds = new ConcurrentHashMap<>();
+
+    private final AtomicReferenceArray<AtomicReferenceArray<String>> m_fileNames = new AtomicReferenceArray<>(NAME_PAGES);
+
+    private final AtomicInteger m_nextFileId = new AtomicInteger();
+
+    private volatile Stripe[] m_stripes;
+
+    private final AtomicLong m_enqueuedUpdates = new AtomicLong();
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+
+    private final Counter m_droppedUpdates = m_metrics.counter("dropped");
+
+    private final AtomicLong m_updatesCompleted = new AtomicLong();
+
+    private final AtomicLong m_filesFlushed = new AtomicLong();
+
+    private final AtomicLong m_flushTimeNanos = new AtomicLong();
+
+    private final AtomicLong m_errors = new AtomicLong();
+
+    private final AtomicLong m_createsCompleted = new AtomicLong();
+
+    private final long m_startTime = System.currentTimeMillis();
+
+    private long m_lastStatsTime = m_startTime;
+
+    private long m_lastUpdatesCompleted = 0;
+
+    /**
+     * The definition handed out by {@link #createDefinition}, which keeps track
+     * of the file name along with the delegate's definition.
+     */
+    public static class CreateRequest {
+        private final String m_fileName;
+        private final Object m_definition;
+
+        CreateRequest(String fileName, Object definition) {
+            m_fileName = fileName;
+            m_definition = definition;
+        }
+
+        public String getFileName() {
+            return m_fileName;
+        }
+
+        public Object getDefinition() {
+            return m_definition;
+        }
+    }
+
+    /**
+     * <p>Constructor for OffHeapQueuingRrdStrategy.</p>
+     *
+     * @param delegate a {@link org.opennms.netmgt.rrd.RrdStrategy} object.
+     */
+    public OffHeapQueuingRrdStrategy(RrdStrategy<Object, Object> delegate) {
+        m_delegate = delegate;
+    }
+
+    public RrdStrategy<Object, Object> getDelegate() {
+        return m_delegate;
+    }
+
+    public Properties getConfigurationProperties() {
+        return m_configurationProperties;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setConfigurationProperties(final Properties configurationParameters) {
+        m_configurationProperties = configurationParameters;
+    }
+
+    public int getWriteThreads() {
+        return m_writeThreads;
+    }
+
+    public void setWriteThreads(int writeThreads) {
+        m_writeThreads = writeThreads;
+    }
+
+    public int getBufferSize() {
+        return m_bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        m_bufferSize = bufferSize;
+    }
+
+    public long getModulus() {
+        return m_modulus;
+    }
+
+    public void setModulus(long modulus) {
+        m_modulus = modulus;
+    }
+
+    public String getCategory() {
+        return m_category;
+    }
+
+    public void setCategory(final String category) {
+        m_category = category;
+    }
+
+    public long getWriteThreadSleepTime() {
+        return m_writeThreadSleepTime;
+    }
+
+    public void setWriteThreadSleepTime(long writeThreadSleepTime) {
+        m_writeThreadSleepTime = writeThreadSleepTime;
+    }
+
+    //
+    // RrdStrategy Implementation
+    //
+
+    /** {@inheritDoc} */
+    @Override
+    public CreateRequest createDefinition(String creator, String directory, String rrdName, int step, List<RrdDataSource> dataSources, List<String> rraList) throws Exception {
+        final String fileName = directory + File.separator + rrdName + m_delegate.getDefaultFileExtension();
+        final Object def = m_delegate.createDefinition(creator, directory, rrdName, step, dataSources, rraList);
+        return new CreateRequest(fileName, def);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void createFile(CreateRequest request) throws Exception {
+        m_delegate.createFile(request.getDefinition());
+        m_createsCompleted.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String openFile(String fileName) throws Exception {
+        return fileName;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void updateFile(String rrdFile, String owner, String data) throws Exception {
+        final int fileId = intern(rrdFile);
+        getStripe(fileId).append(fileId, data);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void closeFile(String rrd) throws Exception {
+        // no need to do anything here
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(String rrdFile, String ds, int interval) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValue(rrdFile, ds, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(String rrdFile, String ds, String consolidationFunction, int interval) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValue(rrdFile, ds, consolidationFunction, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValueInRange(String rrdFile, String ds, int interval, int range) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValueInRange(rrdFile, ds, interval, range);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream createGraph(String command, File workDir) throws IOException, RrdException {
+        return m_delegate.createGraph(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RrdGraphDetails createGraphReturnDetails(String command, File workDir) throws IOException, RrdException {
+        return m_delegate.createGraphReturnDetails(command, workDir);
+    }
+
+    @Override
+    public int getGraphLeftOffset() {
+        return m_delegate.getGraphLeftOffset();
+    }
+
+    @Override
+    public int getGraphRightOffset() {
+        return m_delegate.getGraphRightOffset();
+    }
+
+    @Override
+    public int getGraphTopOffsetWithText() {
+        return m_delegate.getGraphTopOffsetWithText();
+    }
+
+    @Override
+    public String getDefaultFileExtension() {
+        return m_delegate.getDefaultFileExtension();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void promoteEnqueuedFiles(Collection<String> rrdFiles) {
+        // Wake up the stripes that own these files so they are flushed right away
+        for (String rrdFile : rrdFiles) {
+            final Integer fileId = m_fileIds.get(rrdFile);
+            if (fileId != null) {
+                getStripe(fileId).wakeUp();
+            }
+        }
+        m_delegate.promoteEnqueuedFiles(rrdFiles);
+    }
+
+    //
+    // Statistics
+    //
+
+    /**
+     * @return the number of updates that are waiting to be written
+     */
+    public long getTotalOperationsPending() {
+        long pending = 0;
+        for (Stripe stripe : getStripes()) {
+            pending += stripe.getPendingUpdates();
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of bytes used by pending updates
+     */
+    public long getQueueBytes() {
+        long bytes = 0;
+        for (Stripe stripe : getStripes()) {
+            bytes += stripe.getPendingBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes allocated off-heap for the stripe buffers
+     */
+    public long getAllocatedBytes() {
+        return 2L * m_bufferSize * getStripes().length;
+    }
+
+    /**
+     * @return the number of distinct files with pending updates
+     */
+    public long getFilesPending() {
+        long files = 0;
+        for (Stripe stripe : getStripes()) {
+            files += stripe.getFilesPending();
+        }
+        return files;
+    }
+
+    /**
+     * @return the largest number of updates pending for any single file
+     */
+    public int getMaxFileBacklog() {
+        int max = 0;
+        for (Stripe stripe : getStripes()) {
+            max = Math.max(max, stripe.getMaxFileBacklog());
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of distinct files that have been seen so far
+     */
+    public int getInternedFiles() {
+        return m_fileIds.size();
+    }
+
+    public long getEnqueuedOperations() {
+        return m_enqueuedUpdates.get();
+    }
+
+    public long getDroppedOperations() {
+        return m_droppedUpdates.getCount();
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return m_metrics;
+    }
+
+    public long getUpdatesCompleted() {
+        return m_updatesCompleted.get();
+    }
+
+    public long getCreatesCompleted() {
+        return m_createsCompleted.get();
+    }
+
+    /**
+     * @return the number of times a file was opened, updated and closed
+     */
+    public long getFilesFlushed() {
+        return m_filesFlushed.get();
+    }
+
+    public long getErrors() {
+        return m_errors.get();
+    }
+
+    public long getStartTime() {
+        return m_startTime;
+    }
+
+    /**
+     * Print queue statistics.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public synchronized String getStats() {
+        final long now = System.currentTimeMillis();
+        final long currentElapsedMillis = Math.max(now - m_lastStatsTime, 1);
+        final long totalElapsedMillis = Math.max(now - m_startTime, 1);
+
+        final long updatesCompleted = getUpdatesCompleted();
+        final long filesFlushed = getFilesFlushed();
+        final long currentUpdates = updatesCompleted - m_lastUpdatesCompleted;
+
+        final String stats = "\nQS:\t" + "totalOperationsPending=" + getTotalOperationsPending() +
+                ", filesPending=" + getFilesPending() +
+                ", maxFileBacklog=" + getMaxFileBacklog() +
+                ", queueBytes=" + getQueueBytes() +
+                ", allocatedBytes=" + getAllocatedBytes() +
+                ", internedFiles=" + getInternedFiles()
+
+                + "\nQS:\t" + "createsCompleted=" + getCreatesCompleted() +
+                ", updatesCompleted=" + updatesCompleted +
+                ", filesFlushed=" + filesFlushed +
+                ", dropped=" + getDroppedOperations() +
+                ", errors=" + getErrors()
+
+                + "\nQS:\t" + "currentFlushRate=" + (long) (currentUpdates * 1000.0 / currentElapsedMillis) +
+                ", overallFlushRate=" + (long) (updatesCompleted * 1000.0 / totalElapsedMillis) +
+                ", overallOpsPerUpdate=" + (updatesCompleted / Math.max(filesFlushed, 1.0)) +
+                ", avgFlushMicros=" + (m_flushTimeNanos.get() / 1000 / Math.max(filesFlushed, 1)) +
+                ", elapsedTime=" + ((currentElapsedMillis + 500) / 1000) +
+                ", totalElapsedTime=" + ((totalElapsedMillis + 500) / 1000);
+
+        m_lastStatsTime = now;
+        m_lastUpdatesCompleted = updatesCompleted;
+        return stats;
+    }
+
+    private void logStats() {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(getStats());
+        }
+    }
+
+    //
+    // File name interning
+    //
+
+    private int intern(String fileName) {
+        final Integer fileId = m_fileIds.get(fileName);
+        if (fileId != null) {
+            return fileId;
+        }
+        return m_fileIds.computeIfAbsent(fileName, name -> {
+            final int id = m_nextFileId.getAndIncrement();
+            final int pageIndex = id >>> NAME_PAGE_BITS;
+            if (pageIndex >= NAME_PAGES) {
+                throw new IllegalStateException("Too many RRD files: " + id);
+            }
+            AtomicReferenceArray<String> page = m_fileNames.get(pageIndex);
+            if (page == null) {
+                m_fileNames.compareAndSet(pageIndex, null, new AtomicReferenceArray<>(NAME_PAGE_SIZE));
+                page = m_fileNames.get(pageIndex);
+            }
+            page.set(id & (NAME_PAGE_SIZE - 1), name);
+            return id;
+        });
+    }
+
+    private String getFileName(int fileId) {
+        return m_fileNames.get(fileId >>> NAME_PAGE_BITS).get(fileId & (NAME_PAGE_SIZE - 1));
+    }
+
+    //
+    // Stripes
+    //
+
+    private Stripe getStripe(int fileId) {
+        final Stripe[] stripes = getStripes();
+        return stripes[fileId % stripes.length];
+    }
+
+    private Stripe[] getStripes() {
+        Stripe[] stripes = m_stripes;
+        if (stripes == null) {
+            synchronized (this) {
+                stripes = m_stripes;
+                if (stripes == null) {
+                    stripes = new Stripe[Math.max(m_writeThreads, 1)];
+                    for (int i = 0; i < stripes.length; i++) {
+                        stripes[i] = new Stripe(i, stripes.length);
+                    }
+                    for (Stripe stripe : stripes) {
+                        final Thread thread = new Thread(stripe, getClass().getSimpleName() + "-" + (stripe.m_index + 1));
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                    m_stripes = stripes;
+                }
+            }
+        }
+        return stripes;
+    }
+
+    /**
+     * A set of files that is always written by the same thread.
+     */
+    private class Stripe implements Runnable {
+        private final int m_index;
+        private final int m_numStripes;
+
+        private final ReentrantLock m_lock = new ReentrantLock();
+        private final Condition m_notEmpty = m_lock.newCondition();
+
+        // Guarded by m_lock
+        private ByteBuffer m_active;
+        private ByteBuffer m_spare;
+        private int m_pendingUpdates;
+        private int[] m_backlog = new int[1024];
+        private int[] m_dirty = new int[1024];
+        private int m_filesPending;
+        private int m_maxFileBacklog;
+
+        private Stripe(int index, int numStripes) {
+            m_index = index;
+            m_numStripes = numStripes;
+            m_active = ByteBuffer.allocateDirect(m_bufferSize);
+            m_spare = ByteBuffer.allocateDirect(m_bufferSize);
+        }
+
+        private void append(int fileId, String data) {
+            m_lock.lock();
+            try {
+                final int start = m_active.position();
+                if (!encode(m_active, fileId, data)) {
+                    m_active.position(start);
+                    m_droppedUpdates.inc();
+                    RATE_LIMITED_LOG.error("RRD Data Queue is Full!! Discarding operation for file {}. {} operations were discarded so far.",
+                            getFileName(fileId), m_droppedUpdates.getCount());
+                    return;
+                }
+                m_pendingUpdates++;
+                trackBacklog(fileId / m_numStripes);
+                m_notEmpty.signal();
+            } finally {
+                m_lock.unlock();
+            }
+            m_enqueuedUpdates.incrementAndGet();
+        }
+
+        private void trackBacklog(int localId) {
+            if (localId >= m_backlog.length) {
+                m_backlog = Arrays.copyOf(m_backlog, Math.max(localId + 1, m_backlog.length * 2));
+            }
+            final int backlog = ++m_backlog[localId];
+            if (backlog == 1) {
+                if (m_filesPending == m_dirty.length) {
+                    m_dirty = Arrays.copyOf(m_dirty, m_dirty.length * 2);
+                }
+                m_dirty[m_filesPending++] = localId;
+            }
+            m_maxFileBacklog = Math.max(m_maxFileBacklog, backlog);
+        }
+
+        private void wakeUp() {
+            m_lock.lock();
+            try {
+                m_notEmpty.signal();
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        /**
+         * Waits for pending updates and swaps the active buffer with the
+         * spare one.
+         *
+         * @return the buffer with the pending updates, ready to be read
+         */
+        private ByteBuffer takePending() throws InterruptedException {
+            m_lock.lock();
+            try {
+                while (m_pendingUpdates == 0) {
+                    m_notEmpty.await(m_writeThreadSleepTime, TimeUnit.MILLISECONDS);
+                }
+                final ByteBuffer pending = m_active;
+                m_active = m_spare;
+                m_spare = pending;
+                m_active.clear();
+
+                for (int i = 0; i < m_filesPending; i++) {
+                    m_backlog[m_dirty[i]] = 0;
+                }
+                m_filesPending = 0;
+                m_maxFileBacklog = 0;
+                m_pendingUpdates = 0;
+
+                pending.flip();
+                return pending;
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        private int getPendingUpdates() {
+            m_lock.lock();
+            try {
+                return m_pendingUpdates;
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        private long getPendingBytes() {
+            m_lock.lock();
+            try {
+                return m_active.position();
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        private int getFilesPending() {
+            m_lock.lock();
+            try {
+                return m_filesPending;
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        private int getMaxFileBacklog() {
+            m_lock.lock();
+            try {
+                return m_maxFileBacklog;
+            } finally {
+                m_lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final ByteBuffer pending;
+                try {
+                    pending = takePending();
+                } catch (InterruptedException e) {
+                    LOG.info("Write thread for stripe {} was interrupted.", m_index);
+                    return;
+                }
+                Logging.withPrefix(m_category, new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(pending);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Writes all of the records in the given buffer, grouped by file.
+     * The relative order of the records for any given file is preserved.
+     */
+    private void flush(ByteBuffer pending) {
+        // Sort the record offsets by file id, and then by offset
+        long[] keys = new long[256];
+        int numRecords = 0;
+        while (pending.hasRemaining()) {
+            final int offset = pending.position();
+            final int fileId = pending.getInt(offset);
+            if (numRecords == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[numRecords++] = ((long) fileId << 32) | offset;
+            pending.position(offset + recordSize(pending, offset));
+        }
+        Arrays.sort(keys, 0, numRecords);
+
+        final StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < numRecords) {
+            final int fileId = (int) (keys[i] >>> 32);
+            int end = i + 1;
+            while (end < numRecords && (int) (keys[end] >>> 32) == fileId) {
+                end++;
+            }
+            writeFile(fileId, pending, keys, i, end, sb);
+            i = end;
+        }
+    }
+
+    private void writeFile(int fileId, ByteBuffer pending, long[] keys, int from, int to, StringBuilder sb) {
+        final String fileName = getFileName(fileId);
+        final long start = System.nanoTime();
+        Object rrd = null;
+        int written = 0;
+        try {
+            rrd = m_delegate.openFile(fileName);
+            for (int k = from; k < to; k++) {
+                final int offset = (int) keys[k];
+                // When multiple updates share the same timestamp, only the last one can be stored
+                if (k + 1 < to && hasSameTimestamp(pending, offset, (int) keys[k + 1])) {
+                    continue;
+                }
+                final String update = decode(pending, offset, sb);
+                try {
+                    m_delegate.updateFile(rrd, "", update);
+                    written++;
+                } catch (final Throwable e) {
+                    m_errors.incrementAndGet();
+                    LOG.debug("Error processing update for file {}: {}", fileName, update, e);
+                }
+            }
+        } catch (final Throwable e) {
+            m_errors.incrementAndGet();
+            LOG.debug("Error updating file {}: {}", fileName, e.getMessage(), e);
+        } finally {
+            if (rrd != null) {
+                try {
+                    m_delegate.closeFile(rrd);
+                } catch (final Throwable e) {
+                    m_errors.incrementAndGet();
+                    LOG.debug("Error closing rrd {}: {}", rrd, e.getMessage(), e);
+                }
+            }
+        }
+
+        m_flushTimeNanos.addAndGet(System.nanoTime() - start);
+        m_filesFlushed.incrementAndGet();
+        final long before = m_updatesCompleted.getAndAdd(written);
+        if (m_modulus > 0 && (before + written) / m_modulus != before / m_modulus) {
+            logStats();
+        }
+    }
+
+    //
+    // Record encoding
+    //
+
+    /**
+     * Encodes the given update at the current position of the buffer.
+     *
+     * @return <code>false</code> if the buffer does not have enough room
+     */
+    static boolean encode(ByteBuffer buf, int fileId, String data) {
+        if (buf.remaining() < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        final int start = buf.position();
+        buf.putInt(fileId);
+        buf.putLong(0);
+        buf.putShort((short) 0);
+
+        short numValues = 0;
+        long timestamp = 0;
+        boolean raw = false;
+        int tokenStart = 0;
+        final int len = data.length();
+        for (int i = 0; i <= len; i++) {
+            if (i < len && data.charAt(i) != ':') {
+                continue;
+            }
+            final String token = data.substring(tokenStart, i);
+            final boolean first = tokenStart == 0;
+            tokenStart = i + 1;
+
+            if (first) {
+                // The first token is the timestamp
+                if (!isInteger(token)) {
+                    raw = true;
+                    break;
+                }
+                try {
+                    timestamp = Long.parseLong(token);
+                } catch (NumberFormatException e) {
+                    raw = true;
+                    break;
+                }
+                continue;
+            }
+
+            if (buf.remaining() < VALUE_SIZE) {
+                return false;
+            }
+            if (numValues == Short.MAX_VALUE) {
+                raw = true;
+                break;
+            }
+            try {
+                if ("U".equalsIgnoreCase(token)) {
+                    buf.put(TYPE_UNKNOWN).putLong(0);
+                } else if (isInteger(token)) {
+                    final long value = Long.parseLong(token);
+                    buf.put(TYPE_LONG).putLong(value);
+                } else {
+                    final double value = Double.parseDouble(token);
+                    if (Double.isNaN(value)) {
+                        buf.put(TYPE_UNKNOWN).putLong(0);
+                    } else {
+                        buf.put(TYPE_DOUBLE).putDouble(value);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Not numeric, or too large to fit in a long
+                raw = true;
+                break;
+            }
+            numValues++;
+        }
+
+        if (raw) {
+            final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            if (buf.capacity() - start < RECORD_HEADER_SIZE + 4 + bytes.length) {
+                return false;
+            }
+            buf.position(start + RECORD_HEADER_SIZE);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+            buf.putShort(start + 12, RAW_RECORD);
+            return true;
+        }
+
+        buf.putLong(start + 4, timestamp);
+        buf.putShort(start + 12, numValues);
+        return true;
+    }
+
+    private static boolean isInteger(String token) {
+        final int len = token.length();
+        if (len == 0) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            final char c = token.charAt(i);
+            if (c < '0' || c > '9') {
+                if (i != 0 || (c != '-' && c != '+') || len == 1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static int recordSize(ByteBuffer buf, int offset) {
+        final short numValues = buf.getShort(offset + 12);
+        if (numValues == RAW_RECORD) {
+            return RECORD_HEADER_SIZE + 4 + buf.getInt(offset + RECORD_HEADER_SIZE);
+        }
+        return RECORD_HEADER_SIZE + numValues * VALUE_SIZE;
+    }
+
+    private static boolean hasSameTimestamp(ByteBuffer buf, int offset, int otherOffset) {
+        return buf.getShort(offset + 12) != RAW_RECORD
+                && buf.getShort(otherOffset + 12) != RAW_RECORD
+                && buf.getLong(offset + 4) == buf.getLong(otherOffset + 4);
+    }
+
+    static String decode(ByteBuffer buf, int offset, StringBuilder sb) {
+        final short numValues = buf.getShort(offset + 12);
+        if (numValues == RAW_RECORD) {
+            final byte[] bytes = new byte[buf.getInt(offset + RECORD_HEADER_SIZE)];
+            final ByteBuffer source = buf.duplicate();
+            source.position(offset + RECORD_HEADER_SIZE + 4);
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        sb.setLength(0);
+        sb.append(buf.getLong(offset + 4));
+        int position = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < numValues; i++) {
+            sb.append(':');
+            final byte type = buf.get(position);
+            if (type == TYPE_LONG) {
+                sb.append(buf.getLong(position + 1));
+            } else if (type == TYPE_DOUBLE) {
+                sb.append(buf.getDouble(position + 1));
+            } else {
+                sb.append('U');
+            }
+            position += VALUE_SIZE;
+        }
+        return sb.toString();
+    }
+}
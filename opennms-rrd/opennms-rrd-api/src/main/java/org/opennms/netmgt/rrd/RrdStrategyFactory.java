@@ -46,8 +46,10 @@ public class RrdStrategyFactory implements ApplicationContextAware {
     private static enum StrategyName {
         basicRrdStrategy,
         queuingRrdStrategy,
+        offHeapQueuingRrdStrategy,
         tcpAndBasicRrdStrategy,
-        tcpAndQueuingRrdStrategy
+        tcpAndQueuingRrdStrategy,
+        tcpAndOffHeapQueuingRrdStrategy
     }
 
     @Override
@@ -65,12 +67,15 @@ public class RrdStrategyFactory implements ApplicationContextAware {
         RrdStrategy<D, F> rrdStrategy = null;
         Boolean useQueue = (Boolean) m_context.getBean("useQueue");
         Boolean useTcp = (Boolean) m_context.getBean("useTcp");
+        Boolean useOffHeapQueue = m_context.containsBean("useOffHeapQueue") && (Boolean) m_context.getBean("useOffHeapQueue");
 
         if (useQueue) {
             if (useTcp) {
-                rrdStrategy = (RrdStrategy<D, F>) m_context.getBean(StrategyName.tcpAndQueuingRrdStrategy.toString());
+                rrdStrategy = (RrdStrategy<D, F>) m_context.getBean(useOffHeapQueue ? StrategyName.tcpAndOffHeapQueuingRrdStrategy.toString()
+                        : StrategyName.tcpAndQueuingRrdStrategy.toString());
             } else {
-                rrdStrategy = (RrdStrategy<D, F>) m_context.getBean(StrategyName.queuingRrdStrategy.toString());
+                rrdStrategy = (RrdStrategy<D, F>) m_context.getBean(useOffHeapQueue ? StrategyName.offHeapQueuingRrdStrategy.toString()
+                        : StrategyName.queuingRrdStrategy.toString());
             }
         } else {
             if (useTcp) {
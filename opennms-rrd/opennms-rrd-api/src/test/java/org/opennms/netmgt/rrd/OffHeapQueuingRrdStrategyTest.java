@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OffHeapQueuingRrdStrategyTest {
+
+    private final RecordingRrdStrategy m_delegate = new RecordingRrdStrategy();
+
+    private final OffHeapQueuingRrdStrategy m_strategy = new OffHeapQueuingRrdStrategy(m_delegate);
+
+    @After
+    public void tearDown() {
+        // Let any write thread that is still waiting go
+        m_delegate.m_release.countDown();
+    }
+
+    @Test
+    public void canEncodeAndDecodeRecords() {
+        assertRoundTrip("1234567890:1:-2:U", "1234567890:1:-2:U");
+        assertRoundTrip("1234567890:2.5:0.001", "1234567890:2.5:0.001");
+        assertRoundTrip("1234567890:NaN", "1234567890:U");
+        assertRoundTrip("1234567890:9223372036854775807", "1234567890:9223372036854775807");
+        assertRoundTrip("1234567890", "1234567890");
+
+        // Values that do not fit in a long, and "N" timestamps, are kept as-is
+        assertRoundTrip("1234567890:18446744073709551615", "1234567890:18446744073709551615");
+        assertRoundTrip("N:1:2", "N:1:2");
+        assertRoundTrip("1234567890:abc", "1234567890:abc");
+    }
+
+    @Test
+    public void canEncodeRecordsBackToBack() {
+        final ByteBuffer buf = ByteBuffer.allocate(1024);
+        final List<String> updates = Arrays.asList("1:1", "N:2", "3:3.5:U", "4");
+        for (int i = 0; i < updates.size(); i++) {
+            assertTrue(OffHeapQueuingRrdStrategy.encode(buf, i, updates.get(i)));
+        }
+        buf.flip();
+
+        final StringBuilder sb = new StringBuilder();
+        final List<String> decoded = new ArrayList<>();
+        while (buf.hasRemaining()) {
+            final int offset = buf.position();
+            assertEquals(decoded.size(), buf.getInt(offset));
+            decoded.add(OffHeapQueuingRrdStrategy.decode(buf, offset, sb));
+            buf.position(offset + OffHeapQueuingRrdStrategy.recordSize(buf, offset));
+        }
+        assertEquals(updates, decoded);
+    }
+
+    @Test
+    public void cannotEncodeRecordsLargerThanTheBuffer() {
+        final ByteBuffer buf = ByteBuffer.allocate(32);
+        assertTrue(OffHeapQueuingRrdStrategy.encode(buf, 0, "1:1"));
+        assertFalse(OffHeapQueuingRrdStrategy.encode(buf, 1, "2:1"));
+
+        assertFalse(OffHeapQueuingRrdStrategy.encode(ByteBuffer.allocate(32), 0, "1:1:2:3"));
+        assertFalse(OffHeapQueuingRrdStrategy.encode(ByteBuffer.allocate(32), 0, "N:12345678901234567890123456789012"));
+    }
+
+    @Test
+    public void canCoalesceUpdatesPerFile() throws Exception {
+        m_strategy.setWriteThreads(1);
+
+        // Keep the write thread busy while the updates accumulate
+        m_strategy.updateFile("blocker", "test", "1:1");
+        assertTrue(m_delegate.m_writing.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            m_strategy.updateFile("a", "test", (100 + i) + ":" + i);
+            m_strategy.updateFile("b", "test", (100 + i) + ":" + i);
+        }
+        // Only the last update for a given timestamp is written
+        m_strategy.updateFile("a", "test", "109:99");
+        assertEquals(21, m_strategy.getTotalOperationsPending());
+        assertEquals(2, m_strategy.getFilesPending());
+        assertEquals(11, m_strategy.getMaxFileBacklog());
+        m_delegate.m_release.countDown();
+
+        await().atMost(10, TimeUnit.SECONDS).until(m_strategy::getUpdatesCompleted, equalTo(21L));
+        assertEquals(1, m_delegate.getOpens("a"));
+        assertEquals(1, m_delegate.getOpens("b"));
+        assertEquals(3, m_strategy.getFilesFlushed());
+
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            expected.add((100 + i) + ":" + i);
+        }
+        expected.add("109:99");
+        assertEquals(expected, m_delegate.getUpdates("a"));
+        assertEquals(10, m_delegate.getUpdates("b").size());
+    }
+
+    @Test
+    public void canDropUpdatesWhenTheBufferIsFull() throws Exception {
+        m_strategy.setWriteThreads(1);
+        // Room for two updates with a single value
+        m_strategy.setBufferSize(50);
+
+        m_strategy.updateFile("blocker", "test", "1:1");
+        assertTrue(m_delegate.m_writing.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            m_strategy.updateFile("a", "test", (100 + i) + ":" + i);
+        }
+        assertEquals(3, m_strategy.getEnqueuedOperations());
+        assertEquals(3, m_strategy.getDroppedOperations());
+        assertEquals(3, m_strategy.getMetricRegistry().counter("dropped").getCount());
+        m_delegate.m_release.countDown();
+
+        await().atMost(10, TimeUnit.SECONDS).until(m_strategy::getUpdatesCompleted, equalTo(3L));
+        assertEquals(Arrays.asList("100:0", "101:1"), m_delegate.getUpdates("a"));
+    }
+
+    @Test
+    public void canAssignFilesToStripes() throws Exception {
+        m_strategy.setWriteThreads(2);
+        m_delegate.m_release.countDown();
+
+        // Files are numbered in the order in which they are first seen, and assigned to the stripes round-robin
+        final List<String> files = Arrays.asList("f0", "f1", "f2", "f3");
+        for (int i = 0; i < 5; i++) {
+            for (String file : files) {
+                m_strategy.updateFile(file, "test", (100 + i) + ":" + i);
+            }
+        }
+
+        await().atMost(10, TimeUnit.SECONDS).until(m_strategy::getUpdatesCompleted, equalTo(20L));
+        final String firstStripe = OffHeapQueuingRrdStrategy.class.getSimpleName() + "-1";
+        final String secondStripe = OffHeapQueuingRrdStrategy.class.getSimpleName() + "-2";
+        assertEquals(new HashSet<>(Arrays.asList(firstStripe)), m_delegate.getThreads("f0"));
+        assertEquals(new HashSet<>(Arrays.asList(secondStripe)), m_delegate.getThreads("f1"));
+        assertEquals(new HashSet<>(Arrays.asList(firstStripe)), m_delegate.getThreads("f2"));
+        assertEquals(new HashSet<>(Arrays.asList(secondStripe)), m_delegate.getThreads("f3"));
+        for (String file : files) {
+            assertEquals(5, m_delegate.getUpdates(file).size());
+        }
+    }
+
+    private static void assertRoundTrip(String update, String expected) {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(256);
+        assertTrue(OffHeapQueuingRrdStrategy.encode(buf, 42, update));
+        assertEquals(buf.position(), OffHeapQueuingRrdStrategy.recordSize(buf, 0));
+        assertEquals(42, buf.getInt(0));
+        assertEquals(expected, OffHeapQueuingRrdStrategy.decode(buf, 0, new StringBuilder()));
+    }
+
+    /**
+     * Records the updates made to each file. The first update waits until
+     * {@link #m_release} is counted down, which holds the write thread.
+     */
+    private static class RecordingRrdStrategy extends NullRrdStrategy {
+        private final CountDownLatch m_writing = new CountDownLatch(1);
+        private final CountDownLatch m_release = new CountDownLatch(1);
+        private final Map<String, List<String>> m_updates = new HashMap<>();
+        private final Map<String, Integer> m_opens = new HashMap<>();
+        private final Map<String, Set<String>> m_threads = new HashMap<>();
+
+        @Override
+        public synchronized Object openFile(String fileName) {
+            m_opens.merge(fileName, 1, Integer::sum);
+            m_threads.computeIfAbsent(fileName, k -> new HashSet<>()).add(Thread.currentThread().getName());
+            return fileName;
+        }
+
+        @Override
+        public void updateFile(Object rrd, String owner, String data) {
+            m_writing.countDown();
+            try {
+                m_release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                m_updates.computeIfAbsent((String) rrd, k -> new ArrayList<>()).add(data);
+            }
+        }
+
+        private synchronized List<String> getUpdates(String fileName) {
+            return new ArrayList<>(m_updates.getOrDefault(fileName, new ArrayList<>()));
+        }
+
+        private synchronized int getOpens(String fileName) {
+            return m_opens.getOrDefault(fileName, 0);
+        }
+
+        private synchronized Set<String> getThreads(String fileName) {
+            return new HashSet<>(m_threads.getOrDefault(fileName, new HashSet<>()));
+        }
+    }
+}
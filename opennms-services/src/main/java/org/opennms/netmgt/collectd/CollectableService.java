@@ -69,6 +69,7 @@ import org.opennms.netmgt.model.events.EventBuilder;
 import org.opennms.netmgt.rrd.RrdRepository;
 import org.opennms.netmgt.scheduler.ReadyRunnable;
 import org.opennms.netmgt.scheduler.Scheduler;
+import org.opennms.netmgt.threshd.ThresholdStateStore;
 import org.opennms.netmgt.threshd.ThresholdingVisitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -145,6 +146,8 @@ class CollectableService implements ReadyRunnable {
 
     private final ResourceStorageDao m_resourceStorageDao;
 
+    private final ThresholdStateStore m_thresholdStateStore;
+
     /**
      * Constructs a new instance of a CollectableService object.
      *
@@ -159,6 +162,24 @@ class CollectableService implements ReadyRunnable {
     protected CollectableService(OnmsIpInterface iface, IpInterfaceDao ifaceDao, CollectionSpecification spec,
             Scheduler scheduler, SchedulingCompletedFlag schedulingCompletedFlag, PlatformTransactionManager transMgr,
             PersisterFactory persisterFactory, ResourceStorageDao resourceStorageDao) throws CollectionInitializationException {
+        this(iface, ifaceDao, spec, scheduler, schedulingCompletedFlag, transMgr, persisterFactory, resourceStorageDao, null);
+    }
+
+    /**
+     * Constructs a new instance of a CollectableService object.
+     *
+     * @param iface The interface on which to collect data
+     * @param spec
+     *            The package containing parms for this collectable service.
+     * @param ifaceDao a {@link org.opennms.netmgt.dao.api.IpInterfaceDao} object.
+     * @param scheduler a {@link org.opennms.netmgt.scheduler.Scheduler} object.
+     * @param schedulingCompletedFlag a {@link org.opennms.netmgt.collectd.Collectd.SchedulingCompletedFlag} object.
+     * @param transMgr a {@link org.springframework.transaction.PlatformTransactionManager} object.
+     * @param thresholdStateStore the store holding the state of the thresholds, or null to use a store of its own
+     */
+    protected CollectableService(OnmsIpInterface iface, IpInterfaceDao ifaceDao, CollectionSpecification spec,
+            Scheduler scheduler, SchedulingCompletedFlag schedulingCompletedFlag, PlatformTransactionManager transMgr,
+            PersisterFactory persisterFactory, ResourceStorageDao resourceStorageDao, ThresholdStateStore thresholdStateStore) throws CollectionInitializationException {
 
         m_agent = DefaultCollectionAgent.create(iface.getId(), ifaceDao, transMgr);
         m_spec = spec;
@@ -168,6 +189,7 @@ class CollectableService implements ReadyRunnable {
         m_transMgr = transMgr;
         m_persisterFactory = persisterFactory;
         m_resourceStorageDao = resourceStorageDao;
+        m_thresholdStateStore = thresholdStateStore;
 
         m_nodeId = iface.getNode().getId().intValue();
         m_status = CollectionStatus.SUCCEEDED;
@@ -181,7 +203,7 @@ class CollectableService implements ReadyRunnable {
         m_params = m_spec.getServiceParameters();
         m_repository=m_spec.getRrdRepository(m_params.getCollectionName());
 
-        m_thresholdVisitor = ThresholdingVisitor.create(m_nodeId, getHostAddress(), m_spec.getServiceName(), m_repository, m_params, m_resourceStorageDao);
+        m_thresholdVisitor = ThresholdingVisitor.create(m_nodeId, getHostAddress(), m_spec.getServiceName(), m_repository, m_params, m_resourceStorageDao, m_thresholdStateStore);
     }
     
     /**
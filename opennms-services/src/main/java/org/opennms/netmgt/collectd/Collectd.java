@@ -78,10 +78,11 @@ import org.opennms.netmgt.model.OnmsMonitoredService;
 import org.opennms.netmgt.model.OnmsNode;
 import org.opennms.netmgt.model.events.EventBuilder;
 import org.opennms.netmgt.model.events.EventUtils;
-import org.opennms.netmgt.scheduler.LegacyScheduler;
 import org.opennms.netmgt.scheduler.ReadyRunnable;
 import org.opennms.netmgt.scheduler.Scheduler;
+import org.opennms.netmgt.scheduler.Schedulers;
 import org.opennms.netmgt.snmp.InetAddrUtils;
+import org.opennms.netmgt.threshd.ThresholdStateStore;
 import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.Parm;
 import org.opennms.netmgt.xml.event.Value;
@@ -193,6 +194,9 @@ public class Collectd extends AbstractServiceDaemon implements
     @Autowired
     private ResourceStorageDao m_resourceStorageDao;
 
+    @Autowired(required = false)
+    private ThresholdStateStore m_thresholdStateStore;
+
     /**
      * Constructor.
      */
@@ -320,7 +324,7 @@ public class Collectd extends AbstractServiceDaemon implements
             // Create a scheduler
             try {
                 LOG.debug("init: Creating collectd scheduler");
-                setScheduler(new LegacyScheduler("Collectd", m_collectdConfigFactory.getCollectdConfig().getThreads()));
+                setScheduler(Schedulers.createScheduler("Collectd", m_collectdConfigFactory.getCollectdConfig().getThreads()));
             } catch (final RuntimeException e) {
                 LOG.error("init: Failed to create collectd scheduler", e);
                 throw e;
@@ -519,7 +523,8 @@ public class Collectd extends AbstractServiceDaemon implements
                     m_schedulingCompletedFlag,
                     m_transTemplate.getTransactionManager(),
                     m_persisterFactory,
-                    m_resourceStorageDao
+                    m_resourceStorageDao,
+                    m_thresholdStateStore
                 );
 
                 // Add new collectable service to the collectable service list.
@@ -53,6 +53,7 @@ import org.opennms.netmgt.poller.PollStatus;
 import org.opennms.netmgt.poller.ServiceMonitorAdaptor;
 import org.opennms.netmgt.rrd.RrdRepository;
 import org.opennms.netmgt.threshd.LatencyThresholdingSet;
+import org.opennms.netmgt.threshd.ThresholdStateStore;
 import org.opennms.netmgt.threshd.ThresholdingEventProxy;
 import org.opennms.netmgt.xml.event.Event;
 import org.slf4j.Logger;
@@ -74,6 +75,7 @@ public class LatencyStoringServiceMonitorAdaptor implements ServiceMonitorAdapto
     private Package m_pkg;
     private final PersisterFactory m_persisterFactory;
     private final ResourceStorageDao m_resourceStorageDao;
+    private final ThresholdStateStore m_thresholdStateStore;
 
     private LatencyThresholdingSet m_thresholdingSet;
 
@@ -85,10 +87,22 @@ public class LatencyStoringServiceMonitorAdaptor implements ServiceMonitorAdapto
      * @param pkg a {@link org.opennms.netmgt.config.poller.Package} object.
      */
     public LatencyStoringServiceMonitorAdaptor(PollerConfig config, Package pkg, PersisterFactory persisterFactory, ResourceStorageDao resourceStorageDao) {
+        this(config, pkg, persisterFactory, resourceStorageDao, null);
+    }
+
+    /**
+     * <p>Constructor for LatencyStoringServiceMonitorAdaptor.</p>
+     *
+     * @param config a {@link org.opennms.netmgt.config.PollerConfig} object.
+     * @param pkg a {@link org.opennms.netmgt.config.poller.Package} object.
+     * @param thresholdStateStore the store holding the state of the thresholds, or null to use a store of its own
+     */
+    public LatencyStoringServiceMonitorAdaptor(PollerConfig config, Package pkg, PersisterFactory persisterFactory, ResourceStorageDao resourceStorageDao, ThresholdStateStore thresholdStateStore) {
         m_pollerConfig = config;
         m_pkg = pkg;
         m_persisterFactory = persisterFactory;
         m_resourceStorageDao = resourceStorageDao;
+        m_thresholdStateStore = thresholdStateStore;
     }
 
     @Override
@@ -130,7 +144,7 @@ public class LatencyStoringServiceMonitorAdaptor implements ServiceMonitorAdapto
             if (m_thresholdingSet == null) {
                 RrdRepository repository = new RrdRepository();
                 repository.setRrdBaseDir(new File(rrdPath));
-                m_thresholdingSet = new LatencyThresholdingSet(service.getNodeId(), service.getIpAddr(), service.getSvcName(), service.getNodeLocation(), repository, m_resourceStorageDao);
+                m_thresholdingSet = new LatencyThresholdingSet(service.getNodeId(), service.getIpAddr(), service.getSvcName(), service.getNodeLocation(), repository, m_resourceStorageDao, m_thresholdStateStore);
             }
             LinkedHashMap<String, Double> attributes = new LinkedHashMap<String, Double>();
             for (String ds : entries.keySet()) {
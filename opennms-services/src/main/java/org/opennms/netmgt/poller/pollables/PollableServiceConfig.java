@@ -48,6 +48,7 @@ import org.opennms.netmgt.poller.PollStatus;
 import org.opennms.netmgt.poller.ServiceMonitor;
 import org.opennms.netmgt.scheduler.ScheduleInterval;
 import org.opennms.netmgt.scheduler.Timer;
+import org.opennms.netmgt.threshd.ThresholdStateStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -82,6 +83,20 @@ public class PollableServiceConfig implements PollConfig, ScheduleInterval {
      * @param timer a {@link org.opennms.netmgt.scheduler.Timer} object.
      */
     public PollableServiceConfig(PollableService svc, PollerConfig pollerConfig, PollOutagesConfig pollOutagesConfig, Package pkg, Timer timer, PersisterFactory persisterFactory, ResourceStorageDao resourceStorageDao, LocationAwarePollerClient locationAwarePollerClient) {
+        this(svc, pollerConfig, pollOutagesConfig, pkg, timer, persisterFactory, resourceStorageDao, null, locationAwarePollerClient);
+    }
+
+    /**
+     * <p>Constructor for PollableServiceConfig.</p>
+     *
+     * @param svc a {@link org.opennms.netmgt.poller.pollables.PollableService} object.
+     * @param pollerConfig a {@link org.opennms.netmgt.config.PollerConfig} object.
+     * @param pollOutagesConfig a {@link org.opennms.netmgt.config.PollOutagesConfig} object.
+     * @param pkg a {@link org.opennms.netmgt.config.poller.Package} object.
+     * @param timer a {@link org.opennms.netmgt.scheduler.Timer} object.
+     * @param thresholdStateStore the store holding the state of the latency thresholds, or null to use a store of its own
+     */
+    public PollableServiceConfig(PollableService svc, PollerConfig pollerConfig, PollOutagesConfig pollOutagesConfig, Package pkg, Timer timer, PersisterFactory persisterFactory, ResourceStorageDao resourceStorageDao, ThresholdStateStore thresholdStateStore, LocationAwarePollerClient locationAwarePollerClient) {
         m_service = svc;
         m_pollerConfig = pollerConfig;
         m_pollOutagesConfig = pollOutagesConfig;
@@ -89,7 +104,7 @@ public class PollableServiceConfig implements PollConfig, ScheduleInterval {
         m_timer = timer;
         m_configService = findService(pkg);
         m_locationAwarePollerClient = Objects.requireNonNull(locationAwarePollerClient);
-        m_latencyStoringServiceMonitorAdaptor = new LatencyStoringServiceMonitorAdaptor(pollerConfig, pkg, persisterFactory, resourceStorageDao);
+        m_latencyStoringServiceMonitorAdaptor = new LatencyStoringServiceMonitorAdaptor(pollerConfig, pkg, persisterFactory, resourceStorageDao, thresholdStateStore);
         m_serviceMonitor = pollerConfig.getServiceMonitor(svc.getSvcName());
     }
 
@@ -33,15 +33,16 @@ import java.net.InetAddress;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.opennms.core.utils.InetAddressUtils;
 import org.opennms.netmgt.config.RTCConfigFactory;
@@ -80,6 +81,11 @@ import org.springframework.transaction.support.TransactionTemplate;
  * 'nodeGainedService' event would result in the 'nodeGainedService()' method
  * being called by the DataUpdater(s).
  *
+ * Updates are serialized per node using a set of striped locks, so that
+ * events for different nodes can be processed concurrently. Reads are served
+ * from the indexes maintained by each 'RTCCategory' and do not take any of
+ * these locks.
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Nataraj </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  */
@@ -87,6 +93,11 @@ public class DataManager implements AvailabilityService, InitializingBean {
     
     private static final Logger LOG = LoggerFactory.getLogger(DataManager.class);
 
+    /**
+     * The number of locks used to serialize the updates made to the nodes
+     */
+    private static final int NODE_LOCK_STRIPES = Integer.getInteger("org.opennms.rtc.nodeLockStripes", 256);
+
     @Autowired
 	private FilterDao m_filterDao;
 
@@ -107,6 +118,11 @@ public class DataManager implements AvailabilityService, InitializingBean {
      */
     private final LegacyEuiLevelMapper m_euiMapper;
 
+    /**
+     * Locks used to serialize the updates made to a node, indexed by node ID
+     */
+    private final Lock[] m_nodeLocks;
+
 	private class RTCNodeProcessor implements RowCallbackHandler {
 		RTCNodeKey m_currentKey = null;
 
@@ -177,6 +193,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
 			if (rtcN == null) return;
 			
 			addOutageToRTCNode(rtcN, ifLostService, ifRegainedService);
+			serviceOutageChanged(rtcN);
 		}
 	}
 
@@ -208,6 +225,22 @@ public class DataManager implements AvailabilityService, InitializingBean {
 		m_map.add(rtcN);
 	}
 
+	/**
+	 * Lets the categories of the given node know that its outages have changed.
+	 */
+	private void serviceOutageChanged(RTCNode rtcN) {
+		for (String catlabel : rtcN.getCategories()) {
+			RTCCategory cat = m_categories.get(catlabel);
+			if (cat != null) {
+				cat.serviceOutageChanged(rtcN);
+			}
+		}
+	}
+
+	private Lock getNodeLock(int nodeid) {
+		return m_nodeLocks[Math.floorMod(nodeid, m_nodeLocks.length)];
+	}
+
 	private static void addNodeToCategory(RTCCategory cat, RTCNode rtcN) {
 
 		// add the category info to the node
@@ -290,6 +323,11 @@ public class DataManager implements AvailabilityService, InitializingBean {
     public DataManager() {
         // create category converter
         m_euiMapper = new LegacyEuiLevelMapper(this);
+
+        m_nodeLocks = new Lock[Math.max(1, NODE_LOCK_STRIPES)];
+        for (int i = 0; i < m_nodeLocks.length; i++) {
+            m_nodeLocks[i] = new ReentrantLock();
+        }
     };
 
     /**
@@ -353,7 +391,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param svcName
      *            the service name
      */
-    public synchronized void nodeGainedService(int nodeid, InetAddress ip, String svcName) {
+    public void nodeGainedService(int nodeid, InetAddress ip, String svcName) {
         //
         // check the 'status' flag for the service
         //
@@ -414,18 +452,26 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param t
      *            the time at which service was lost
      */
-    public synchronized void outageCreated(int nodeid, InetAddress ip, String svcName, long t) {
-        RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
-        RTCNode rtcN = m_map.getRTCNode(key);
-        if (rtcN == null) {
-            // oops! got a lost/regained service for a node that is not known?
-            LOG.info("Received a outageCreated event for an unknown/irrelevant node: {}", key.toString());
-            return;
-        }
+    public void outageCreated(int nodeid, InetAddress ip, String svcName, long t) {
+        final Lock lock = getNodeLock(nodeid);
+        lock.lock();
+        try {
+            RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
+            RTCNode rtcN = m_map.getRTCNode(key);
+            if (rtcN == null) {
+                // oops! got a lost/regained service for a node that is not known?
+                LOG.info("Received a outageCreated event for an unknown/irrelevant node: {}", key.toString());
+                return;
+            }
 
-        // inform node
-        rtcN.nodeLostService(t);
+            // inform node
+            rtcN.nodeLostService(t);
 
+            // and the categories it belongs to
+            serviceOutageChanged(rtcN);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -441,17 +487,23 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param t
      *            the time at which service was regained
      */
-    public synchronized void outageResolved(int nodeid, InetAddress ip, String svcName, long t) {
-        RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
-        RTCNode rtcN = m_map.getRTCNode(key);
-        if (rtcN == null) {
-            // oops! got a lost/regained service for a node that is not known?
-            LOG.info("Received a outageResolved event for an unknown/irrelevant node: {}", key.toString());
-            return;
-        }
+    public void outageResolved(int nodeid, InetAddress ip, String svcName, long t) {
+        final Lock lock = getNodeLock(nodeid);
+        lock.lock();
+        try {
+            RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
+            RTCNode rtcN = m_map.getRTCNode(key);
+            if (rtcN == null) {
+                // oops! got a lost/regained service for a node that is not known?
+                LOG.info("Received a outageResolved event for an unknown/irrelevant node: {}", key.toString());
+                return;
+            }
 
-        // inform node
-        rtcN.nodeRegainedService(t);
+            // inform node
+            rtcN.nodeRegainedService(t);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -464,50 +516,39 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param svcName
      *            the service that was deleted
      */
-    public synchronized void serviceDeleted(int nodeid, InetAddress ip, String svcName) {
-        // create lookup key
-        RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
+    public void serviceDeleted(int nodeid, InetAddress ip, String svcName) {
+        final Lock lock = getNodeLock(nodeid);
+        lock.lock();
+        try {
+            // create lookup key
+            RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
 
-        // lookup the node
-        RTCNode rtcN = m_map.getRTCNode(key);
-        if (rtcN == null) {
-            LOG.warn("Received a {} event for an unknown node: {}", EventConstants.SERVICE_DELETED_EVENT_UEI, key.toString());
+            // lookup the node
+            RTCNode rtcN = m_map.getRTCNode(key);
+            if (rtcN == null) {
+                LOG.warn("Received a {} event for an unknown node: {}", EventConstants.SERVICE_DELETED_EVENT_UEI, key.toString());
 
-            return;
-        }
+                return;
+            }
 
-        //
-        // Go through from all the categories this node belongs to
-        // and delete the service
-        //
-        List<String> categories = rtcN.getCategories();
-        ListIterator<String> catIter = categories.listIterator();
-        while (catIter.hasNext()) {
-            String catlabel = (String) catIter.next();
-
-            RTCCategory cat = (RTCCategory) m_categories.get(catlabel);
-
-            // get nodes in this category
-            List<Integer> catNodes = cat.getNodes();
-
-            // check if the category contains this node
-            int nIndex = catNodes.indexOf(rtcN.getNodeID());
-            if (nIndex != -1) {
-                // remove from the category if it is the only service left.
-                if (m_map.getServiceCount(nodeid, catlabel) == 1) {
-                    catNodes.remove(nIndex);
-                    LOG.info("Removing node from category: {}", catlabel);
-                }
+            //
+            // Go through from all the categories this node belongs to
+            // and delete the service, the category removes the node
+            // if this was the only service left
+            //
+            for (String catlabel : rtcN.getCategories()) {
+                RTCCategory cat = m_categories.get(catlabel);
+                cat.deleteService(rtcN);
 
                 // let the node know that this category is out
-                catIter.remove();
+                rtcN.removeCategory(catlabel);
             }
-        }
-
-        // finally remove from map
-        
-        m_map.delete(rtcN);
 
+            // finally remove from map
+            m_map.delete(rtcN);
+        } finally {
+            lock.unlock();
+        }
     }
     
     /**
@@ -515,7 +556,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      *
      * @param nodeid a long.
      */
-    public synchronized void assetInfoChanged(int nodeid) {
+    public void assetInfoChanged(int nodeid) {
         try {
         	rtcNodeRescan(nodeid);
         } catch (FilterParseException ex) {
@@ -537,7 +578,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      *
      * @param nodeid a long.
      */
-    public synchronized void nodeCategoryMembershipChanged(int nodeid) {
+    public void nodeCategoryMembershipChanged(int nodeid) {
         try {
         	rtcNodeRescan(nodeid);
         } catch (FilterParseException ex) {
@@ -567,16 +608,20 @@ public class DataManager implements AvailabilityService, InitializingBean {
      *             if the database read or filtering the data against the
      *             category rule fails for some reason
      */
-    public synchronized void rtcNodeRescan(int nodeid) throws SQLException, FilterParseException, RTCException {
-    	
-    	for (RTCCategory cat : m_categories.values()) {
-			cat.deleteNode(nodeid);
-		}
-    	
-    	m_map.deleteNode(nodeid);
-    	
-    	populateNodesFromDB("ifsvc.nodeid = ?", new Object[] { Long.valueOf(nodeid) });
-    	
+    public void rtcNodeRescan(int nodeid) throws SQLException, FilterParseException, RTCException {
+        final Lock lock = getNodeLock(nodeid);
+        lock.lock();
+        try {
+            for (RTCCategory cat : m_categories.values()) {
+                cat.deleteNode(nodeid);
+            }
+
+            m_map.deleteNode(nodeid);
+
+            populateNodesFromDB("ifsvc.nodeid = ?", new Object[] { Long.valueOf(nodeid) });
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -599,27 +644,35 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param newNodeId
      *            the node that the IP now belongs to
      */
-    public synchronized void interfaceReparented(InetAddress ip, int oldNodeId, int newNodeId) {
-        // get all RTCNodes with the IP/old node ID
-        for (RTCNode rtcN : m_map.getRTCNodes(oldNodeId, ip)) {
-
-            // remove the node with the old node id from the map
-            m_map.delete(rtcN);
-
-            // change the node ID on the RTCNode
-            rtcN.setNodeID(newNodeId);
+    public void interfaceReparented(InetAddress ip, int oldNodeId, int newNodeId) {
+        // always acquire the locks in the same order to avoid deadlocks
+        final Lock firstLock = getNodeLock(Math.min(oldNodeId, newNodeId));
+        final Lock secondLock = getNodeLock(Math.max(oldNodeId, newNodeId));
+        firstLock.lock();
+        secondLock.lock();
+        try {
+            // get all RTCNodes with the IP/old node ID
+            for (RTCNode rtcN : new ArrayList<RTCNode>(m_map.getRTCNodes(oldNodeId, ip))) {
+
+                // remove the node with the old node id from the map
+                // and from the categories it belonged to
+                m_map.delete(rtcN);
+                for (String catlabel : rtcN.getCategories()) {
+                    m_categories.get(catlabel).deleteService(rtcN);
+                }
 
-            // now add the node with the new node ID
-            m_map.add(rtcN);
+                // change the node ID on the RTCNode
+                rtcN.setNodeID(newNodeId);
 
-            // remove old node ID from the categories it belonged to
-            // and the new node ID
-            for (String catlabel : rtcN.getCategories()) {
-                RTCCategory rtcCat = m_categories.get(catlabel);
-                rtcCat.deleteNode(oldNodeId);
-                rtcCat.addNode(newNodeId);
+                // now add the node with the new node ID
+                m_map.add(rtcN);
+                for (String catlabel : rtcN.getCategories()) {
+                    m_categories.get(catlabel).addNode(rtcN);
+                }
             }
-
+        } finally {
+            secondLock.unlock();
+            firstLock.unlock();
         }
     }
 
@@ -636,8 +689,8 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the value(uptime) for the category in the last 'rollingWindow'
      *         starting at current time
      */
-    public synchronized double getValue(RTCCategory category, long curTime, long rollingWindow) {
-        return m_map.getValue(category.getLabel(), curTime, rollingWindow);
+    public double getValue(RTCCategory category, long curTime, long rollingWindow) {
+        return category.getValue(m_map, curTime, rollingWindow);
     }
 
     /**
@@ -655,8 +708,8 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the value(uptime) for the node in the last 'rollingWindow'
      *         starting at current time in the context of the passed category
      */
-    public synchronized double getValue(int nodeid, RTCCategory category, long curTime, long rollingWindow) {
-        return m_map.getValue(nodeid, category.getLabel(), curTime, rollingWindow);
+    public double getValue(int nodeid, RTCCategory category, long curTime, long rollingWindow) {
+        return category.getValue(nodeid, curTime, rollingWindow);
     }
 
     /**
@@ -670,8 +723,8 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the service count for the nodeid in the context of the passed
      *         category
      */
-    public synchronized int getServiceCount(int nodeid, RTCCategory category) {
-        return m_map.getServiceCount(nodeid, category.getLabel());
+    public int getServiceCount(int nodeid, RTCCategory category) {
+        return category.getServiceCount(nodeid);
     }
 
     /**
@@ -685,8 +738,8 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the service down count for the nodeid in the context of the
      *         passed category
      */
-    public synchronized int getServiceDownCount(int nodeid, RTCCategory category) {
-        return m_map.getServiceDownCount(nodeid, category.getLabel());
+    public int getServiceDownCount(int nodeid, RTCCategory category) {
+        return category.getServiceDownCount(nodeid);
     }
 
     /**
@@ -695,7 +748,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the categories
      */
     @Override
-    public synchronized Map<String, RTCCategory> getCategories() {
+    public Map<String, RTCCategory> getCategories() {
         return m_categories;
     }
 
@@ -32,12 +32,27 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opennms.netmgt.config.categories.Category;
+import org.opennms.netmgt.rtc.NodeNotInCategoryException;
+import org.opennms.netmgt.rtc.RTCUtils;
 
 /**
  * This class is used to encapsulate a category in the categories XML file.
  *
+ * The category also indexes the 'RTCNode's (services) that belong to it by
+ * node ID, along with the subset of these that have outages, so that the
+ * availability of the category, or of a node in the category, can be
+ * calculated without going through every service known to the RTC. All of
+ * the structures are concurrent, so that reads do not block the updates
+ * made as events are processed, and vice versa.
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Nataraj </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  */
@@ -55,6 +70,27 @@ public class RTCCategory extends Category {
      */
     private final List<Integer> m_nodes = Collections.synchronizedList(new ArrayList<Integer>());
 
+    /**
+     * The node IDs in the nodes list, used to avoid scanning the list
+     */
+    private final Set<Integer> m_nodeIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The services in this category, keyed by node ID
+     */
+    private final ConcurrentMap<Integer, CopyOnWriteArrayList<RTCNode>> m_servicesByNode = new ConcurrentHashMap<>();
+
+    /**
+     * The services in this category that have (or recently had) an outage,
+     * all other services have no down time
+     */
+    private final Set<RTCNode> m_servicesWithOutages = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The total number of services in this category
+     */
+    private final AtomicInteger m_serviceCount = new AtomicInteger();
+
     /**
      * The default constructor - initializes the values
      *
@@ -73,16 +109,20 @@ public class RTCCategory extends Category {
     }
 
     /**
-     * Add to the nodes in this category
+     * Add the service to this category, and its node to the nodes in this
+     * category
      *
      * @param node
-     *            the node to add
+     *            the service to add
      */
     public void addNode(RTCNode node) {
-        Integer longnodeid = node.getNodeID();
-
-        if (!m_nodes.contains(longnodeid))
-            m_nodes.add(longnodeid);
+        final int nodeid = node.getNodeID();
+        final CopyOnWriteArrayList<RTCNode> services = m_servicesByNode.computeIfAbsent(nodeid, k -> new CopyOnWriteArrayList<>());
+        if (services.addIfAbsent(node)) {
+            m_serviceCount.incrementAndGet();
+            serviceOutageChanged(node);
+        }
+        addNode(nodeid);
     }
 
     /**
@@ -92,19 +132,48 @@ public class RTCCategory extends Category {
      *            the node ID to add
      */
     public void addNode(int nodeid) {
-        if (!m_nodes.contains(nodeid)) {
+        if (m_nodeIds.add(nodeid)) {
             m_nodes.add(nodeid);
         }
     }
 
     /**
-     * Delete from the nodes in this category
+     * Delete the service from this category. The node is deleted from the
+     * nodes in this category if it was the node's last service.
+     *
+     * @param node
+     *            the service to delete
+     */
+    public void deleteService(RTCNode node) {
+        final int nodeid = node.getNodeID();
+        final List<RTCNode> services = m_servicesByNode.get(nodeid);
+        if (services == null || !services.remove(node)) {
+            return;
+        }
+        m_serviceCount.decrementAndGet();
+        m_servicesWithOutages.remove(node);
+        if (services.isEmpty()) {
+            m_servicesByNode.remove(nodeid, services);
+            deleteNode(nodeid);
+        }
+    }
+
+    /**
+     * Delete from the nodes in this category, along with all of the node's
+     * services
      *
      * @param nodeid
      *            the node ID to delete
      */
     public void deleteNode(int nodeid) {
-        m_nodes.remove(Integer.valueOf(nodeid));
+        final List<RTCNode> services = m_servicesByNode.remove(nodeid);
+        if (services != null) {
+            m_serviceCount.addAndGet(-services.size());
+            m_servicesWithOutages.removeAll(services);
+        }
+        if (m_nodeIds.remove(nodeid)) {
+            m_nodes.remove(Integer.valueOf(nodeid));
+        }
     }
 
     /**
@@ -112,13 +181,146 @@ public class RTCCategory extends Category {
      */
     public void clearNodes() {
         m_nodes.clear();
+        m_nodeIds.clear();
+        m_servicesByNode.clear();
+        m_servicesWithOutages.clear();
+        m_serviceCount.set(0);
     }
 
     /**
      * Delete all nodes in this category
      */
     public void addAllNodes(Collection<Integer> nodes) {
-        m_nodes.addAll(nodes);
+        for (Integer nodeid : nodes) {
+            addNode(nodeid);
+        }
+    }
+
+    /**
+     * Must be called after an outage was added to one of the services in this
+     * category, so that it is taken into account by the availability
+     * calculations.
+     *
+     * @param node
+     *            the service with the outage
+     */
+    public void serviceOutageChanged(RTCNode node) {
+        final List<RTCNode> services = m_servicesByNode.get(node.getNodeID());
+        if (services != null && services.contains(node) && node.hasSvcTimes()) {
+            m_servicesWithOutages.add(node);
+        }
+    }
+
+    /**
+     * Get the value (uptime) for this category in the last 'rollingWindow'
+     * starting at current time
+     *
+     * The services of each node are weighed by the number of keys the node
+     * has in the map, as they have always been.
+     *
+     * @param map
+     *            the map with all of the services
+     * @param curTime
+     *            the current time
+     * @param rollingWindow
+     *            the window for which value is to be calculated
+     * @return the value(uptime) for the category
+     */
+    public double getValue(RTCHashMap map, long curTime, long rollingWindow) {
+        double outageTime = 0.0;
+        for (RTCNode node : m_servicesWithOutages) {
+            outageTime += (double) map.getKeyCount(node.getNodeID()) * getDownTime(node, curTime, rollingWindow);
+        }
+        long count = 0;
+        for (Map.Entry<Integer, CopyOnWriteArrayList<RTCNode>> entry : m_servicesByNode.entrySet()) {
+            count += (long) map.getKeyCount(entry.getKey()) * entry.getValue().size();
+        }
+        return RTCUtils.getOutagePercentage(outageTime, rollingWindow, count);
+    }
+
+    /**
+     * Get the value (uptime) for a node in this category in the last
+     * 'rollingWindow' starting at current time
+     *
+     * @param nodeid
+     *            the node for which value is to be calculated
+     * @param curTime
+     *            the current time
+     * @param rollingWindow
+     *            the window for which value is to be calculated
+     * @return the value(uptime) for the node
+     */
+    public double getValue(int nodeid, long curTime, long rollingWindow) {
+        double outageTime = 0.0;
+        int count = 0;
+        for (RTCNode node : getServices(nodeid)) {
+            outageTime += getDownTime(node, curTime, rollingWindow);
+            count++;
+        }
+        return RTCUtils.getOutagePercentage(outageTime, rollingWindow, count);
+    }
+
+    /**
+     * Get the count of services for a node in this category
+     *
+     * @param nodeid
+     *            the node for which the service count is needed
+     * @return the service count
+     */
+    public int getServiceCount(int nodeid) {
+        return getServices(nodeid).size();
+    }
+
+    /**
+     * Get the count of services currently down for a node in this category
+     *
+     * @param nodeid
+     *            the node for which the service down count is needed
+     * @return the service down count
+     */
+    public int getServiceDownCount(int nodeid) {
+        int count = 0;
+        for (RTCNode node : getServices(nodeid)) {
+            if (node.isServiceCurrentlyDown()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the total count of services in this category
+     *
+     * @return the service count
+     */
+    public int getServiceCount() {
+        return m_serviceCount.get();
+    }
+
+    private List<RTCNode> getServices(int nodeid) {
+        final List<RTCNode> services = m_servicesByNode.get(nodeid);
+        return services != null ? services : Collections.<RTCNode>emptyList();
+    }
+
+    private long getDownTime(RTCNode node, long curTime, long rollingWindow) {
+        if (!m_servicesWithOutages.contains(node)) {
+            return 0;
+        }
+        try {
+            final long downTime = node.getDownTime(getLabel(), curTime, rollingWindow);
+            if (downTime == 0) {
+                // Stop tracking the service once all of its outages have expired. Holding the
+                // node's lock guarantees that we don't miss an outage added concurrently.
+                synchronized (node) {
+                    if (!node.hasSvcTimes()) {
+                        m_servicesWithOutages.remove(node);
+                    }
+                }
+            }
+            return downTime;
+        } catch (NodeNotInCategoryException e) {
+            return 0;
+        }
     }
 
     /**
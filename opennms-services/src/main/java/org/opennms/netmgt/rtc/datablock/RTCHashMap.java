@@ -31,11 +31,11 @@ package org.opennms.netmgt.rtc.datablock;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opennms.netmgt.rtc.NodeNotInCategoryException;
 import org.opennms.netmgt.rtc.RTCUtils;
@@ -45,6 +45,9 @@ import org.opennms.netmgt.rtc.RTCUtils;
  * convenience methods to add and remove 'RTCNodes' with these values - each key
  * points to a list of 'RTCNode's
  *
+ * The map can be read concurrently with updates. Callers are expected to
+ * serialize the updates made to any given node.
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Kumaraswamy </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  */
@@ -52,7 +55,12 @@ import org.opennms.netmgt.rtc.RTCUtils;
 // FIXME: 2011-05-18 Seth: OK it is less insane now... but still insane
 public class RTCHashMap {
 	
-    private final Map<RTCNodeKey,List<RTCNode>> m_map;
+    private final ConcurrentMap<RTCNodeKey,List<RTCNode>> m_map;
+
+    /**
+     * The number of keys in the map for each node ID
+     */
+    private final ConcurrentMap<Integer,AtomicInteger> m_keyCounts = new ConcurrentHashMap<>();
 	
     /**
      * constructor
@@ -60,16 +68,7 @@ public class RTCHashMap {
      * @param initialCapacity a int.
      */
     public RTCHashMap(int initialCapacity) {
-        m_map = new HashMap<RTCNodeKey,List<RTCNode>>(initialCapacity);
-    }
-
-    private List<Integer> getNodeIDs() {
-    	List<Integer> nodes = new LinkedList<>();
-    	for (Iterator<RTCNodeKey> it = m_map.keySet().iterator(); it.hasNext();) {
-			RTCNodeKey key = it.next();
-			nodes.add(key.getNodeID());
-		}
-    	return nodes;
+        m_map = new ConcurrentHashMap<RTCNodeKey,List<RTCNode>>(initialCapacity);
     }
     
     /**
@@ -83,17 +82,7 @@ public class RTCHashMap {
     private void add(int nodeid, RTCNode rtcN) {
         RTCNodeKey key = new RTCNodeKey(nodeid, null, null);
 
-        List<RTCNode> nodesList = m_map.get(key);
-        if (nodesList != null) {
-            nodesList.add(rtcN);
-        } else {
-            // add current node to list
-            nodesList = new ArrayList<>();
-            nodesList.add(rtcN);
-
-            // add list to map
-            m_map.put(key, nodesList);
-        }
+        getOrCreateList(key).add(rtcN);
     }
 
     /**
@@ -109,21 +98,27 @@ public class RTCHashMap {
     private void add(int nodeid, InetAddress inetAddress, RTCNode rtcN) {
         RTCNodeKey key = new RTCNodeKey(nodeid, inetAddress, null);
 
-        List<RTCNode> nodesList = m_map.get(key);
-        if (nodesList != null) {
-            nodesList.add(rtcN);
-        } else {
-            // add current node to list
-            nodesList = new ArrayList<>();
-            nodesList.add(rtcN);
-
-            // add list to map
-            m_map.put(key, nodesList);
-        }
+        getOrCreateList(key).add(rtcN);
     }
     
     private void add(int nodeid, InetAddress ip, String svcName, RTCNode rtcN) {
-        m_map.put(new RTCNodeKey(nodeid, ip, svcName), Collections.singletonList(rtcN));
+        if (m_map.put(new RTCNodeKey(nodeid, ip, svcName), Collections.singletonList(rtcN)) == null) {
+            m_keyCounts.computeIfAbsent(nodeid, k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    private List<RTCNode> getOrCreateList(RTCNodeKey key) {
+        List<RTCNode> nodesList = m_map.get(key);
+        if (nodesList == null) {
+            nodesList = new CopyOnWriteArrayList<>();
+            final List<RTCNode> existing = m_map.putIfAbsent(key, nodesList);
+            if (existing != null) {
+                nodesList = existing;
+            } else {
+                m_keyCounts.computeIfAbsent(key.getNodeID(), k -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+        return nodesList;
     }
     
     /**
@@ -186,48 +181,27 @@ public class RTCHashMap {
     }
     
     private void delete(int nodeid, InetAddress ip, String svcName, RTCNode rtcN) {
-    	RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
-    	m_map.remove(key);
+        RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
+        if (m_map.remove(key) != null) {
+            final AtomicInteger keyCount = m_keyCounts.get(nodeid);
+            if (keyCount != null) {
+                keyCount.decrementAndGet();
+            }
+        }
     }
 
     /**
-     * Get the value (uptime) for a category in the last 'rollingWindow'
-     * starting at current time
+     * Get the number of keys in the map for a node. This includes the keys
+     * of the node's interfaces, which are kept after their services are
+     * deleted. Category values weigh the services of a node by this number.
      *
-     * @param catLabel
-     *            the category to which the node should belong to
-     * @param curTime
-     *            the current time
-     * @param rollingWindow
-     *            the window for which value is to be calculated
-     * @return the value(uptime) for the node
+     * @param nodeid
+     *            the node ID
+     * @return the number of keys for the node
      */
-    public double getValue(String catLabel, long curTime, long rollingWindow) {
-        // total outage time
-        double outageTime = 0.0;
-
-        // number of entries for this node
-        int count = 0;
-
-        // get all nodes in the hashtable
-        for (Integer key : getNodeIDs()) {
-            List<RTCNode> valList = getRTCNodes(key);
-            if (valList == null || valList.size() == 0) {
-                continue;
-            }
-
-            for (RTCNode node : valList) {
-                try {
-                    long downTime = node.getDownTime(catLabel, curTime, rollingWindow);
-                    count++;
-                    outageTime += downTime;
-                } catch (NodeNotInCategoryException e) {
-                    continue;
-                }
-            }
-        }
-
-        return RTCUtils.getOutagePercentage(outageTime, rollingWindow, count);
+    public int getKeyCount(int nodeid) {
+        final AtomicInteger keyCount = m_keyCounts.get(nodeid);
+        return keyCount != null ? keyCount.get() : 0;
     }
 
     /**
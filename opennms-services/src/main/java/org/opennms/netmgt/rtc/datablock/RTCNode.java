@@ -29,8 +29,8 @@
 package org.opennms.netmgt.rtc.datablock;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.opennms.netmgt.rtc.NodeNotInCategoryException;
@@ -79,7 +79,7 @@ public class RTCNode {
     /**
      * List of the categories this node belongs to
      */
-    private final List<String> m_categories = new ArrayList<>();
+    private final CopyOnWriteArrayList<String> m_categories = new CopyOnWriteArrayList<>();
 
     /**
      * <p>Constructor for RTCNode.</p>
@@ -128,7 +128,7 @@ public class RTCNode {
      * @param regainedtime
      *            time at which service was regained
      */
-    public void addSvcTime(long losttime, long regainedtime) {
+    public synchronized void addSvcTime(long losttime, long regainedtime) {
         m_svcTimesList.addSvcTime(losttime, regainedtime);
     }
 
@@ -139,10 +139,7 @@ public class RTCNode {
      *            category label of the category this node has been added to
      */
     public void addCategory(String catLabel) {
-        int index = m_categories.indexOf(catLabel);
-        if (index == -1) {
-            m_categories.add(catLabel);
-        }
+        m_categories.addIfAbsent(catLabel);
     }
 
     /**
@@ -275,7 +272,7 @@ public class RTCNode {
      * @return the total outage time for this node
      * @throws NodeNotInCategoryException 
      */
-    public long getDownTime(String cat, long curTime, long rollingWindow) throws NodeNotInCategoryException {
+    public synchronized long getDownTime(String cat, long curTime, long rollingWindow) throws NodeNotInCategoryException {
         // get the down time for this node in the context of the
         // category.
         // if the service is not in 'context', throw an exception
@@ -291,7 +288,7 @@ public class RTCNode {
      *
      * @return true if the service is currently down
      */
-    public boolean isServiceCurrentlyDown() {
+    public synchronized boolean isServiceCurrentlyDown() {
         int size = m_svcTimesList.size();
         if (size == 0) {
             return false;
@@ -314,15 +311,27 @@ public class RTCNode {
         return true;
     }
 
-    /** {@inheritDoc} */
+    /**
+     * Return if there are any lost/regained service times for this node.
+     *
+     * @return true if there are service times
+     */
+    public synchronized boolean hasSvcTimes() {
+        return !m_svcTimesList.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only uses the fields compared by 'equals()', since the categories and
+     * service times change while the node is held in hashed collections.
+     */
     @Override
     public int hashCode() {
         return new HashCodeBuilder(3, 7)
             .append(m_nodeID)
             .append(m_ip)
             .append(m_svcName)
-            .append(m_categories)
-            .append(m_svcTimesList)
             .toHashCode();
     }
 
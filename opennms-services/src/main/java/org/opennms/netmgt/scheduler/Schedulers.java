@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates the {@link Scheduler} used by the daemons.
+ *
+ * The {@link TimingWheelScheduler} is used when the <code>org.opennms.netmgt.scheduler.timingWheel</code>
+ * system property is set to <code>true</code>, otherwise the {@link LegacyScheduler} is used.
+ */
+public abstract class Schedulers {
+
+    public static final String TIMING_WHEEL_SYS_PROP = "org.opennms.netmgt.scheduler.timingWheel";
+
+    public static Scheduler createScheduler(final String parent, final int maxSize) {
+        if (Boolean.getBoolean(TIMING_WHEEL_SYS_PROP)) {
+            return new TimingWheelScheduler(parent, maxSize);
+        }
+        return new LegacyScheduler(parent, maxSize);
+    }
+
+    /**
+     * Returns the pool of threads used to execute the runnables scheduled
+     * by the given scheduler.
+     *
+     * @return thread pool, or <code>null</code> if the scheduler does not expose it
+     */
+    public static ExecutorService getRunner(final Scheduler scheduler) {
+        if (scheduler instanceof LegacyScheduler) {
+            return ((LegacyScheduler)scheduler).getRunner();
+        } else if (scheduler instanceof TimingWheelScheduler) {
+            return ((TimingWheelScheduler)scheduler).getRunner();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,492 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.fiber.PausableFiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A {@link Scheduler} backed by a hierarchical timing wheel.
+ *
+ * Unlike the {@link LegacyScheduler}, which repeatedly scans every scheduled
+ * {@link ReadyRunnable}, each runnable is placed in the bucket matching its
+ * deadline. Scheduling is O(1) and lock-free: runnables are handed to the wheel
+ * thread through a concurrent queue. On every tick, the wheel thread only visits
+ * the runnables in the bucket that expired. Runnables which are not ready
+ * when their deadline expires are placed back in the wheel at a later tick,
+ * instead of being checked on every pass.
+ *
+ * Buckets are organized in {@link #NUM_LEVELS} levels of {@link #WHEEL_SIZE} slots.
+ * The first level has a resolution of one tick, and each subsequent level covers
+ * {@link #WHEEL_SIZE} times the range of the previous one. Entries in the upper
+ * levels are cascaded down as the wheel turns.
+ *
+ * The lateness of each runnable, the time between its deadline and the time at
+ * which it was handed to the thread pool, is tracked in a histogram which is
+ * exposed via JMX in the <code>org.opennms.netmgt.scheduler</code> domain.
+ */
+public class TimingWheelScheduler implements Runnable, PausableFiber, Scheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+    public static final long DEFAULT_TICK_MS = 10;
+
+    /**
+     * Runnables that are not ready when their deadline expires are checked again
+     * after this delay. This matches the cadence at which the {@link LegacyScheduler}
+     * re-checks runnables when none are ready.
+     */
+    public static final long DEFAULT_NOT_READY_RETRY_MS = 1000;
+
+    private static final int WHEEL_BITS = 8;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    static final int NUM_LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (WHEEL_BITS * NUM_LEVELS)) - 1;
+
+    /**
+     * A scheduled runnable, linked into the bucket of its deadline.
+     */
+    private static final class Entry {
+        private final ReadyRunnable m_runnable;
+        private long m_deadline;
+        private long m_deadlineTick;
+        private Entry m_next;
+
+        private Entry(ReadyRunnable runnable, long deadline) {
+            m_runnable = runnable;
+            m_deadline = deadline;
+        }
+    }
+
+    /**
+     * A singly-linked FIFO list of entries. Buckets are only accessed by the wheel thread.
+     */
+    private static final class Bucket {
+        private Entry m_head;
+        private Entry m_tail;
+
+        private void add(Entry entry) {
+            entry.m_next = null;
+            if (m_tail == null) {
+                m_head = entry;
+            } else {
+                m_tail.m_next = entry;
+            }
+            m_tail = entry;
+        }
+
+        /**
+         * Detaches and returns all of the entries in this bucket.
+         */
+        private Entry clear() {
+            final Entry head = m_head;
+            m_head = null;
+            m_tail = null;
+            return head;
+        }
+    }
+
+    private final String m_name;
+
+    private final long m_tickMs;
+
+    private final long m_notReadyRetryMs;
+
+    private final Bucket[][] m_wheel = new Bucket[NUM_LEVELS][WHEEL_SIZE];
+
+    /**
+     * The next tick to be processed by the wheel thread.
+     */
+    private long m_currentTick;
+
+    /**
+     * Runnables that were scheduled, but not yet placed in the wheel.
+     */
+    private final Queue<Entry> m_inbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The total number of runnables currently scheduled, including those in the inbox.
+     */
+    private final AtomicInteger m_scheduled = new AtomicInteger(0);
+
+    private final ExecutorService m_runner;
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+
+    private final Histogram m_lateness;
+
+    private final Counter m_postponed;
+
+    private JmxReporter m_reporter;
+
+    private volatile int m_status;
+
+    private volatile Thread m_worker;
+
+    private volatile long m_numTasksExecuted = 0;
+
+    /**
+     * Constructs a new instance of the scheduler.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     */
+    public TimingWheelScheduler(final String parent, final int maxSize) {
+        this(parent, maxSize, DEFAULT_TICK_MS, DEFAULT_NOT_READY_RETRY_MS);
+    }
+
+    public TimingWheelScheduler(final String parent, final int maxSize, final long tickMs, final long notReadyRetryMs) {
+        Assert.isTrue(tickMs > 0, "tickMs must be strictly positive");
+        m_name = parent;
+        m_tickMs = tickMs;
+        m_notReadyRetryMs = Math.max(notReadyRetryMs, tickMs);
+        m_status = START_PENDING;
+        m_runner = Executors.newFixedThreadPool(maxSize, new LogPreservingThreadFactory(parent, maxSize));
+
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                m_wheel[level][slot] = new Bucket();
+            }
+        }
+        m_currentTick = toTick(getCurrentTime());
+
+        m_lateness = m_metrics.histogram(MetricRegistry.name(parent, "lateness"));
+        m_postponed = m_metrics.counter(MetricRegistry.name(parent, "postponed"));
+        m_metrics.register(MetricRegistry.name(parent, "scheduled"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return m_scheduled.get();
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void schedule(long interval, final ReadyRunnable runnable) {
+        LOG.debug("schedule: Adding ready runnable {} at interval {}", runnable, interval);
+        m_inbox.add(new Entry(runnable, getCurrentTime() + interval));
+        if (m_scheduled.getAndIncrement() == 0) {
+            synchronized (this) {
+                // Wake up the wheel thread if it was idle
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void start() {
+        Assert.state(m_worker == null, "The fiber has already run or is running");
+
+        m_reporter = JmxReporter.forRegistry(m_metrics)
+                .inDomain("org.opennms.netmgt.scheduler")
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        m_reporter.start();
+
+        m_worker = new Thread(this, getName());
+        m_worker.start();
+        m_status = STARTING;
+
+        LOG.info("start: scheduler started");
+    }
+
+    @Override
+    public synchronized void stop() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+
+        m_status = STOP_PENDING;
+        m_worker.interrupt();
+        m_runner.shutdown();
+        if (m_reporter != null) {
+            m_reporter.stop();
+        }
+
+        LOG.info("stop: scheduler stopped");
+    }
+
+    @Override
+    public synchronized void pause() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == PAUSED) {
+            return;
+        }
+
+        m_status = PAUSE_PENDING;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void resume() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == RUNNING) {
+            return;
+        }
+
+        m_status = RESUME_PENDING;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int getStatus() {
+        if (m_worker != null && m_worker.isAlive() == false) {
+            m_status = STOPPED;
+        }
+        return m_status;
+    }
+
+    @Override
+    public String getName() {
+        return m_name + "-TimingWheelScheduler";
+    }
+
+    /**
+     * Returns total number of elements currently scheduled.
+     *
+     * @return the number of scheduled elements
+     */
+    public int getScheduled() {
+        return m_scheduled.get();
+    }
+
+    /**
+     * Returns the pool of threads that are used to executed the runnable
+     * instances scheduled by the class' instance.
+     *
+     * @return thread pool
+     */
+    public ExecutorService getRunner() {
+        return m_runner;
+    }
+
+    /**
+     * Returns the metrics maintained by this scheduler, including
+     * the lateness histogram.
+     */
+    public MetricRegistry getMetrics() {
+        return m_metrics;
+    }
+
+    @Override
+    public long getNumTasksExecuted() {
+        return m_numTasksExecuted;
+    }
+
+    /**
+     * The main method of the scheduler. Turns the wheel once per tick, and hands
+     * the runnables in the expired buckets to the thread pool.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            m_status = RUNNING;
+        }
+
+        LOG.debug("run: scheduler running");
+
+        // Runnables scheduled before we started are still in the inbox, so the wheel is empty
+        m_currentTick = toTick(getCurrentTime());
+
+        try {
+            for (;;) {
+                synchronized (this) {
+                    if (m_status != RUNNING && m_status != PAUSED && m_status != PAUSE_PENDING && m_status != RESUME_PENDING) {
+                        LOG.debug("run: status = {}, time to exit", m_status);
+                        break;
+                    }
+
+                    // if paused or pause pending then block
+                    while (m_status == PAUSE_PENDING || m_status == PAUSED) {
+                        if (m_status == PAUSE_PENDING) {
+                            LOG.debug("run: pausing.");
+                        }
+                        m_status = PAUSED;
+                        wait();
+                    }
+
+                    if (m_status == RESUME_PENDING) {
+                        LOG.debug("run: resuming.");
+                        m_status = RUNNING;
+                    }
+
+                    if (m_scheduled.get() == 0) {
+                        LOG.debug("run: no ready runnables scheduled, waiting...");
+                        wait();
+                        // Nothing was in the wheel, so there are no ticks to catch up on
+                        m_currentTick = toTick(getCurrentTime());
+                        continue;
+                    }
+                }
+
+                drainInbox();
+
+                final long nowTick = toTick(getCurrentTime());
+                while (m_currentTick <= nowTick) {
+                    processTick();
+                }
+
+                // Sleep until the start of the next tick
+                final long sleepMs = m_currentTick * m_tickMs - getCurrentTime();
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("run: interrupted");
+        } catch (RejectedExecutionException e) {
+            if (m_status == RUNNING) {
+                throw e;
+            }
+        }
+
+        LOG.debug("run: scheduler exiting, state = STOPPED");
+        synchronized (this) {
+            m_status = STOPPED;
+        }
+    }
+
+    private long toTick(long timeMs) {
+        return timeMs / m_tickMs;
+    }
+
+    /**
+     * Rounds up, so that runnables are never handed off before their deadline.
+     */
+    private long toDeadlineTick(long timeMs) {
+        return (timeMs + m_tickMs - 1) / m_tickMs;
+    }
+
+    private void drainInbox() {
+        Entry entry;
+        while ((entry = m_inbox.poll()) != null) {
+            entry.m_deadlineTick = toDeadlineTick(entry.m_deadline);
+            addToWheel(entry);
+        }
+    }
+
+    /**
+     * Places the entry in the bucket matching its deadline, relative to the current tick.
+     */
+    private void addToWheel(Entry entry) {
+        final long expires = Math.max(entry.m_deadlineTick, m_currentTick);
+        final long delta = Math.min(expires - m_currentTick, MAX_TICKS);
+        final long tick = m_currentTick + delta;
+
+        int level = 0;
+        while (level < NUM_LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        final int slot = (int)((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        m_wheel[level][slot].add(entry);
+    }
+
+    /**
+     * Moves the entries of the given bucket to the lower levels of the wheel.
+     *
+     * @return the slot that was cascaded
+     */
+    private int cascade(int level) {
+        final int slot = (int)((m_currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Entry entry = m_wheel[level][slot].clear();
+        while (entry != null) {
+            final Entry next = entry.m_next;
+            addToWheel(entry);
+            entry = next;
+        }
+        return slot;
+    }
+
+    private void processTick() {
+        final int slot = (int)(m_currentTick & WHEEL_MASK);
+        if (slot == 0) {
+            // We've completed a full turn, cascade the next buckets down from the upper levels
+            for (int level = 1; level < NUM_LEVELS; level++) {
+                if (cascade(level) != 0) {
+                    break;
+                }
+            }
+        }
+
+        Entry entry = m_wheel[0][slot].clear();
+        m_currentTick++;
+
+        final long now = getCurrentTime();
+        while (entry != null) {
+            final Entry next = entry.m_next;
+            dispatch(entry, now);
+            entry = next;
+        }
+    }
+
+    private void dispatch(Entry entry, long now) {
+        final ReadyRunnable runnable = entry.m_runnable;
+        if (!runnable.isReady()) {
+            // Not ready yet, check again later without revisiting the other entries
+            m_postponed.inc();
+            entry.m_deadline = now + m_notReadyRetryMs;
+            entry.m_deadlineTick = toDeadlineTick(entry.m_deadline);
+            addToWheel(entry);
+            return;
+        }
+
+        LOG.debug("run: found ready runnable {}", runnable);
+        m_scheduled.decrementAndGet();
+        m_lateness.update(Math.max(0, now - entry.m_deadline));
+        m_runner.execute(runnable);
+        ++m_numTasksExecuted;
+    }
+}
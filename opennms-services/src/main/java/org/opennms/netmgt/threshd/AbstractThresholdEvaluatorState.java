@@ -36,6 +36,7 @@ import java.util.Map;
 
 import org.opennms.core.utils.InetAddressUtils;
 import org.opennms.netmgt.collection.api.CollectionResource;
+import org.opennms.netmgt.config.threshd.ResourceFilter;
 import org.opennms.netmgt.model.ResourceId;
 import org.opennms.netmgt.model.events.EventBuilder;
 import org.opennms.netmgt.xml.event.Event;
@@ -57,6 +58,108 @@ public abstract class AbstractThresholdEvaluatorState implements ThresholdEvalua
 
     public static final String FORMATED_NAN = "NaN (the threshold definition has been changed)";
 
+    /**
+     * The state of a stand-alone evaluator lives in its own single slot.
+     */
+    private final ThresholdStateSlots m_localState = new ThresholdStateSlots(1);
+
+    private ThresholdStateSlots m_state = m_localState;
+    private int m_slot = 0;
+
+    /**
+     * Points the evaluator at the given slot of a {@link ThresholdStateStore} segment,
+     * initializing the slot with the evaluator's initial state if it has never been used.
+     */
+    final void bind(ThresholdStateSlots state, int slot) {
+        m_state = state;
+        m_slot = slot;
+        if (!state.isInitialized(slot)) {
+            resetState();
+            state.setInitialized(slot);
+        }
+    }
+
+    /**
+     * Points the evaluator back at its own state.
+     */
+    final void unbind() {
+        m_state = m_localState;
+        m_slot = 0;
+    }
+
+    /**
+     * @return true if the evaluator is currently working on the state of a resource held by a {@link ThresholdStateStore}
+     */
+    protected final boolean isBound() {
+        return m_state != m_localState;
+    }
+
+    /**
+     * Sets the state of the evaluator to the state of a newly created evaluator.
+     */
+    protected abstract void resetState();
+
+    protected final double getStateLastValue() {
+        return m_state.getLastValue(m_slot);
+    }
+
+    protected final void setStateLastValue(double value) {
+        m_state.setLastValue(m_slot, value);
+    }
+
+    protected final double getStatePreviousValue() {
+        return m_state.getPreviousValue(m_slot);
+    }
+
+    protected final void setStatePreviousValue(double value) {
+        m_state.setPreviousValue(m_slot, value);
+    }
+
+    protected final int getStateCount() {
+        return m_state.getCount(m_slot);
+    }
+
+    protected final void setStateCount(int count) {
+        m_state.setCount(m_slot, count);
+    }
+
+    protected final boolean isStateArmed() {
+        return m_state.isArmed(m_slot);
+    }
+
+    protected final void setStateArmed(boolean armed) {
+        m_state.setArmed(m_slot, armed);
+    }
+
+    /**
+     * Returns the key used to identify the state of this evaluator within a {@link ThresholdStateStore}.
+     *
+     * The key covers the whole definition of the threshold (the same attributes as
+     * {@link BaseThresholdDefConfigWrapper#equals(Object)}), so that a threshold that is
+     * changed doesn't inherit the state of its previous definition.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    public String getStateKey() {
+        final BaseThresholdDefConfigWrapper config = getThresholdConfig();
+        final StringBuilder key = new StringBuilder()
+            .append(config.getType()).append('/')
+            .append(config.getDsType()).append('/')
+            .append(config.getDatasourceExpression()).append('/')
+            .append(config.getDsLabel().orElse("")).append('/')
+            .append(config.getTriggeredUEI().orElse("")).append('/')
+            .append(config.getRearmedUEI().orElse("")).append('/')
+            .append(config.getBasethresholddef().getValue()).append('/')
+            .append(config.getBasethresholddef().getRearm()).append('/')
+            .append(config.getBasethresholddef().getTrigger()).append('/')
+            .append(config.getBasethresholddef().getFilterOperator()).append('/')
+            .append(config.getBasethresholddef().getRelaxed());
+        for (ResourceFilter filter : config.getBasethresholddef().getResourceFilters()) {
+            key.append('/').append(filter.getField()).append('=').append(filter.getContent().orElse(""));
+        }
+        return key.toString();
+    }
+
     /**
      * <p>createBasicEvent</p>
      *
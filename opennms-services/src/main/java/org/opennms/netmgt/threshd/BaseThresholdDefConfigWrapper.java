@@ -30,6 +30,7 @@ package org.opennms.netmgt.threshd;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -110,6 +111,22 @@ public abstract class BaseThresholdDefConfigWrapper {
      * @throws org.opennms.netmgt.threshd.ThresholdExpressionException if any.
      */
     public abstract double evaluate(Map<String, Double> values)  throws ThresholdExpressionException;
+
+    /**
+     * Evaluate the threshold expression/datasource in terms of the values supplied, and return that value
+     *
+     * @param values values of the datasources, in the iteration order of {@link #getRequiredDatasources()}
+     * @return the value of the evaluated expression
+     * @throws org.opennms.netmgt.threshd.ThresholdExpressionException if any.
+     */
+    public double evaluate(double[] values) throws ThresholdExpressionException {
+        final Map<String, Double> valuesByName = new HashMap<String, Double>();
+        int i = 0;
+        for (String datasource : getRequiredDatasources()) {
+            valuesByName.put(datasource, values[i++]);
+        }
+        return evaluate(valuesByName);
+    }
     
     /**
      * <p>getDsType</p>
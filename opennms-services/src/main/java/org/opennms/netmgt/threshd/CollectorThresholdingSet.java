@@ -69,7 +69,21 @@ public class CollectorThresholdingSet extends ThresholdingSet {
      * @param svcParams a {@link org.opennms.netmgt.collection.api.ServiceParameters} object.
      */
     public CollectorThresholdingSet(int nodeId, String hostAddress, String serviceName, RrdRepository repository, ServiceParameters svcParams, ResourceStorageDao resourceStorageDao) {
-        super(nodeId, hostAddress, serviceName, repository);
+        this(nodeId, hostAddress, serviceName, repository, svcParams, resourceStorageDao, null);
+    }
+
+    /**
+     * <p>Constructor for CollectorThresholdingSet.</p>
+     *
+     * @param nodeId a int.
+     * @param hostAddress a {@link java.lang.String} object.
+     * @param serviceName a {@link java.lang.String} object.
+     * @param repository a {@link org.opennms.netmgt.rrd.RrdRepository} object.
+     * @param svcParams a {@link org.opennms.netmgt.collection.api.ServiceParameters} object.
+     * @param thresholdStateStore a {@link org.opennms.netmgt.threshd.ThresholdStateStore} object.
+     */
+    public CollectorThresholdingSet(int nodeId, String hostAddress, String serviceName, RrdRepository repository, ServiceParameters svcParams, ResourceStorageDao resourceStorageDao, ThresholdStateStore thresholdStateStore) {
+        super(nodeId, hostAddress, serviceName, repository, thresholdStateStore);
         m_resourceStorageDao = resourceStorageDao;
         String storeByIfAliasString = svcParams.getStoreByIfAlias();
         storeByIfAlias = storeByIfAliasString != null && "true".equalsIgnoreCase(storeByIfAliasString);
@@ -0,0 +1,752 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+
+/**
+ * A threshold expression compiled into a tree of evaluators that read the
+ * values of the datasources by index from a primitive array, avoiding the
+ * script context, boxing and reflection involved in a JEXL evaluation.
+ *
+ * Only the subset of the JEXL syntax for which the result is guaranteed to be
+ * the same as the one computed by JEXL (and the {@link ExpressionConfigWrapper.MathBinding})
+ * can be compiled:
+ * <ul>
+ * <li>datasources, either by name or through the <code>datasources</code> map (see NMS-5019)</li>
+ * <li>number literals, <code>+ - * / %</code> (and <code>div</code>, <code>mod</code>) and unary minus,
+ * as long as one of the operands is a floating point number, since JEXL uses integer arithmetic otherwise</li>
+ * <li><code>math</code> functions called with floating point arguments</li>
+ * <li><code>&lt; &lt;= &gt; &gt;=</code>, <code>&amp;&amp; ||</code> (and their named forms) and the ternary operator</li>
+ * </ul>
+ * {@link #compile(JexlEngine, String, List)} returns null for any other expression,
+ * in which case the expression must be evaluated by JEXL.
+ */
+final class CompiledExpression {
+
+    private final Node m_root;
+
+    private CompiledExpression(Node root) {
+        m_root = root;
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param values the values of the datasources, in the same order as the datasources given when compiling
+     * @return the result
+     * @throws ArithmeticException on division by zero
+     */
+    double evaluate(double[] values) {
+        return m_root.eval(values);
+    }
+
+    /**
+     * Compiles the given expression.
+     *
+     * @param engine used to parse the number literals, so that they have the exact same value and type as in JEXL
+     * @param expression the expression
+     * @param datasources the datasources referenced by the expression
+     * @return the compiled expression, or null if the expression uses unsupported constructs
+     */
+    static CompiledExpression compile(JexlEngine engine, String expression, List<String> datasources) {
+        try {
+            final Parser parser = new Parser(engine, expression, datasources);
+            return new CompiledExpression(parser.parse().toResult());
+        } catch (UnsupportedExpressionException e) {
+            return null;
+        }
+    }
+
+    private static class UnsupportedExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedExpressionException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * The type of the object JEXL would produce for a node.
+     */
+    private enum Kind {
+        /** java.lang.Double */
+        DOUBLE,
+        /** java.lang.Float, i.e. real literals without a suffix */
+        FLOAT,
+        /** java.lang.Integer or java.lang.Long */
+        INTEGRAL,
+        /** Either of the numeric kinds above, depending on the branch taken by a ternary operator */
+        MIXED,
+        /** java.lang.Boolean */
+        BOOLEAN;
+
+        private boolean isFloatingPoint() {
+            return this == DOUBLE || this == FLOAT;
+        }
+
+        private boolean isNumeric() {
+            return this != BOOLEAN;
+        }
+    }
+
+    private static abstract class Node {
+        protected final Kind m_kind;
+
+        private Node(Kind kind) {
+            m_kind = kind;
+        }
+
+        abstract double eval(double[] values);
+
+        boolean test(double[] values) {
+            throw new IllegalStateException("Not a boolean expression");
+        }
+
+        /**
+         * Converts the node so that its value matches the value JEXL returns for the whole expression, which is
+         * obtained by parsing the string representation of the resulting object.
+         */
+        Node toResult() throws UnsupportedExpressionException {
+            if (m_kind == Kind.DOUBLE || m_kind == Kind.INTEGRAL) {
+                return this;
+            }
+            throw new UnsupportedExpressionException("Unsupported result of kind " + m_kind);
+        }
+    }
+
+    private static class Constant extends Node {
+        private final double m_value;
+
+        private Constant(double value, Kind kind) {
+            super(kind);
+            m_value = value;
+        }
+
+        @Override
+        double eval(double[] values) {
+            return m_value;
+        }
+
+        @Override
+        Node toResult() throws UnsupportedExpressionException {
+            if (m_kind == Kind.FLOAT) {
+                return new Constant(Double.parseDouble(Float.toString((float)m_value)), Kind.DOUBLE);
+            }
+            return super.toResult();
+        }
+    }
+
+    private static class Variable extends Node {
+        private final int m_index;
+
+        private Variable(int index) {
+            super(Kind.DOUBLE);
+            m_index = index;
+        }
+
+        @Override
+        double eval(double[] values) {
+            return values[m_index];
+        }
+    }
+
+    private static class Negate extends Node {
+        private final Node m_operand;
+
+        private Negate(Node operand) {
+            super(operand.m_kind);
+            m_operand = operand;
+        }
+
+        @Override
+        double eval(double[] values) {
+            return -m_operand.eval(values);
+        }
+    }
+
+    private static class Arithmetic extends Node {
+        private final char m_operator;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Arithmetic(char operator, Node left, Node right) {
+            super(Kind.DOUBLE);
+            m_operator = operator;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double eval(double[] values) {
+            final double left = m_left.eval(values);
+            final double right = m_right.eval(values);
+            switch (m_operator) {
+            case '+':
+                return left + right;
+            case '-':
+                return left - right;
+            case '*':
+                return left * right;
+            case '/':
+                if (right == 0.0) {
+                    throw new ArithmeticException("/");
+                }
+                return left / right;
+            default:
+                if (right == 0.0) {
+                    throw new ArithmeticException("%");
+                }
+                return left % right;
+            }
+        }
+    }
+
+    private static class Comparison extends Node {
+        private final String m_operator;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Comparison(String operator, Node left, Node right) {
+            super(Kind.BOOLEAN);
+            m_operator = operator;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double eval(double[] values) {
+            throw new IllegalStateException("Not a numeric expression");
+        }
+
+        @Override
+        boolean test(double[] values) {
+            final double left = m_left.eval(values);
+            final double right = m_right.eval(values);
+            switch (m_operator) {
+            case "<":
+                return left < right;
+            case "<=":
+                return left <= right;
+            case ">":
+                return left > right;
+            default:
+                return left >= right;
+            }
+        }
+    }
+
+    private static class Logical extends Node {
+        private final boolean m_and;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Logical(boolean and, Node left, Node right) {
+            super(Kind.BOOLEAN);
+            m_and = and;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double eval(double[] values) {
+            throw new IllegalStateException("Not a numeric expression");
+        }
+
+        @Override
+        boolean test(double[] values) {
+            if (m_and) {
+                return m_left.test(values) && m_right.test(values);
+            } else {
+                return m_left.test(values) || m_right.test(values);
+            }
+        }
+    }
+
+    private static class Ternary extends Node {
+        private final Node m_condition;
+        private final Node m_then;
+        private final Node m_else;
+
+        private Ternary(Node condition, Node then, Node otherwise) {
+            super(then.m_kind == otherwise.m_kind ? then.m_kind : Kind.MIXED);
+            m_condition = condition;
+            m_then = then;
+            m_else = otherwise;
+        }
+
+        @Override
+        double eval(double[] values) {
+            return m_condition.test(values) ? m_then.eval(values) : m_else.eval(values);
+        }
+
+        @Override
+        Node toResult() throws UnsupportedExpressionException {
+            return new Ternary(m_condition, m_then.toResult(), m_else.toResult());
+        }
+    }
+
+    /**
+     * The functions of the {@link ExpressionConfigWrapper.MathBinding} that take a single double.
+     */
+    private static final Map<String, DoubleUnaryOperator> UNARY_FUNCTIONS = new HashMap<>();
+
+    /**
+     * The functions of the {@link ExpressionConfigWrapper.MathBinding} that take two doubles.
+     */
+    private static final Map<String, DoubleBinaryOperator> BINARY_FUNCTIONS = new HashMap<>();
+
+    static {
+        UNARY_FUNCTIONS.put("round", a -> Math.round(a));
+        UNARY_FUNCTIONS.put("abs", Math::abs);
+        UNARY_FUNCTIONS.put("acos", Math::acos);
+        UNARY_FUNCTIONS.put("asin", Math::asin);
+        UNARY_FUNCTIONS.put("atan", Math::atan);
+        UNARY_FUNCTIONS.put("cbrt", Math::cbrt);
+        UNARY_FUNCTIONS.put("ceil", Math::ceil);
+        UNARY_FUNCTIONS.put("cos", Math::cos);
+        UNARY_FUNCTIONS.put("cosh", Math::cosh);
+        UNARY_FUNCTIONS.put("exp", Math::exp);
+        UNARY_FUNCTIONS.put("expm1", Math::expm1);
+        UNARY_FUNCTIONS.put("floor", Math::floor);
+        UNARY_FUNCTIONS.put("log", Math::log);
+        UNARY_FUNCTIONS.put("log10", Math::log10);
+        UNARY_FUNCTIONS.put("log1p", Math::log1p);
+        UNARY_FUNCTIONS.put("rint", Math::rint);
+        UNARY_FUNCTIONS.put("signum", Math::signum);
+        UNARY_FUNCTIONS.put("sin", Math::sin);
+        UNARY_FUNCTIONS.put("sinh", Math::sinh);
+        UNARY_FUNCTIONS.put("sqrt", Math::sqrt);
+        UNARY_FUNCTIONS.put("tan", Math::tan);
+        UNARY_FUNCTIONS.put("tanh", Math::tanh);
+        UNARY_FUNCTIONS.put("toDegrees", Math::toDegrees);
+        UNARY_FUNCTIONS.put("toRadians", Math::toRadians);
+        UNARY_FUNCTIONS.put("ulp", Math::ulp);
+
+        BINARY_FUNCTIONS.put("atan2", Math::atan2);
+        BINARY_FUNCTIONS.put("hypot", Math::hypot);
+        BINARY_FUNCTIONS.put("IEEEremainder", Math::IEEEremainder);
+        BINARY_FUNCTIONS.put("max", Math::max);
+        BINARY_FUNCTIONS.put("min", Math::min);
+        BINARY_FUNCTIONS.put("pow", Math::pow);
+    }
+
+    private static class UnaryMathCall extends Node {
+        private final DoubleUnaryOperator m_function;
+        private final Node m_arg;
+
+        private UnaryMathCall(DoubleUnaryOperator function, Node arg, Kind kind) {
+            super(kind);
+            m_function = function;
+            m_arg = arg;
+        }
+
+        @Override
+        double eval(double[] values) {
+            return m_function.applyAsDouble(m_arg.eval(values));
+        }
+    }
+
+    private static class BinaryMathCall extends Node {
+        private final DoubleBinaryOperator m_function;
+        private final Node m_left;
+        private final Node m_right;
+
+        private BinaryMathCall(DoubleBinaryOperator function, Node left, Node right) {
+            super(Kind.DOUBLE);
+            m_function = function;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        double eval(double[] values) {
+            return m_function.applyAsDouble(m_left.eval(values), m_right.eval(values));
+        }
+    }
+
+    /**
+     * Recursive descent parser following the operator precedence of the JEXL grammar.
+     */
+    private static class Parser {
+        private static final List<String> RESERVED_WORDS = Arrays.asList(
+                "or", "and", "eq", "ne", "lt", "gt", "le", "ge", "div", "mod", "not", "null", "true", "false",
+                "new", "empty", "size", "if", "else", "for", "foreach", "while", "in", "var", "return", "function");
+
+        private final JexlEngine m_engine;
+        private final String m_expression;
+        private final List<String> m_datasources;
+        private int m_position = 0;
+
+        private Parser(JexlEngine engine, String expression, List<String> datasources) {
+            m_engine = engine;
+            m_expression = expression;
+            m_datasources = datasources;
+        }
+
+        private Node parse() throws UnsupportedExpressionException {
+            final Node node = parseExpression();
+            skipWhitespace();
+            if (m_position != m_expression.length()) {
+                throw unsupported("Unexpected character");
+            }
+            return node;
+        }
+
+        private Node parseExpression() throws UnsupportedExpressionException {
+            final Node condition = parseOr();
+            if (accept("?")) {
+                if (condition.m_kind != Kind.BOOLEAN) {
+                    throw unsupported("Non boolean condition");
+                }
+                final Node then = numeric(parseExpression());
+                expect(":");
+                final Node otherwise = numeric(parseExpression());
+                return new Ternary(condition, then, otherwise);
+            }
+            return condition;
+        }
+
+        private Node parseOr() throws UnsupportedExpressionException {
+            Node left = parseAnd();
+            while (accept("||") || acceptWord("or")) {
+                left = new Logical(false, bool(left), bool(parseAnd()));
+            }
+            return left;
+        }
+
+        private Node parseAnd() throws UnsupportedExpressionException {
+            Node left = parseRelational();
+            while (accept("&&") || acceptWord("and")) {
+                left = new Logical(true, bool(left), bool(parseRelational()));
+            }
+            return left;
+        }
+
+        private Node parseRelational() throws UnsupportedExpressionException {
+            Node left = parseAdditive();
+            while (true) {
+                final String operator;
+                if (accept("<=") || acceptWord("le")) {
+                    operator = "<=";
+                } else if (accept(">=") || acceptWord("ge")) {
+                    operator = ">=";
+                } else if (accept("<") || acceptWord("lt")) {
+                    operator = "<";
+                } else if (accept(">") || acceptWord("gt")) {
+                    operator = ">";
+                } else {
+                    return left;
+                }
+                final Node right = parseAdditive();
+                checkFloatingPoint(left, right);
+                if (left instanceof Variable && right instanceof Variable && ((Variable)left).m_index == ((Variable)right).m_index) {
+                    // JEXL short-circuits comparisons between the same object
+                    throw unsupported("Comparison of a datasource with itself");
+                }
+                left = new Comparison(operator, left, right);
+            }
+        }
+
+        private Node parseAdditive() throws UnsupportedExpressionException {
+            Node left = parseMultiplicative();
+            while (true) {
+                final char operator;
+                if (accept("+")) {
+                    operator = '+';
+                } else if (accept("-")) {
+                    operator = '-';
+                } else {
+                    return left;
+                }
+                final Node right = parseMultiplicative();
+                checkFloatingPoint(left, right);
+                left = new Arithmetic(operator, left, right);
+            }
+        }
+
+        private Node parseMultiplicative() throws UnsupportedExpressionException {
+            Node left = parseUnary();
+            while (true) {
+                final char operator;
+                if (accept("*")) {
+                    operator = '*';
+                } else if (accept("/") || acceptWord("div")) {
+                    operator = '/';
+                } else if (accept("%") || acceptWord("mod")) {
+                    operator = '%';
+                } else {
+                    return left;
+                }
+                final Node right = parseUnary();
+                checkFloatingPoint(left, right);
+                left = new Arithmetic(operator, left, right);
+            }
+        }
+
+        private Node parseUnary() throws UnsupportedExpressionException {
+            if (accept("-")) {
+                final Node operand = numeric(parseUnary());
+                if (operand instanceof Constant) {
+                    return new Constant(-operand.eval(null), operand.m_kind);
+                }
+                return new Negate(operand);
+            }
+            return parsePrimary();
+        }
+
+        private Node parsePrimary() throws UnsupportedExpressionException {
+            skipWhitespace();
+            if (m_position >= m_expression.length()) {
+                throw unsupported("Unexpected end of expression");
+            }
+            final char c = m_expression.charAt(m_position);
+            if (accept("(")) {
+                final Node node = parseExpression();
+                expect(")");
+                return node;
+            } else if (Character.isDigit(c)) {
+                return parseNumber();
+            } else if (isIdentifierStart(c)) {
+                final String identifier = parseIdentifier();
+                if (RESERVED_WORDS.contains(identifier)) {
+                    throw unsupported("Unsupported keyword " + identifier);
+                }
+                if ("math".equals(identifier)) {
+                    expect(".");
+                    return parseMathCall(parseIdentifier());
+                } else if ("datasources".equals(identifier)) {
+                    if (accept("[")) {
+                        final Node node = variable(parseString());
+                        expect("]");
+                        return node;
+                    }
+                    expect(".");
+                    return variable(parseIdentifier());
+                }
+                if (peek(".") || peek("[") || peek("(")) {
+                    throw unsupported("Unsupported property or method access on " + identifier);
+                }
+                return variable(identifier);
+            }
+            throw unsupported("Unexpected character");
+        }
+
+        private Node parseMathCall(String function) throws UnsupportedExpressionException {
+            expect("(");
+            final List<Node> args = new ArrayList<>();
+            if (!accept(")")) {
+                do {
+                    final Node arg = parseExpression();
+                    // Only the double variants of the MathBinding methods are supported
+                    if (arg.m_kind != Kind.DOUBLE) {
+                        throw unsupported("Unsupported argument of kind " + arg.m_kind);
+                    }
+                    args.add(arg);
+                } while (accept(","));
+                expect(")");
+            }
+            // Resolve the function once, instead of on every evaluation
+            if (args.size() == 1 && UNARY_FUNCTIONS.containsKey(function)) {
+                // Math.round() returns a long
+                final Kind kind = "round".equals(function) ? Kind.INTEGRAL : Kind.DOUBLE;
+                return new UnaryMathCall(UNARY_FUNCTIONS.get(function), args.get(0), kind);
+            } else if (args.size() == 2 && BINARY_FUNCTIONS.containsKey(function)) {
+                return new BinaryMathCall(BINARY_FUNCTIONS.get(function), args.get(0), args.get(1));
+            }
+            throw unsupported("Unsupported function " + function);
+        }
+
+        private Node parseNumber() throws UnsupportedExpressionException {
+            final int start = m_position;
+            while (m_position < m_expression.length() && Character.isDigit(m_expression.charAt(m_position))) {
+                m_position++;
+            }
+            if (m_position + 1 < m_expression.length() && m_expression.charAt(m_position) == '.' && Character.isDigit(m_expression.charAt(m_position + 1))) {
+                m_position++;
+                while (m_position < m_expression.length() && Character.isDigit(m_expression.charAt(m_position))) {
+                    m_position++;
+                }
+            }
+            if (m_position < m_expression.length() && Character.isLetter(m_expression.charAt(m_position))) {
+                // Type suffix
+                m_position++;
+            }
+            if (m_position < m_expression.length()) {
+                final char next = m_expression.charAt(m_position);
+                if (Character.isLetterOrDigit(next) || next == '.' || next == '_' || next == '$') {
+                    throw unsupported("Unsupported number literal");
+                }
+            }
+
+            // Let JEXL decide what the literal stands for
+            final Object value;
+            try {
+                value = m_engine.createExpression(m_expression.substring(start, m_position)).evaluate(new MapContext());
+            } catch (RuntimeException e) {
+                throw unsupported("Unsupported number literal");
+            }
+            if (value instanceof Double) {
+                return new Constant((Double)value, Kind.DOUBLE);
+            } else if (value instanceof Float) {
+                return new Constant((Float)value, Kind.FLOAT);
+            } else if (value instanceof Integer || value instanceof Long) {
+                return new Constant(((Number)value).longValue(), Kind.INTEGRAL);
+            }
+            throw unsupported("Unsupported number literal");
+        }
+
+        private String parseIdentifier() throws UnsupportedExpressionException {
+            skipWhitespace();
+            final int start = m_position;
+            if (m_position >= m_expression.length() || !isIdentifierStart(m_expression.charAt(m_position))) {
+                throw unsupported("Identifier expected");
+            }
+            while (m_position < m_expression.length() && isIdentifierPart(m_expression.charAt(m_position))) {
+                m_position++;
+            }
+            return m_expression.substring(start, m_position);
+        }
+
+        private String parseString() throws UnsupportedExpressionException {
+            skipWhitespace();
+            if (m_position >= m_expression.length()) {
+                throw unsupported("String expected");
+            }
+            final char quote = m_expression.charAt(m_position);
+            if (quote != '\'' && quote != '"') {
+                throw unsupported("String expected");
+            }
+            final int end = m_expression.indexOf(quote, m_position + 1);
+            if (end < 0) {
+                throw unsupported("Unterminated string");
+            }
+            final String value = m_expression.substring(m_position + 1, end);
+            if (value.indexOf('\\') >= 0) {
+                throw unsupported("Unsupported escape sequence");
+            }
+            m_position = end + 1;
+            return value;
+        }
+
+        private Node variable(String name) throws UnsupportedExpressionException {
+            final int index = m_datasources.indexOf(name);
+            if (index < 0) {
+                throw unsupported("Unknown datasource " + name);
+            }
+            return new Variable(index);
+        }
+
+        private boolean peek(String token) {
+            skipWhitespace();
+            return m_expression.startsWith(token, m_position);
+        }
+
+        private boolean accept(String token) {
+            if (!peek(token)) {
+                return false;
+            }
+            final int end = m_position + token.length();
+            // Don't split "<=" and ">="
+            if (("<".equals(token) || ">".equals(token)) && end < m_expression.length() && m_expression.charAt(end) == '=') {
+                return false;
+            }
+            m_position = end;
+            return true;
+        }
+
+        private boolean acceptWord(String word) {
+            if (!peek(word)) {
+                return false;
+            }
+            final int end = m_position + word.length();
+            if (end < m_expression.length() && isIdentifierPart(m_expression.charAt(end))) {
+                return false;
+            }
+            m_position = end;
+            return true;
+        }
+
+        private void expect(String token) throws UnsupportedExpressionException {
+            if (!accept(token)) {
+                throw unsupported("'" + token + "' expected");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (m_position < m_expression.length() && Character.isWhitespace(m_expression.charAt(m_position))) {
+                m_position++;
+            }
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return isIdentifierStart(c) || (c >= '0' && c <= '9');
+        }
+
+        private static Node numeric(Node node) throws UnsupportedExpressionException {
+            if (!node.m_kind.isNumeric()) {
+                throw new UnsupportedExpressionException("Numeric expression expected");
+            }
+            return node;
+        }
+
+        private static Node bool(Node node) throws UnsupportedExpressionException {
+            if (node.m_kind != Kind.BOOLEAN) {
+                throw new UnsupportedExpressionException("Boolean expression expected");
+            }
+            return node;
+        }
+
+        private static void checkFloatingPoint(Node left, Node right) throws UnsupportedExpressionException {
+            numeric(left);
+            numeric(right);
+            // JEXL only uses floating point arithmetic when one of the operands is a floating point number
+            if (!left.m_kind.isFloatingPoint() && !right.m_kind.isFloatingPoint()) {
+                throw new UnsupportedExpressionException("Integer arithmetic");
+            }
+        }
+
+        private UnsupportedExpressionException unsupported(String message) {
+            return new UnsupportedExpressionException(message + " at position " + m_position + " of " + m_expression);
+        }
+    }
+}
@@ -54,6 +54,8 @@ public class DefaultThresholdsDao implements ThresholdsDao, InitializingBean {
     private static final Logger LOG = LoggerFactory.getLogger(DefaultThresholdsDao.class);
     
     private ThresholdingConfigFactory m_thresholdingConfigFactory;
+
+    private ThresholdStateStore m_thresholdStateStore;
     
     /** {@inheritDoc} */
     @Override
@@ -124,7 +126,7 @@ public class DefaultThresholdsDao implements ThresholdsDao, InitializingBean {
                         thresholdMap.put(wrapper.getDatasourceExpression(), thresholdEntitySet);
                     }
                     try {
-                        ThresholdEntity thresholdEntity = new ThresholdEntity();
+                        ThresholdEntity thresholdEntity = new ThresholdEntity(groupName, m_thresholdStateStore);
                         thresholdEntity.addThreshold(wrapper);
                         if (merge) {
                             boolean updated = false;
@@ -197,6 +199,24 @@ public class DefaultThresholdsDao implements ThresholdsDao, InitializingBean {
         m_thresholdingConfigFactory = thresholdingConfigFactory;
     }
 
+    /**
+     * <p>getThresholdStateStore</p>
+     *
+     * @return a {@link org.opennms.netmgt.threshd.ThresholdStateStore} object.
+     */
+    public ThresholdStateStore getThresholdStateStore() {
+        return m_thresholdStateStore;
+    }
+
+    /**
+     * <p>setThresholdStateStore</p>
+     *
+     * @param thresholdStateStore the store holding the state of the thresholds, shared by the entities
+     */
+    public void setThresholdStateStore(ThresholdStateStore thresholdStateStore) {
+        m_thresholdStateStore = thresholdStateStore;
+    }
+
     /**
      * <p>afterPropertiesSet</p>
      *
@@ -205,6 +225,9 @@ public class DefaultThresholdsDao implements ThresholdsDao, InitializingBean {
     @Override
     public void afterPropertiesSet() throws Exception {
         Assert.state(m_thresholdingConfigFactory != null, "thresholdingConfigFactory property not set");
+        if (m_thresholdStateStore == null) {
+            m_thresholdStateStore = new ThresholdStateStore();
+        }
     }
 
 }
@@ -31,8 +31,10 @@ package org.opennms.netmgt.threshd;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.jexl2.ExpressionImpl;
 import org.apache.commons.jexl2.JexlEngine;
@@ -50,16 +52,24 @@ import org.slf4j.LoggerFactory;
 public class ExpressionConfigWrapper extends BaseThresholdDefConfigWrapper {
     private static final Logger LOG = LoggerFactory.getLogger(ExpressionConfigWrapper.class);
 
+    // The engine is thread-safe, and so are the expressions it creates
+    private static final JexlEngine s_expressionParser = new JexlEngine();
+
+    private static final MathBinding s_mathBinding = new MathBinding();
+
     private final Expression m_expression;
-    private final Collection<String> m_datasources;
+    private final List<String> m_datasources;
+    private final org.apache.commons.jexl2.Expression m_parsedExpression;
+    private final CompiledExpression m_compiledExpression;
+
     public ExpressionConfigWrapper(Expression expression) throws ThresholdExpressionException {
         super(expression);
         m_expression = expression;
 
-        JexlEngine expressionParser = new JexlEngine();
-        m_datasources = new ArrayList<>();
+        final Set<String> datasources = new LinkedHashSet<>();
         try {
-            ExpressionImpl e = (ExpressionImpl) expressionParser.createExpression(m_expression.getExpression());
+            m_parsedExpression = s_expressionParser.createExpression(m_expression.getExpression());
+            ExpressionImpl e = (ExpressionImpl) m_parsedExpression;
             LOG.trace("List of Variables on the Expression: {}", e.getVariables());
             for (List<String> list : e.getVariables()) { // Requires JEXL 2.1.x
                 if (list.get(0).equalsIgnoreCase("math")) {
@@ -67,16 +77,56 @@ public class ExpressionConfigWrapper extends BaseThresholdDefConfigWrapper {
                 }
                 if (list.get(0).equalsIgnoreCase("datasources")) {
                     // Include the internal parameter. See NMS-5019
-                    m_datasources.add(list.get(1).intern());
+                    datasources.add(list.get(1).intern());
                 } else {
                     // Include the first element, because datasources and math are the only composite elements
-                    m_datasources.add(list.get(0).intern());
+                    datasources.add(list.get(0).intern());
                 }
             }
         } catch (Throwable e) {
             throw new ThresholdExpressionException("Could not parse threshold expression:" + e.getMessage(), e);
         }
+        m_datasources = new ArrayList<>(datasources);
         LOG.trace("Threshold Variables: {}", m_datasources);
+
+        m_compiledExpression = compile();
+    }
+
+    /**
+     * Compiles the expression, and verifies that the compiled expression
+     * yields the same results as JEXL for a few sample values.
+     */
+    private CompiledExpression compile() {
+        final CompiledExpression compiledExpression = CompiledExpression.compile(s_expressionParser, m_expression.getExpression(), m_datasources);
+        if (compiledExpression == null) {
+            LOG.debug("The threshold expression '{}' will be evaluated by JEXL.", m_expression.getExpression());
+            return null;
+        }
+        final double[][] samples = new double[][] { new double[m_datasources.size()], new double[m_datasources.size()], new double[m_datasources.size()] };
+        for (int i = 0; i < m_datasources.size(); i++) {
+            samples[0][i] = 1.5 + i;
+            samples[1][i] = 1000.0 - 37.25 * i;
+            samples[2][i] = 0.001 * (i + 3);
+        }
+        for (double[] sample : samples) {
+            String expected;
+            try {
+                expected = Double.toString(evaluateWithJexl(toMap(sample)));
+            } catch (ThresholdExpressionException e) {
+                expected = "error";
+            }
+            String actual;
+            try {
+                actual = Double.toString(compiledExpression.evaluate(sample));
+            } catch (ArithmeticException e) {
+                actual = "error";
+            }
+            if (!expected.equals(actual)) {
+                LOG.warn("The compiled threshold expression '{}' returned {} instead of {}. The expression will be evaluated by JEXL.", m_expression.getExpression(), actual, expected);
+                return null;
+            }
+        }
+        return compiledExpression;
     }
 
     @Override
@@ -142,19 +192,65 @@ public class ExpressionConfigWrapper extends BaseThresholdDefConfigWrapper {
 
     @Override
     public double evaluate(Map<String, Double> values) throws ThresholdExpressionException {
+        if (m_compiledExpression != null) {
+            final double[] buffer = new double[m_datasources.size()];
+            boolean complete = true;
+            for (int i = 0; i < buffer.length && complete; i++) {
+                final Double value = values.get(m_datasources.get(i));
+                if (value == null) {
+                    // JEXL has its own rules for null operands
+                    complete = false;
+                } else {
+                    buffer[i] = value;
+                }
+            }
+            if (complete) {
+                return evaluate(buffer);
+            }
+        }
+        return evaluateWithJexl(values);
+    }
+
+    @Override
+    public double evaluate(double[] values) throws ThresholdExpressionException {
+        if (m_compiledExpression == null) {
+            return evaluateWithJexl(toMap(values));
+        }
+        try {
+            return m_compiledExpression.evaluate(values);
+        } catch (ArithmeticException e) {
+            throw new ThresholdExpressionException("Error while evaluating expression " + m_expression.getExpression() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private double evaluateWithJexl(Map<String, Double> values) throws ThresholdExpressionException {
         // Add all of the variable values to the script context
         Map<String,Object> context = new HashMap<String,Object>();
         context.putAll(values);
         context.put("datasources", new HashMap<String, Double>(values)); // To workaround NMS-5019
-        context.put("math", new MathBinding());
+        context.put("math", s_mathBinding);
         double result = Double.NaN;
         try {
-            // Fetch an instance of the JEXL script engine to evaluate the script expression
-            Object resultObject = new JexlEngine().createExpression(m_expression.getExpression()).evaluate(new MapContext(context));
+            Object resultObject = m_parsedExpression.evaluate(new MapContext(context));
             result = Double.parseDouble(resultObject.toString());
         } catch (Throwable e) {
             throw new ThresholdExpressionException("Error while evaluating expression " + m_expression.getExpression() + ": " + e.getMessage(), e);
         }
         return result;
     }
+
+    private Map<String, Double> toMap(double[] values) {
+        final Map<String, Double> map = new HashMap<String, Double>();
+        for (int i = 0; i < m_datasources.size(); i++) {
+            map.put(m_datasources.get(i), values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * @return true if the expression is evaluated without going through JEXL
+     */
+    protected boolean isCompiled() {
+        return m_compiledExpression != null;
+    }
 }
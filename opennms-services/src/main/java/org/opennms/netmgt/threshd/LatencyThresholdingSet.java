@@ -65,7 +65,20 @@ public class LatencyThresholdingSet extends ThresholdingSet {
      * @param interval a long.
      */
     public LatencyThresholdingSet(int nodeId, String hostAddress, String serviceName, String location, RrdRepository repository, ResourceStorageDao resourceStorageDao) {
-        super(nodeId, hostAddress, serviceName, repository);
+        this(nodeId, hostAddress, serviceName, location, repository, resourceStorageDao, null);
+    }
+
+    /**
+     * <p>Constructor for LatencyThresholdingSet.</p>
+     *
+     * @param nodeId a int.
+     * @param hostAddress a {@link java.lang.String} object.
+     * @param serviceName a {@link java.lang.String} object.
+     * @param repository a {@link org.opennms.netmgt.rrd.RrdRepository} object.
+     * @param thresholdStateStore a {@link org.opennms.netmgt.threshd.ThresholdStateStore} object.
+     */
+    public LatencyThresholdingSet(int nodeId, String hostAddress, String serviceName, String location, RrdRepository repository, ResourceStorageDao resourceStorageDao, ThresholdStateStore thresholdStateStore) {
+        super(nodeId, hostAddress, serviceName, repository, thresholdStateStore);
         m_resourceStorageDao = resourceStorageDao;
         m_location = location;
     }
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opennms.netmgt.model.ResourceId;
+
+/**
+ * Stands in for the resource of a triggered threshold restored from a
+ * {@link ThresholdStateStore} snapshot, until the resource is thresholded again.
+ *
+ * It only provides the details of the resource that are used to build the
+ * threshold events, which are recorded by {@link #describe(CollectionResourceWrapper)}
+ * when the threshold is triggered, so that a rearm event can be sent if the
+ * threshold is changed or deleted in the meantime.
+ */
+class RestoredResourceWrapper extends CollectionResourceWrapper {
+
+    private static final String NODE_ID = "nodeId";
+    private static final String HOST_ADDRESS = "hostAddress";
+    private static final String SERVICE_NAME = "serviceName";
+    private static final String RESOURCE_TYPE = "resourceType";
+    private static final String INSTANCE = "instance";
+    private static final String INSTANCE_LABEL = "instanceLabel";
+    private static final String RESOURCE_ID = "resourceId";
+    private static final String IF_LABEL = "ifLabel";
+    private static final String IF_INDEX = "ifIndex";
+    private static final String IF_IP_ADDRESS = "ifIpAddress";
+    private static final String FIELD_PREFIX = "field.";
+
+    private final Map<String, String> m_details;
+
+    RestoredResourceWrapper(Map<String, String> details) {
+        super(new Date(), Integer.parseInt(details.get(NODE_ID)), details.get(HOST_ADDRESS), details.get(SERVICE_NAME), null, null, null, null);
+        m_details = details;
+    }
+
+    /**
+     * Records the details of the given resource needed to build its threshold events.
+     *
+     * @param resource a {@link org.opennms.netmgt.threshd.CollectionResourceWrapper} object.
+     * @return the details
+     */
+    static Map<String, String> describe(CollectionResourceWrapper resource) {
+        final Map<String, String> details = new HashMap<>();
+        put(details, NODE_ID, Integer.toString(resource.getNodeId()));
+        put(details, HOST_ADDRESS, resource.getHostAddress());
+        put(details, SERVICE_NAME, resource.getServiceName());
+        put(details, RESOURCE_TYPE, resource.getResourceTypeName());
+        put(details, INSTANCE, resource.getInstance());
+        put(details, INSTANCE_LABEL, resource.getInstanceLabel());
+        final ResourceId resourceId = resource.getResourceId();
+        put(details, RESOURCE_ID, resourceId != null ? resourceId.toString() : null);
+        if (resource.isAnInterfaceResource()) {
+            put(details, IF_LABEL, resource.getIfLabel());
+            put(details, IF_INDEX, resource.getIfIndex());
+            put(details, IF_IP_ADDRESS, resource.getIfInfoValue("ipaddr"));
+        }
+        if (resource.getDsLabel() != null && !resource.getDsLabel().isEmpty()) {
+            put(details, FIELD_PREFIX + resource.getDsLabel(), resource.getFieldValue(resource.getDsLabel()));
+        }
+        return details;
+    }
+
+    private static void put(Map<String, String> details, String key, String value) {
+        if (value != null) {
+            details.put(key, value);
+        }
+    }
+
+    @Override
+    public String getInstance() {
+        return m_details.get(INSTANCE);
+    }
+
+    @Override
+    public String getInstanceLabel() {
+        return m_details.get(INSTANCE_LABEL);
+    }
+
+    @Override
+    public String getResourceTypeName() {
+        // Called by the super constructor, before the details are set
+        return m_details != null ? m_details.get(RESOURCE_TYPE) : null;
+    }
+
+    @Override
+    public ResourceId getResourceId() {
+        final String resourceId = m_details.get(RESOURCE_ID);
+        return resourceId != null ? ResourceId.fromString(resourceId) : null;
+    }
+
+    @Override
+    public String getIfLabel() {
+        return m_details.get(IF_LABEL);
+    }
+
+    @Override
+    public String getIfIndex() {
+        return m_details.get(IF_INDEX);
+    }
+
+    @Override
+    protected String getIfInfoValue(String attribute) {
+        return "ipaddr".equals(attribute) ? m_details.get(IF_IP_ADDRESS) : null;
+    }
+
+    @Override
+    public String getFieldValue(String ds) {
+        if (ds == null || "".equals(ds)) {
+            return null;
+        }
+        return m_details.get(FIELD_PREFIX + ds);
+    }
+
+    @Override
+    public String toString() {
+        return "RestoredResourceWrapper" + m_details;
+    }
+}
@@ -79,4 +79,10 @@ public class ThresholdConfigWrapper extends BaseThresholdDefConfigWrapper {
         }
         return result.doubleValue();
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public double evaluate(double[] values) throws ThresholdExpressionException {
+        return values[0];
+    }
 }
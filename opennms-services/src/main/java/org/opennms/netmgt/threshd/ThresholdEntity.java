@@ -35,6 +35,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.opennms.netmgt.threshd.ThresholdEvaluatorState.Status;
@@ -57,9 +58,20 @@ public final class ThresholdEntity implements Cloneable {
     
     private static List<ThresholdEvaluator> s_thresholdEvaluators;
     
-    //Contains a list of evaluators for each used "instance".  Is populated with the list for the "default" instance (the "null" key)
-    // in the Constructor.  Note that this means we must use a null-key capable map like HashMap
-    private Map<String,List<ThresholdEvaluatorState>> m_thresholdEvaluatorStates = new HashMap<String,List<ThresholdEvaluatorState>>();
+    // The evaluators for this entity. The state for the "default" instance (when no resource is given) is held by the
+    // evaluators themselves, while the state for each resource is held by the ThresholdStateStore.
+    private final List<ThresholdEvaluatorState> m_thresholdEvaluatorStates = new LinkedList<ThresholdEvaluatorState>();
+
+    private final String m_groupName;
+
+    private final ThresholdStateStore m_stateStore;
+
+    // The ids of the evaluators within the ThresholdStateStore, in the same order as the evaluators
+    private int[] m_thresholdIds = new int[0];
+
+    // The last resources seen for which at least one evaluator is triggered, used to send the rearm events.
+    // Resources restored from a snapshot are represented by a RestoredResourceWrapper until they are seen again.
+    private final Map<String,CollectionResourceWrapper> m_triggeredResources = new HashMap<String,CollectionResourceWrapper>();
 
     // the commands for these need to be listed in ThresholdController as well
     static {
@@ -74,8 +86,19 @@ public final class ThresholdEntity implements Cloneable {
      * Constructor.
      */
     public ThresholdEntity() {
-        //Put in a default list for the "null" key (the default evaluators)
-        m_thresholdEvaluatorStates.put(null, new LinkedList<ThresholdEvaluatorState>());
+        this(null, new ThresholdStateStore());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param groupName the name of the threshold group the entity belongs to, used to
+     *          tell apart the state of identical thresholds defined in different groups
+     * @param stateStore the store holding the state of the evaluators for each resource
+     */
+    public ThresholdEntity(String groupName, ThresholdStateStore stateStore) {
+        m_groupName = groupName;
+        m_stateStore = stateStore;
     }
 
     /**
@@ -84,11 +107,11 @@ public final class ThresholdEntity implements Cloneable {
      * @return a {@link org.opennms.netmgt.threshd.BaseThresholdDefConfigWrapper} object.
      */
     public BaseThresholdDefConfigWrapper getThresholdConfig() {
-        return m_thresholdEvaluatorStates.get(null).get(0).getThresholdConfig();
+        return m_thresholdEvaluatorStates.get(0).getThresholdConfig();
     }
     
     private boolean hasThresholds() {
-        return m_thresholdEvaluatorStates.get(null).size()!=0;
+        return m_thresholdEvaluatorStates.size()!=0;
     }
     /**
      * Get datasource name
@@ -158,8 +181,8 @@ public final class ThresholdEntity implements Cloneable {
      */
     @Override
     public ThresholdEntity clone() {
-        ThresholdEntity clone = new ThresholdEntity();
-        for (ThresholdEvaluatorState thresholdItem : getThresholdEvaluatorStates(null)) {
+        ThresholdEntity clone = new ThresholdEntity(m_groupName, m_stateStore);
+        for (ThresholdEvaluatorState thresholdItem : m_thresholdEvaluatorStates) {
             clone.addThreshold(thresholdItem.getThresholdConfig());
         }
 
@@ -185,7 +208,7 @@ public final class ThresholdEntity implements Cloneable {
         buffer.append(", dsName=").append(this.getDataSourceExpression());
         buffer.append(", dsType=").append(this.getDatasourceType());
         buffer.append(", evaluators=[");
-        for (ThresholdEvaluatorState item : getThresholdEvaluatorStates(null)) {
+        for (ThresholdEvaluatorState item : m_thresholdEvaluatorStates) {
             buffer.append("{ds=").append(item.getThresholdConfig().getDatasourceExpression());
             buffer.append(", value=").append(item.getThresholdConfig().getValue());
             buffer.append(", rearm=").append(item.getThresholdConfig().getRearm());
@@ -227,59 +250,150 @@ public final class ThresholdEntity implements Cloneable {
      * @return List of events
      * @param resource a {@link org.opennms.netmgt.threshd.CollectionResourceWrapper} object.
      */
-    public List<Event> evaluateAndCreateEvents(CollectionResourceWrapper resource, Map<String, Double> values, Date date) {
-        List<Event> events = new LinkedList<Event>();
+    public synchronized List<Event> evaluateAndCreateEvents(CollectionResourceWrapper resource, Map<String, Double> values, Date date) {
         double dsValue=0.0;
 
-        String instance = null;
-        if (resource != null) {
-            // NMS-9361: Use the instance label as the key for the thresholder's state. This allows us to uniquely
-            // identify resources that share the same instance, but whose path
-            // on disk may differ due to the use of a StorageStrategy implementation
-            // such as the SiblingColumnStorageStrategy
-            instance = resource.getInstanceLabel();
+        try {
+            if (hasThresholds()) {
+                dsValue=getThresholdConfig().evaluate(values);
+            } else {
+                throw new IllegalStateException("No thresholds have been added.");
+            }
+        } catch (ThresholdExpressionException e) {
+            LOG.warn("Failed to evaluate: ", e);
+            return new LinkedList<Event>(); //No events to report
         }
+
+        return evaluateAndCreateEvents(resource, dsValue, date);
+    }
+
+    /**
+     * Evaluates the threshold in light of the provided datasource values, for
+     * the named instance (or the generic instance if instance is null) and
+     * create any events for thresholds.
+     *
+     * @param resource a {@link org.opennms.netmgt.threshd.CollectionResourceWrapper} object.
+     * @param values
+     *          values of the datasources, in the iteration order of {@link BaseThresholdDefConfigWrapper#getRequiredDatasources()}
+     * @param date
+     *          Date to use in created events
+     * @return List of events
+     */
+    public synchronized List<Event> evaluateAndCreateEvents(CollectionResourceWrapper resource, double[] values, Date date) {
+        double dsValue=0.0;
+
         try {
-            if (getThresholdEvaluatorStates(instance).size() > 0) {
+            if (hasThresholds()) {
                 dsValue=getThresholdConfig().evaluate(values);
             } else {
                 throw new IllegalStateException("No thresholds have been added.");
             }
         } catch (ThresholdExpressionException e) {
             LOG.warn("Failed to evaluate: ", e);
-            return events; //No events to report
+            return new LinkedList<Event>(); //No events to report
         }
-        
+
+        return evaluateAndCreateEvents(resource, dsValue, date);
+    }
+
+    private List<Event> evaluateAndCreateEvents(CollectionResourceWrapper resource, double dsValue, Date date) {
         LOG.debug("evaluate: value= {} against threshold: {}", dsValue, this);
 
-        for (ThresholdEvaluatorState item : getThresholdEvaluatorStates(instance)) {
+        if (resource == null) {
+            return evaluateStates(resource, dsValue, date);
+        }
+
+        // NMS-9361: Use the instance label as part of the key for the thresholder's state. This allows us to uniquely
+        // identify resources that share the same instance, but whose path
+        // on disk may differ due to the use of a StorageStrategy implementation
+        // such as the SiblingColumnStorageStrategy
+        final String resourceKey = ThresholdStateStore.getResourceKey(resource);
+        return m_stateStore.withState(resourceKey, m_thresholdIds, m_thresholdEvaluatorStates, () -> {
+            final List<Event> events = evaluateStates(resource, dsValue, date);
+            if (isAnyTriggered()) {
+                final CollectionResourceWrapper previous = m_triggeredResources.put(resourceKey, resource);
+                if (m_stateStore.isPersistent() && (previous == null || previous instanceof RestoredResourceWrapper)) {
+                    // Keep what's needed to send the rearm events should the threshold change after a restart
+                    m_stateStore.putResourceDetails(resourceKey, RestoredResourceWrapper.describe(resource));
+                }
+            } else {
+                m_triggeredResources.remove(resourceKey);
+            }
+            return events;
+        });
+    }
+
+    /**
+     * Restores the resources with a triggered evaluator from the state store, so that
+     * rearm events are sent for them if the threshold is changed or deleted before the
+     * resources are thresholded again.
+     *
+     * @param resourceKeyPrefix the prefix of the keys of the resources thresholded along
+     *          with this entity, see {@link ThresholdStateStore#getResourceKeyPrefix(int, String, String)}
+     */
+    public synchronized void restoreTriggeredResources(String resourceKeyPrefix) {
+        if (!hasThresholds()) {
+            return;
+        }
+        for (Entry<String, Map<String, String>> entry : m_stateStore.getResourceDetails(resourceKeyPrefix).entrySet()) {
+            final String resourceKey = entry.getKey();
+            final RestoredResourceWrapper resource = new RestoredResourceWrapper(entry.getValue());
+            if (m_triggeredResources.containsKey(resourceKey) || !getDatasourceType().equals(resource.getResourceTypeName())) {
+                continue;
+            }
+            if (m_stateStore.withState(resourceKey, m_thresholdIds, m_thresholdEvaluatorStates, this::isAnyTriggered)) {
+                m_triggeredResources.put(resourceKey, resource);
+            }
+        }
+    }
+
+    private List<Event> evaluateStates(CollectionResourceWrapper resource, double dsValue, Date date) {
+        final List<Event> events = new LinkedList<Event>();
+        for (ThresholdEvaluatorState item : m_thresholdEvaluatorStates) {
             Status status = item.evaluate(dsValue);
             Event event = item.getEventForState(status, date, dsValue, resource);
             if (event != null) {
                 events.add(event);
             }
         }
-
         return events;
     }
 
+    private boolean isAnyTriggered() {
+        for (ThresholdEvaluatorState item : m_thresholdEvaluatorStates) {
+            if (item.isTriggered()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * <p>addThreshold</p>
      *
      * @param threshold a {@link org.opennms.netmgt.threshd.BaseThresholdDefConfigWrapper} object.
      */
-    public void addThreshold(BaseThresholdDefConfigWrapper threshold) {
+    public synchronized void addThreshold(BaseThresholdDefConfigWrapper threshold) {
         ThresholdEvaluator evaluator = getEvaluatorForThreshold(threshold);
-        //Get the default list of evaluators (the null key)
-        List<ThresholdEvaluatorState> defaultList=m_thresholdEvaluatorStates.get(null);
 
-        for (ThresholdEvaluatorState item : defaultList) {
+        for (ThresholdEvaluatorState item : m_thresholdEvaluatorStates) {
             if (threshold.getType().equals(item.getThresholdConfig().getType())) {
                 throw new IllegalStateException(threshold.getType() + " threshold already set.");
             }
         }
 
-        defaultList.add(evaluator.getThresholdEvaluatorState(threshold));
+        m_thresholdEvaluatorStates.add(evaluator.getThresholdEvaluatorState(threshold));
+        updateThresholdIds();
+    }
+
+    private void updateThresholdIds() {
+        final int[] thresholdIds = new int[m_thresholdEvaluatorStates.size()];
+        int i = 0;
+        for (ThresholdEvaluatorState item : m_thresholdEvaluatorStates) {
+            final String stateKey = item instanceof AbstractThresholdEvaluatorState ? ((AbstractThresholdEvaluatorState)item).getStateKey() : item.getThresholdConfig().getType().toString();
+            thresholdIds[i++] = m_stateStore.getThresholdId(m_groupName + "/" + stateKey);
+        }
+        m_thresholdIds = thresholdIds;
     }
 
     private ThresholdEvaluator getEvaluatorForThreshold(BaseThresholdDefConfigWrapper threshold) {
@@ -295,64 +409,54 @@ public final class ThresholdEntity implements Cloneable {
         throw new IllegalArgumentException(message);
     }
 
-    /**
-     * Returns the evaluator states *for the given instance.
-     *
-     * @param instance The key to use to identify the instance to get states for. Can be null to get the default instance
-     * @return a {@link java.util.List} object.
-     */
-    public List<ThresholdEvaluatorState> getThresholdEvaluatorStates(String instance) {
-        List<ThresholdEvaluatorState> result= m_thresholdEvaluatorStates.get(instance);
-        if(result==null) {
-            //There is no set of evaluators for this instance; create a list by copying the base ones
-            List<ThresholdEvaluatorState> defaultList=m_thresholdEvaluatorStates.get(null);
-          
-            //Create the new list
-            result=new LinkedList<ThresholdEvaluatorState>();
-            for(ThresholdEvaluatorState state: defaultList) {
-                result.add(state.getCleanClone());
-            }
-            
-            //Store the new list with the instance as the key
-            m_thresholdEvaluatorStates.put(instance == null ? null : instance.intern(), result);
-        }
-        return result;
-    }
-    
     /**
      * Merges the configuration and update states using parameter entity as a reference.
      *
      * @param entity a {@link org.opennms.netmgt.threshd.ThresholdEntity} object.
      */
-    public void merge(ThresholdEntity entity) {
+    public synchronized void merge(ThresholdEntity entity) {
         if (getThresholdConfig().equals(entity.getThresholdConfig()) == false) {
             sendRearmForTriggeredStates();
             getThresholdConfig().merge(entity.getThresholdConfig());
+            updateThresholdIds();
         }
     }
 
     /**
      * Delete this will check states and will send rearm for all triggered.
      */
-    public void delete() {
+    public synchronized void delete() {
         sendRearmForTriggeredStates();
     }
     
     private void sendRearmForTriggeredStates() {
-        for (String instance : m_thresholdEvaluatorStates.keySet()) {
-            for (ThresholdEvaluatorState state : m_thresholdEvaluatorStates.get(instance)) {
-                if (state.isTriggered()) {
-                    Event e = state.getEventForState(Status.RE_ARMED, new Date(), Double.NaN, null);
-                    Parm p = new Parm();
-                    p.setParmName("reason");
-                    Value v = new Value();
-                    v.setContent("Configuration has been changed");
-                    p.setValue(v);
-                    e.addParm(p);
-                    LOG.info("sendRearmForTriggeredStates: sending rearm for {}", e);
-                    ThresholdingEventProxyFactory.getFactory().getProxy().add(e);
-                    state.clearState();
-                }
+        // Default instance
+        sendRearmForTriggeredStates(null);
+
+        for (Entry<String,CollectionResourceWrapper> entry : m_triggeredResources.entrySet()) {
+            // The resource may have been last used by an entity with a different label
+            entry.getValue().setDsLabel(getDatasourceLabel());
+            m_stateStore.withState(entry.getKey(), m_thresholdIds, m_thresholdEvaluatorStates, () -> {
+                sendRearmForTriggeredStates(entry.getValue());
+                return null;
+            });
+        }
+        m_triggeredResources.clear();
+    }
+
+    private void sendRearmForTriggeredStates(CollectionResourceWrapper resource) {
+        for (ThresholdEvaluatorState state : m_thresholdEvaluatorStates) {
+            if (state.isTriggered()) {
+                Event e = state.getEventForState(Status.RE_ARMED, new Date(), Double.NaN, resource);
+                Parm p = new Parm();
+                p.setParmName("reason");
+                Value v = new Value();
+                v.setContent("Configuration has been changed");
+                p.setValue(v);
+                e.addParm(p);
+                LOG.info("sendRearmForTriggeredStates: sending rearm for {}", e);
+                ThresholdingEventProxyFactory.getFactory().getProxy().add(e);
+                state.clearState();
             }
         }
     }
@@ -66,14 +66,17 @@ public class ThresholdEvaluatorAbsoluteChange implements ThresholdEvaluator {
         private BaseThresholdDefConfigWrapper m_thresholdConfig;
         private double m_change;
 
-        private double m_lastSample = Double.NaN;
-        
-        private double m_previousTriggeringSample;
-
         public ThresholdEvaluatorStateAbsoluteChange(BaseThresholdDefConfigWrapper threshold) {
             Assert.notNull(threshold, "threshold argument cannot be null");
 
             setThresholdConfig(threshold);
+            resetState();
+        }
+
+        @Override
+        protected void resetState() {
+            setLastSample(Double.NaN);
+            setPreviousTriggeringSample(0.0);
         }
 
         public void setThresholdConfig(BaseThresholdDefConfigWrapper thresholdConfig) {
@@ -127,11 +130,11 @@ public class ThresholdEvaluatorAbsoluteChange implements ThresholdEvaluator {
         }
 
         public Double getLastSample() {
-            return m_lastSample;
+            return getStateLastValue();
         }
 
         public void setLastSample(double lastSample) {
-            m_lastSample = lastSample;
+            setStateLastValue(lastSample);
         }
 
         @Override
@@ -153,11 +156,11 @@ public class ThresholdEvaluatorAbsoluteChange implements ThresholdEvaluator {
         }
 
         public double getPreviousTriggeringSample() {
-            return m_previousTriggeringSample;
+            return getStatePreviousValue();
         }
         
         public void setPreviousTriggeringSample(double previousTriggeringSample) {
-            m_previousTriggeringSample = previousTriggeringSample;
+            setStatePreviousValue(previousTriggeringSample);
         }
 
         public double getChange() {
@@ -168,11 +171,6 @@ public class ThresholdEvaluatorAbsoluteChange implements ThresholdEvaluator {
             m_change = change;
         }
 
-        @Override
-        public ThresholdEvaluatorState getCleanClone() {
-            return new ThresholdEvaluatorStateAbsoluteChange(m_thresholdConfig);
-        }
-
         // FIXME This must be implemented correctly
         @Override
         public boolean isTriggered() {
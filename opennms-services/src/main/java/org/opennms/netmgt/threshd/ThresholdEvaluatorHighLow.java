@@ -72,10 +72,20 @@ public class ThresholdEvaluatorHighLow implements ThresholdEvaluator {
          */
         private BaseThresholdDefConfigWrapper m_thresholdConfig;
 
-        /**
-         * Threshold exceeded count
-         */
-        private int m_exceededCount;
+        private CollectionResourceWrapper m_lastCollectionResourceUsed;
+
+        public ThresholdEvaluatorStateHighLow(BaseThresholdDefConfigWrapper threshold) {
+            Assert.notNull(threshold, "threshold argument cannot be null");
+            
+            setThresholdConfig(threshold);
+            resetState();
+        }    
+
+        @Override
+        protected void resetState() {
+            setExceededCount(0);
+            setArmed(true);
+        }
 
         /**
          * Threshold armed flag
@@ -87,32 +97,23 @@ public class ThresholdEvaluatorHighLow implements ThresholdEvaluator {
          * falling below (for high threshold) or rising above (for low threshold)
          * the rearm value.
          */
-        private boolean m_armed;
-        
-        private CollectionResourceWrapper m_lastCollectionResourceUsed;
-
-        public ThresholdEvaluatorStateHighLow(BaseThresholdDefConfigWrapper threshold) {
-            Assert.notNull(threshold, "threshold argument cannot be null");
-            
-            setThresholdConfig(threshold);
-            setExceededCount(0);
-            setArmed(true);
-        }    
-
         public boolean isArmed() {
-            return m_armed;
+            return isStateArmed();
         }
 
         public void setArmed(boolean armed) {
-            m_armed = armed;
+            setStateArmed(armed);
         }
 
+        /**
+         * Threshold exceeded count
+         */
         public int getExceededCount() {
-            return m_exceededCount;
+            return getStateCount();
         }
 
         public void setExceededCount(int exceededCount) {
-            m_exceededCount = exceededCount;
+            setStateCount(exceededCount);
         }
 
         @Override
@@ -203,7 +204,10 @@ public class ThresholdEvaluatorHighLow implements ThresholdEvaluator {
             if (resource == null) {
                 resource = m_lastCollectionResourceUsed;
             }
-            m_lastCollectionResourceUsed = resource;
+            // The resource of a bound evaluator is tracked by the ThresholdEntity
+            if (!isBound()) {
+                m_lastCollectionResourceUsed = resource;
+            }
             String uei;
             switch (status) {
             case TRIGGERED:
@@ -254,11 +258,6 @@ public class ThresholdEvaluatorHighLow implements ThresholdEvaluator {
             return createBasicEvent(uei, date, dsValue, resource, params);
         }
         
-        @Override
-        public ThresholdEvaluatorState getCleanClone() {
-            return new ThresholdEvaluatorStateHighLow(m_thresholdConfig);
-        }
-
         @Override
         public boolean isTriggered() {
             return !isArmed();
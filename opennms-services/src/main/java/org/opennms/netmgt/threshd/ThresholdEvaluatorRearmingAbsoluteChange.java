@@ -65,13 +65,17 @@ public class ThresholdEvaluatorRearmingAbsoluteChange implements ThresholdEvalua
     public static class ThresholdEvaluatorStateRearmingAbsoluteChange extends AbstractThresholdEvaluatorState {
         private BaseThresholdDefConfigWrapper m_thresholdConfig;
 
-        private double m_lastSample = Double.NaN;
-        private double m_previousTriggeringSample = Double.NaN;
-        private int m_triggerCount = 0;
-
         public ThresholdEvaluatorStateRearmingAbsoluteChange(BaseThresholdDefConfigWrapper threshold) {
             Assert.notNull(threshold, "threshold argument cannot be null");
             setThresholdConfig(threshold);
+            resetState();
+        }
+
+        @Override
+        protected void resetState() {
+            setLastSample(Double.NaN);
+            setPreviousTriggeringSample(Double.NaN);
+            setStateCount(0);
         }
 
         public String getType() {
@@ -104,16 +108,16 @@ public class ThresholdEvaluatorRearmingAbsoluteChange implements ThresholdEvalua
 //            log().debug(TYPE + " threshold evaluating, sample value="+dsValue);
         	try {
         		if(!Double.valueOf(getPreviousTriggeringSample()).isNaN()) {
-        			++m_triggerCount;
-        			if(!wasTriggered(dsValue) && (m_triggerCount >= getThresholdConfig().getTrigger())) {
+        			setStateCount(getStateCount() + 1);
+        			if(!wasTriggered(dsValue) && (getStateCount() >= getThresholdConfig().getTrigger())) {
         				setPreviousTriggeringSample(Double.NaN);
-        				m_triggerCount = 0;
+        				setStateCount(0);
 					LOG.debug("{} threshold rearmed, sample value={}", TYPE, dsValue);
         				return Status.RE_ARMED;
         			} 
         		} else if (wasTriggered(dsValue)) {
         			setPreviousTriggeringSample(getLastSample());
-        			m_triggerCount = 0;
+        			setStateCount(0);
 				LOG.debug("{} threshold triggered, sample value={}", TYPE, dsValue);
         			return Status.TRIGGERED;
         		} 
@@ -142,11 +146,11 @@ public class ThresholdEvaluatorRearmingAbsoluteChange implements ThresholdEvalua
         }
 
         public Double getLastSample() {
-            return m_lastSample;
+            return getStateLastValue();
         }
 
         public void setLastSample(double lastSample) {
-            m_lastSample = lastSample;
+            setStateLastValue(lastSample);
         }
 
         @Override
@@ -174,29 +178,22 @@ public class ThresholdEvaluatorRearmingAbsoluteChange implements ThresholdEvalua
         }
 
         public double getPreviousTriggeringSample() {
-            return m_previousTriggeringSample;
+            return getStatePreviousValue();
         }
         
         public void setPreviousTriggeringSample(double previousTriggeringSample) {
-            m_previousTriggeringSample = previousTriggeringSample;
+            setStatePreviousValue(previousTriggeringSample);
         }
         
-        @Override
-        public ThresholdEvaluatorState getCleanClone() {
-            return new ThresholdEvaluatorStateRearmingAbsoluteChange(m_thresholdConfig);
-        }
-
         @Override
         public boolean isTriggered() {
-            return wasTriggered(m_previousTriggeringSample); // TODO Is that right ?
+            return wasTriggered(getPreviousTriggeringSample()); // TODO Is that right ?
         }
         
         @Override
         public void clearState() {
             // Based on what evaluator does for rearmed state
-            m_lastSample = Double.NaN;
-            m_triggerCount = 0;
-            setPreviousTriggeringSample(Double.NaN);
+            resetState();
         }
 
     }
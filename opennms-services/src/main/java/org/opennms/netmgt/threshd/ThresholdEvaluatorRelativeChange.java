@@ -72,13 +72,17 @@ public class ThresholdEvaluatorRelativeChange implements ThresholdEvaluator {
         private BaseThresholdDefConfigWrapper m_thresholdConfig;
         private double m_multiplier;
 
-        private double m_lastSample = 0.0;
-        private double m_previousTriggeringSample;
-
         public ThresholdEvaluatorStateRelativeChange(BaseThresholdDefConfigWrapper threshold) {
             Assert.notNull(threshold, "threshold argument cannot be null");
 
             setThresholdConfig(threshold);
+            resetState();
+        }
+
+        @Override
+        protected void resetState() {
+            setLastSample(0.0);
+            setPreviousTriggeringSample(0.0);
         }
 
         public void setThresholdConfig(BaseThresholdDefConfigWrapper thresholdConfig) {
@@ -136,11 +140,11 @@ public class ThresholdEvaluatorRelativeChange implements ThresholdEvaluator {
         }
 
         public Double getLastSample() {
-            return m_lastSample;
+            return getStateLastValue();
         }
 
         public void setLastSample(double lastSample) {
-            m_lastSample = lastSample;
+            setStateLastValue(lastSample);
         }
 
         @Override
@@ -163,11 +167,11 @@ public class ThresholdEvaluatorRelativeChange implements ThresholdEvaluator {
         }
 
         public double getPreviousTriggeringSample() {
-            return m_previousTriggeringSample;
+            return getStatePreviousValue();
         }
         
         public void setPreviousTriggeringSample(double previousTriggeringSample) {
-            m_previousTriggeringSample = previousTriggeringSample;
+            setStatePreviousValue(previousTriggeringSample);
         }
 
         public double getMultiplier() {
@@ -178,11 +182,6 @@ public class ThresholdEvaluatorRelativeChange implements ThresholdEvaluator {
             m_multiplier = multiplier;
         }
 
-        @Override
-        public ThresholdEvaluatorState getCleanClone() {
-            return new ThresholdEvaluatorStateRelativeChange(m_thresholdConfig);
-        }
-
         // FIXME This must be implemented correctly
         @Override
         public boolean isTriggered() {
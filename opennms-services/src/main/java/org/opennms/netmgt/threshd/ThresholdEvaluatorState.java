@@ -86,11 +86,4 @@ public interface ThresholdEvaluatorState {
      * @return a {@link org.opennms.netmgt.threshd.BaseThresholdDefConfigWrapper} object.
      */
     public BaseThresholdDefConfigWrapper getThresholdConfig();
-
-    /**
-     * Returns a "clean" (armed, non-triggered) clone of this object
-     *
-     * @return a {@link org.opennms.netmgt.threshd.ThresholdEvaluatorState} object.
-     */
-    public ThresholdEvaluatorState getCleanClone();
 }
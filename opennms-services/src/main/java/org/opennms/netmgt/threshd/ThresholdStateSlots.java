@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import java.util.Arrays;
+
+/**
+ * Holds the mutable state of threshold evaluators in parallel primitive
+ * arrays, one slot per evaluator and resource.
+ *
+ * The meaning of the values is up to the evaluator that is bound to the slot:
+ * see {@link AbstractThresholdEvaluatorState}.
+ */
+class ThresholdStateSlots {
+
+    private static final byte ARMED = 0x1;
+    private static final byte INITIALIZED = 0x2;
+
+    private double[] m_lastValues;
+    private double[] m_previousValues;
+    private int[] m_counts;
+    private byte[] m_flags;
+    private int[] m_lastUpdated;
+
+    ThresholdStateSlots(int capacity) {
+        m_lastValues = new double[capacity];
+        m_previousValues = new double[capacity];
+        m_counts = new int[capacity];
+        m_flags = new byte[capacity];
+        m_lastUpdated = new int[capacity];
+    }
+
+    int capacity() {
+        return m_flags.length;
+    }
+
+    void grow(int capacity) {
+        if (capacity <= capacity()) {
+            return;
+        }
+        m_lastValues = Arrays.copyOf(m_lastValues, capacity);
+        m_previousValues = Arrays.copyOf(m_previousValues, capacity);
+        m_counts = Arrays.copyOf(m_counts, capacity);
+        m_flags = Arrays.copyOf(m_flags, capacity);
+        m_lastUpdated = Arrays.copyOf(m_lastUpdated, capacity);
+    }
+
+    void clear(int slot) {
+        m_lastValues[slot] = 0.0;
+        m_previousValues[slot] = 0.0;
+        m_counts[slot] = 0;
+        m_flags[slot] = 0;
+        m_lastUpdated[slot] = 0;
+    }
+
+    /**
+     * Copies the given slot to a slot of another instance.
+     */
+    void copy(int slot, ThresholdStateSlots to, int toSlot) {
+        to.m_lastValues[toSlot] = m_lastValues[slot];
+        to.m_previousValues[toSlot] = m_previousValues[slot];
+        to.m_counts[toSlot] = m_counts[slot];
+        to.m_flags[toSlot] = m_flags[slot];
+        to.m_lastUpdated[toSlot] = m_lastUpdated[slot];
+    }
+
+    double getLastValue(int slot) {
+        return m_lastValues[slot];
+    }
+
+    void setLastValue(int slot, double value) {
+        m_lastValues[slot] = value;
+    }
+
+    double getPreviousValue(int slot) {
+        return m_previousValues[slot];
+    }
+
+    void setPreviousValue(int slot, double value) {
+        m_previousValues[slot] = value;
+    }
+
+    int getCount(int slot) {
+        return m_counts[slot];
+    }
+
+    void setCount(int slot, int count) {
+        m_counts[slot] = count;
+    }
+
+    boolean isArmed(int slot) {
+        return (m_flags[slot] & ARMED) != 0;
+    }
+
+    void setArmed(int slot, boolean armed) {
+        if (armed) {
+            m_flags[slot] |= ARMED;
+        } else {
+            m_flags[slot] &= ~ARMED;
+        }
+    }
+
+    boolean isInitialized(int slot) {
+        return (m_flags[slot] & INITIALIZED) != 0;
+    }
+
+    void setInitialized(int slot) {
+        m_flags[slot] |= INITIALIZED;
+    }
+
+    byte getFlags(int slot) {
+        return m_flags[slot];
+    }
+
+    void setFlags(int slot, byte flags) {
+        m_flags[slot] = flags;
+    }
+
+    /**
+     * @return the time at which the slot was last used, in minutes since the epoch
+     */
+    int getLastUpdated(int slot) {
+        return m_lastUpdated[slot];
+    }
+
+    void setLastUpdated(int slot, int minutes) {
+        m_lastUpdated[slot] = minutes;
+    }
+}
@@ -0,0 +1,848 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the state of the threshold evaluators for all of the resources
+ * being thresholded.
+ *
+ * Instead of cloning a set of evaluator objects for every resource, the
+ * {@link ThresholdEntity} binds its evaluators to a copy of the slots reserved
+ * for the resource before evaluating them. Resources and thresholds are interned
+ * to integer ids, and the state of each (resource, threshold) pair is kept in
+ * primitive arrays (see {@link ThresholdStateSlots}).
+ *
+ * The store is split into segments by resource, each guarded by its own monitor.
+ * Each daemon that thresholds the data it collects has its own store, see
+ * {@link #forDaemon(String)}. When a file is configured, the state is periodically
+ * written to a memory-mapped snapshot from which it is restored on startup, so
+ * that triggered thresholds are not re-armed (and triggered again) when OpenNMS
+ * is restarted. Slots that have not been used for longer than the configured idle
+ * time are discarded when taking the snapshot.
+ */
+public class ThresholdStateStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThresholdStateStore.class);
+
+    public static final String DIRECTORY_PROPERTY = "org.opennms.threshd.state.directory";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "org.opennms.threshd.state.snapshotInterval";
+    public static final String SEGMENTS_PROPERTY = "org.opennms.threshd.state.segments";
+    public static final String MAX_IDLE_PROPERTY = "org.opennms.threshd.state.maxIdle";
+
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final long DEFAULT_MAX_IDLE = TimeUnit.DAYS.toMillis(2);
+
+    private static final int MAGIC = 0x54485354; // THST
+    private static final int VERSION = 2;
+    private static final int END_OF_RESOURCES = -1;
+    private static final int SLOT_RECORD_SIZE = 4 + 8 + 8 + 4 + 1 + 4;
+    private static final int MAPPING_WINDOW = 64 * 1024 * 1024;
+
+    private static final int NO_SLOT = -1;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int IN_MEMORY_CAPACITY = 16;
+
+    private final Path m_file;
+    private final long m_maxIdle;
+    private final Segment[] m_segments;
+
+    private final Map<String, Integer> m_thresholdIds = new HashMap<>();
+    private final List<String> m_thresholdKeys = new ArrayList<>();
+
+    private long m_snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private ScheduledExecutorService m_snapshotExecutor;
+
+    /**
+     * Creates the store used by the given daemon from the system properties.
+     *
+     * When {@value #DIRECTORY_PROPERTY} is set, the state is persisted to a file
+     * named after the daemon within that directory.
+     *
+     * @param daemonName the name of the daemon, i.e. collectd or pollerd
+     * @return a {@link org.opennms.netmgt.threshd.ThresholdStateStore} object.
+     */
+    public static ThresholdStateStore forDaemon(String daemonName) {
+        final String directory = System.getProperty(DIRECTORY_PROPERTY);
+        final Path file = directory == null || directory.trim().isEmpty() ? null : Paths.get(directory.trim(), daemonName + ".dat");
+        final ThresholdStateStore store = new ThresholdStateStore(Integer.getInteger(SEGMENTS_PROPERTY, DEFAULT_SEGMENTS), file,
+                Long.getLong(MAX_IDLE_PROPERTY, DEFAULT_MAX_IDLE));
+        store.setSnapshotInterval(Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL));
+        return store;
+    }
+
+    /**
+     * Creates a small store that only keeps the state in memory, used by
+     * thresholding sets that aren't given the store of their daemon.
+     */
+    public ThresholdStateStore() {
+        this(1, null, DEFAULT_MAX_IDLE, IN_MEMORY_CAPACITY);
+    }
+
+    /**
+     * <p>Constructor for ThresholdStateStore.</p>
+     *
+     * @param numSegments the number of independently locked segments
+     * @param file the snapshot file, or null if the state should not be persisted
+     * @param maxIdle time after which the state of a resource that is no longer thresholded is discarded, in milliseconds
+     */
+    public ThresholdStateStore(int numSegments, Path file, long maxIdle) {
+        this(numSegments, file, maxIdle, DEFAULT_CAPACITY);
+    }
+
+    private ThresholdStateStore(int numSegments, Path file, long maxIdle, int initialCapacity) {
+        if (numSegments < 1) {
+            throw new IllegalArgumentException("The number of segments must be positive.");
+        }
+        m_file = file;
+        m_maxIdle = maxIdle;
+        m_segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            m_segments[i] = new Segment(initialCapacity);
+        }
+    }
+
+    /**
+     * Sets how often the state is written to the snapshot file, in milliseconds.
+     * When 0, the state is only written when the store is destroyed.
+     *
+     * @param snapshotInterval a long.
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        m_snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Restores the state from the snapshot file and schedules the snapshots.
+     */
+    public synchronized void init() {
+        if (m_file == null || m_snapshotExecutor != null) {
+            return;
+        }
+        load();
+        m_snapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "ThresholdStateStore-Snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (m_snapshotInterval > 0) {
+            m_snapshotExecutor.scheduleWithFixedDelay(this::snapshotQuietly, m_snapshotInterval, m_snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the scheduled snapshots and writes a final snapshot.
+     */
+    public synchronized void destroy() {
+        if (m_snapshotExecutor == null) {
+            return;
+        }
+        m_snapshotExecutor.shutdown();
+        try {
+            m_snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_snapshotExecutor = null;
+        snapshotQuietly();
+    }
+
+    /**
+     * @return true if the state is written to a snapshot file
+     */
+    public boolean isPersistent() {
+        return m_file != null;
+    }
+
+    /**
+     * Builds the key used to identify the state of the given resource.
+     *
+     * @param resource a {@link org.opennms.netmgt.threshd.CollectionResourceWrapper} object.
+     * @return a {@link java.lang.String} object.
+     */
+    public static String getResourceKey(CollectionResourceWrapper resource) {
+        return getResourceKeyPrefix(resource.getNodeId(), resource.getHostAddress(), resource.getServiceName())
+            + resource.getResourceTypeName() + "/" + resource.getInstanceLabel();
+    }
+
+    /**
+     * Builds the prefix shared by the keys of all of the resources thresholded
+     * for the given node, interface and service.
+     *
+     * @param nodeId a int.
+     * @param hostAddress a {@link java.lang.String} object.
+     * @param serviceName a {@link java.lang.String} object.
+     * @return a {@link java.lang.String} object.
+     */
+    public static String getResourceKeyPrefix(int nodeId, String hostAddress, String serviceName) {
+        return nodeId + "/" + hostAddress + "/" + serviceName + "/";
+    }
+
+    /**
+     * Interns the given threshold key. Threshold ids are never released,
+     * since the number of thresholds is bounded by the threshold definitions
+     * seen since startup.
+     *
+     * @param thresholdKey a {@link java.lang.String} object.
+     * @return the id of the threshold
+     */
+    public synchronized int getThresholdId(String thresholdKey) {
+        Integer id = m_thresholdIds.get(thresholdKey);
+        if (id == null) {
+            id = m_thresholdKeys.size();
+            m_thresholdKeys.add(thresholdKey);
+            m_thresholdIds.put(thresholdKey, id);
+        }
+        return id;
+    }
+
+    private synchronized String[] getThresholdKeys() {
+        return m_thresholdKeys.toArray(new String[m_thresholdKeys.size()]);
+    }
+
+    /**
+     * Binds the evaluators to a copy of the state they hold for the given resource,
+     * invokes the action while they are bound, and stores the updated state.
+     * Evaluators that have never been evaluated against the resource start out
+     * in their initial state.
+     *
+     * The segment holding the resource is only locked while copying the state,
+     * so the action is free to build events. The evaluators must not be used by
+     * any other thread while the action runs.
+     *
+     * @param resourceKey the key of the resource, see {@link #getResourceKey(CollectionResourceWrapper)}
+     * @param thresholdIds the ids of the thresholds, see {@link #getThresholdId(String)}
+     * @param states the evaluators, in the same order as the threshold ids
+     * @param action the action to invoke
+     * @return the result of the action
+     */
+    public <T> T withState(String resourceKey, int[] thresholdIds, List<? extends ThresholdEvaluatorState> states, Supplier<T> action) {
+        final ThresholdStateSlots state = new ThresholdStateSlots(thresholdIds.length);
+        final Segment segment = getSegment(resourceKey);
+        synchronized (segment) {
+            segment.readSlots(resourceKey, thresholdIds, state, currentMinute());
+        }
+        for (int i = 0; i < thresholdIds.length; i++) {
+            if (states.get(i) instanceof AbstractThresholdEvaluatorState) {
+                ((AbstractThresholdEvaluatorState)states.get(i)).bind(state, i);
+            }
+        }
+        try {
+            return action.get();
+        } finally {
+            for (int i = 0; i < thresholdIds.length; i++) {
+                if (states.get(i) instanceof AbstractThresholdEvaluatorState) {
+                    ((AbstractThresholdEvaluatorState)states.get(i)).unbind();
+                }
+            }
+            synchronized (segment) {
+                segment.writeSlots(resourceKey, thresholdIds, state, currentMinute());
+            }
+        }
+    }
+
+    /**
+     * Records details of the given resource, which are written to the snapshot
+     * along with its state. They are merged with the details recorded previously,
+     * and are discarded along with the state of the resource.
+     *
+     * @param resourceKey the key of the resource, see {@link #getResourceKey(CollectionResourceWrapper)}
+     * @param details a {@link java.util.Map} object.
+     */
+    public void putResourceDetails(String resourceKey, Map<String, String> details) {
+        final Segment segment = getSegment(resourceKey);
+        synchronized (segment) {
+            segment.putResourceDetails(resourceKey, details);
+        }
+    }
+
+    /**
+     * Returns the details recorded for the resources whose key starts with the given prefix.
+     *
+     * @param resourceKeyPrefix see {@link #getResourceKeyPrefix(int, String, String)}
+     * @return the details, by resource key
+     */
+    public Map<String, Map<String, String>> getResourceDetails(String resourceKeyPrefix) {
+        final Map<String, Map<String, String>> details = new HashMap<>();
+        for (Segment segment : m_segments) {
+            synchronized (segment) {
+                for (Entry<String, Map<String, String>> entry : segment.m_resourceDetails.entrySet()) {
+                    if (entry.getKey().startsWith(resourceKeyPrefix)) {
+                        details.put(entry.getKey(), new HashMap<>(entry.getValue()));
+                    }
+                }
+            }
+        }
+        return details;
+    }
+
+    /**
+     * Discards the state of all of the resources.
+     */
+    public void clear() {
+        for (int i = 0; i < m_segments.length; i++) {
+            synchronized (m_segments[i]) {
+                m_segments[i].clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of slots in use
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : m_segments) {
+            synchronized (segment) {
+                size += segment.m_numSlots;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the state held by the store to the snapshot file, discarding any idle slots.
+     *
+     * The snapshot is written to a temporary file, which replaces the previous
+     * snapshot once it is complete.
+     *
+     * @throws java.io.IOException if the snapshot could not be written
+     */
+    public void snapshot() throws IOException {
+        if (m_file == null) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final int expiredBefore = currentMinute() - (int)TimeUnit.MILLISECONDS.toMinutes(m_maxIdle);
+        final Path tmpFile = m_file.resolveSibling(m_file.getFileName() + ".tmp");
+        if (m_file.getParent() != null) {
+            Files.createDirectories(m_file.getParent());
+        }
+
+        int numSlots = 0;
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedWriter writer = new MappedWriter(channel);
+            writer.ensure(4 + 4 + 4).putInt(MAGIC).putInt(VERSION);
+            final String[] thresholdKeys = getThresholdKeys();
+            writer.buffer().putInt(thresholdKeys.length);
+            for (String thresholdKey : thresholdKeys) {
+                writer.putString(thresholdKey);
+            }
+            for (Segment segment : m_segments) {
+                synchronized (segment) {
+                    segment.expire(expiredBefore);
+                    numSlots += segment.write(writer);
+                }
+            }
+            writer.ensure(4).putInt(END_OF_RESOURCES);
+            writer.finish();
+        }
+        Files.move(tmpFile, m_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.debug("snapshot: wrote the state of {} thresholds to {} in {}ms", numSlots, m_file, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Restores the state from the snapshot file, if there is one.
+     */
+    public void load() {
+        if (m_file == null || !Files.isRegularFile(m_file)) {
+            return;
+        }
+        int numSlots = 0;
+        try (FileChannel channel = FileChannel.open(m_file, StandardOpenOption.READ)) {
+            final MappedReader reader = new MappedReader(channel);
+            final ByteBuffer header = reader.ensure(4 + 4 + 4);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                LOG.warn("load: ignoring {} since it is not a threshold state snapshot of a supported version", m_file);
+                return;
+            }
+            final int numThresholds = header.getInt();
+            final int[] thresholdIds = new int[numThresholds];
+            for (int i = 0; i < numThresholds; i++) {
+                thresholdIds[i] = getThresholdId(reader.getString());
+            }
+            while (true) {
+                final String resourceKey = reader.getString();
+                if (resourceKey == null) {
+                    break;
+                }
+                final int numDetails = reader.ensure(4).getInt();
+                final Map<String, String> details = new HashMap<>();
+                for (int i = 0; i < numDetails; i++) {
+                    details.put(reader.getString(), reader.getString());
+                }
+                final int count = reader.ensure(4).getInt();
+                final Segment segment = getSegment(resourceKey);
+                synchronized (segment) {
+                    final int resourceId = segment.getOrCreateResource(resourceKey);
+                    if (!details.isEmpty()) {
+                        segment.putResourceDetails(resourceKey, details);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        final ByteBuffer record = reader.ensure(SLOT_RECORD_SIZE);
+                        final int slot = segment.getOrCreateSlot(resourceId, thresholdIds[record.getInt()]);
+                        segment.m_slots.setLastValue(slot, record.getDouble());
+                        segment.m_slots.setPreviousValue(slot, record.getDouble());
+                        segment.m_slots.setCount(slot, record.getInt());
+                        segment.m_slots.setFlags(slot, record.get());
+                        segment.m_slots.setLastUpdated(slot, record.getInt());
+                        numSlots++;
+                    }
+                }
+            }
+            LOG.info("load: restored the state of {} thresholds from {}", numSlots, m_file);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("load: failed to restore the threshold state from {}. Restored {} thresholds before the failure.", m_file, numSlots, e);
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Throwable t) {
+            LOG.warn("Failed to write the threshold state snapshot to {}", m_file, t);
+        }
+    }
+
+    private Segment getSegment(String resourceKey) {
+        int h = resourceKey.hashCode();
+        h ^= (h >>> 16);
+        return m_segments[Math.floorMod(h, m_segments.length)];
+    }
+
+    private static int currentMinute() {
+        return (int)TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    private static long slotKey(int resourceId, int thresholdId) {
+        return ((long)resourceId << 32) | (thresholdId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A group of resources along with the slots holding the state of their thresholds.
+     *
+     * The slots of a resource are chained together through {@link #m_nextSlot}
+     * starting at {@link #m_firstSlot}, so that they can be enumerated without
+     * scanning the whole segment.
+     */
+    private static class Segment {
+        private ThresholdStateSlots m_slots;
+        private SlotIndex m_index;
+        private long[] m_slotKeys;
+        private int[] m_nextSlot;
+        private int m_numSlots;
+        private int m_highWaterMark;
+        private int m_freeSlot;
+
+        private final Map<String, Integer> m_resourceIds = new HashMap<>();
+        private String[] m_resourceKeys;
+        private int[] m_firstSlot;
+        private int m_resourceHighWaterMark;
+        private int m_freeResource;
+
+        // Only recorded for the few resources that need it, see ThresholdStateStore#putResourceDetails
+        private final Map<String, Map<String, String>> m_resourceDetails = new HashMap<>();
+
+        private final int m_initialCapacity;
+
+        private Segment(int initialCapacity) {
+            m_initialCapacity = initialCapacity;
+            clear();
+        }
+
+        private void clear() {
+            m_slots = new ThresholdStateSlots(m_initialCapacity);
+            m_index = new SlotIndex(m_initialCapacity * 2);
+            m_slotKeys = new long[m_initialCapacity];
+            m_nextSlot = new int[m_initialCapacity];
+            m_numSlots = 0;
+            m_highWaterMark = 0;
+            m_freeSlot = NO_SLOT;
+
+            m_resourceIds.clear();
+            m_resourceKeys = new String[m_initialCapacity];
+            m_firstSlot = new int[m_initialCapacity];
+            m_resourceHighWaterMark = 0;
+            m_freeResource = NO_SLOT;
+            m_resourceDetails.clear();
+        }
+
+        /**
+         * Copies the state of the given thresholds for the resource to the given slots,
+         * reserving the slots of the thresholds that have no state yet.
+         */
+        private void readSlots(String resourceKey, int[] thresholdIds, ThresholdStateSlots state, int now) {
+            final int resourceId = getOrCreateResource(resourceKey);
+            for (int i = 0; i < thresholdIds.length; i++) {
+                final int slot = getOrCreateSlot(resourceId, thresholdIds[i]);
+                m_slots.setLastUpdated(slot, now);
+                m_slots.copy(slot, state, i);
+            }
+        }
+
+        /**
+         * Copies the given slots back to the state of the thresholds for the resource.
+         * The slots are reserved again if they have been discarded in the meantime.
+         */
+        private void writeSlots(String resourceKey, int[] thresholdIds, ThresholdStateSlots state, int now) {
+            final int resourceId = getOrCreateResource(resourceKey);
+            for (int i = 0; i < thresholdIds.length; i++) {
+                final int slot = getOrCreateSlot(resourceId, thresholdIds[i]);
+                state.copy(i, m_slots, slot);
+                m_slots.setLastUpdated(slot, now);
+            }
+        }
+
+        private void putResourceDetails(String resourceKey, Map<String, String> details) {
+            if (!m_resourceIds.containsKey(resourceKey)) {
+                return;
+            }
+            final Map<String, String> existing = m_resourceDetails.get(resourceKey);
+            if (existing == null) {
+                m_resourceDetails.put(resourceKey, new HashMap<>(details));
+            } else {
+                existing.putAll(details);
+            }
+        }
+
+        private int getOrCreateResource(String resourceKey) {
+            final Integer id = m_resourceIds.get(resourceKey);
+            if (id != null) {
+                return id;
+            }
+            final int resourceId;
+            if (m_freeResource != NO_SLOT) {
+                resourceId = m_freeResource;
+                // Free resources are chained through their first slot
+                m_freeResource = m_firstSlot[resourceId];
+            } else {
+                resourceId = m_resourceHighWaterMark++;
+                if (resourceId == m_resourceKeys.length) {
+                    m_resourceKeys = Arrays.copyOf(m_resourceKeys, resourceId * 2);
+                    m_firstSlot = Arrays.copyOf(m_firstSlot, resourceId * 2);
+                }
+            }
+            m_resourceKeys[resourceId] = resourceKey;
+            m_firstSlot[resourceId] = NO_SLOT;
+            m_resourceIds.put(resourceKey, resourceId);
+            return resourceId;
+        }
+
+        private int getOrCreateSlot(int resourceId, int thresholdId) {
+            final long key = slotKey(resourceId, thresholdId);
+            int slot = m_index.get(key);
+            if (slot != NO_SLOT) {
+                return slot;
+            }
+            if (m_freeSlot != NO_SLOT) {
+                slot = m_freeSlot;
+                m_freeSlot = m_nextSlot[slot];
+            } else {
+                slot = m_highWaterMark++;
+                if (slot == m_slots.capacity()) {
+                    m_slots.grow(slot * 2);
+                    m_slotKeys = Arrays.copyOf(m_slotKeys, slot * 2);
+                    m_nextSlot = Arrays.copyOf(m_nextSlot, slot * 2);
+                }
+            }
+            m_slots.clear(slot);
+            m_slotKeys[slot] = key;
+            m_nextSlot[slot] = m_firstSlot[resourceId];
+            m_firstSlot[resourceId] = slot;
+            m_index.put(key, slot);
+            m_numSlots++;
+            return slot;
+        }
+
+        /**
+         * Releases the slots that have not been used since the given minute,
+         * along with the resources that are left without any slots.
+         */
+        private void expire(int expiredBefore) {
+            for (int resourceId = 0; resourceId < m_resourceHighWaterMark; resourceId++) {
+                if (m_resourceKeys[resourceId] == null) {
+                    continue;
+                }
+                int previous = NO_SLOT;
+                int slot = m_firstSlot[resourceId];
+                while (slot != NO_SLOT) {
+                    final int next = m_nextSlot[slot];
+                    if (m_slots.getLastUpdated(slot) < expiredBefore) {
+                        if (previous == NO_SLOT) {
+                            m_firstSlot[resourceId] = next;
+                        } else {
+                            m_nextSlot[previous] = next;
+                        }
+                        m_index.remove(m_slotKeys[slot]);
+                        m_slots.clear(slot);
+                        m_nextSlot[slot] = m_freeSlot;
+                        m_freeSlot = slot;
+                        m_numSlots--;
+                    } else {
+                        previous = slot;
+                    }
+                    slot = next;
+                }
+                if (m_firstSlot[resourceId] == NO_SLOT) {
+                    m_resourceIds.remove(m_resourceKeys[resourceId]);
+                    m_resourceDetails.remove(m_resourceKeys[resourceId]);
+                    m_resourceKeys[resourceId] = null;
+                    m_firstSlot[resourceId] = m_freeResource;
+                    m_freeResource = resourceId;
+                }
+            }
+        }
+
+        /**
+         * @return the number of slots written
+         */
+        private int write(MappedWriter writer) throws IOException {
+            int numSlots = 0;
+            for (int resourceId = 0; resourceId < m_resourceHighWaterMark; resourceId++) {
+                if (m_resourceKeys[resourceId] == null) {
+                    continue;
+                }
+                int count = 0;
+                for (int slot = m_firstSlot[resourceId]; slot != NO_SLOT; slot = m_nextSlot[slot]) {
+                    count++;
+                }
+                writer.putString(m_resourceKeys[resourceId]);
+                final Map<String, String> details = m_resourceDetails.getOrDefault(m_resourceKeys[resourceId], Collections.emptyMap());
+                writer.ensure(4).putInt(details.size());
+                for (Entry<String, String> entry : details.entrySet()) {
+                    writer.putString(entry.getKey());
+                    writer.putString(entry.getValue());
+                }
+                writer.ensure(4).putInt(count);
+                for (int slot = m_firstSlot[resourceId]; slot != NO_SLOT; slot = m_nextSlot[slot]) {
+                    writer.ensure(SLOT_RECORD_SIZE)
+                        .putInt((int)m_slotKeys[slot])
+                        .putDouble(m_slots.getLastValue(slot))
+                        .putDouble(m_slots.getPreviousValue(slot))
+                        .putInt(m_slots.getCount(slot))
+                        .put(m_slots.getFlags(slot))
+                        .putInt(m_slots.getLastUpdated(slot));
+                }
+                numSlots += count;
+            }
+            return numSlots;
+        }
+    }
+
+    /**
+     * Open addressing hash table from slot keys to slots, so that we don't need to
+     * box the keys. Slot keys are never negative, since resource ids are not.
+     */
+    private static class SlotIndex {
+        private static final long EMPTY = -1L;
+
+        private long[] m_keys;
+        private int[] m_values;
+        private int m_size = 0;
+
+        private SlotIndex(int capacity) {
+            m_keys = new long[capacity];
+            m_values = new int[capacity];
+            Arrays.fill(m_keys, EMPTY);
+        }
+
+        private int indexFor(long key, int length) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h >>> 32) & (length - 1);
+        }
+
+        private int get(long key) {
+            final int mask = m_keys.length - 1;
+            for (int i = indexFor(key, m_keys.length); ; i = (i + 1) & mask) {
+                if (m_keys[i] == key) {
+                    return m_values[i];
+                } else if (m_keys[i] == EMPTY) {
+                    return NO_SLOT;
+                }
+            }
+        }
+
+        private void put(long key, int value) {
+            if ((m_size + 1) * 2 > m_keys.length) {
+                resize(m_keys.length * 2);
+            }
+            final int mask = m_keys.length - 1;
+            for (int i = indexFor(key, m_keys.length); ; i = (i + 1) & mask) {
+                if (m_keys[i] == EMPTY) {
+                    m_keys[i] = key;
+                    m_values[i] = value;
+                    m_size++;
+                    return;
+                } else if (m_keys[i] == key) {
+                    m_values[i] = value;
+                    return;
+                }
+            }
+        }
+
+        private void remove(long key) {
+            final int mask = m_keys.length - 1;
+            int i = indexFor(key, m_keys.length);
+            while (m_keys[i] != key) {
+                if (m_keys[i] == EMPTY) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            m_size--;
+            // Shift back the entries that follow so that lookups don't stop at the hole
+            int hole = i;
+            for (int j = (i + 1) & mask; m_keys[j] != EMPTY; j = (j + 1) & mask) {
+                final int home = indexFor(m_keys[j], m_keys.length);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    m_keys[hole] = m_keys[j];
+                    m_values[hole] = m_values[j];
+                    hole = j;
+                }
+            }
+            m_keys[hole] = EMPTY;
+        }
+
+        private void resize(int capacity) {
+            final long[] keys = m_keys;
+            final int[] values = m_values;
+            m_keys = new long[capacity];
+            m_values = new int[capacity];
+            Arrays.fill(m_keys, EMPTY);
+            m_size = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to a file through a sliding window of memory mappings, so that
+     * the snapshot is not limited by the size of a single mapping.
+     */
+    private static class MappedWriter {
+        private final FileChannel m_channel;
+        private long m_offset = 0;
+        private MappedByteBuffer m_buffer;
+
+        private MappedWriter(FileChannel channel) throws IOException {
+            m_channel = Objects.requireNonNull(channel);
+            m_buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAPPING_WINDOW);
+        }
+
+        private ByteBuffer buffer() {
+            return m_buffer;
+        }
+
+        private ByteBuffer ensure(int length) throws IOException {
+            if (m_buffer.remaining() < length) {
+                m_buffer.force();
+                m_offset += m_buffer.position();
+                m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, m_offset, Math.max(MAPPING_WINDOW, length));
+            }
+            return m_buffer;
+        }
+
+        private void putString(String value) throws IOException {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+        }
+
+        private void finish() throws IOException {
+            m_buffer.force();
+            m_channel.truncate(m_offset + m_buffer.position());
+        }
+    }
+
+    private static class MappedReader {
+        private final FileChannel m_channel;
+        private final long m_size;
+        private long m_offset = 0;
+        private MappedByteBuffer m_buffer;
+
+        private MappedReader(FileChannel channel) throws IOException {
+            m_channel = Objects.requireNonNull(channel);
+            m_size = channel.size();
+            m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(MAPPING_WINDOW, m_size));
+        }
+
+        private ByteBuffer ensure(int length) throws IOException {
+            if (m_buffer.remaining() < length) {
+                m_offset += m_buffer.position();
+                if (m_offset + length > m_size) {
+                    throw new IOException("Unexpected end of snapshot at offset " + m_offset);
+                }
+                m_buffer = m_channel.map(FileChannel.MapMode.READ_ONLY, m_offset, Math.min(Math.max(MAPPING_WINDOW, length), m_size - m_offset));
+            }
+            return m_buffer;
+        }
+
+        /**
+         * @return the next string, or null if the end of the list of resources was reached
+         */
+        private String getString() throws IOException {
+            final int length = ensure(4).getInt();
+            if (length == END_OF_RESOURCES) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            ensure(length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -70,6 +70,7 @@ public class ThresholdingSet {
     protected final String m_hostAddress;
     protected final String m_serviceName;
     protected final RrdRepository m_repository;
+    protected final ThresholdStateStore m_thresholdStateStore;
 
     protected ThresholdsDao m_thresholdsDao;
 
@@ -79,6 +80,9 @@ public class ThresholdingSet {
     protected final List<ThresholdGroup> m_thresholdGroups = new LinkedList<>();
     protected final List<String> m_scheduledOutages = new ArrayList<>();
 
+    // Holds the values of the datasources of the threshold being evaluated
+    private double[] m_valuesBuffer = new double[8];
+
     /**
      * <p>Constructor for ThresholdingSet.</p>
      *
@@ -89,10 +93,24 @@ public class ThresholdingSet {
      * @param interval a long.
      */
     public ThresholdingSet(int nodeId, String hostAddress, String serviceName, RrdRepository repository) {
+        this(nodeId, hostAddress, serviceName, repository, null);
+    }
+
+    /**
+     * <p>Constructor for ThresholdingSet.</p>
+     *
+     * @param nodeId a int.
+     * @param hostAddress a {@link java.lang.String} object.
+     * @param serviceName a {@link java.lang.String} object.
+     * @param repository a {@link org.opennms.netmgt.rrd.RrdRepository} object.
+     * @param thresholdStateStore the store holding the state of the thresholds, or null to keep the state in a store of its own
+     */
+    public ThresholdingSet(int nodeId, String hostAddress, String serviceName, RrdRepository repository, ThresholdStateStore thresholdStateStore) {
         m_nodeId = nodeId;
         m_hostAddress = (hostAddress == null ? null : hostAddress.intern());
         m_serviceName = (serviceName == null ? null : serviceName.intern());
         m_repository = repository;
+        m_thresholdStateStore = thresholdStateStore != null ? thresholdStateStore : new ThresholdStateStore();
         initThresholdsDao();
         initialize();
     }
@@ -119,10 +137,29 @@ public class ThresholdingSet {
                 }
             }
             m_hasThresholds = !m_thresholdGroups.isEmpty();
+            if (m_thresholdStateStore.isPersistent()) {
+                restoreTriggeredResources();
+            }
         }
         updateScheduledOutages();
     }
 
+    private void restoreTriggeredResources() {
+        final String resourceKeyPrefix = ThresholdStateStore.getResourceKeyPrefix(m_nodeId, m_hostAddress, m_serviceName);
+        for (ThresholdGroup group : m_thresholdGroups) {
+            final List<ThresholdResourceType> types = new ArrayList<>(group.getGenericResourceTypeMap().values());
+            types.add(group.getNodeResourceType());
+            types.add(group.getIfResourceType());
+            for (ThresholdResourceType type : types) {
+                for (Set<ThresholdEntity> entities : type.getThresholdMap().values()) {
+                    for (ThresholdEntity entity : entities) {
+                        entity.restoreTriggeredResources(resourceKeyPrefix);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * <p>reinitialize</p>
      */
@@ -279,22 +316,31 @@ public class ThresholdingSet {
                             if (passedThresholdFilters(resourceWrapper, thresholdEntity)) {
                                 LOG.info("applyThresholds: Processing threshold {} : {} on resource {}", key, thresholdEntity, resourceWrapper);
                                 Collection<String> requiredDatasources = thresholdEntity.getThresholdConfig().getRequiredDatasources();
-                                final Map<String, Double> values = new HashMap<String,Double>();
+                                final double[] values = getValuesBuffer(requiredDatasources.size());
                                 boolean valueMissing = false;
                                 boolean relaxed = thresholdEntity.getThresholdConfig().getBasethresholddef().getRelaxed();
+                                // The missing values are only passed on in relaxed mode, which requires the values by name
+                                final Map<String, Double> relaxedValues = relaxed ? new HashMap<String,Double>() : null;
+                                int i = 0;
                                 for(final String ds : requiredDatasources) {
                                     final Double dsValue = resourceWrapper.getAttributeValue(ds);
                                     if(dsValue == null) {
                                         LOG.info("applyThresholds: Could not get data source value for '{}', {}", ds, (relaxed ? "but the expression will be evaluated (relaxed mode enabled)" : "not evaluating threshold"));
                                         valueMissing = true;
+                                    } else {
+                                        values[i] = dsValue;
                                     }
-                                    values.put(ds,dsValue);
+                                    if (relaxedValues != null) {
+                                        relaxedValues.put(ds,dsValue);
+                                    }
+                                    i++;
                                 }
                                 if(!valueMissing || relaxed) {
                                     LOG.info("applyThresholds: All attributes found for {}, evaluating", resourceWrapper);
                                     resourceWrapper.setDsLabel(thresholdEntity.getDatasourceLabel());
                                     try {
-                                        List<Event> thresholdEvents = thresholdEntity.evaluateAndCreateEvents(resourceWrapper, values, date);
+                                        List<Event> thresholdEvents = valueMissing ? thresholdEntity.evaluateAndCreateEvents(resourceWrapper, relaxedValues, date)
+                                                : thresholdEntity.evaluateAndCreateEvents(resourceWrapper, values, date);
                                         eventsList.addAll(thresholdEvents);
                                     } catch (Exception e) {
                                         LOG.warn("applyThresholds: Can't evaluate {} on {} because {}", key, resourceWrapper, e.getMessage());
@@ -311,6 +357,17 @@ public class ThresholdingSet {
         return eventsList;
     }
 
+    /**
+     * Returns a buffer holding at least the given number of values, reused across evaluations.
+     * Must be called while holding the lock on m_thresholdGroups.
+     */
+    private double[] getValuesBuffer(int size) {
+        if (m_valuesBuffer.length < size) {
+            m_valuesBuffer = new double[size];
+        }
+        return m_valuesBuffer;
+    }
+
     /**
      * <p>passedThresholdFilters</p>
      *
@@ -371,6 +428,7 @@ public class ThresholdingSet {
             LOG.debug("initThresholdsDao: Initializing Factories and DAOs");
             m_initialized = true;
             DefaultThresholdsDao defaultThresholdsDao = new DefaultThresholdsDao();
+            defaultThresholdsDao.setThresholdStateStore(m_thresholdStateStore);
             try {
                 ThresholdingConfigFactory.init();
                 defaultThresholdsDao.setThresholdingConfigFactory(ThresholdingConfigFactory.getInstance());
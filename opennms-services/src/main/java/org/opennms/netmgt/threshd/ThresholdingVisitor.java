@@ -98,6 +98,22 @@ public class ThresholdingVisitor extends AbstractCollectionSetVisitor {
      * @return a {@link org.opennms.netmgt.threshd.ThresholdingVisitor} object.
      */
     public static ThresholdingVisitor create(int nodeId, String hostAddress, String serviceName, RrdRepository repo, ServiceParameters svcParams, ResourceStorageDao resourceStorageDao) {
+        return create(nodeId, hostAddress, serviceName, repo, svcParams, resourceStorageDao, null);
+    }
+
+    /**
+     * Static method create must be used to create new ThresholdingVisitor instance.
+     * Is static because successful creation depends on thresholding-enabled parameter.
+     *
+     * @param nodeId a int.
+     * @param hostAddress a {@link java.lang.String} object.
+     * @param serviceName a {@link java.lang.String} object.
+     * @param repo a {@link org.opennms.netmgt.rrd.RrdRepository} object.
+     * @param svcParams a {@link org.opennms.netmgt.collection.api.ServiceParameters} object.
+     * @param thresholdStateStore the store holding the state of the thresholds, or null to use a store of its own
+     * @return a {@link org.opennms.netmgt.threshd.ThresholdingVisitor} object.
+     */
+    public static ThresholdingVisitor create(int nodeId, String hostAddress, String serviceName, RrdRepository repo, ServiceParameters svcParams, ResourceStorageDao resourceStorageDao, ThresholdStateStore thresholdStateStore) {
 
         String enabled = ParameterMap.getKeyedString(svcParams.getParameters(), "thresholding-enabled", null);
         if (enabled != null && !"true".equals(enabled)) {
@@ -105,7 +121,7 @@ public class ThresholdingVisitor extends AbstractCollectionSetVisitor {
             return null;
         }
 
-        CollectorThresholdingSet thresholdingSet = new CollectorThresholdingSet(nodeId, hostAddress, serviceName, repo, svcParams, resourceStorageDao);
+        CollectorThresholdingSet thresholdingSet = new CollectorThresholdingSet(nodeId, hostAddress, serviceName, repo, svcParams, resourceStorageDao, thresholdStateStore);
         if (!thresholdingSet.hasThresholds()) {
             LOG.warn("create: the ipaddress/service {}/{} on node {} has no configured thresholds.", hostAddress, serviceName, nodeId);
         }
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rtc.datablock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.config.categories.Category;
+
+public class RTCCategoryTest {
+
+    private static final long ROLLING_WINDOW = 24L * 60L * 60L * 1000L;
+
+    private static final double DELTA = 0.000001;
+
+    @Test
+    public void canCalculateCategoryAndNodeValues() {
+        final long now = System.currentTimeMillis();
+        final RTCHashMap map = new RTCHashMap(30000);
+        final RTCCategory cat = createCategory("Web Servers");
+        final RTCNode http = addService(map, cat, 1, "HTTP");
+        addService(map, cat, 1, "ICMP");
+        final RTCNode ssh = addService(map, cat, 2, "SSH");
+
+        assertEquals(100.0, cat.getValue(map, now, ROLLING_WINDOW), DELTA);
+        assertEquals(3, cat.getServiceCount());
+        assertEquals(2, cat.getServiceCount(1));
+        assertEquals(1, cat.getServiceCount(2));
+        assertEquals(0, cat.getServiceCount(3));
+
+        // 30 minutes of down time on node 1
+        http.addSvcTime(now - 60 * 60 * 1000, now - 30 * 60 * 1000);
+        cat.serviceOutageChanged(http);
+        // and an outage that is still ongoing on node 2
+        ssh.nodeLostService(now - 15 * 60 * 1000);
+        cat.serviceOutageChanged(ssh);
+
+        // The services are weighed by the number of keys of their node: the node, its
+        // interface and its services, that is 4 for node 1 and 3 for node 2
+        assertEquals(4, map.getKeyCount(1));
+        assertEquals(3, map.getKeyCount(2));
+        assertEquals(100.0 * (1.0 - (4 * 30.0 + 3 * 15.0) * 60 * 1000 / (ROLLING_WINDOW * (4 * 2 + 3 * 1))), cat.getValue(map, now, ROLLING_WINDOW), DELTA);
+        assertEquals(100.0 * (1.0 - (30.0 * 60 * 1000) / (ROLLING_WINDOW * 2)), cat.getValue(1, now, ROLLING_WINDOW), DELTA);
+        assertEquals(100.0 * (1.0 - (15.0 * 60 * 1000) / ROLLING_WINDOW), cat.getValue(2, now, ROLLING_WINDOW), DELTA);
+        assertEquals(0, cat.getServiceDownCount(1));
+        assertEquals(1, cat.getServiceDownCount(2));
+
+        // Once the window has moved past the first outage, only the ongoing one counts
+        final long later = now + ROLLING_WINDOW;
+        assertEquals(100.0, cat.getValue(1, later, ROLLING_WINDOW), DELTA);
+        assertEquals(100.0 * (1.0 - 3 * ROLLING_WINDOW / (ROLLING_WINDOW * 11.0)), cat.getValue(map, later, ROLLING_WINDOW), DELTA);
+    }
+
+    @Test
+    public void canDeleteServicesAndNodes() {
+        final long now = System.currentTimeMillis();
+        final RTCHashMap map = new RTCHashMap(30000);
+        final RTCCategory cat = createCategory("Servers");
+        final RTCNode http = addService(map, cat, 1, "HTTP");
+        final RTCNode icmp = addService(map, cat, 1, "ICMP");
+        final RTCNode ssh = addService(map, cat, 2, "SSH");
+        ssh.nodeLostService(now - 60 * 60 * 1000);
+        cat.serviceOutageChanged(ssh);
+
+        // The node remains in the category until its last service is deleted
+        cat.deleteService(http);
+        map.delete(http);
+        // The key of the interface is kept
+        assertEquals(3, map.getKeyCount(1));
+        assertTrue(cat.getNodes().contains(1));
+        assertEquals(2, cat.getServiceCount());
+        cat.deleteService(icmp);
+        assertEquals(false, cat.getNodes().contains(1));
+        assertEquals(1, cat.getServiceCount());
+
+        cat.deleteNode(2);
+        assertTrue(cat.getNodes().isEmpty());
+        assertEquals(0, cat.getServiceCount());
+        assertEquals(100.0, cat.getValue(map, now, ROLLING_WINDOW), DELTA);
+    }
+
+    /**
+     * Calculates the value of every category while outages are being added
+     * to the services of 100k nodes spread across 2000 categories.
+     */
+    @Test
+    @Ignore
+    public void getValuePerfTest() throws InterruptedException {
+        final int numNodes = 100000;
+        final int numCategories = 2000;
+        final int categoriesPerNode = 5;
+        final int servicesPerNode = 4;
+        final Random random = new Random(42);
+
+        final RTCHashMap map = new RTCHashMap(30000);
+        final List<RTCCategory> categories = new ArrayList<>(numCategories);
+        for (int k = 0; k < numCategories; k++) {
+            categories.add(createCategory("Category " + k));
+        }
+        final List<RTCNode> services = new ArrayList<>(numNodes * servicesPerNode);
+        for (int nodeid = 1; nodeid <= numNodes; nodeid++) {
+            for (int k = 0; k < servicesPerNode; k++) {
+                final RTCNode service = new RTCNode(nodeid, InetAddressUtils.addr("10.0.0.1"), "SVC" + k, ROLLING_WINDOW);
+                map.add(service);
+                for (int j = 0; j < categoriesPerNode; j++) {
+                    addService(categories.get(random.nextInt(numCategories)), service);
+                }
+                services.add(service);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Thread writer = new Thread(() -> {
+            final Random r = new Random(43);
+            long numOutages = 0;
+            final long start = System.currentTimeMillis();
+            while (!done.get()) {
+                final RTCNode service = services.get(r.nextInt(services.size()));
+                synchronized (service) {
+                    if (service.isServiceCurrentlyDown()) {
+                        service.nodeRegainedService(now);
+                    } else {
+                        service.nodeLostService(now - r.nextInt(60 * 60 * 1000));
+                    }
+                }
+                for (String label : service.getCategories()) {
+                    categories.get(Integer.parseInt(label.substring("Category ".length()))).serviceOutageChanged(service);
+                }
+                numOutages++;
+            }
+            System.err.printf("outage updates/s: %.0f%n", numOutages * 1000.0 / Math.max(1, System.currentTimeMillis() - start));
+        });
+        writer.start();
+
+        final int numRounds = 10;
+        final long start = System.currentTimeMillis();
+        for (int round = 0; round < numRounds; round++) {
+            for (RTCCategory cat : categories) {
+                cat.getValue(map, now, ROLLING_WINDOW);
+                for (Integer nodeid : cat.getNodes()) {
+                    cat.getValue(nodeid, now, ROLLING_WINDOW);
+                    cat.getServiceCount(nodeid);
+                    cat.getServiceDownCount(nodeid);
+                }
+            }
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+        done.set(true);
+        writer.join();
+        System.err.printf("elapsed per round of %d categories: %d ms%n", numCategories, elapsed / numRounds);
+    }
+
+    private static RTCCategory createCategory(String label) {
+        final Category category = new Category();
+        category.setLabel(label);
+        category.setComment(label);
+        category.setRule("IPADDR != '0.0.0.0'");
+        category.setNormalThreshold(99.0);
+        category.setWarningThreshold(97.0);
+        return new RTCCategory(category, "IPADDR != '0.0.0.0'");
+    }
+
+    private static RTCNode addService(RTCHashMap map, RTCCategory cat, int nodeid, String svcName) {
+        final RTCNode service = new RTCNode(nodeid, InetAddressUtils.addr("10.0.0.1"), svcName, ROLLING_WINDOW);
+        map.add(service);
+        return addService(cat, service);
+    }
+
+    private static RTCNode addService(RTCCategory cat, RTCNode service) {
+        service.addCategory(cat.getLabel());
+        cat.addNode(service);
+        return service;
+    }
+}
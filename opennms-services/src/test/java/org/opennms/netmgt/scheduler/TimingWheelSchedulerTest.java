@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelSchedulerTest {
+
+    private TimingWheelScheduler m_scheduler;
+
+    @Before
+    public void setUp() {
+        m_scheduler = new TimingWheelScheduler("Test", 4, 10, 100);
+        m_scheduler.start();
+    }
+
+    @After
+    public void tearDown() {
+        m_scheduler.stop();
+    }
+
+    @Test(timeout=30000)
+    public void canRunRunnablesNoEarlierThanTheirDeadline() throws InterruptedException {
+        final int numRunnables = 200;
+        final CountDownLatch latch = new CountDownLatch(numRunnables);
+        final List<Long> earlyBy = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < numRunnables; i++) {
+            // Spread the deadlines so that some of them land in the upper levels of the wheel
+            final long interval = i * 20;
+            final long deadline = System.currentTimeMillis() + interval;
+            m_scheduler.schedule(interval, new ReadyRunnable() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void run() {
+                    final long now = System.currentTimeMillis();
+                    if (now < deadline) {
+                        earlyBy.add(deadline - now);
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(20, TimeUnit.SECONDS));
+        assertEquals(Collections.emptyList(), earlyBy);
+        // The counter is incremented after the runnable is handed to the pool, so it may lag behind the latch
+        await().atMost(10, TimeUnit.SECONDS).until(() -> m_scheduler.getNumTasksExecuted(), equalTo((long)numRunnables));
+        assertEquals(0, m_scheduler.getScheduled());
+        assertEquals(numRunnables, m_scheduler.getMetrics().histogram("Test.lateness").getCount());
+    }
+
+    /**
+     * Uses a simulated clock to schedule runnables far enough in the future
+     * to land in every level of the wheel, and verifies that they are cascaded
+     * down and run at their deadline.
+     */
+    @Test(timeout=60000)
+    public void canRunRunnablesFromEveryLevelOfTheWheel() throws InterruptedException {
+        final long tickMs = 10;
+        final AtomicLong clock = new AtomicLong(1234567);
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler("LongDeadlines", 1, tickMs, 100) {
+            @Override
+            public long getCurrentTime() {
+                return clock.get();
+            }
+        };
+        scheduler.start();
+        try {
+            // One interval for each of the upper levels: 300 ticks, 70000 ticks and 20M ticks
+            final long[] intervals = new long[] { 300 * tickMs, 70000 * tickMs, 20000000L * tickMs };
+            final List<Long> earlyBy = Collections.synchronizedList(new ArrayList<>());
+            final List<CountDownLatch> latches = new ArrayList<>();
+            final long start = clock.get();
+            for (long interval : intervals) {
+                final long deadline = start + interval;
+                final CountDownLatch latch = new CountDownLatch(1);
+                latches.add(latch);
+                scheduler.schedule(interval, new ReadyRunnable() {
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void run() {
+                        final long now = clock.get();
+                        if (now < deadline) {
+                            earlyBy.add(deadline - now);
+                        }
+                        latch.countDown();
+                    }
+                });
+            }
+
+            for (int i = 0; i < intervals.length; i++) {
+                // Stop just short of the deadline, and give the wheel time to catch up
+                clock.set(start + intervals[i] - 1);
+                assertFalse(latches.get(i).await(500, TimeUnit.MILLISECONDS));
+
+                // Deadlines are rounded up to the next tick
+                clock.set(start + intervals[i] + tickMs);
+                assertTrue(latches.get(i).await(20, TimeUnit.SECONDS));
+            }
+
+            assertEquals(Collections.emptyList(), earlyBy);
+            await().atMost(10, TimeUnit.SECONDS).until(() -> scheduler.getNumTasksExecuted(), equalTo((long)intervals.length));
+            assertEquals(0, scheduler.getScheduled());
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test(timeout=30000)
+    public void canPostponeRunnablesThatAreNotReady() throws InterruptedException {
+        final AtomicInteger numChecks = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_scheduler.schedule(0, new ReadyRunnable() {
+            @Override
+            public boolean isReady() {
+                return numChecks.incrementAndGet() > 3;
+            }
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(4, numChecks.get());
+        assertEquals(3, m_scheduler.getMetrics().counter("Test.postponed").getCount());
+    }
+}
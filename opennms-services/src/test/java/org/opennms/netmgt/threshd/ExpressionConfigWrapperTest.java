@@ -171,4 +171,70 @@ public class ExpressionConfigWrapperTest {
         values.put("ifSpeed", 10.0);
         Assert.assertEquals(160.0, wrapper.evaluate(values), 0.0);
     }
+
+    @Test
+    public void testCompiledExpression() throws Exception {
+        Assert.assertTrue(wrapper.isCompiled());
+        Map<String, Double> values = new HashMap<String,Double>();
+        values.put("ifInOctets", 200000.0);
+        values.put("ifSpeed", 10000000.0);
+        values.put("ifHCInOctets", 20000000.0);
+        values.put("ifHighSpeed", 1000.0);
+        Assert.assertEquals(16.0, wrapper.evaluate(toArray(wrapper, values)), 0.0);
+        values.put("ifSpeed", 0.0);
+        Assert.assertEquals(16.0, wrapper.evaluate(toArray(wrapper, values)), 0.0);
+        values.put("ifHighSpeed", 0.0);
+        Assert.assertEquals(0.0, wrapper.evaluate(toArray(wrapper, values)), 0.0);
+    }
+
+    @Test
+    public void testCompiledExpressionMatchesJexl() throws Exception {
+        Expression exp = new Expression();
+        // Real literals are floats in JEXL
+        exp.setExpression("-ifInOctets * 0.1 + math.sqrt(datasources['ifSpeed']) % 3.3");
+        ExpressionConfigWrapper wrapper = new ExpressionConfigWrapper(exp);
+        Assert.assertTrue(wrapper.isCompiled());
+        Map<String, Double> values = new HashMap<String,Double>();
+        values.put("ifInOctets", 123.456);
+        values.put("ifSpeed", 98765.4321);
+        final double expected = -123.456 * ((double)0.1f) + Math.sqrt(98765.4321) % ((double)3.3f);
+        Assert.assertEquals(expected, wrapper.evaluate(values), 0.0);
+        Assert.assertEquals(expected, wrapper.evaluate(toArray(wrapper, values)), 0.0);
+    }
+
+    @Test
+    public void testUncompiledExpressions() throws Exception {
+        for (String expression : new String[] { "math.max(data, 5)", "data == 2.0 ? 1.0 : 0.0", "data * 8 / (1 + 1)" }) {
+            Expression exp = new Expression();
+            exp.setExpression(expression);
+            ExpressionConfigWrapper wrapper = new ExpressionConfigWrapper(exp);
+            Assert.assertFalse(expression, wrapper.isCompiled());
+        }
+
+        Expression exp = new Expression();
+        exp.setExpression("data * 8 / (1 + 1)");
+        ExpressionConfigWrapper wrapper = new ExpressionConfigWrapper(exp);
+        Assert.assertEquals(40.0, wrapper.evaluate(new double[] { 10.0 }), 0.0);
+    }
+
+    @Test(expected=ThresholdExpressionException.class)
+    public void testCompiledDivisionByZero() throws Exception {
+        Expression exp = new Expression();
+        exp.setExpression("ifInOctets / ifSpeed");
+        ExpressionConfigWrapper wrapper = new ExpressionConfigWrapper(exp);
+        Assert.assertTrue(wrapper.isCompiled());
+        Map<String, Double> values = new HashMap<String,Double>();
+        values.put("ifInOctets", 200000.0);
+        values.put("ifSpeed", 0.0);
+        wrapper.evaluate(toArray(wrapper, values));
+    }
+
+    private static double[] toArray(ExpressionConfigWrapper wrapper, Map<String, Double> values) {
+        final double[] array = new double[wrapper.getRequiredDatasources().size()];
+        int i = 0;
+        for (String ds : wrapper.getRequiredDatasources()) {
+            array[i++] = values.get(ds);
+        }
+        return array;
+    }
 }
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.threshd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.netmgt.config.threshd.Threshold;
+import org.opennms.netmgt.config.threshd.ThresholdType;
+import org.opennms.netmgt.dao.mock.MockEventIpcManager;
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.EventIpcManagerFactory;
+import org.opennms.netmgt.threshd.ThresholdEvaluatorHighLow.ThresholdEvaluatorStateHighLow;
+import org.opennms.netmgt.threshd.ThresholdEvaluatorState.Status;
+import org.opennms.netmgt.xml.event.Event;
+
+public class ThresholdStateStoreTest {
+
+    @Rule
+    public TemporaryFolder m_tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canKeepStatePerResource() {
+        final ThresholdStateStore store = new ThresholdStateStore(4, null, Long.MAX_VALUE);
+        final ThresholdEvaluatorStateHighLow state = createHighThreshold();
+        final List<ThresholdEvaluatorStateHighLow> states = Collections.singletonList(state);
+        final int[] thresholdIds = new int[] { store.getThresholdId("test/high") };
+
+        assertEquals(Status.TRIGGERED, store.withState("a", thresholdIds, states, () -> state.evaluate(100.0)));
+        assertEquals(Status.TRIGGERED, store.withState("b", thresholdIds, states, () -> state.evaluate(100.0)));
+        assertEquals(Status.NO_CHANGE, store.withState("a", thresholdIds, states, () -> state.evaluate(100.0)));
+        assertEquals(Status.RE_ARMED, store.withState("b", thresholdIds, states, () -> state.evaluate(0.1)));
+        assertEquals(2, store.size());
+
+        // The state of the evaluator itself is left untouched
+        assertTrue(state.isArmed());
+        assertEquals(0, state.getExceededCount());
+    }
+
+    @Test
+    public void canGrowSegments() {
+        final ThresholdStateStore store = new ThresholdStateStore(2, null, Long.MAX_VALUE);
+        final ThresholdEvaluatorStateHighLow state = createHighThreshold();
+        final List<ThresholdEvaluatorStateHighLow> states = Collections.singletonList(state);
+        final int[] thresholdIds = new int[] { store.getThresholdId("test/high") };
+
+        final int numResources = 10000;
+        for (int i = 0; i < numResources; i++) {
+            final double value = i % 2 == 0 ? 100.0 : 0.1;
+            store.withState("resource" + i, thresholdIds, states, () -> state.evaluate(value));
+        }
+        assertEquals(numResources, store.size());
+
+        for (int i = 0; i < numResources; i++) {
+            final boolean triggered = store.withState("resource" + i, thresholdIds, states, state::isTriggered);
+            assertEquals(i % 2 == 0, triggered);
+        }
+
+        store.clear();
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void canRestoreStateFromSnapshot() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "state.dat");
+        final ThresholdEvaluatorStateHighLow state = createHighThreshold();
+        final List<ThresholdEvaluatorStateHighLow> states = Collections.singletonList(state);
+
+        final ThresholdStateStore store = new ThresholdStateStore(4, file.toPath(), Long.MAX_VALUE);
+        final int[] thresholdIds = new int[] { store.getThresholdId("test/high") };
+        store.withState("a", thresholdIds, states, () -> state.evaluate(100.0));
+        store.withState("b", thresholdIds, states, () -> state.evaluate(0.1));
+        store.snapshot();
+        assertTrue(file.isFile());
+
+        final ThresholdStateStore restored = new ThresholdStateStore(8, file.toPath(), Long.MAX_VALUE);
+        restored.load();
+        assertEquals(2, restored.size());
+
+        final int[] restoredIds = new int[] { restored.getThresholdId("test/high") };
+        assertTrue(restored.withState("a", restoredIds, states, state::isTriggered));
+        assertFalse(restored.withState("b", restoredIds, states, state::isTriggered));
+        assertEquals(Status.NO_CHANGE, restored.withState("a", restoredIds, states, () -> state.evaluate(100.0)));
+        assertEquals(Status.RE_ARMED, restored.withState("a", restoredIds, states, () -> state.evaluate(0.1)));
+    }
+
+    @Test
+    public void doesNotLockTheResourceWhileRunningTheAction() throws Exception {
+        final ThresholdStateStore store = new ThresholdStateStore(1, null, Long.MAX_VALUE);
+        final ThresholdEvaluatorStateHighLow state = createHighThreshold();
+        final ThresholdEvaluatorStateHighLow otherState = createHighThreshold();
+        final int[] thresholdIds = new int[] { store.getThresholdId("test/high") };
+
+        final Thread thread = new Thread(() -> store.withState("a", thresholdIds, Collections.singletonList(otherState), () -> otherState.evaluate(100.0)));
+        store.withState("a", thresholdIds, Collections.singletonList(state), () -> {
+            thread.start();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void doesNotShareStateBetweenDefinitions() {
+        final ThresholdStateStore store = new ThresholdStateStore(4, null, Long.MAX_VALUE);
+        final CollectionResourceWrapper resource = new MockCollectionResourceWrapper("instance");
+        final Map<String, Double> values = Collections.singletonMap("ds-name", 100.0);
+
+        final ThresholdEntity entity = createEntity(store, 99.0, 2);
+        assertEquals(0, entity.evaluateAndCreateEvents(resource, values, new Date()).size());
+
+        // The count of the first definition must not carry over to the second one
+        final ThresholdEntity changed = createEntity(store, 98.0, 2);
+        assertEquals(0, changed.evaluateAndCreateEvents(resource, values, new Date()).size());
+        assertEquals(1, changed.evaluateAndCreateEvents(resource, values, new Date()).size());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void canSendRearmForTriggeredResourcesRestoredFromSnapshot() throws Exception {
+        final File file = new File(m_tempFolder.getRoot(), "state.dat");
+        final ThresholdStateStore store = new ThresholdStateStore(4, file.toPath(), Long.MAX_VALUE);
+        final ThresholdEntity entity = createEntity(store, 99.0, 1);
+        final CollectionResourceWrapper resource = new MockCollectionResourceWrapper("instance");
+        final List<Event> triggered = entity.evaluateAndCreateEvents(resource, Collections.singletonMap("ds-name", 100.0), new Date());
+        assertEquals(1, triggered.size());
+        store.snapshot();
+
+        final ThresholdStateStore restored = new ThresholdStateStore(4, file.toPath(), Long.MAX_VALUE);
+        restored.load();
+        final ThresholdEntity restoredEntity = createEntity(restored, 99.0, 1);
+        restoredEntity.restoreTriggeredResources(ThresholdStateStore.getResourceKeyPrefix(resource.getNodeId(), resource.getHostAddress(), resource.getServiceName()));
+
+        final MockEventIpcManager eventIpcManager = new MockEventIpcManager();
+        EventIpcManagerFactory.setIpcManager(eventIpcManager);
+        ThresholdingEventProxyFactory.getFactory().getProxy().removeAllEvents();
+        restoredEntity.delete();
+        ThresholdingEventProxyFactory.getFactory().getProxy().sendAllEvents();
+
+        final List<Event> rearmed = eventIpcManager.getEventAnticipator().getUnanticipatedEvents();
+        assertEquals(1, rearmed.size());
+        assertEquals(EventConstants.HIGH_THRESHOLD_REARM_EVENT_UEI, rearmed.get(0).getUei());
+        for (String parm : new String[] { "instance", "instanceLabel", "resourceId", "label" }) {
+            assertEquals(parm, triggered.get(0).getParm(parm).getValue().getContent(), rearmed.get(0).getParm(parm).getValue().getContent());
+        }
+    }
+
+    private static ThresholdEntity createEntity(ThresholdStateStore store, double value, int trigger) {
+        final Threshold threshold = new Threshold();
+        threshold.setType(ThresholdType.HIGH);
+        threshold.setDsName("ds-name");
+        threshold.setDsType("test");
+        threshold.setValue(value);
+        threshold.setRearm(0.5);
+        threshold.setTrigger(trigger);
+        final ThresholdEntity entity = new ThresholdEntity("test", store);
+        entity.addThreshold(new ThresholdConfigWrapper(threshold));
+        return entity;
+    }
+
+    private static ThresholdEvaluatorStateHighLow createHighThreshold() {
+        final Threshold threshold = new Threshold();
+        threshold.setType(ThresholdType.HIGH);
+        threshold.setDsName("ds-name");
+        threshold.setDsType("node");
+        threshold.setValue(99.0);
+        threshold.setRearm(0.5);
+        threshold.setTrigger(1);
+        return new ThresholdEvaluatorStateHighLow(new ThresholdConfigWrapper(threshold));
+    }
+}
@@ -0,0 +1,425 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.core.queue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FIFO queue of byte arrays backed by memory-mapped segment files.
+ *
+ * Each segment starts with a header containing the read and write
+ * positions, followed by length-prefixed records. Since both positions are
+ * stored in the mapped region, the queue survives restarts: existing
+ * segments are re-opened in order when the queue is created.
+ *
+ * The total number of bytes held by the queue is bounded, and fully
+ * consumed segments are deleted as soon as the reader moves past them.
+ */
+public class MappedSegmentQueue implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSegmentQueue.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int READ_POSITION_OFFSET = 0;
+    private static final int WRITE_POSITION_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    protected static final int HEADER_SIZE = 12;
+    protected static final int RECORD_OVERHEAD = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBytes;
+
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private long nextSegmentId = 0;
+    private long sizeInBytes = 0;
+    private long numRecords = 0;
+
+    public MappedSegmentQueue(Path directory, int segmentSize, long maxBytes) throws IOException {
+        this.directory = Objects.requireNonNull(directory);
+        if (segmentSize <= HEADER_SIZE + RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Segment size must be greater than " + (HEADER_SIZE + RECORD_OVERHEAD) + " bytes.");
+        }
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Appends the given record to the tail of the queue.
+     *
+     * @return <code>false</code> if the record could not be added without
+     * exceeding the maximum number of bytes
+     */
+    public synchronized boolean offer(byte[] record) throws IOException {
+        final int recordSize = RECORD_OVERHEAD + record.length;
+        if (sizeInBytes + recordSize > maxBytes) {
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.hasRoomFor(recordSize)) {
+            tail = createSegment(Math.max(segmentSize, HEADER_SIZE + recordSize));
+            segments.addLast(tail);
+        }
+        tail.append(record);
+        sizeInBytes += recordSize;
+        numRecords++;
+        return true;
+    }
+
+    /**
+     * Retrieves, but does not remove, the record at the head of the queue.
+     *
+     * @return the record, or <code>null</code> if the queue is empty
+     */
+    public synchronized byte[] peek() throws IOException {
+        final Segment head = getReadableHead();
+        return head != null ? head.peek() : null;
+    }
+
+    /**
+     * Retrieves, but does not remove, up to the given number of records
+     * from the head of the queue.
+     *
+     * @return the records, in queue order
+     */
+    public synchronized List<byte[]> peek(int maxRecords) throws IOException {
+        final List<byte[]> records = new ArrayList<>((int)Math.min(maxRecords, numRecords));
+        if (getReadableHead() == null) {
+            return records;
+        }
+        for (Segment segment : segments) {
+            if (records.size() >= maxRecords) {
+                break;
+            }
+            segment.peek(records, maxRecords - records.size());
+        }
+        return records;
+    }
+
+    /**
+     * Retrieves and removes the record at the head of the queue.
+     *
+     * @return the record, or <code>null</code> if the queue is empty
+     */
+    public synchronized byte[] poll() throws IOException {
+        final Segment head = getReadableHead();
+        if (head == null) {
+            return null;
+        }
+        final byte[] record = head.poll();
+        sizeInBytes -= RECORD_OVERHEAD + record.length;
+        numRecords--;
+        return record;
+    }
+
+    /**
+     * Removes up to the given number of records from the head of the queue,
+     * without reading them.
+     *
+     * @return the number of records that were removed
+     */
+    public synchronized int remove(int numRecordsToRemove) throws IOException {
+        int removed = 0;
+        Segment head;
+        while (removed < numRecordsToRemove && (head = getReadableHead()) != null) {
+            sizeInBytes -= RECORD_OVERHEAD + head.skip();
+            numRecords--;
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all of the records from the queue, and deletes the segments.
+     */
+    public synchronized void clear() throws IOException {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        sizeInBytes = 0;
+        numRecords = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return numRecords == 0;
+    }
+
+    public synchronized long getNumRecords() {
+        return numRecords;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Returns the first segment that has unread records, deleting
+     * any fully consumed segments along the way.
+     */
+    private Segment getReadableHead() throws IOException {
+        Segment head = segments.peekFirst();
+        while (head != null && !head.hasRemaining()) {
+            if (head == segments.peekLast()) {
+                // Keep the tail segment around so that we can continue appending to it
+                return null;
+            }
+            segments.removeFirst();
+            head.delete();
+            head = segments.peekFirst();
+        }
+        return head;
+    }
+
+    private Segment createSegment(int capacity) throws IOException {
+        final Path path = directory.resolve(String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+        final Segment segment = new Segment(path, capacity, true);
+        LOG.debug("Created new overflow segment: {}", path);
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        // Segment names are zero-padded, so lexical ordering matches creation ordering
+        Collections.sort(paths);
+
+        for (Path path : paths) {
+            final String fileName = path.getFileName().toString();
+            try {
+                final long segmentId = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+                nextSegmentId = Math.max(nextSegmentId, segmentId + 1);
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring unrecognized file in overflow directory: {}", path);
+                continue;
+            }
+
+            // The segment may be truncated if we crashed while creating it
+            final long size = Files.size(path);
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                LOG.warn("Overflow segment {} has an invalid size of {} bytes. Deleting it.", path, size);
+                Files.deleteIfExists(path);
+                continue;
+            }
+            final Segment segment = new Segment(path, (int)size, false);
+            if (!segment.recover()) {
+                LOG.warn("Overflow segment {} is corrupt. Deleting it.", path);
+                segment.delete();
+                continue;
+            }
+            segments.addLast(segment);
+            sizeInBytes += segment.getUnreadBytes();
+            numRecords += segment.getUnreadCount();
+        }
+
+        if (numRecords > 0) {
+            LOG.info("Recovered {} records ({} bytes) from {} overflow segments in {}.",
+                    numRecords, sizeInBytes, segments.size(), directory);
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+
+        private Segment(Path path, int capacity, boolean create) throws IOException {
+            this.path = path;
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                if (create) {
+                    file.setLength(capacity);
+                }
+                // The mapping remains valid after the file is closed
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            if (create) {
+                buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+                buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+                buffer.putInt(COUNT_OFFSET, 0);
+            }
+        }
+
+        private int getReadPosition() {
+            return buffer.getInt(READ_POSITION_OFFSET);
+        }
+
+        private int getWritePosition() {
+            return buffer.getInt(WRITE_POSITION_OFFSET);
+        }
+
+        private int getUnreadCount() {
+            return buffer.getInt(COUNT_OFFSET);
+        }
+
+        private long getUnreadBytes() {
+            return getWritePosition() - getReadPosition();
+        }
+
+        /**
+         * Validates the header and the records between the read and write positions.
+         *
+         * The count of unread records is rebuilt from the records, since it is
+         * stale if we crashed while appending or removing a record.
+         *
+         * @return <code>false</code> if the segment is corrupt
+         */
+        private boolean recover() {
+            if (buffer.capacity() < HEADER_SIZE) {
+                return false;
+            }
+            final int readPosition = getReadPosition();
+            final int writePosition = getWritePosition();
+            if (readPosition < HEADER_SIZE || readPosition > writePosition || writePosition > buffer.capacity()) {
+                return false;
+            }
+            int count = 0;
+            int position = readPosition;
+            while (position < writePosition) {
+                if (writePosition - position < RECORD_OVERHEAD) {
+                    return false;
+                }
+                final int length = buffer.getInt(position);
+                if (length < 0 || length > writePosition - position - RECORD_OVERHEAD) {
+                    return false;
+                }
+                position += RECORD_OVERHEAD + length;
+                count++;
+            }
+            buffer.putInt(COUNT_OFFSET, count);
+            return true;
+        }
+
+        private boolean hasRoomFor(int recordSize) {
+            return getWritePosition() + recordSize <= buffer.capacity();
+        }
+
+        private boolean hasRemaining() {
+            return getReadPosition() < getWritePosition();
+        }
+
+        private void append(byte[] record) {
+            final int writePosition = getWritePosition();
+            buffer.putInt(writePosition, record.length);
+            final ByteBuffer target = buffer.duplicate();
+            target.position(writePosition + RECORD_OVERHEAD);
+            target.put(record);
+            // Only publish the new write position once the record is fully written
+            buffer.putInt(WRITE_POSITION_OFFSET, writePosition + RECORD_OVERHEAD + record.length);
+            buffer.putInt(COUNT_OFFSET, getUnreadCount() + 1);
+        }
+
+        private byte[] read(int position) {
+            final byte[] record = new byte[buffer.getInt(position)];
+            final ByteBuffer source = buffer.duplicate();
+            source.position(position + RECORD_OVERHEAD);
+            source.get(record);
+            return record;
+        }
+
+        private byte[] peek() {
+            return read(getReadPosition());
+        }
+
+        private void peek(List<byte[]> records, int maxRecords) {
+            final int writePosition = getWritePosition();
+            int position = getReadPosition();
+            for (int i = 0; i < maxRecords && position < writePosition; i++) {
+                final byte[] record = read(position);
+                records.add(record);
+                position += RECORD_OVERHEAD + record.length;
+            }
+        }
+
+        private byte[] poll() {
+            final byte[] record = peek();
+            skip();
+            return record;
+        }
+
+        /**
+         * Moves past the record at the read position.
+         *
+         * @return the length of the record
+         */
+        private int skip() {
+            final int readPosition = getReadPosition();
+            final int length = buffer.getInt(readPosition);
+            buffer.putInt(READ_POSITION_OFFSET, readPosition + RECORD_OVERHEAD + length);
+            buffer.putInt(COUNT_OFFSET, getUnreadCount() - 1);
+            return length;
+        }
+
+        private void close() {
+            buffer.force();
+        }
+
+        private void delete() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2018-2018 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2018 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.core.queue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedSegmentQueueTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canQueueAndDequeueInOrderAcrossSegments() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(queue.offer(toBytes("message-" + i)));
+            }
+            assertEquals(100, queue.getNumRecords());
+            assertTrue(queue.getNumSegments() > 1);
+
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(toBytes("message-" + i), queue.peek());
+                assertArrayEquals(toBytes("message-" + i), queue.poll());
+            }
+            assertTrue(queue.isEmpty());
+            assertNull(queue.poll());
+            assertEquals(0, queue.getSizeInBytes());
+            // Only the tail segment should remain
+            assertEquals(1, queue.getNumSegments());
+        }
+    }
+
+    @Test
+    public void canBoundByBytes() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        final byte[] record = new byte[12];
+        final int recordSize = MappedSegmentQueue.RECORD_OVERHEAD + record.length;
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 1024, 3 * recordSize)) {
+            assertTrue(queue.offer(record));
+            assertTrue(queue.offer(record));
+            assertTrue(queue.offer(record));
+            assertFalse(queue.offer(record));
+            assertEquals(3 * recordSize, queue.getSizeInBytes());
+
+            queue.poll();
+            assertTrue(queue.offer(record));
+        }
+    }
+
+    @Test
+    public void canHandleRecordsLargerThanSegment() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        final byte[] large = new byte[4096];
+        large[4095] = 42;
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            assertTrue(queue.offer(toBytes("small")));
+            assertTrue(queue.offer(large));
+            assertArrayEquals(toBytes("small"), queue.poll());
+            assertArrayEquals(large, queue.poll());
+        }
+    }
+
+    @Test
+    public void canRecoverAfterReopening() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            for (int i = 0; i < 20; i++) {
+                queue.offer(toBytes("message-" + i));
+            }
+            for (int i = 0; i < 5; i++) {
+                queue.poll();
+            }
+        }
+
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            assertEquals(15, queue.getNumRecords());
+            queue.offer(toBytes("message-20"));
+            for (int i = 5; i <= 20; i++) {
+                assertArrayEquals(toBytes("message-" + i), queue.poll());
+            }
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void canRecoverWithTruncatedSegments() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            queue.offer(toBytes("message-0"));
+        }
+        // Segments left behind by a crash while they were being created
+        Files.write(dir.resolve("00000000000000000001.seg"), new byte[0]);
+        Files.write(dir.resolve("00000000000000000002.seg"), new byte[MappedSegmentQueue.HEADER_SIZE - 1]);
+
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            assertEquals(1, queue.getNumRecords());
+            assertEquals(1, queue.getNumSegments());
+            assertFalse(Files.exists(dir.resolve("00000000000000000001.seg")));
+            assertFalse(Files.exists(dir.resolve("00000000000000000002.seg")));
+
+            queue.offer(new byte[128]);
+            assertArrayEquals(toBytes("message-0"), queue.poll());
+            assertArrayEquals(new byte[128], queue.poll());
+        }
+    }
+
+    @Test
+    public void canRecoverTheRecordCount() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 1024, 1024 * 1024)) {
+            for (int i = 0; i < 3; i++) {
+                queue.offer(toBytes("message-" + i));
+            }
+        }
+        // Simulate a crash after the count was updated, but before the record was published
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve("00000000000000000000.seg").toFile(), "rw")) {
+            file.seek(8);
+            file.writeInt(4);
+        }
+
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 1024, 1024 * 1024)) {
+            assertEquals(3, queue.getNumRecords());
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals(toBytes("message-" + i), queue.poll());
+            }
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void canPeekAndRemoveBatchesAcrossSegments() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            for (int i = 0; i < 30; i++) {
+                queue.offer(toBytes("message-" + i));
+            }
+
+            List<byte[]> batch = queue.peek(25);
+            assertEquals(25, batch.size());
+            for (int i = 0; i < 25; i++) {
+                assertArrayEquals(toBytes("message-" + i), batch.get(i));
+            }
+            // Peeking doesn't consume
+            assertEquals(30, queue.getNumRecords());
+
+            assertEquals(25, queue.remove(batch.size()));
+            batch = queue.peek(25);
+            assertEquals(5, batch.size());
+            assertArrayEquals(toBytes("message-25"), batch.get(0));
+
+            assertEquals(5, queue.remove(25));
+            assertTrue(queue.isEmpty());
+            assertEquals(0, queue.getSizeInBytes());
+            assertTrue(queue.peek(25).isEmpty());
+        }
+    }
+
+    @Test
+    public void canClear() throws Exception {
+        final Path dir = tempFolder.newFolder().toPath();
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            for (int i = 0; i < 20; i++) {
+                queue.offer(toBytes("message-" + i));
+            }
+            queue.clear();
+            assertTrue(queue.isEmpty());
+            assertEquals(0, queue.getNumSegments());
+
+            queue.offer(toBytes("message-20"));
+            assertArrayEquals(toBytes("message-20"), queue.poll());
+        }
+
+        try (MappedSegmentQueue queue = new MappedSegmentQueue(dir, 64, 1024 * 1024)) {
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    private static byte[] toBytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}